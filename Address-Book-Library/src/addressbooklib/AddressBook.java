@@ -1,21 +1,290 @@
 package addressbooklib;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * AddressBook class
  * Stores Entries consisting of 
  * contact name, telephone number, postal address, email address and a note, 
  * and Allows adding, removing, searching an Entry
- * as well as importing and exporting address book files
+ * as well as importing and exporting address book files.
+ * The book is safe to share between threads: searches take no locks,
+ * changes to different entries proceed in parallel,
+ * and an import replaces the whole content at once.
+ * snapshot() hands out a consistent view for long scans that writers do not wait for
  * @author Shuang
  */
 public class AddressBook {
-  private Set<AddressEntry> addressBook;
+  private static final int LOCK_STRIPES = 64;
+  // Below this size a PARALLEL search runs on the calling thread
+  private static final int PARALLEL_MIN_ENTRIES = 8192;
+  
+  private volatile Contents contents;
+  private final ReentrantLock[] writeLocks;
+  private WriteAheadLog log;
+  private EntryStore store;
   
   public AddressBook() {
-	  addressBook = new HashSet<AddressEntry>();
+	  contents = new Contents(PersistentEntrySet.EMPTY);
+	  writeLocks = newLocks();
+  }
+  
+  private AddressBook(EntryStore store) {
+    contents = new Contents(store);
+    this.store = store;
+    writeLocks = newLocks();
+  }
+  
+  /**
+   * Contents class
+   * The entries of the book together with the indexes over them.
+   * Readers take one reference and use it for a whole search,
+   * and an import publishes a fully built replacement in a single write.
+   * In memory the entries are a PersistentEntrySet swapped on every change,
+   * so reading the current version yields a snapshot for free
+   */
+  private static class Contents {
+    final AtomicReference<PersistentEntrySet> root;
+    final EntryStore store;
+    final Map<AddressField, TrigramIndex> fieldIndexes;
+    final ExactMatchIndex phoneIndex;
+    final ExactMatchIndex emailIndex;
+    final PhoneTrie phoneTrie;
+    final BkTree nameTree;
+    final PhoneticIndex nameSounds;
+    final OrderedIndex ordered;
+    final CompletionTrie completions;
+    final List<EntryIndex> indexes = new ArrayList<EntryIndex>();
+    // The values packed for SearchMode.SCAN, rebuilt once the entries change
+    volatile PackedText packedText;
+    
+    /**
+     * Constructor for entries kept in an EntryStore, without in-memory indexes
+     * @param store: the EntryStore holding the entries
+     */
+    Contents(EntryStore store) {
+      root = null;
+      this.store = store;
+      fieldIndexes = null;
+      phoneIndex = null;
+      emailIndex = null;
+      phoneTrie = null;
+      nameTree = null;
+      nameSounds = null;
+      ordered = null;
+      completions = null;
+    }
+    
+    /**
+     * Constructor for entries kept in memory, with empty indexes
+     * @param entries: the initial entries, not yet in the indexes
+     */
+    Contents(PersistentEntrySet entries) {
+      root = new AtomicReference<PersistentEntrySet>(entries);
+      store = null;
+      fieldIndexes = new EnumMap<AddressField, TrigramIndex>(AddressField.class);
+      for (AddressField field: AddressField.values()) {
+        TrigramIndex index = new TrigramIndex(field);
+        fieldIndexes.put(field, index);
+        indexes.add(index);
+      }
+      phoneIndex = new ExactMatchIndex(AddressField.PHONE_NUMBER, false);
+      emailIndex = new ExactMatchIndex(AddressField.EMAIL_ADDRESS, true);
+      indexes.add(phoneIndex);
+      indexes.add(emailIndex);
+      phoneTrie = new PhoneTrie();
+      indexes.add(phoneTrie);
+      nameTree = new BkTree(AddressField.CONTACT_NAME);
+      indexes.add(nameTree);
+      nameSounds = new PhoneticIndex(AddressField.CONTACT_NAME);
+      indexes.add(nameSounds);
+      ordered = new OrderedIndex();
+      indexes.add(ordered);
+      completions = new CompletionTrie();
+      indexes.add(completions);
+    }
+    
+    /**
+     * @return the entries; in memory an immutable version that later changes do not affect
+     */
+    Set<AddressEntry> entries() {
+      return (store != null) ? store : root.get();
+    }
+    
+    /**
+     * @return the packed values of the current in-memory version
+     */
+    PackedText packedText() {
+      PersistentEntrySet current = root.get();
+      PackedText packed = packedText;
+      if (packed == null || !packed.isBuiltFrom(current)) {
+        packed = PackedText.build(current);
+        packedText = packed;
+      }
+      return packed;
+    }
+    
+    boolean add(AddressEntry entry) {
+      if (store != null) {
+        return store.add(entry);
+      }
+      PersistentEntrySet current;
+      PersistentEntrySet updated;
+      do {
+        current = root.get();
+        updated = current.plus(entry);
+        if (updated == current) {
+          return false;
+        }
+      } while (!root.compareAndSet(current, updated));
+      return true;
+    }
+    
+    boolean remove(AddressEntry entry) {
+      if (store != null) {
+        return store.remove(entry);
+      }
+      PersistentEntrySet current;
+      PersistentEntrySet updated;
+      do {
+        current = root.get();
+        updated = current.minus(entry);
+        if (updated == current) {
+          return false;
+        }
+      } while (!root.compareAndSet(current, updated));
+      return true;
+    }
+    
+    /**
+     * Swaps oldEntry for newEntry in one step
+     * @return false if oldEntry is not in the book
+     */
+    boolean replace(AddressEntry oldEntry, AddressEntry newEntry) {
+      if (store != null) {
+        return store.replace(oldEntry, newEntry);
+      }
+      PersistentEntrySet current;
+      PersistentEntrySet updated;
+      do {
+        current = root.get();
+        updated = current.minus(oldEntry);
+        if (updated == current) {
+          return false;
+        }
+        updated = updated.plus(newEntry);
+      } while (!root.compareAndSet(current, updated));
+      return true;
+    }
+    
+    /**
+     * Swaps the entries of a cluster for the entry merged from them,
+     * in memory in one step
+     */
+    void merge(List<AddressEntry> cluster, AddressEntry merged) {
+      if (store != null) {
+        store.add(merged);
+        for (AddressEntry e: cluster) {
+          if (!e.equals(merged)) {
+            store.remove(e);
+          }
+        }
+        return;
+      }
+      PersistentEntrySet current;
+      PersistentEntrySet updated;
+      do {
+        current = root.get();
+        updated = current.plus(merged);
+        for (AddressEntry e: cluster) {
+          if (!e.equals(merged)) {
+            updated = updated.minus(e);
+          }
+        }
+      } while (!root.compareAndSet(current, updated));
+    }
+  }
+  
+  /**
+   * Opens an address book kept in an on-disk storage engine, for books larger than the heap
+   * Entries live in sorted segment files and only recent changes are held in memory.
+   * Such a book keeps no in-memory indexes, so every search scans the stored entries.
+   * The book must be closed to write out its last changes
+   * @param directory: a String indicating the storage directory, created if missing
+   * @return the AddressBook stored in the directory
+   * @throws IOException if the storage cannot be opened
+   */
+  public static AddressBook openStorageEngine(String directory) throws IOException {
+    return new AddressBook(LsmEntryStore.open(Paths.get(directory)));
+  }
+  
+  /**
+   * Creates an empty address book that keeps its entries in compact columns,
+   * for books too large to hold as one object per entry
+   * Entries take several times less heap, repeated postal addresses and notes
+   * are stored once, and entries are only built as they are read.
+   * Such a book keeps no in-memory indexes, so every search scans the columns
+   * @return an empty column-backed AddressBook
+   */
+  public static AddressBook createColumnar() {
+    return new AddressBook(new ColumnarEntryStore());
+  }
+  
+  /**
+   * Creates an empty address book that keeps its entries outside the Java heap,
+   * so that garbage collection pauses do not grow with the size of the book
+   * Entries are encoded into direct memory, and only a table of handles stays on the heap.
+   * Such a book keeps no in-memory indexes, so every search scans the stored entries.
+   * The book must be closed to release its memory
+   * @return an empty off-heap AddressBook
+   */
+  public static AddressBook createOffHeap() {
+    return new AddressBook(new OffHeapEntryStore());
+  }
+  
+  /**
+   * Rebuilds an address book from a write-ahead log and keeps logging to it
+   * The newest checkpoint in the log directory is loaded, the log written since
+   * is replayed on top of it, and every later change of the returned book is logged
+   * @param log: a WriteAheadLog that was just built and not used yet
+   * @return the recovered AddressBook
+   * @throws IOException if the checkpoint or the log cannot be read
+   */
+  public static AddressBook recover(WriteAheadLog log) throws IOException {
+    final AddressBook book = new AddressBook();
+    Path checkpoint = log.latestCheckpoint();
+    if (checkpoint != null) {
+      book.loadSnapshot(checkpoint.toString());
+    }
+    log.replay(new WriteAheadLog.Replayer() {
+      public void add(AddressEntry entry) {
+        book.addEntry(entry);
+      }
+      
+      public void remove(AddressEntry entry) {
+        book.removeEntry(entry);
+      }
+      
+      public void update(AddressEntry oldEntry, AddressEntry newEntry) {
+        book.replaceEntry(oldEntry, newEntry);
+      }
+      
+      public void merge(List<AddressEntry> cluster, AddressEntry merged) {
+        book.mergeEntries(cluster, merged);
+      }
+    });
+    book.log = log;
+    
+    return book;
   }
   
   /**
@@ -23,97 +292,1283 @@ public class AddressBook {
    * @param entry: an instance of AddressEntry
    * @return true if the new entry is successfully added, 
    *         false if unsuccessfully or new entry is null
+   * @throws UncheckedIOException if the book is logged and the log cannot be written,
+   *         in which case the book is left unchanged
    */
   public boolean addEntry(AddressEntry entry) {
     if (entry == null) {
       return false;
     }
     
-    return addressBook.add(entry);
+    ReentrantLock lock = lockFor(entry);
+    lock.lock();
+    try {
+      Contents current = contents;
+      if (current.entries().contains(entry)) {
+        return false;
+      }
+      
+      // Logged first, so a failed append leaves the book unchanged
+      if (log != null) {
+        try {
+          log.logAdd(entry);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      current.add(entry);
+      for (EntryIndex index: current.indexes) {
+        index.add(entry);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
   }
   
   /**
    * Removes an entry from the address book (after finding the entry in the address book)
    * @param entry: an AddressEntry instance
    * @return true if removal is successfully done, false otherwise
+   * @throws UncheckedIOException if the book is logged and the log cannot be written,
+   *         in which case the book is left unchanged
    */
   public boolean removeEntry(AddressEntry entry) {
-    return addressBook.remove(entry);
+    if (entry == null) {
+      return false;
+    }
+    
+    ReentrantLock lock = lockFor(entry);
+    lock.lock();
+    try {
+      Contents current = contents;
+      if (!current.entries().contains(entry)) {
+        return false;
+      }
+      
+      // Logged first, so a failed append leaves the book unchanged
+      if (log != null) {
+        try {
+          log.logRemove(entry);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      current.remove(entry);
+      for (EntryIndex index: current.indexes) {
+        index.remove(entry);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Replaces an entry with a modified copy
+   * The mutator changes a Builder holding the values of the entry, and the built
+   * entry takes its place in the book, every index and the log in one step
+   * @param entry: the AddressEntry to update
+   * @param mutator: sets the changed fields on the Builder, 
+   *        e.g. builder -> builder.phoneNumber("2125550100")
+   * @return the updated entry, or null if entry is not in the address book
+   * @throws IllegalArgumentException if the mutator sets an invalid phone number or email
+   * @throws UncheckedIOException if the book is logged and the log cannot be written,
+   *         in which case the book is left unchanged
+   */
+  public AddressEntry updateEntry(AddressEntry entry, Consumer<AddressEntry.Builder> mutator) {
+    if (entry == null) {
+      return null;
+    }
+    AddressEntry.Builder builder = entry.toBuilder();
+    mutator.accept(builder);
+    AddressEntry updated = builder.build();
+    
+    return replaceEntry(entry, updated) ? updated : null;
   }
   
   /**
    * Searches a list of entries by using a given String as keyword
    * @param key: a String indicates part of an AddressEntry information
-   * @return a List of AddressEntry
+   * @return a List of AddressEntry, each matching entry appears once
    */
   public List<AddressEntry> searchEntry(String key) {
-    List<AddressEntry> searchResult = new ArrayList<AddressEntry>();
-    String key_lowerCase = key.toLowerCase();
-    for (AddressEntry e: addressBook) {
-      if (e.getContactName().toLowerCase().contains(key_lowerCase)) {
-        searchResult.add(e);
-      }
-      if (e.getPostalAddress().toLowerCase().contains(key_lowerCase)) {
-        searchResult.add(e);
+    return searchEntry(key, SearchMode.INDEXED);
+  }
+  
+  /**
+   * Searches a list of entries by using a given String as keyword
+   * @param key: a String indicates part of an AddressEntry information
+   * @param mode: the SearchMode deciding how entries are looked for
+   * @return a List of AddressEntry, each matching entry appears once
+   */
+  public List<AddressEntry> searchEntry(String key, SearchMode mode) {
+    Contents current = contents;
+    String normalizedKey = SubstringMatcher.normalize(key);
+    SubstringMatcher matcher = new SubstringMatcher(normalizedKey);
+    if (mode == SearchMode.PARALLEL && current.store == null) {
+      // One pass testing all fields, so partitions are visited once
+      return parallelMatches(current.root.get(), e -> matchesAnyField(e, matcher));
+    }
+    Set<AddressEntry> searchResult = new LinkedHashSet<AddressEntry>();
+    for (AddressField field: AddressField.values()) {
+      collectMatches(current, field, normalizedKey, matcher, mode, searchResult);
+    }
+    
+    return new ArrayList<AddressEntry>(searchResult);
+  }
+  
+  /**
+   * Searches a list of entries whose given field contains the keyword
+   * Only the index and values of that field are consulted
+   * @param field: the AddressField to search in
+   * @param key: a String indicates part of the field value
+   * @return a List of AddressEntry, each matching entry appears once
+   */
+  public List<AddressEntry> searchEntry(AddressField field, String key) {
+    return searchEntry(field, key, SearchMode.INDEXED);
+  }
+  
+  /**
+   * Searches a list of entries whose given field contains the keyword
+   * @param field: the AddressField to search in
+   * @param key: a String indicates part of the field value
+   * @param mode: the SearchMode deciding how entries are looked for
+   * @return a List of AddressEntry, each matching entry appears once
+   */
+  public List<AddressEntry> searchEntry(AddressField field, String key, SearchMode mode) {
+    String normalizedKey = SubstringMatcher.normalize(key);
+    Set<AddressEntry> searchResult = new LinkedHashSet<AddressEntry>();
+    collectMatches(contents, field, normalizedKey, new SubstringMatcher(normalizedKey), mode,
+        searchResult);
+    
+    return new ArrayList<AddressEntry>(searchResult);
+  }
+  
+  /**
+   * Searches the entries matching a structured query, e.g.
+   * name:smith AND email:*@acme.com AND NOT note:inactive
+   * Terms are field:value or a bare value for any field, with name, address,
+   * phone, email and note as fields; values may be double-quoted.
+   * A value matches fields containing it, or with '*' the whole field, '*' standing
+   * for any characters. Terms combine with AND (also implied between terms),
+   * OR, NOT and parentheses. The most selective term the indexes can serve
+   * supplies the candidates, and the other terms only filter those
+   * @param query: the query text
+   * @return a List of AddressEntry, each matching entry appears once
+   * @throws IllegalArgumentException if the query is malformed
+   */
+  public List<AddressEntry> query(String query) {
+    Query parsed = Query.parse(query);
+    Contents current = contents;
+    if (current.store != null) {
+      try (AddressBookSnapshot snapshot = current.store.snapshot()) {
+        return parsed.run(null, snapshot);
       }
-      if (e.getPhoneNumber().contains(key)) {
-        searchResult.add(e);
+    }
+    return parsed.run(current.fieldIndexes, current.entries());
+  }
+  
+  /**
+   * Describes how query would evaluate a structured query right now
+   * @param query: the query text
+   * @return the plan, one line per term or operator in evaluation order,
+   *         with the number of entries the indexes let it match at most
+   * @throws IllegalArgumentException if the query is malformed
+   */
+  public String explainQuery(String query) {
+    Query parsed = Query.parse(query);
+    Contents current = contents;
+    return parsed.explain(current.fieldIndexes, current.entries().size());
+  }
+  
+  /**
+   * Searches the entries most relevant to a keyword
+   * An entry ranks higher the more important the fields containing the keyword,
+   * name first and note last, and the closer the match is to the whole value:
+   * equal to it, then starting it, then starting one of its words, then anywhere.
+   * Only the best entries are kept while matching, so a broad keyword
+   * costs O(n log limit) rather than sorting every match
+   * @param key: a String indicates part of an AddressEntry information
+   * @param limit: the largest number of entries to return
+   * @return a List of at most limit AddressEntry, most relevant first
+   * @throws IllegalArgumentException if limit is not positive
+   */
+  public List<AddressEntry> searchTopEntries(String key, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Limit must be positive: " + limit);
+    }
+    String normalizedKey = SubstringMatcher.normalize(key);
+    RankedMatches ranked = new RankedMatches(new SubstringMatcher(normalizedKey), limit);
+    Contents current = contents;
+    if (current.store != null) {
+      try (AddressBookSnapshot snapshot = current.store.snapshot()) {
+        for (AddressEntry e: snapshot) {
+          ranked.offer(e);
+        }
       }
-      if (e.getEmailAddress().toLowerCase().contains(key_lowerCase)) {
-        searchResult.add(e);
+      return ranked.best();
+    }
+    
+    List<Set<AddressEntry>> candidateSets = new ArrayList<Set<AddressEntry>>();
+    for (TrigramIndex index: current.fieldIndexes.values()) {
+      Set<AddressEntry> candidates = index.candidates(normalizedKey);
+      if (candidates == null) {
+        // Keys shorter than a trigram rank every entry
+        for (AddressEntry e: current.entries()) {
+          ranked.offer(e);
+        }
+        return ranked.best();
       }
-      if (e.getNote().toLowerCase().contains(key_lowerCase)) {
-        searchResult.add(e);
+      candidateSets.add(candidates);
+    }
+    for (int i = 0; i < candidateSets.size(); i++) {
+      for (AddressEntry e: candidateSets.get(i)) {
+        // Offer each entry once, from the first field listing it
+        boolean offered = false;
+        for (int j = 0; j < i && !offered; j++) {
+          offered = candidateSets.get(j).contains(e);
+        }
+        if (!offered) {
+          ranked.offer(e);
+        }
       }
     }
+    return ranked.best();
+  }
+  
+  /**
+   * Searches the first page of entries by using a given String as keyword
+   * Entries are matched lazily and the search stops once the page is full,
+   * so even a single-letter key only looks at the entries it needs
+   * @param key: a String indicates part of an AddressEntry information
+   * @param limit: the largest number of entries on the page
+   * @return a SearchPage of at most limit entries, each matching entry appears once
+   * @throws IllegalArgumentException if limit is not positive
+   */
+  public SearchPage searchPage(String key, int limit) {
+    return searchPage(key, 0, limit);
+  }
+  
+  /**
+   * Searches a page of entries after skipping the first matching ones
+   * @param key: a String indicates part of an AddressEntry information
+   * @param offset: the number of matching entries to skip
+   * @param limit: the largest number of entries on the page
+   * @return a SearchPage of at most limit entries
+   * @throws IllegalArgumentException if offset is negative or limit is not positive
+   */
+  public SearchPage searchPage(String key, int offset, int limit) {
+    if (offset < 0) {
+      throw new IllegalArgumentException("Negative offset: " + offset);
+    }
+    return page(contents, key, null, offset, limit);
+  }
+  
+  /**
+   * Resumes a search right after the page that returned the continuation token
+   * @param key: the String the previous page was searched with
+   * @param continuationToken: the token of the previous page, or null for the first page
+   * @param limit: the largest number of entries on the page
+   * @return a SearchPage of at most limit entries
+   * @throws IllegalArgumentException if the token does not come from this book
+   *         or limit is not positive
+   */
+  public SearchPage searchPage(String key, String continuationToken, int limit) {
+    return page(contents, key, continuationToken, 0, limit);
+  }
+  
+  /**
+   * Finds the entries whose phone number is exactly the given number
+   * @param phoneNumber: the phone number to look up
+   * @return a List of AddressEntry, empty if no entry has this number
+   */
+  public List<AddressEntry> findByPhoneNumber(String phoneNumber) {
+    Contents current = contents;
+    if (current.phoneIndex == null) {
+      return scanExact(current, AddressField.PHONE_NUMBER, phoneNumber, false);
+    }
+    return new ArrayList<AddressEntry>(current.phoneIndex.find(phoneNumber));
+  }
+  
+  /**
+   * Finds the entries whose email address is the given address, ignoring case
+   * @param emailAddress: the email address to look up
+   * @return a List of AddressEntry, empty if no entry has this address
+   */
+  public List<AddressEntry> findByEmailAddress(String emailAddress) {
+    Contents current = contents;
+    if (current.emailIndex == null) {
+      return scanExact(current, AddressField.EMAIL_ADDRESS, emailAddress, true);
+    }
+    return new ArrayList<AddressEntry>(current.emailIndex.find(emailAddress));
+  }
+  
+  /**
+   * Lists the entries whose phone number starts with the given digits,
+   * e.g. an area code or the digits typed so far into a dialer
+   * @param prefix: the leading digits of the phone number
+   * @param limit: the maximum number of entries to return
+   * @return a List of at most limit AddressEntry in lexicographic phone number order,
+   *         empty if prefix contains anything but digits
+   */
+  public List<AddressEntry> searchPhonePrefix(String prefix, int limit) {
+    Contents current = contents;
+    if (current.phoneTrie == null) {
+      return scanPhonePrefix(current, prefix, limit);
+    }
+    return current.phoneTrie.startingWith(prefix, limit);
+  }
+  
+  /**
+   * Finds the entries whose contact name is at most a few typing errors away
+   * from the given name, counting each inserted, deleted or replaced character
+   * and each swap of adjacent characters as one error; so "Jonh Smtih" finds
+   * "John Smith" at distance 2. Names are compared after the same case and
+   * Unicode normalization as searchEntry
+   * @param name: the possibly mistyped contact name
+   * @param maxDistance: the largest number of errors to accept
+   * @return a List of AddressEntry, closest names first,
+   *         and names at the same distance in alphabetical order
+   * @throws IllegalArgumentException if maxDistance is negative
+   */
+  public List<AddressEntry> fuzzySearchName(String name, int maxDistance) {
+    if (maxDistance < 0) {
+      throw new IllegalArgumentException("Negative edit distance: " + maxDistance);
+    }
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    if (name == null) {
+      return result;
+    }
+    String key = SubstringMatcher.normalize(name);
+    Contents current = contents;
+    if (current.nameTree != null) {
+      return current.nameTree.within(key, maxDistance);
+    }
+    
+    // Without the tree, measure every name and sort the close ones
+    EditDistance distance = new EditDistance(key);
+    current.store.select(AddressField.CONTACT_NAME, value -> value != null
+        && distance.to(SubstringMatcher.normalize(value)) <= maxDistance, result);
+    Map<AddressEntry, Integer> distances = new HashMap<AddressEntry, Integer>();
+    for (AddressEntry e: result) {
+      distances.put(e, distance.to(e.normalizedValue(AddressField.CONTACT_NAME)));
+    }
+    result.sort(Comparator.comparing((AddressEntry e) -> distances.get(e))
+        .thenComparing(e -> e.normalizedValue(AddressField.CONTACT_NAME)));
+    return result;
+  }
+  
+  /**
+   * Finds the entries whose contact name sounds like the given name,
+   * e.g. "Shwang" finds "Shuang" and "Jon Smyth" finds "John Smith".
+   * Every word of the given name must sound like some word of the contact name,
+   * so a single word finds the contact by first or last name
+   * @param name: the name as heard
+   * @return a List of AddressEntry, empty if name has no letters
+   */
+  public List<AddressEntry> searchBySound(String name) {
+    List<String> codes = PhoneticCode.ofWords(name);
+    Contents current = contents;
+    if (current.nameSounds != null) {
+      return new ArrayList<AddressEntry>(current.nameSounds.find(codes));
+    }
     
-    return searchResult;
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    if (!codes.isEmpty()) {
+      current.store.select(AddressField.CONTACT_NAME,
+          value -> PhoneticCode.ofWords(value).containsAll(codes), result);
+    }
+    return result;
+  }
+  
+  /**
+   * @return the first entry in name order, the order of AddressEntry.compareTo
+   *         with ties broken by exact values, or null if the book is empty
+   */
+  public AddressEntry firstEntry() {
+    Contents current = contents;
+    if (current.ordered == null) {
+      return scanExtreme(current, -1);
+    }
+    return current.ordered.first();
+  }
+  
+  /**
+   * @return the last entry in name order, or null if the book is empty
+   */
+  public AddressEntry lastEntry() {
+    Contents current = contents;
+    if (current.ordered == null) {
+      return scanExtreme(current, 1);
+    }
+    return current.ordered.last();
+  }
+  
+  /**
+   * Lists the entries in name order, one page at a time
+   * A page starts right after the last entry of the previous one, so pages
+   * neither skip nor repeat entries while the book changes between them
+   * @param after: the last entry of the previous page, or null for the first page
+   * @param limit: the largest number of entries to list
+   * @return a List of at most limit AddressEntry in name order
+   * @throws IllegalArgumentException if limit is not positive
+   */
+  public List<AddressEntry> listEntries(AddressEntry after, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Limit must be positive: " + limit);
+    }
+    Contents current = contents;
+    if (current.ordered == null) {
+      return sortedScan(current, after, null, null, limit);
+    }
+    return current.ordered.after(after, limit);
+  }
+  
+  /**
+   * Lists the entries whose contact name lies in a range, ignoring case,
+   * e.g. listByName("Ma", "Mc", 50) lists names from "Ma" up to "McDonald"
+   * @param from: the smallest name to list, or null to start with the first entry
+   * @param to: the largest name prefix to list, or null to list up to the last entry
+   * @param limit: the largest number of entries to list
+   * @return a List of at most limit AddressEntry in name order
+   * @throws IllegalArgumentException if limit is not positive
+   */
+  public List<AddressEntry> listByName(String from, String to, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Limit must be positive: " + limit);
+    }
+    Contents current = contents;
+    if (current.ordered == null) {
+      return sortedScan(current, null, from, to, limit);
+    }
+    return current.ordered.byName(from, to, limit);
+  }
+  
+  /**
+   * Suggests contacts as a name is typed: the entries whose contact name,
+   * or any word of it, starts with the prefix, ignoring case and accents.
+   * The contacts used most recently come first, so after recordUse(entry)
+   * the entry is the first suggestion for every prefix of its name
+   * @param prefix: the typed start of a name, the empty string suggests every contact
+   * @param limit: the largest number of entries to suggest
+   * @return a List of at most limit AddressEntry, the most recently used first and
+   *         contacts never used in alphabetical order of the completed name;
+   *         books kept in an EntryStore do not track use and only sort alphabetically
+   * @throws IllegalArgumentException if limit is not positive
+   */
+  public List<AddressEntry> completeName(String prefix, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Limit must be positive: " + limit);
+    }
+    if (prefix == null) {
+      return new ArrayList<AddressEntry>();
+    }
+    String key = SubstringMatcher.normalize(prefix);
+    Contents current = contents;
+    if (current.completions != null) {
+      return current.completions.complete(key, limit);
+    }
+    
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    current.store.select(AddressField.CONTACT_NAME, value ->
+        CompletionTrie.completion(SubstringMatcher.normalize(value), key) != null, result);
+    Map<AddressEntry, String> completions = new HashMap<AddressEntry, String>();
+    for (AddressEntry e: result) {
+      completions.put(e,
+          CompletionTrie.completion(e.normalizedValue(AddressField.CONTACT_NAME), key));
+    }
+    result.sort(Comparator.comparing((AddressEntry e) -> completions.get(e))
+        .thenComparing(AddressEntry.ORDER));
+    return (result.size() > limit) ? new ArrayList<AddressEntry>(result.subList(0, limit))
+        : result;
+  }
+  
+  /**
+   * Records that a contact was used, e.g. called or written to,
+   * making it the first suggestion of completeName for its name
+   * @param entry: the used AddressEntry
+   * @return true if the use was recorded, false if the entry is not in the book
+   *         or the book is kept in an EntryStore
+   */
+  public boolean recordUse(AddressEntry entry) {
+    if (entry == null) {
+      return false;
+    }
+    Contents current = contents;
+    return current.completions != null && current.completions.recordUse(entry);
+  }
+  
+  /**
+   * Merges contacts entered more than once, e.g. by several imports, that equals
+   * misses because they differ in case, a typo of the name or the note.
+   * Only entries sharing a phone number, an email address or a name sounding alike
+   * are compared, each cluster of duplicates becomes one entry keeping the most
+   * complete values and every distinct note, and the other entries are removed.
+   * A cluster is swapped for its merged entry as one change, logged as one record.
+   * Names must be equal but for case, accents and word order, or one edit apart
+   * with equal email addresses; findDuplicates() also reports looser matches
+   * @return a DeduplicationReport of the merges and the throughput of the run
+   */
+  public DeduplicationReport deduplicate() {
+    return deduplicate(null);
+  }
+  
+  /**
+   * Merges duplicates like deduplicate(), comparing only pairs involving
+   * the given entries, e.g. those imported since the last run;
+   * in memory they are looked up in the indexes without visiting the other entries
+   * @param added: the entries added since the last run, entries no longer in the book
+   *        are skipped; null compares every pair like deduplicate()
+   * @return a DeduplicationReport of the merges and the throughput of the run
+   */
+  public DeduplicationReport deduplicate(Collection<AddressEntry> added) {
+    long start = System.nanoTime();
+    Contents current = contents;
+    Set<AddressEntry> fresh = inBook(current, added);
+    DuplicateDetector detector = new DuplicateDetector(fresh, false);
+    int checked = findCandidates(current, fresh, detector);
+    
+    List<List<AddressEntry>> clusters = detector.clusters();
+    List<AddressEntry> merged = new ArrayList<AddressEntry>();
+    int removed = 0;
+    for (List<AddressEntry> cluster: clusters) {
+      AddressEntry entry = DuplicateDetector.merge(cluster, DuplicateDetector.base(cluster));
+      int taken = mergeEntries(cluster, entry);
+      // A cluster with an entry changed meanwhile is left for the next run
+      if (taken >= 0) {
+        removed += taken;
+        merged.add(entry);
+      }
+    }
+    return new DeduplicationReport(checked, detector.candidatePairs(),
+        detector.duplicatePairs(), clusters, merged, removed, System.nanoTime() - start);
+  }
+  
+  /**
+   * Reports clusters of contacts that may have been entered more than once,
+   * without merging or removing anything.
+   * Besides the duplicates deduplicate() merges, a pair matches when its fields
+   * are alike overall, e.g. names a letter apart sharing an address and a phone number,
+   * which may as well be two people of one household, so the clusters are left to review
+   * @return a DeduplicationReport of the clusters found, none of them merged
+   */
+  public DeduplicationReport findDuplicates() {
+    return findDuplicates(null);
+  }
+  
+  /**
+   * Reports possible duplicates like findDuplicates(), comparing only pairs involving
+   * the given entries, e.g. those imported since the last run
+   * @param added: the entries added since the last run, entries no longer in the book
+   *        are skipped; null compares every pair like findDuplicates()
+   * @return a DeduplicationReport of the clusters found, none of them merged
+   */
+  public DeduplicationReport findDuplicates(Collection<AddressEntry> added) {
+    long start = System.nanoTime();
+    Contents current = contents;
+    Set<AddressEntry> fresh = inBook(current, added);
+    DuplicateDetector detector = new DuplicateDetector(fresh, true);
+    int checked = findCandidates(current, fresh, detector);
+    return new DeduplicationReport(checked, detector.candidatePairs(),
+        detector.duplicatePairs(), detector.clusters(), Collections.<AddressEntry>emptyList(),
+        0, System.nanoTime() - start);
+  }
+  
+  /**
+   * @return the given entries still in the book, or null if none are given
+   */
+  private static Set<AddressEntry> inBook(Contents current, Collection<AddressEntry> added) {
+    if (added == null) {
+      return null;
+    }
+    Set<AddressEntry> fresh = new HashSet<AddressEntry>();
+    for (AddressEntry e: added) {
+      if (e != null && current.entries().contains(e)) {
+        fresh.add(e);
+      }
+    }
+    return fresh;
+  }
+  
+  /**
+   * Collects the candidate pairs of a run, from the indexes for the added entries
+   * of a book in memory, otherwise by scanning every entry
+   * @return the number of entries checked
+   */
+  private static int findCandidates(Contents current, Set<AddressEntry> fresh,
+      DuplicateDetector detector) {
+    if (fresh != null && current.store == null) {
+      detector.probe(current.phoneIndex, current.emailIndex, current.nameSounds);
+      return fresh.size();
+    }
+    if (current.store != null) {
+      try (AddressBookSnapshot snapshot = current.store.snapshot()) {
+        detector.scan(snapshot);
+        return (fresh != null) ? fresh.size() : snapshot.size();
+      }
+    }
+    PersistentEntrySet version = current.root.get();
+    detector.scan(version);
+    return version.size();
   }
   
   /**
    * Saves the current AddressBook to a file
+   * Entries are written one per line with five tab-separated fields,
+   * the same layout importAddressBook reads
    * @param filePath: a String indicating the expected output file path
    *        the file path may be invalid, the user of this method needs to figure this out
    *        by adding new path or callCreateNewFile()
    * @return true if data is successfully write to the file, false otherwise
-   * The algorithm is inspired by https://processing.org/reference/PrintWriter.html
    */
   public boolean exportAddressBook(String filePath) throws IOException {
-    File output = new File(filePath);
-    PrintWriter pw = new PrintWriter(output);
-    for (AddressEntry e: addressBook) {
-      pw.println(e.toString());
-    }
-    pw.close();
+    return exportAddressBook(filePath, null);
+  }
+  
+  /**
+   * Saves the current AddressBook to a file, reporting progress along the way
+   * The entries are streamed through a fixed-size buffer,
+   * so memory use stays the same however large the book is
+   * @param filePath: a String indicating the expected output file path
+   * @param listener: an ExportProgressListener told about bytes and entries written,
+   *        or null for none
+   * @return true if data is successfully write to the file, false otherwise
+   */
+  public boolean exportAddressBook(String filePath, ExportProgressListener listener)
+      throws IOException {
+    new AddressBookExporter(listener).write(contents.entries(), Paths.get(filePath));
     
     return true;
   }
   
   /**
    * Uploads an existing address book file, and forms a new addressBook
+   * The file holds one entry per line with five tab-separated fields:
+   * contact name, postal address, phone number, email address and note.
+   * It is parsed in parallel on the common fork-join pool,
+   * and the current entries are only replaced once the whole file parsed.
+   * Searches running meanwhile see either the old or the new entries, never a mix
    * @param filePath: a String indicating the input file path
    * @return true if the new addressBook is uploaded, false otherwise
+   * @throws IOException if the file cannot be read or a line has fewer than five fields
+   * @throws IllegalArgumentException if a line holds an invalid phone number or email
    */
   public boolean importAddressBook(String filePath) throws IOException {
-    @SuppressWarnings("resource")
-    Scanner scanner = new Scanner(new File(filePath));
-    addressBook = new HashSet<AddressEntry>();
-    
-    String line;
-    String[] tokens;
-    while(scanner.hasNextLine()) {
-      line = scanner.nextLine();
-      tokens = line.split("\\t");
-      AddressEntry entry = new AddressEntry.Builder().
-          contactName(tokens[0]).
-          postalAddress(tokens[1]).
-          phoneNumber(tokens[2]).
-          emailAddress(tokens[3]).
-          note(tokens[4]).
-          build();
-      addressBook.add(entry);
+    List<AddressEntry> entries =
+        new AddressBookImporter(ForkJoinPool.commonPool()).read(Paths.get(filePath));
+    replaceEntries(entries.iterator(), entries.size());
+    
+    return true;
+  }
+  
+  /**
+   * Saves the current AddressBook as a binary snapshot
+   * Snapshots are smaller and much faster to load than exported text files
+   * @param filePath: a String indicating the snapshot file path
+   * @return true if the snapshot is successfully written
+   */
+  public boolean saveSnapshot(String filePath) throws IOException {
+    BinarySnapshot.write(contents.entries(), Paths.get(filePath));
+    
+    return true;
+  }
+  
+  /**
+   * Loads a binary snapshot written by saveSnapshot, and forms a new addressBook
+   * The snapshot is memory-mapped, and entries are decoded one by one as they are added
+   * @param filePath: a String indicating the snapshot file path
+   * @return true if the new addressBook is loaded
+   * @throws IOException if the file cannot be read, is not a snapshot or is corrupt
+   */
+  public boolean loadSnapshot(String filePath) throws IOException {
+    try (BinarySnapshot.Reader reader = BinarySnapshot.open(Paths.get(filePath))) {
+      replaceEntries(reader, (int) Math.min(Integer.MAX_VALUE, reader.entryCount()));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
     
     return true;
   }
+  
+  /**
+   * Takes a point-in-time view of the entries, for scans that run while the book changes
+   * Taking the view is cheap: it shares the book's storage instead of copying it,
+   * and changes made afterwards are not seen through it
+   * @return an AddressBookSnapshot, to be closed once the scan is done
+   */
+  public AddressBookSnapshot snapshot() {
+    Contents current = contents;
+    if (current.store != null) {
+      return current.store.snapshot();
+    }
+    return new AddressBookSnapshot(current.root.get(), null);
+  }
+  
+  /**
+   * Folds the write-ahead log into a full snapshot, so recovery only has to
+   * replay the changes made after this call
+   * @throws IllegalStateException if the book was not created by recover
+   */
+  public void checkpoint() throws IOException {
+    requireLog();
+    long number;
+    Set<AddressEntry> entries;
+    lockAll();
+    try {
+      number = log.startCheckpoint();
+      entries = contents.entries();
+    } finally {
+      unlockAll();
+    }
+    log.finishCheckpoint(number, entries);
+  }
+  
+  /**
+   * Writes every logged change to disk and waits until it is fsynced
+   * @throws IllegalStateException if the book was not created by recover
+   */
+  public void sync() throws IOException {
+    requireLog().sync();
+  }
+  
+  /**
+   * Flushes and closes the write-ahead log or the backing storage, if the book has one
+   * The book must not be used afterwards
+   */
+  public void close() throws IOException {
+    if (log != null) {
+      log.close();
+    }
+    if (store != null) {
+      store.close();
+    }
+  }
+  
+  /**
+   * Replaces the content of the address book and rebuilds every index
+   * The new content is built aside and swapped in while every write lock is held.
+   * If the book is logged, the new content is checkpointed before it is swapped in,
+   * and the checkpoint is installed together with the swap, so no change made
+   * afterwards can be recovered on top of the old content
+   * @param entries: the new entries, duplicates are dropped
+   * @param expectedSize: the number of entries, used to size the list of added entries
+   * @throws IOException if the book is logged and the checkpoint cannot be written
+   */
+  private void replaceEntries(Iterator<AddressEntry> entries, int expectedSize)
+      throws IOException {
+    if (store != null) {
+      lockAll();
+      try {
+        store.clear();
+        while (entries.hasNext()) {
+          store.add(entries.next());
+        }
+      } finally {
+        unlockAll();
+      }
+      return;
+    }
+    
+    PersistentEntrySet newBook = PersistentEntrySet.EMPTY;
+    final List<AddressEntry> added = new ArrayList<AddressEntry>(expectedSize);
+    while (entries.hasNext()) {
+      AddressEntry e = entries.next();
+      PersistentEntrySet updated = newBook.plus(e);
+      if (updated != newBook) {
+        newBook = updated;
+        added.add(e);
+      }
+    }
+    
+    Contents replacement = new Contents(newBook);
+    // Indexes share no state, so each one is filled on its own thread
+    replacement.indexes.parallelStream().forEach(index -> {
+      for (AddressEntry e: added) {
+        index.add(e);
+      }
+    });
+    
+    // The new set is not shared yet, so it is written out before any writer is held up
+    Path prepared = (log != null) ? log.prepareCheckpoint(newBook) : null;
+    long number = -1;
+    lockAll();
+    try {
+      if (log != null) {
+        number = log.startCheckpoint(prepared);
+      }
+      contents = replacement;
+    } finally {
+      unlockAll();
+    }
+    if (log != null) {
+      log.finishCheckpoint(number);
+    }
+  }
+  
+  /**
+   * Swaps one entry for another under the write locks of both
+   * If newEntry is already in the book, oldEntry is just removed
+   * @return true if oldEntry was in the book
+   */
+  private boolean replaceEntry(AddressEntry oldEntry, AddressEntry newEntry) {
+    ReentrantLock first = lockFor(oldEntry);
+    ReentrantLock second = lockFor(newEntry);
+    // Stripes are always taken in array order, as lockAll does
+    if (stripe(oldEntry) > stripe(newEntry)) {
+      ReentrantLock swap = first;
+      first = second;
+      second = swap;
+    }
+    first.lock();
+    second.lock();
+    try {
+      Contents current = contents;
+      if (oldEntry.equals(newEntry)) {
+        return current.entries().contains(oldEntry);
+      }
+      if (!current.entries().contains(oldEntry)) {
+        return false;
+      }
+      boolean present = current.entries().contains(newEntry);
+      
+      // Logged first, so a failed append leaves the book unchanged
+      if (log != null) {
+        try {
+          log.logUpdate(oldEntry, newEntry);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      current.replace(oldEntry, newEntry);
+      
+      // Index the new entry before dropping the old one,
+      // so a concurrent search finds at least one of them
+      if (!present) {
+        if (current.completions != null) {
+          current.completions.inheritUse(oldEntry, newEntry);
+        }
+        for (EntryIndex index: current.indexes) {
+          index.add(newEntry);
+        }
+      }
+      for (EntryIndex index: current.indexes) {
+        index.remove(oldEntry);
+      }
+      return true;
+    } finally {
+      second.unlock();
+      first.unlock();
+    }
+  }
+  
+  /**
+   * Swaps a cluster of duplicates for the entry merged from them, as one change
+   * The write locks of every entry of the cluster and of the merged entry are held
+   * while the merge is logged as a single record and applied, so neither a writer
+   * nor recovery after a crash ever finds the cluster half merged
+   * @param cluster: the duplicates, in AddressEntry.ORDER
+   * @param merged: the entry merged from them, which may be one of them
+   * @return the number of entries the book shrank by,
+   *         or -1 if an entry of the cluster is no longer in the book
+   */
+  private int mergeEntries(List<AddressEntry> cluster, AddressEntry merged) {
+    boolean[] stripes = new boolean[LOCK_STRIPES];
+    stripes[stripe(merged)] = true;
+    for (AddressEntry e: cluster) {
+      stripes[stripe(e)] = true;
+    }
+    // Stripes are always taken in array order, as lockAll does
+    for (int i = 0; i < stripes.length; i++) {
+      if (stripes[i]) {
+        writeLocks[i].lock();
+      }
+    }
+    try {
+      Contents current = contents;
+      for (AddressEntry e: cluster) {
+        if (!current.entries().contains(e)) {
+          return -1;
+        }
+      }
+      boolean present = current.entries().contains(merged);
+      
+      // Logged first, so a failed append leaves the book unchanged
+      if (log != null) {
+        try {
+          log.logMerge(cluster, merged);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      current.merge(cluster, merged);
+      
+      // Index the merged entry before dropping the others,
+      // so a concurrent search finds at least one of them
+      if (!present) {
+        if (current.completions != null) {
+          for (AddressEntry e: cluster) {
+            current.completions.inheritUse(e, merged);
+          }
+        }
+        for (EntryIndex index: current.indexes) {
+          index.add(merged);
+        }
+      }
+      int removed = present ? 0 : -1;
+      for (AddressEntry e: cluster) {
+        if (!e.equals(merged)) {
+          for (EntryIndex index: current.indexes) {
+            index.remove(e);
+          }
+          removed++;
+        }
+      }
+      return removed;
+    } finally {
+      for (int i = stripes.length - 1; i >= 0; i--) {
+        if (stripes[i]) {
+          writeLocks[i].unlock();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Adds the entries whose field contains the key to the result
+   * In memory the normalized values cached by the entries are matched,
+   * so verifying a candidate allocates nothing
+   * @param current: the Contents to search
+   * @param field: the AddressField to search in
+   * @param key: the search key, normalized with SubstringMatcher.normalize
+   * @param matcher: the SubstringMatcher of the key
+   * @param mode: the SearchMode deciding how entries are looked for
+   * @param result: the Set collecting matching entries
+   */
+  private static void collectMatches(Contents current, AddressField field, String key,
+      SubstringMatcher matcher, SearchMode mode, Set<AddressEntry> result) {
+    if (current.store != null) {
+      current.store.select(field,
+          value -> matcher.matches(SubstringMatcher.normalize(value)), result);
+      return;
+    }
+    if (mode == SearchMode.SCAN) {
+      current.packedText().search(field, key, result);
+      return;
+    }
+    if (mode == SearchMode.PARALLEL) {
+      result.addAll(parallelMatches(current.root.get(),
+          e -> matcher.matches(e.normalizedValue(field))));
+      return;
+    }
+    
+    // Keys shorter than a trigram cannot use the index
+    Set<AddressEntry> candidates = current.fieldIndexes.get(field).candidates(key);
+    if (candidates == null) {
+      candidates = current.entries();
+    }
+    
+    for (AddressEntry e: candidates) {
+      if (matcher.matches(e.normalizedValue(field))) {
+        result.add(e);
+      }
+    }
+  }
+  
+  /**
+   * Finds the first or last entry in name order by looking at every entry,
+   * for books without in-memory indexes
+   * @param sign: -1 for the first entry, 1 for the last
+   */
+  private static AddressEntry scanExtreme(Contents current, int sign) {
+    AddressEntry extreme = null;
+    try (AddressBookSnapshot snapshot = current.store.snapshot()) {
+      for (AddressEntry e: snapshot) {
+        if (extreme == null || Integer.signum(AddressEntry.ORDER.compare(e, extreme)) == sign) {
+          extreme = e;
+        }
+      }
+    }
+    return extreme;
+  }
+  
+  /**
+   * Lists entries in name order by looking at every entry,
+   * for books without in-memory indexes
+   */
+  private static List<AddressEntry> sortedScan(Contents current, AddressEntry after,
+      String from, String to, int limit) {
+    String start = OrderedIndex.fold(from);
+    String end = OrderedIndex.fold(to);
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    try (AddressBookSnapshot snapshot = current.store.snapshot()) {
+      for (AddressEntry e: snapshot) {
+        String name = OrderedIndex.fold(e.getContactName());
+        if ((after != null && AddressEntry.ORDER.compare(e, after) <= 0)
+            || (start != null && (name == null || name.compareTo(start) < 0))
+            || (end != null && OrderedIndex.isPast(name, end))) {
+          continue;
+        }
+        result.add(e);
+      }
+    }
+    result.sort(AddressEntry.ORDER);
+    return (result.size() > limit) ? new ArrayList<AddressEntry>(result.subList(0, limit))
+        : result;
+  }
+  
+  /**
+   * Collects one page of matching entries
+   * In memory entries are visited in trie order, which depends only on their hashes;
+   * a token holds the trie hash of the last entry passed and how many matching entries
+   * with that very hash were passed, in case hashes collide.
+   * Keys selective enough for the trigram indexes only sort their candidates
+   * into that order. Entries kept in an EntryStore are visited in a snapshot of
+   * the store, and a token holds the number of entries passed
+   */
+  private static SearchPage page(Contents current, String key, String token, int offset,
+      int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Page limit must be positive: " + limit);
+    }
+    String normalizedKey = SubstringMatcher.normalize(key);
+    SubstringMatcher matcher = new SubstringMatcher(normalizedKey);
+    List<AddressEntry> entries = new ArrayList<AddressEntry>(Math.min(limit, 1024));
+    
+    if (current.store != null) {
+      long position = (token == null) ? 0 : parseToken(token, 'p')[0];
+      try (AddressBookSnapshot snapshot = current.store.snapshot()) {
+        Iterator<AddressEntry> it = snapshot.iterator();
+        for (long i = 0; i < position && it.hasNext(); i++) {
+          it.next();
+        }
+        while (entries.size() < limit && it.hasNext()) {
+          AddressEntry e = it.next();
+          position++;
+          if (matchesAnyField(e, matcher) && offset-- <= 0) {
+            entries.add(e);
+          }
+        }
+      }
+      return new SearchPage(entries, (entries.size() < limit) ? null : "p" + position);
+    }
+    
+    PersistentEntrySet version = current.root.get();
+    int passedHash = 0;
+    long passedCount = 0;
+    long skipped = 0;
+    if (token != null) {
+      long[] parsed = parseToken(token, 'h');
+      passedHash = (int) parsed[0];
+      skipped = parsed[1];
+    }
+    Iterator<AddressEntry> it;
+    List<AddressEntry> candidates = indexedMatches(current, version, normalizedKey, matcher);
+    if (candidates != null) {
+      it = candidates.iterator();
+    }
+    else {
+      it = (token == null) ? version.iterator() : version.iteratorFrom(passedHash);
+    }
+    
+    while (entries.size() < limit && it.hasNext()) {
+      AddressEntry e = it.next();
+      if (candidates == null && !matchesAnyField(e, matcher)) {
+        continue;
+      }
+      int hash = PersistentEntrySet.trieHash(e);
+      if (token != null && PersistentEntrySet.compareTrieOrder(hash, passedHash) < 0) {
+        continue;
+      }
+      if (hash == passedHash) {
+        // The first entries with the hash of the token were on earlier pages
+        if (++passedCount <= skipped) {
+          continue;
+        }
+      }
+      else {
+        passedHash = hash;
+        passedCount = 1;
+      }
+      if (offset-- <= 0) {
+        entries.add(e);
+      }
+    }
+    return new SearchPage(entries, (entries.size() < limit) ? null
+        : "h" + Integer.toHexString(passedHash) + "." + passedCount);
+  }
+  
+  /**
+   * Lists the entries matching the key in trie order through the trigram indexes
+   * @return the sorted matches, or null if the candidates are not few enough
+   *         to beat visiting the entries in order
+   */
+  private static List<AddressEntry> indexedMatches(Contents current,
+      PersistentEntrySet version, String key, SubstringMatcher matcher) {
+    List<Set<AddressEntry>> candidateSets = new ArrayList<Set<AddressEntry>>();
+    int total = 0;
+    for (TrigramIndex index: current.fieldIndexes.values()) {
+      Set<AddressEntry> candidates = index.candidates(key);
+      if (candidates == null) {
+        return null;
+      }
+      candidateSets.add(candidates);
+      total += candidates.size();
+    }
+    if (total > version.size() / 8) {
+      return null;
+    }
+    
+    Set<AddressEntry> matches = new HashSet<AddressEntry>();
+    for (Set<AddressEntry> candidates: candidateSets) {
+      for (AddressEntry e: candidates) {
+        // Postings may already hold entries added after this version
+        if (matchesAnyField(e, matcher) && version.contains(e)) {
+          matches.add(e);
+        }
+      }
+    }
+    List<AddressEntry> sorted = new ArrayList<AddressEntry>(matches);
+    sorted.sort((a, b) -> PersistentEntrySet.compareTrieOrder(
+        PersistentEntrySet.trieHash(a), PersistentEntrySet.trieHash(b)));
+    return sorted;
+  }
+  
+  /**
+   * Lists the entries of a version passing the filter, in trie order
+   */
+  private static List<AddressEntry> parallelMatches(PersistentEntrySet version,
+      Predicate<AddressEntry> filter) {
+    return ((version.size() < PARALLEL_MIN_ENTRIES) ? version.stream() : version.parallelStream())
+        .filter(filter).collect(Collectors.toList());
+  }
+  
+  private static boolean matchesAnyField(AddressEntry entry, SubstringMatcher matcher) {
+    for (AddressField field: AddressField.values()) {
+      if (matcher.matches(entry.normalizedValue(field))) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Splits a continuation token into its numbers
+   * @param kind: the letter starting tokens of the expected kind
+   */
+  private static long[] parseToken(String token, char kind) {
+    try {
+      if (token.isEmpty() || token.charAt(0) != kind) {
+        throw new IllegalArgumentException("Continuation token of another book: " + token);
+      }
+      if (kind == 'p') {
+        return new long[] {Long.parseLong(token.substring(1))};
+      }
+      int dot = token.indexOf('.');
+      return new long[] {Integer.parseUnsignedInt(token.substring(1, dot), 16),
+          Long.parseLong(token.substring(dot + 1))};
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Invalid continuation token: " + token);
+    }
+  }
+  
+  /**
+   * Finds the entries whose field equals the value by looking at every entry,
+   * for books without in-memory indexes
+   */
+  private static List<AddressEntry> scanExact(Contents current, AddressField field,
+      final String value, final boolean ignoreCase) {
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    if (value == null) {
+      return result;
+    }
+    current.store.select(field, fieldValue -> fieldValue != null
+        && (ignoreCase ? fieldValue.equalsIgnoreCase(value) : fieldValue.equals(value)),
+        result);
+    return result;
+  }
+  
+  /**
+   * Lists the first entries by phone number that start with the prefix by looking at
+   * every entry, for books without in-memory indexes
+   */
+  private static List<AddressEntry> scanPhonePrefix(Contents current, String prefix,
+      int limit) {
+    TreeSet<AddressEntry> firsts = new TreeSet<AddressEntry>(new Comparator<AddressEntry>() {
+      public int compare(AddressEntry a, AddressEntry b) {
+        int result = a.getPhoneNumber().compareTo(b.getPhoneNumber());
+        return (result != 0) ? result : AddressEntry.ORDER.compare(a, b);
+      }
+    });
+    if (prefix == null || limit <= 0 || !prefix.matches("[0-9]*")) {
+      return new ArrayList<AddressEntry>();
+    }
+    // Keeps only the first limit matches, however many the store finds
+    Collection<AddressEntry> bounded = new AbstractCollection<AddressEntry>() {
+      @Override
+      public boolean add(AddressEntry e) {
+        firsts.add(e);
+        if (firsts.size() > limit) {
+          firsts.pollLast();
+        }
+        return true;
+      }
+      
+      @Override
+      public Iterator<AddressEntry> iterator() {
+        return firsts.iterator();
+      }
+      
+      @Override
+      public int size() {
+        return firsts.size();
+      }
+    };
+    current.store.select(AddressField.PHONE_NUMBER,
+        number -> number != null && number.startsWith(prefix), bounded);
+    return new ArrayList<AddressEntry>(firsts);
+  }
+  
+  private WriteAheadLog requireLog() {
+    if (log == null) {
+      throw new IllegalStateException("Address book has no write-ahead log");
+    }
+    return log;
+  }
+  
+  /**
+   * Picks the write lock guarding an entry, so that changes to the same entry
+   * are applied to the set, the indexes and the log in one order
+   */
+  private ReentrantLock lockFor(AddressEntry entry) {
+    return writeLocks[stripe(entry)];
+  }
+  
+  private static int stripe(AddressEntry entry) {
+    int h = entry.hashCode();
+    return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+  }
+  
+  /**
+   * Takes every write lock in order, waiting for changes in flight to finish
+   */
+  private void lockAll() {
+    for (ReentrantLock lock: writeLocks) {
+      lock.lock();
+    }
+  }
+  
+  private void unlockAll() {
+    for (int i = writeLocks.length - 1; i >= 0; i--) {
+      writeLocks[i].unlock();
+    }
+  }
+  
+  private static ReentrantLock[] newLocks() {
+    ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    return locks;
+  }
 }
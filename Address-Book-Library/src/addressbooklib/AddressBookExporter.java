@@ -0,0 +1,128 @@
+package addressbooklib;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+/**
+ * AddressBookExporter class
+ * Streams entries to a file in the tab-separated layout read by AddressBookImporter.
+ * Each line is encoded straight into one fixed-size direct buffer,
+ * which is written to the file channel whenever it fills up,
+ * so memory use does not depend on the number of entries.
+ * Backslashes, tabs and line breaks inside a field are escaped as
+ * \\, \t, \n and \r so that every entry stays on a single line,
+ * and an unset field is written as \N so that it is not read back as ""
+ * @author Shuang
+ */
+class AddressBookExporter {
+  static final int BUFFER_SIZE = 1 << 20;
+  /** the escape written for a null field, distinct from the empty String */
+  static final String NULL_FIELD = "\\N";
+
+  private final ExportProgressListener listener;
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final StringBuilder line = new StringBuilder(256);
+  private FileChannel channel;
+  private long bytesWritten;
+  private long entriesWritten;
+
+  /**
+   * Constructor
+   * @param listener: an ExportProgressListener to report to, or null for none
+   */
+  AddressBookExporter(ExportProgressListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Writes the entries to a file, replacing its previous content
+   * @param entries: the entries to export
+   * @param path: the output file
+   */
+  void write(Iterable<AddressEntry> entries, Path path) throws IOException {
+    bytesWritten = 0;
+    entriesWritten = 0;
+    try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel = out;
+      buffer.clear();
+      for (AddressEntry e: entries) {
+        writeEntry(e);
+      }
+      flush();
+    } finally {
+      channel = null;
+    }
+  }
+
+  private void writeEntry(AddressEntry entry) throws IOException {
+    line.setLength(0);
+    appendField(entry.getContactName());
+    line.append('\t');
+    appendField(entry.getPostalAddress());
+    line.append('\t');
+    appendField(entry.getPhoneNumber());
+    line.append('\t');
+    appendField(entry.getEmailAddress());
+    line.append('\t');
+    appendField(entry.getNote());
+    line.append('\n');
+
+    CharBuffer chars = CharBuffer.wrap(line);
+    encoder.reset();
+    while (encoder.encode(chars, buffer, true).isOverflow()) {
+      flush();
+    }
+    while (encoder.flush(buffer).isOverflow()) {
+      flush();
+    }
+    entriesWritten++;
+  }
+
+  private void appendField(String value) {
+    if (value == null) {
+      line.append(NULL_FIELD);
+      return;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          line.append("\\\\");
+          break;
+        case '\t':
+          line.append("\\t");
+          break;
+        case '\n':
+          line.append("\\n");
+          break;
+        case '\r':
+          line.append("\\r");
+          break;
+        default:
+          line.append(c);
+      }
+    }
+  }
+
+  /**
+   * Writes out the buffered bytes and reports progress
+   */
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      bytesWritten += channel.write(buffer);
+    }
+    buffer.clear();
+    if (listener != null) {
+      listener.progress(bytesWritten, entriesWritten);
+    }
+  }
+}
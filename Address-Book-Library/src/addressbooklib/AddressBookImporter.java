@@ -0,0 +1,273 @@
+package addressbooklib;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * AddressBookImporter class
+ * Reads a tab-separated address book file, one entry per line:
+ * contact name, postal address, phone number, email address and note.
+ * The file is memory-mapped and cut into line-aligned chunks,
+ * which are tokenized in parallel on a fork-join pool
+ * and concatenated in file order.
+ * Fields escaped by AddressBookExporter are unescaped, a field written as \N
+ * is read back as null, and an empty phone number or email address is left unset
+ * @author Shuang
+ */
+class AddressBookImporter {
+  private static final int FIELD_COUNT = 5;
+  private static final long MIN_CHUNK_SIZE = 1L << 20;
+  private static final long MAX_CHUNK_SIZE = 64L << 20;
+  private static final int SCAN_BLOCK_SIZE = 8192;
+
+  private final ForkJoinPool pool;
+
+  /**
+   * Constructor
+   * @param pool: the ForkJoinPool the chunks are parsed on
+   */
+  AddressBookImporter(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Parses every entry of a tab-separated address book file
+   * @param path: the file to read
+   * @return a List of AddressEntry in file order
+   * @throws IOException if the file cannot be read or a line has fewer than five fields
+   * @throws IllegalArgumentException if a line holds an invalid phone number or email
+   */
+  List<AddressEntry> read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long[] bounds = chunkBounds(channel);
+      try {
+        return pool.invoke(new ParseTask(channel, bounds, 0, bounds.length - 1));
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Cuts the file into chunks that each end right after a line break
+   * @return the chunk boundaries, starting at 0 and ending at the file size
+   */
+  private long[] chunkBounds(FileChannel channel) throws IOException {
+    long size = channel.size();
+    long target = size / (pool.getParallelism() * 4L);
+    target = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, target));
+
+    List<Long> bounds = new ArrayList<Long>();
+    bounds.add(0L);
+    long start = 0;
+    while (start < size) {
+      long end = (size - start <= target) ? size : nextLineStart(channel, start + target, size);
+      bounds.add(end);
+      start = end;
+    }
+
+    long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bounds.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Finds the offset just after the first line break at or after a position
+   * @return the start of the next line, or the file size if there is none
+   */
+  private static long nextLineStart(FileChannel channel, long position, long size)
+      throws IOException {
+    ByteBuffer block = ByteBuffer.allocate(SCAN_BLOCK_SIZE);
+    while (position < size) {
+      block.clear();
+      int read = channel.read(block, position);
+      if (read <= 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (block.get(i) == '\n') {
+          return position + i + 1;
+        }
+      }
+      position += read;
+    }
+    return size;
+  }
+
+  /**
+   * ParseTask class
+   * Parses a run of chunks, splitting it in halves until a single chunk is left
+   */
+  private static class ParseTask extends RecursiveTask<List<AddressEntry>> {
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel channel;
+    private final long[] bounds;
+    private final int from;
+    private final int to;
+
+    ParseTask(FileChannel channel, long[] bounds, int from, int to) {
+      this.channel = channel;
+      this.bounds = bounds;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected List<AddressEntry> compute() {
+      if (to - from <= 1) {
+        try {
+          return parseChunk(channel, bounds[from], bounds[to]);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      int middle = (from + to) >>> 1;
+      ParseTask left = new ParseTask(channel, bounds, from, middle);
+      left.fork();
+      List<AddressEntry> right = new ParseTask(channel, bounds, middle, to).compute();
+      List<AddressEntry> result = left.join();
+      result.addAll(right);
+      return result;
+    }
+  }
+
+  /**
+   * Maps one chunk and parses its lines, skipping blank ones
+   * @param start: offset of the first byte of the chunk, always the start of a line
+   * @param end: offset just past the last byte of the chunk
+   */
+  private static List<AddressEntry> parseChunk(FileChannel channel, long start, long end)
+      throws IOException {
+    List<AddressEntry> entries = new ArrayList<AddressEntry>();
+    if (end <= start) {
+      return entries;
+    }
+
+    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    byte[] line = new byte[256];
+    int[] fieldEnds = new int[FIELD_COUNT];
+    int length = 0;
+    long lineStart = start;
+
+    while (chunk.hasRemaining()) {
+      byte b = chunk.get();
+      if (b != '\n') {
+        if (length == line.length) {
+          line = Arrays.copyOf(line, length * 2);
+        }
+        line[length++] = b;
+        if (chunk.hasRemaining()) {
+          continue;
+        }
+      }
+
+      if (length > 0 && line[length - 1] == '\r') {
+        length--;
+      }
+      if (length > 0) {
+        entries.add(parseLine(line, length, fieldEnds, lineStart));
+      }
+      length = 0;
+      lineStart = start + chunk.position();
+    }
+
+    return entries;
+  }
+
+  /**
+   * Splits one line on tabs and builds its entry
+   * Tabs never occur inside a multi-byte UTF-8 sequence, so the bytes can be split
+   * before decoding; fields beyond the fifth are ignored
+   * @param offset: file offset of the line, used in error messages
+   */
+  private static AddressEntry parseLine(byte[] line, int length, int[] fieldEnds, long offset)
+      throws IOException {
+    int field = 0;
+    for (int i = 0; i < length && field < FIELD_COUNT - 1; i++) {
+      if (line[i] == '\t') {
+        fieldEnds[field++] = i;
+      }
+    }
+    if (field < FIELD_COUNT - 1) {
+      throw new IOException("Malformed address book line at byte " + offset
+          + ": expected " + FIELD_COUNT + " tab-separated fields");
+    }
+    int noteEnd = length;
+    for (int i = fieldEnds[FIELD_COUNT - 2] + 1; i < length; i++) {
+      if (line[i] == '\t') {
+        noteEnd = i;
+        break;
+      }
+    }
+    fieldEnds[FIELD_COUNT - 1] = noteEnd;
+
+    String[] tokens = new String[FIELD_COUNT];
+    int fieldStart = 0;
+    for (int i = 0; i < FIELD_COUNT; i++) {
+      tokens[i] = decodeField(line, fieldStart, fieldEnds[i]);
+      fieldStart = fieldEnds[i] + 1;
+    }
+
+    AddressEntry.Builder builder = new AddressEntry.Builder().
+        contactName(tokens[0]).
+        postalAddress(tokens[1]).
+        note(tokens[4]);
+    if (tokens[2] != null && !tokens[2].isEmpty()) {
+      builder.phoneNumber(tokens[2]);
+    }
+    if (tokens[3] != null && !tokens[3].isEmpty()) {
+      builder.emailAddress(tokens[3]);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Decodes one field, undoing the escapes written by AddressBookExporter
+   * @return the field value, or null for a field written as \N
+   */
+  private static String decodeField(byte[] line, int start, int end) {
+    String value = new String(line, start, end - start, StandardCharsets.UTF_8);
+    if (value.indexOf('\\') < 0) {
+      return value;
+    }
+    if (value.equals(AddressBookExporter.NULL_FIELD)) {
+      return null;
+    }
+
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c != '\\' || i + 1 == value.length()) {
+        sb.append(c);
+        continue;
+      }
+      char escaped = value.charAt(++i);
+      switch (escaped) {
+        case 't':
+          sb.append('\t');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case '\\':
+          sb.append('\\');
+          break;
+        default:
+          sb.append(c).append(escaped);
+      }
+    }
+    return sb.toString();
+  }
+}
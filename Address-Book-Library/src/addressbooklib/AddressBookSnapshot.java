@@ -0,0 +1,58 @@
+package addressbooklib;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * AddressBookSnapshot class
+ * An immutable view of the entries an AddressBook held at one point in time.
+ * The view can be iterated, as often as needed, while the book keeps changing,
+ * and never throws ConcurrentModificationException.
+ * Closing the snapshot lets the book reclaim the storage only it still refers to;
+ * an in-memory book needs no close, its old versions are garbage collected
+ * @author Shuang
+ */
+public class AddressBookSnapshot extends AbstractSet<AddressEntry> implements Closeable {
+  private final Set<AddressEntry> entries;
+  private final Closeable resources;
+
+  /**
+   * Constructor
+   * @param entries: an immutable set of the entries
+   * @param resources: released by close, or null if there is nothing to release
+   */
+  AddressBookSnapshot(Set<AddressEntry> entries, Closeable resources) {
+    this.entries = Collections.unmodifiableSet(entries);
+    this.resources = resources;
+  }
+
+  @Override
+  public Iterator<AddressEntry> iterator() {
+    return entries.iterator();
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return entries.contains(o);
+  }
+
+  @Override
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Releases the storage pinned by the snapshot
+   * The snapshot must not be read afterwards
+   */
+  @Override
+  public void close() {
+    if (resources != null) {
+      try {
+        resources.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
@@ -1,21 +1,67 @@
 package addressbooklib;
 
-//import java.util.*;
+import java.util.Comparator;
+import java.util.Objects;
 
 /**
  * Entry class
  * Stores information for an individual entry including
  * contact name, telephone number, postal address, email address and a note
- * as well as getter and setter for each field
- * Also overrides equals, hashCode, toString methods
+ * as well as a getter for each field.
+ * An Entry is immutable, so it can safely sit in hash sets and indexes;
+ * toBuilder() starts a modified copy instead.
+ * Also overrides equals, hashCode, toString methods,
+ * with the hash code computed once on construction
  * @author Shuang
  */
-public class AddressEntry implements Comparable<AddressEntry> {
-  private String contactName = " ";
-  private String postalAddress = " ";
-  private String phoneNumber = " ";
-  private String emailAddress = " ";
-  private String note = " ";
+public final class AddressEntry implements Comparable<AddressEntry> {
+  private final String contactName;
+  private final String postalAddress;
+  private final String phoneNumber;
+  private final String emailAddress;
+  private final String note;
+  private final int hash;
+  // Normalized field values by AddressField ordinal, computed when first needed
+  private volatile String[] normalized;
+  
+  /**
+   * Total order over entries, consistent with equals
+   * Fields are compared in the same sequence as compareTo: name, address, phone,
+   * email and note, case-insensitively except for the phone number.
+   * Ties are broken by the exact values, and unset fields sort first.
+   * Unlike compareTo this order is transitive, so sorted structures can rely on it
+   */
+  static final Comparator<AddressEntry> ORDER = new Comparator<AddressEntry>() {
+    @Override
+    public int compare(AddressEntry a, AddressEntry b) {
+      int result = compareFields(a.contactName, b.contactName, true);
+      if (result == 0) {
+        result = compareFields(a.postalAddress, b.postalAddress, true);
+      }
+      if (result == 0) {
+        result = compareFields(a.phoneNumber, b.phoneNumber, false);
+      }
+      if (result == 0) {
+        result = compareFields(a.emailAddress, b.emailAddress, true);
+      }
+      if (result == 0) {
+        result = compareFields(a.note, b.note, true);
+      }
+      if (result == 0) {
+        result = compareFields(a.contactName, b.contactName, false);
+      }
+      if (result == 0) {
+        result = compareFields(a.postalAddress, b.postalAddress, false);
+      }
+      if (result == 0) {
+        result = compareFields(a.emailAddress, b.emailAddress, false);
+      }
+      if (result == 0) {
+        result = compareFields(a.note, b.note, false);
+      }
+      return result;
+    }
+  };
   
   /**
    * Builder class
@@ -56,7 +102,7 @@ public class AddressEntry implements Comparable<AddressEntry> {
      * @return an instance of this Builder
      */
     public Builder phoneNumber(String numberVal) {
-      if (numberVal.matches("[0-9]{7,}")) {
+      if (isValidPhoneNumber(numberVal)) {
         phoneNumber = numberVal;
       }
       else {
@@ -71,7 +117,7 @@ public class AddressEntry implements Comparable<AddressEntry> {
      * @return an instance of this Builder
      */
     public Builder emailAddress(String emailVal) {
-      if (emailVal.matches("^(.+)@[0-9A-Za-z]+[/.][0-9A-Za-z]+$")) {
+      if (isValidEmailAddress(emailVal)) {
         emailAddress = emailVal;
       }
       else {
@@ -109,49 +155,78 @@ public class AddressEntry implements Comparable<AddressEntry> {
     phoneNumber = builder.phoneNumber;
     emailAddress = builder.emailAddress;
     note = builder.note;
+    
+    int result = 1;
+    result = result * 31 + ((contactName == null) ? 0 : contactName.hashCode());
+    result = result * 31 + ((postalAddress == null) ? 0 : postalAddress.hashCode());
+    result = result * 31 + ((phoneNumber == null) ? 0 : phoneNumber.hashCode());
+    result = result * 31 + ((emailAddress == null) ? 0 : emailAddress.hashCode());
+    result = result * 31 + ((note == null) ? 0 : note.hashCode());
+    hash = result;
   }
   
-  public String getContactName() {
-    return contactName;
+  /**
+   * Creates a Builder holding the values of this Entry,
+   * so a modified copy can be built by changing only some fields
+   * @return an instance of Builder
+   */
+  public Builder toBuilder() {
+    Builder builder = new Builder();
+    builder.contactName = contactName;
+    builder.postalAddress = postalAddress;
+    builder.phoneNumber = phoneNumber;
+    builder.emailAddress = emailAddress;
+    builder.note = note;
+    return builder;
   }
   
   /**
-   * Changes the contact name of this Entry
-   * @param nameInput: this Entry's new name
+   * Recreates an entry from trusted, previously validated field values,
+   * e.g. when reading back a snapshot written by this library
+   * @return an AddressEntry holding exactly the given values, any of which may be null
    */
-  public void setContactName(String nameInput) {
-    contactName = nameInput;
+  static AddressEntry restore(String name, String address, String phone, String email,
+      String note) {
+    Builder builder = new Builder();
+    builder.contactName = name;
+    builder.postalAddress = address;
+    builder.phoneNumber = phone;
+    builder.emailAddress = email;
+    builder.note = note;
+    return new AddressEntry(builder);
   }
   
-  public String getPostalAddress() {
-    return postalAddress;
-  }
-
   /**
-   * Changes the postal address of this Entry
-   * @param addressInput: this Entry's new address
+   * Gets a field value normalized with SubstringMatcher.normalize
+   * The normalized values are computed once, when the entry is first indexed or searched
+   * @param field: the AddressField to get
+   * @return the normalized value, or null if the field is unset
    */
-  public void setPostalAddress(String addressInput) {
-    postalAddress = addressInput;
+  String normalizedValue(AddressField field) {
+    String[] values = normalized;
+    if (values == null) {
+      AddressField[] fields = AddressField.values();
+      values = new String[fields.length];
+      for (AddressField f: fields) {
+        values[f.ordinal()] = SubstringMatcher.normalize(f.getValue(this));
+      }
+      normalized = values;
+    }
+    return values[field.ordinal()];
+  }
+  
+  public String getContactName() {
+    return contactName;
+  }
+  
+  public String getPostalAddress() {
+    return postalAddress;
   }
   
   public String getPhoneNumber() {
     return phoneNumber;
   }
-
-  /**
-   * Changes the phone number of this Entry
-   * @param numberInput: this Entry's new number
-   */
-  public void setPhoneNumber(String numberInput) {
-    if (numberInput.matches("[0-9]{7,}")) {
-      phoneNumber = numberInput;
-    }
-    else {
-      throw new IllegalArgumentException("Invalid phone number: " + numberInput);
-    }
-  }
-   
+  
   /**
    * Gets the email address of this Entry
    * @return this Entry's email address
@@ -159,19 +234,6 @@ public class AddressEntry implements Comparable<AddressEntry> {
   public String getEmailAddress() {
     return emailAddress;
   }
-
-  /**
-   * Changes the email address of this Entry
-   * @param emailInput: this Entry's new email
-   */
-  public void setEmailAddress(String emailInput) {
-    if (emailInput.matches("^(.+)@[0-9A-Za-z]+[/.][0-9A-Za-z]+$")) {
-      emailAddress = emailInput;
-    }
-    else {
-      throw new IllegalArgumentException("Invalid email address: " + emailInput);
-    }
-  }
   
   /**
    * Gets the note of this Entry
@@ -180,13 +242,67 @@ public class AddressEntry implements Comparable<AddressEntry> {
   public String getNote() {
     return note;
   }
-
+  
+  /**
+   * Checks a phone number without compiling a regex,
+   * accepts the same values as the pattern [0-9]{7,}
+   * @param number: the phone number to check
+   * @return true if number consists of at least seven ASCII digits
+   */
+  static boolean isValidPhoneNumber(String number) {
+    if (number.length() < 7) {
+      return false;
+    }
+    for (int i = 0; i < number.length(); i++) {
+      char c = number.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+  
   /**
-   * Changes the note of this Entry
-   * @param noteInput: this Entry's new note
+   * Checks an email address without compiling a regex,
+   * accepts the same values as the pattern ^(.+)@[0-9A-Za-z]+[/.][0-9A-Za-z]+$
+   * @param email: the email address to check
+   * @return true if email is a non-empty local part, '@', 
+   *         and two alphanumeric labels joined by '.' or '/'
    */
-  public void setNote(String noteInput) {
-    note = noteInput;
+  static boolean isValidEmailAddress(String email) {
+    // The domain labels cannot contain '@', so the separator must be the last one
+    int at = email.lastIndexOf('@');
+    if (at < 1) {
+      return false;
+    }
+    for (int i = 0; i < at; i++) {
+      char c = email.charAt(i);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+        return false;
+      }
+    }
+    
+    int separator = -1;
+    for (int i = at + 1; i < email.length(); i++) {
+      char c = email.charAt(i);
+      if (c == '.' || c == '/') {
+        if (separator != -1) {
+          return false;
+        }
+        separator = i;
+      }
+      else if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'))) {
+        return false;
+      }
+    }
+    return separator > at + 1 && separator < email.length() - 1;
+  }
+  
+  private static int compareFields(String a, String b, boolean ignoreCase) {
+    if (a == null || b == null) {
+      return (a == null) ? ((b == null) ? 0 : -1) : 1;
+    }
+    return ignoreCase ? a.compareToIgnoreCase(b) : a.compareTo(b);
   }
   
   @Override
@@ -199,22 +315,17 @@ public class AddressEntry implements Comparable<AddressEntry> {
     }
     
     AddressEntry e = (AddressEntry) o;
-    return e.contactName.equals(contactName) 
-        && e.postalAddress.equals(postalAddress)
-        && e.phoneNumber.equals(phoneNumber)
-        && e.emailAddress.equals(emailAddress)
-        && e.note.equals(note);
+    return e.hash == hash
+        && Objects.equals(e.contactName, contactName)
+        && Objects.equals(e.postalAddress, postalAddress)
+        && Objects.equals(e.phoneNumber, phoneNumber)
+        && Objects.equals(e.emailAddress, emailAddress)
+        && Objects.equals(e.note, note);
   }
   
   @Override
   public int hashCode() {
-    int result = 1;
-    result = result * 31 + ((contactName == null) ? 0 : contactName.hashCode());
-    result = result * 31 + ((postalAddress == null) ? 0 : postalAddress.hashCode());
-    result = result * 31 + ((phoneNumber == null) ? 0 : phoneNumber.hashCode());
-    result = result * 31 + ((emailAddress == null) ? 0 : emailAddress.hashCode());
-    result = result * 31 + ((note == null) ? 0 : note.hashCode());
-    return result;
+    return hash;
   }
   
   @Override
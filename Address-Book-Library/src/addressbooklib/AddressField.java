@@ -0,0 +1,47 @@
+package addressbooklib;
+
+/**
+ * AddressField enum
+ * Names the searchable fields of an AddressEntry
+ * and reads the matching value out of an entry
+ * @author Shuang
+ */
+public enum AddressField {
+  CONTACT_NAME {
+    @Override
+    public String getValue(AddressEntry entry) {
+      return entry.getContactName();
+    }
+  },
+  POSTAL_ADDRESS {
+    @Override
+    public String getValue(AddressEntry entry) {
+      return entry.getPostalAddress();
+    }
+  },
+  PHONE_NUMBER {
+    @Override
+    public String getValue(AddressEntry entry) {
+      return entry.getPhoneNumber();
+    }
+  },
+  EMAIL_ADDRESS {
+    @Override
+    public String getValue(AddressEntry entry) {
+      return entry.getEmailAddress();
+    }
+  },
+  NOTE {
+    @Override
+    public String getValue(AddressEntry entry) {
+      return entry.getNote();
+    }
+  };
+  
+  /**
+   * Gets the value of this field from an entry
+   * @param entry: an AddressEntry instance
+   * @return the field value, may be null if it was never set
+   */
+  public abstract String getValue(AddressEntry entry);
+}
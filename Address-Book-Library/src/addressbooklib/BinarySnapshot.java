@@ -0,0 +1,454 @@
+package addressbooklib;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * BinarySnapshot class
+ * Reads and writes the versioned binary snapshot format of an address book.
+ * The file is a fixed-size header followed by the entries:
+ *
+ *   header:     magic, version, flags, entry count, dictionary capacity,
+ *               entries length, a CRC32 of the entries and a CRC32 of the header itself
+ *   entries:    per entry, the name, phone number and email address as
+ *               varint (length + 1) followed by UTF-8 bytes, and the postal address
+ *               and note as a varint tag: 0 for an unset field, (length << 1) | 1
+ *               followed by UTF-8 bytes for a value written out, or (slot + 1) << 1
+ *               for a value still held in the dictionary
+ *
+ * The dictionary is a least-recently-used cache of at most the header's capacity
+ * of values. Writer and reader both add every value written out and evict in the
+ * same order, so they agree on its slots without it ever being stored: memory use
+ * on either side does not grow with the book, and the file is read front to back.
+ * It is written in a single pass, which also makes it safe to save a book
+ * that is being changed concurrently. All fixed-width numbers are big-endian
+ * @author Shuang
+ */
+final class BinarySnapshot {
+  static final int MAGIC = 0x41425353; // "ABSS"
+  static final short VERSION = 3;
+  static final int HEADER_SIZE = 36;
+  static final int DICTIONARY_CAPACITY = 1 << 16;
+
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final long WINDOW_SIZE = 256L << 20;
+
+  private BinarySnapshot() {
+  }
+
+  /**
+   * Writes the entries as a snapshot file
+   * The snapshot is written to a temporary file next to the target
+   * and moved into place once complete, so a crash never leaves a torn snapshot
+   * @param entries: the entries to save, iterated exactly once
+   * @param path: the snapshot file
+   */
+  static void write(Iterable<AddressEntry> entries, Path path) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      Dictionary dictionary = new Dictionary(DICTIONARY_CAPACITY);
+      SectionWriter out = new SectionWriter(channel, HEADER_SIZE);
+      long count = 0;
+      for (AddressEntry e: entries) {
+        out.writeNullableString(e.getContactName());
+        out.writeReference(dictionary, e.getPostalAddress());
+        out.writeNullableString(e.getPhoneNumber());
+        out.writeNullableString(e.getEmailAddress());
+        out.writeReference(dictionary, e.getNote());
+        count++;
+      }
+      long entriesLength = out.finish();
+      int entriesCrc = out.crc();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC);
+      header.putShort(VERSION);
+      header.putShort((short) 0);
+      header.putLong(count);
+      header.putInt(DICTIONARY_CAPACITY);
+      header.putLong(entriesLength);
+      header.putInt(entriesCrc);
+      header.putInt(crc(header.array(), HEADER_SIZE - 4));
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+      channel.force(true);
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Opens a snapshot file for reading, after checking its header and checksums
+   * @param path: the snapshot file
+   * @return a Reader positioned before the first entry
+   * @throws IOException if the file cannot be read, is not a snapshot,
+   *         has an unsupported version or fails a checksum
+   */
+  static Reader open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new Reader(channel);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static int crc(byte[] bytes, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Dictionary class
+   * Least-recently-used cache of postal addresses and notes, each held in a slot.
+   * A new value takes the next free slot, or the slot of the value
+   * used longest ago once the capacity is reached
+   */
+  private static class Dictionary {
+    private final String[] values;
+    private final LinkedHashMap<String, Integer> slots =
+        new LinkedHashMap<String, Integer>(16, 0.75f, true);
+
+    Dictionary(int capacity) {
+      values = new String[capacity];
+    }
+
+    /**
+     * Looks a value up and marks it as the most recently used
+     * @return its slot, or null if it is not held
+     */
+    Integer slot(String value) {
+      return slots.get(value);
+    }
+
+    /**
+     * Looks a slot up and marks its value as the most recently used
+     * @return the value held in the slot, or null if the slot is free
+     */
+    String value(int slot) {
+      String value = values[slot];
+      if (value != null) {
+        slots.get(value);
+      }
+      return value;
+    }
+
+    /**
+     * Adds a value that is not held yet
+     * @return the slot it was given
+     */
+    int add(String value) {
+      int slot = slots.size();
+      if (slot == values.length) {
+        Iterator<Integer> eldest = slots.values().iterator();
+        slot = eldest.next();
+        eldest.remove();
+      }
+      slots.put(value, slot);
+      values[slot] = value;
+      return slot;
+    }
+
+    int capacity() {
+      return values.length;
+    }
+  }
+
+  /**
+   * SectionWriter class
+   * Buffers one section of the file and keeps its length and checksum
+   */
+  private static class SectionWriter {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long position;
+    private long length;
+
+    SectionWriter(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    void writeNullableString(String value) throws IOException {
+      if (value == null) {
+        writeVarLong(0);
+        return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarLong(bytes.length + 1L);
+      writeBytes(bytes);
+    }
+
+    void writeReference(Dictionary dictionary, String value) throws IOException {
+      if (value == null) {
+        writeVarLong(0);
+        return;
+      }
+      Integer slot = dictionary.slot(value);
+      if (slot != null) {
+        writeVarLong((slot + 1L) << 1);
+        return;
+      }
+      dictionary.add(value);
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarLong(((long) bytes.length << 1) | 1);
+      writeBytes(bytes);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        put((byte) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      put((byte) value);
+    }
+
+    private void put(byte b) throws IOException {
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+      buffer.put(b);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+      int offset = 0;
+      while (offset < bytes.length) {
+        if (!buffer.hasRemaining()) {
+          drain();
+        }
+        int n = Math.min(buffer.remaining(), bytes.length - offset);
+        buffer.put(bytes, offset, n);
+        offset += n;
+      }
+    }
+
+    private void drain() throws IOException {
+      buffer.flip();
+      crc.update(buffer.array(), 0, buffer.limit());
+      while (buffer.hasRemaining()) {
+        int n = channel.write(buffer, position);
+        position += n;
+        length += n;
+      }
+      buffer.clear();
+    }
+
+    /**
+     * Writes out what is left in the buffer
+     * @return the total length of the section in bytes
+     */
+    long finish() throws IOException {
+      drain();
+      return length;
+    }
+
+    int crc() {
+      return (int) crc.getValue();
+    }
+  }
+
+  /**
+   * MappedInput class
+   * Sequential reader over a memory-mapped region of the file.
+   * The region is mapped one window at a time, so files larger than
+   * a single MappedByteBuffer can hold are supported
+   */
+  private static class MappedInput {
+    private final FileChannel channel;
+    private final long end;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    MappedInput(FileChannel channel, long start, long end) {
+      this.channel = channel;
+      this.end = end;
+      windowStart = start;
+    }
+
+    long position() {
+      return (window == null) ? windowStart : windowStart + window.position();
+    }
+
+    /**
+     * Makes sure the next count bytes are inside the current window
+     */
+    private void ensure(long count) throws IOException {
+      if (window != null && window.remaining() >= count) {
+        return;
+      }
+      long position = position();
+      if (position + count > end) {
+        throw new EOFException("Truncated address book snapshot");
+      }
+      if (count > WINDOW_SIZE) {
+        throw new IOException("Field too large in address book snapshot: " + count + " bytes");
+      }
+      long size = Math.min(WINDOW_SIZE, end - position);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+      windowStart = position;
+    }
+
+    long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        ensure(1);
+        byte b = window.get();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint in address book snapshot");
+    }
+
+    /**
+     * Reads a UTF-8 string of the given length in bytes
+     * The length is checked before anything is read, as it comes from the file
+     * @throws IOException if the length is negative or runs past the end of the region
+     */
+    String readString(long length) throws IOException {
+      if (length < 0 || length > end - position()) {
+        throw new IOException("Corrupt address book snapshot: field length " + length);
+      }
+      ensure(length);
+      byte[] bytes = new byte[(int) length];
+      window.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Computes the CRC32 of the remaining bytes, window by window
+     */
+    int crc() throws IOException {
+      CRC32 crc = new CRC32();
+      while (position() < end) {
+        ensure(Math.min(WINDOW_SIZE, end - position()));
+        crc.update(window);
+      }
+      return (int) crc.getValue();
+    }
+  }
+
+  /**
+   * Reader class
+   * Iterates over the entries of a snapshot, decoding each one only when it is reached.
+   * Dictionary values are decoded once and shared by all entries using them
+   * while they stay in the dictionary
+   */
+  static class Reader implements Iterator<AddressEntry>, Closeable {
+    private final FileChannel channel;
+    private final long entryCount;
+    private final Dictionary dictionary;
+    private final MappedInput entryInput;
+    private long entriesRead;
+
+    private Reader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining()) {
+        if (channel.read(header, header.position()) < 0) {
+          throw new EOFException("Truncated address book snapshot header");
+        }
+      }
+      if (header.getInt(0) != MAGIC) {
+        throw new IOException("Not an address book snapshot");
+      }
+      if (header.getShort(4) != VERSION) {
+        throw new IOException("Unsupported address book snapshot version: " + header.getShort(4));
+      }
+      if (header.getInt(HEADER_SIZE - 4) != crc(header.array(), HEADER_SIZE - 4)) {
+        throw new IOException("Corrupt address book snapshot header");
+      }
+      entryCount = header.getLong(8);
+      int capacity = header.getInt(16);
+      long entriesLength = header.getLong(20);
+      if (capacity <= 0 || capacity > DICTIONARY_CAPACITY) {
+        throw new IOException("Corrupt address book snapshot: dictionary capacity " + capacity);
+      }
+      if (entriesLength < 0 || HEADER_SIZE + entriesLength > channel.size()) {
+        throw new EOFException("Truncated address book snapshot");
+      }
+
+      if (new MappedInput(channel, HEADER_SIZE, HEADER_SIZE + entriesLength).crc()
+          != header.getInt(28)) {
+        throw new IOException("Corrupt address book snapshot: checksum mismatch");
+      }
+      entryInput = new MappedInput(channel, HEADER_SIZE, HEADER_SIZE + entriesLength);
+      dictionary = new Dictionary(capacity);
+    }
+
+    /**
+     * @return the number of entries in the snapshot, as recorded in its header
+     */
+    long entryCount() {
+      return entryCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return entriesRead < entryCount;
+    }
+
+    @Override
+    public AddressEntry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      try {
+        String name = readNullableString();
+        String address = readReference();
+        String phone = readNullableString();
+        String email = readNullableString();
+        String note = readReference();
+        entriesRead++;
+        return AddressEntry.restore(name, address, phone, email, note);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private String readNullableString() throws IOException {
+      long length = entryInput.readVarLong();
+      return (length == 0) ? null : entryInput.readString(length - 1);
+    }
+
+    private String readReference() throws IOException {
+      long tag = entryInput.readVarLong();
+      if (tag == 0) {
+        return null;
+      }
+      if ((tag & 1) != 0) {
+        String value = entryInput.readString(tag >>> 1);
+        if (dictionary.slot(value) != null) {
+          throw new IOException("Repeated dictionary value in address book snapshot");
+        }
+        dictionary.add(value);
+        return value;
+      }
+      long slot = (tag >>> 1) - 1;
+      String value = (slot < dictionary.capacity()) ? dictionary.value((int) slot) : null;
+      if (value == null) {
+        throw new IOException("Dangling dictionary reference in address book snapshot");
+      }
+      return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
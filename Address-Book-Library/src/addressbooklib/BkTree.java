@@ -0,0 +1,198 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * BkTree class
+ * Burkhard-Keller tree over the normalized values of one field, for finding
+ * the values within an edit distance of a mistyped key.
+ * Each node holds one distinct value and the entries having it, and its children
+ * are keyed by their EditDistance to it. Since the distance is a metric,
+ * a search at distance d from a node only has to descend into the children
+ * keyed d - maxDistance to d + maxDistance.
+ *
+ * A node whose last entry is removed stays in the tree to route searches,
+ * until dead nodes outnumber live ones and the tree is rebuilt from the live ones.
+ * Writers take the tree's lock; readers walk it without locking, since
+ * children and entries are concurrent collections and a rebuilt tree is
+ * published whole
+ * @author Shuang
+ */
+class BkTree implements EntryIndex {
+  private static final int MIN_DEAD_FOR_REBUILD = 64;
+
+  private final AddressField field;
+  private final Object lock = new Object();
+  private volatile Node root;
+  // Nodes with and without entries, only used by writers
+  private int liveNodes;
+  private int deadNodes;
+
+  /**
+   * Node class
+   * One distinct value of the field
+   */
+  private static class Node {
+    final String value;
+    final Set<AddressEntry> entries = ConcurrentHashMap.newKeySet(2);
+    final ConcurrentMap<Integer, Node> children = new ConcurrentHashMap<Integer, Node>(4);
+
+    Node(String value) {
+      this.value = value;
+    }
+  }
+
+  /**
+   * Constructor
+   * @param field: the AddressField whose values are indexed
+   */
+  BkTree(AddressField field) {
+    this.field = field;
+  }
+
+  @Override
+  public void add(AddressEntry entry) {
+    String value = entry.normalizedValue(field);
+    if (value == null) {
+      return;
+    }
+
+    synchronized (lock) {
+      Node node = insert(value);
+      boolean wasDead = node.entries.isEmpty();
+      if (node.entries.add(entry) && wasDead) {
+        liveNodes++;
+        deadNodes--;
+      }
+    }
+  }
+
+  @Override
+  public void remove(AddressEntry entry) {
+    String value = entry.normalizedValue(field);
+    if (value == null) {
+      return;
+    }
+
+    synchronized (lock) {
+      Node node = find(value);
+      if (node == null || !node.entries.remove(entry) || !node.entries.isEmpty()) {
+        return;
+      }
+      liveNodes--;
+      deadNodes++;
+      if (deadNodes >= MIN_DEAD_FOR_REBUILD && deadNodes > liveNodes) {
+        rebuild();
+      }
+    }
+  }
+
+  /**
+   * Finds the entries whose value is within an edit distance of the key
+   * @param key: a search key normalized with SubstringMatcher.normalize
+   * @param maxDistance: the largest EditDistance to accept
+   * @return a List of the entries, closest values first,
+   *         and values at the same distance in alphabetical order
+   */
+  List<AddressEntry> within(String key, int maxDistance) {
+    List<Node> matches = new ArrayList<Node>();
+    Map<Node, Integer> distances = new HashMap<Node, Integer>();
+    EditDistance distance = new EditDistance(key);
+    Deque<Node> pending = new ArrayDeque<Node>();
+    if (root != null) {
+      pending.push(root);
+    }
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      int d = distance.to(node.value);
+      if (d <= maxDistance && !node.entries.isEmpty()) {
+        matches.add(node);
+        distances.put(node, d);
+      }
+      for (int edge = Math.max(1, d - maxDistance); edge <= d + maxDistance; edge++) {
+        Node child = node.children.get(edge);
+        if (child != null) {
+          pending.push(child);
+        }
+      }
+    }
+
+    matches.sort(Comparator.comparing((Node node) -> distances.get(node))
+        .thenComparing(node -> node.value));
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    for (Node node: matches) {
+      result.addAll(node.entries);
+    }
+    return result;
+  }
+
+  /**
+   * @return the node holding the value, created if there is none yet
+   */
+  private Node insert(String value) {
+    if (root == null) {
+      root = new Node(value);
+      deadNodes++;
+      return root;
+    }
+    EditDistance distance = new EditDistance(value);
+    Node node = root;
+    while (true) {
+      int d = distance.to(node.value);
+      if (d == 0) {
+        return node;
+      }
+      Node child = node.children.get(d);
+      if (child == null) {
+        child = new Node(value);
+        node.children.put(d, child);
+        deadNodes++;
+        return child;
+      }
+      node = child;
+    }
+  }
+
+  /**
+   * @return the node holding the value, or null if there is none
+   */
+  private Node find(String value) {
+    EditDistance distance = new EditDistance(value);
+    Node node = root;
+    while (node != null) {
+      int d = distance.to(node.value);
+      if (d == 0) {
+        return node;
+      }
+      node = node.children.get(d);
+    }
+    return null;
+  }
+
+  /**
+   * Replaces the tree by one of its live nodes only
+   */
+  private void rebuild() {
+    List<Node> live = new ArrayList<Node>();
+    Deque<Node> pending = new ArrayDeque<Node>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      if (!node.entries.isEmpty()) {
+        live.add(node);
+      }
+      pending.addAll(node.children.values());
+    }
+
+    // Build the new tree aside, so readers keep walking the old one meanwhile
+    BkTree rebuilt = new BkTree(field);
+    for (Node node: live) {
+      rebuilt.insert(node.value).entries.addAll(node.entries);
+    }
+    root = rebuilt.root;
+    liveNodes = live.size();
+    deadNodes = 0;
+  }
+}
@@ -0,0 +1,94 @@
+package addressbooklib;
+
+import java.io.*;
+
+/**
+ * BloomFilter class
+ * Fixed-size Bloom filter over entries, used to skip on-disk segments
+ * that cannot hold an entry without reading them.
+ * The probe positions are derived from the entry's hashCode by double hashing
+ * @author Shuang
+ */
+class BloomFilter {
+  private static final int BITS_PER_ENTRY = 10;
+  private static final int HASH_COUNT = 7;
+  
+  private final long[] bits;
+  private final int hashCount;
+  
+  /**
+   * Constructor
+   * @param expectedEntries: the number of entries the filter is sized for,
+   *        giving about a 1% false positive rate
+   */
+  BloomFilter(long expectedEntries) {
+    long bitCount = Math.max(64, expectedEntries * BITS_PER_ENTRY);
+    bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) / 64)];
+    hashCount = HASH_COUNT;
+  }
+  
+  private BloomFilter(long[] bits, int hashCount) {
+    this.bits = bits;
+    this.hashCount = hashCount;
+  }
+  
+  void add(AddressEntry entry) {
+    long h1 = mix(entry.hashCode());
+    long h2 = Long.rotateLeft(h1, 32) | 1;
+    long bitCount = bits.length * 64L;
+    for (int i = 0; i < hashCount; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+  
+  /**
+   * @return false if the entry was certainly never added, true if it may have been
+   */
+  boolean mightContain(AddressEntry entry) {
+    long h1 = mix(entry.hashCode());
+    long h2 = Long.rotateLeft(h1, 32) | 1;
+    long bitCount = bits.length * 64L;
+    for (int i = 0; i < hashCount; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(hashCount);
+    out.writeInt(bits.length);
+    for (long word: bits) {
+      out.writeLong(word);
+    }
+  }
+  
+  static BloomFilter readFrom(DataInputStream in) throws IOException {
+    int hashCount = in.readInt();
+    int length = in.readInt();
+    if (hashCount < 1 || length < 1) {
+      throw new IOException("Corrupt Bloom filter");
+    }
+    long[] bits = new long[length];
+    for (int i = 0; i < length; i++) {
+      bits[i] = in.readLong();
+    }
+    return new BloomFilter(bits, hashCount);
+  }
+  
+  /**
+   * Spreads a 32-bit hash over 64 bits (the finalizer of MurmurHash3)
+   */
+  private static long mix(int hashCode) {
+    long h = hashCode * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,507 @@
+package addressbooklib;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * ColumnarEntryStore class
+ * Compact in-memory storage keeping each field of the entries in its own column,
+ * instead of five String objects per entry.
+ * Contact names, phone numbers and email addresses are mostly distinct, and are
+ * packed as UTF-8 bytes into fixed-size pages, so a column is not limited to
+ * the length of one array. Postal addresses and notes repeat heavily, so those
+ * columns hold a small code per entry into a dictionary of distinct values,
+ * and a search tests every distinct value only once.
+ *
+ * Entries are rows appended to the columns. A hash table of row numbers finds the
+ * row of an entry; removing an entry only marks its row dead, and the columns are
+ * rebuilt without dead rows once those outnumber the live ones.
+ * An AddressEntry is built from its row whenever it is read, and is garbage as
+ * soon as the caller drops it
+ * @author Shuang
+ */
+class ColumnarEntryStore extends AbstractSet<AddressEntry> implements EntryStore {
+  private static final int INITIAL_ROWS = 1024;
+  private static final AddressField[] FIELDS = AddressField.values();
+  private static final int DELETED = -1;
+  // Some VMs reserve header words in an array, so larger lengths may fail
+  private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+  private Column[] columns;
+  private int[] hashes;
+  private BitSet live;
+  private int rows;
+  private int size;
+  // Row number + 1 of every entry by hash, 0 for a free slot and DELETED for a removed one
+  private int[] table;
+  private int tableUsed;
+
+  ColumnarEntryStore() {
+    reset(INITIAL_ROWS);
+  }
+
+  @Override
+  public synchronized boolean add(AddressEntry entry) {
+    if (find(entry) >= 0) {
+      return false;
+    }
+    append(entry);
+    return true;
+  }
+
+  @Override
+  public synchronized boolean remove(Object o) {
+    if (!(o instanceof AddressEntry)) {
+      return false;
+    }
+    int slot = find((AddressEntry) o);
+    if (slot < 0) {
+      return false;
+    }
+    delete(slot);
+    compactIfSparse();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean replace(AddressEntry oldEntry, AddressEntry newEntry) {
+    int slot = find(oldEntry);
+    if (slot < 0) {
+      return false;
+    }
+    delete(slot);
+    if (find(newEntry) < 0) {
+      append(newEntry);
+    }
+    compactIfSparse();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean contains(Object o) {
+    return (o instanceof AddressEntry) && find((AddressEntry) o) >= 0;
+  }
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  @Override
+  public synchronized void clear() {
+    reset(INITIAL_ROWS);
+  }
+
+  /**
+   * Iterates over a view of the store taken at the time of this call
+   */
+  @Override
+  public Iterator<AddressEntry> iterator() {
+    final Iterator<AddressEntry> entries = view().iterator();
+    return new Iterator<AddressEntry>() {
+      private AddressEntry last;
+
+      public boolean hasNext() {
+        return entries.hasNext();
+      }
+
+      public AddressEntry next() {
+        last = entries.next();
+        return last;
+      }
+
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        ColumnarEntryStore.this.remove(last);
+        last = null;
+      }
+    };
+  }
+
+  /**
+   * Takes a point-in-time view of the store
+   * Columns are only ever appended to or replaced as a whole, so the view just
+   * remembers them together with a copy of the live rows
+   */
+  @Override
+  public AddressBookSnapshot snapshot() {
+    return new AddressBookSnapshot(view(), null);
+  }
+
+  /**
+   * Tests the field of every live row, once per distinct value in dictionary columns,
+   * and builds entries only for the matching rows
+   */
+  @Override
+  public synchronized void select(AddressField field, Predicate<String> filter,
+      Collection<AddressEntry> result) {
+    BitSet matches = columns[field.ordinal()].select(live, filter);
+    for (int row = matches.nextSetBit(0); row >= 0; row = matches.nextSetBit(row + 1)) {
+      result.add(entryAt(columns, row));
+    }
+  }
+
+  /**
+   * The store lives on the heap and has nothing to release
+   */
+  @Override
+  public void close() {
+  }
+
+  private synchronized View view() {
+    return new View(columns, rows, (BitSet) live.clone(), size);
+  }
+
+  /**
+   * View class
+   * The rows that were live when the view was taken.
+   * Rows are decoded in batches under the store lock, since the columns
+   * may be growing meanwhile
+   */
+  private final class View extends AbstractSet<AddressEntry> {
+    private static final int BATCH_SIZE = 256;
+
+    private final Column[] columns;
+    private final int rows;
+    private final BitSet live;
+    private final int size;
+
+    View(Column[] columns, int rows, BitSet live, int size) {
+      this.columns = columns;
+      this.rows = rows;
+      this.live = live;
+      this.size = size;
+    }
+
+    @Override
+    public Iterator<AddressEntry> iterator() {
+      return new Iterator<AddressEntry>() {
+        private final List<AddressEntry> batch = new ArrayList<AddressEntry>(BATCH_SIZE);
+        private int position;
+        private int nextRow = live.nextSetBit(0);
+
+        public boolean hasNext() {
+          if (position == batch.size()) {
+            fill();
+          }
+          return position < batch.size();
+        }
+
+        public AddressEntry next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return batch.get(position++);
+        }
+
+        private void fill() {
+          batch.clear();
+          position = 0;
+          synchronized (ColumnarEntryStore.this) {
+            while (nextRow >= 0 && nextRow < rows && batch.size() < BATCH_SIZE) {
+              batch.add(entryAt(columns, nextRow));
+              nextRow = live.nextSetBit(nextRow + 1);
+            }
+          }
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  // Must hold the store lock
+  private void append(AddressEntry entry) {
+    if (rows == hashes.length) {
+      hashes = Arrays.copyOf(hashes, grow(rows, rows + 1L));
+    }
+    for (int i = 0; i < FIELDS.length; i++) {
+      columns[i].append(FIELDS[i].getValue(entry));
+    }
+    hashes[rows] = entry.hashCode();
+    // Not yet live, so a rehash on insert does not place the row twice
+    insert(rows);
+    live.set(rows);
+    rows++;
+    size++;
+  }
+
+  // Must hold the store lock
+  private void delete(int slot) {
+    live.clear(table[slot] - 1);
+    table[slot] = DELETED;
+    size--;
+  }
+
+  /**
+   * Finds the table slot holding the row of an entry
+   * @return the slot, or -1 if the entry is not in the store
+   */
+  private int find(AddressEntry entry) {
+    int hash = entry.hashCode();
+    int mask = table.length - 1;
+    for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+      int value = table[slot];
+      if (value == 0) {
+        return -1;
+      }
+      if (value != DELETED && hashes[value - 1] == hash
+          && entryAt(columns, value - 1).equals(entry)) {
+        return slot;
+      }
+    }
+  }
+
+  private void insert(int row) {
+    if ((tableUsed + 1) * 2 > table.length) {
+      // Grow only if live rows fill the table; otherwise clearing deleted slots is enough
+      rehash((size + 1) * 4 > table.length ? table.length * 2 : table.length);
+    }
+    int mask = table.length - 1;
+    int slot = spread(hashes[row]) & mask;
+    while (table[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = row + 1;
+    tableUsed++;
+  }
+
+  /**
+   * Rebuilds the table at the given capacity, dropping the deleted slots
+   */
+  private void rehash(int capacity) {
+    table = new int[capacity];
+    tableUsed = 0;
+    int mask = capacity - 1;
+    for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+      int slot = spread(hashes[row]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = row + 1;
+      tableUsed++;
+    }
+  }
+
+  /**
+   * Rewrites the columns without dead rows once those are the majority
+   * Views taken earlier keep the old columns, which are no longer changed
+   */
+  private void compactIfSparse() {
+    if (rows - size <= size || rows < INITIAL_ROWS) {
+      return;
+    }
+    Column[] old = columns;
+    BitSet oldLive = live;
+    reset(Math.max(INITIAL_ROWS, size));
+    for (int row = oldLive.nextSetBit(0); row >= 0; row = oldLive.nextSetBit(row + 1)) {
+      append(entryAt(old, row));
+    }
+  }
+
+  private void reset(int capacity) {
+    columns = new Column[FIELDS.length];
+    for (AddressField field: FIELDS) {
+      boolean repetitive = field == AddressField.POSTAL_ADDRESS || field == AddressField.NOTE;
+      columns[field.ordinal()] =
+          repetitive ? new DictionaryColumn(capacity) : new BytesColumn(capacity);
+    }
+    hashes = new int[capacity];
+    live = new BitSet(capacity);
+    rows = 0;
+    size = 0;
+    table = new int[Integer.highestOneBit(capacity) * 4];
+    tableUsed = 0;
+  }
+
+  private static AddressEntry entryAt(Column[] columns, int row) {
+    return AddressEntry.restore(
+        columns[AddressField.CONTACT_NAME.ordinal()].get(row),
+        columns[AddressField.POSTAL_ADDRESS.ordinal()].get(row),
+        columns[AddressField.PHONE_NUMBER.ordinal()].get(row),
+        columns[AddressField.EMAIL_ADDRESS.ordinal()].get(row),
+        columns[AddressField.NOTE.ordinal()].get(row));
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Computes the new length of a full array, doubling it without overflowing
+   * @param length: the current length of the array
+   * @param needed: the smallest length that is needed
+   * @return a length of at least needed and at most MAX_ARRAY_LENGTH
+   * @throws OutOfMemoryError if needed is larger than any array can be
+   */
+  static int grow(int length, long needed) {
+    if (needed > MAX_ARRAY_LENGTH) {
+      throw new OutOfMemoryError("Columnar store array too large: " + needed);
+    }
+    return (int) Math.max(needed, Math.min(length * 2L, MAX_ARRAY_LENGTH));
+  }
+
+  /**
+   * Column class
+   * The values of one field, by row number; null values are kept too
+   */
+  private abstract static class Column {
+    abstract void append(String value);
+
+    abstract String get(int row);
+
+    /**
+     * @return the rows among the given ones whose value passes the filter
+     */
+    BitSet select(BitSet rows, Predicate<String> filter) {
+      BitSet matches = new BitSet();
+      for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+        if (filter.test(get(row))) {
+          matches.set(row);
+        }
+      }
+      return matches;
+    }
+  }
+
+  /**
+   * BytesColumn class
+   * Values encoded as UTF-8 back to back in fixed-size pages, with the end
+   * offset of every row. A value may run on from one page into the next
+   */
+  private static final class BytesColumn extends Column {
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private byte[][] pages = new byte[8][];
+    private long[] ends;
+    private long length;
+    private final BitSet nulls = new BitSet();
+    private int rows;
+
+    BytesColumn(int capacity) {
+      ends = new long[capacity];
+    }
+
+    @Override
+    void append(String value) {
+      if (rows == ends.length) {
+        ends = Arrays.copyOf(ends, grow(rows, rows + 1L));
+      }
+      if (value == null) {
+        nulls.set(rows);
+      }
+      else {
+        write(value.getBytes(StandardCharsets.UTF_8));
+      }
+      ends[rows++] = length;
+    }
+
+    private void write(byte[] encoded) {
+      int offset = 0;
+      while (offset < encoded.length) {
+        long page = length >>> PAGE_SHIFT;
+        if (page >= pages.length) {
+          pages = Arrays.copyOf(pages, grow(pages.length, page + 1));
+        }
+        if (pages[(int) page] == null) {
+          pages[(int) page] = new byte[PAGE_SIZE];
+        }
+        int at = (int) (length & PAGE_MASK);
+        int n = Math.min(PAGE_SIZE - at, encoded.length - offset);
+        System.arraycopy(encoded, offset, pages[(int) page], at, n);
+        offset += n;
+        length += n;
+      }
+    }
+
+    @Override
+    String get(int row) {
+      if (nulls.get(row)) {
+        return null;
+      }
+      long start = (row == 0) ? 0 : ends[row - 1];
+      int size = (int) (ends[row] - start);
+      if (size == 0) {
+        // Its page may not even be allocated yet
+        return "";
+      }
+      int page = (int) (start >>> PAGE_SHIFT);
+      int at = (int) (start & PAGE_MASK);
+      if (at + size <= PAGE_SIZE) {
+        return new String(pages[page], at, size, StandardCharsets.UTF_8);
+      }
+      // The value spans pages, so its bytes are gathered first
+      byte[] encoded = new byte[size];
+      for (int offset = 0; offset < size; page++, at = 0) {
+        int n = Math.min(PAGE_SIZE - at, size - offset);
+        System.arraycopy(pages[page], at, encoded, offset, n);
+        offset += n;
+      }
+      return new String(encoded, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * DictionaryColumn class
+   * A code per row into a list of the distinct values, -1 for null
+   */
+  private static final class DictionaryColumn extends Column {
+    private int[] codes;
+    private final List<String> values = new ArrayList<String>();
+    private final Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+    private int rows;
+
+    DictionaryColumn(int capacity) {
+      codes = new int[capacity];
+    }
+
+    @Override
+    void append(String value) {
+      if (rows == codes.length) {
+        codes = Arrays.copyOf(codes, grow(rows, rows + 1L));
+      }
+      int code = -1;
+      if (value != null) {
+        Integer known = codesByValue.get(value);
+        if (known == null) {
+          known = values.size();
+          values.add(value);
+          codesByValue.put(value, known);
+        }
+        code = known;
+      }
+      codes[rows++] = code;
+    }
+
+    @Override
+    String get(int row) {
+      int code = codes[row];
+      return (code < 0) ? null : values.get(code);
+    }
+
+    @Override
+    BitSet select(BitSet rows, Predicate<String> filter) {
+      // Test every distinct value at most once: 0 untested, 1 passes, 2 fails
+      byte[] verdicts = new byte[values.size() + 1];
+      BitSet matches = new BitSet();
+      for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+        int code = codes[row] + 1;
+        if (verdicts[code] == 0) {
+          verdicts[code] = filter.test(get(row)) ? (byte) 1 : (byte) 2;
+        }
+        if (verdicts[code] == 1) {
+          matches.set(row);
+        }
+      }
+      return matches;
+    }
+  }
+}
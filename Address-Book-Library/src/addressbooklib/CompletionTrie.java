@@ -0,0 +1,516 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * CompletionTrie class
+ * Radix trie completing contact names from a prefix, best weighted names first.
+ * Every normalized name is stored whole and from the start of each of its words,
+ * so "smi" completes "John Smith" as well as "Smithers". Chains of single
+ * children are merged into one edge, so a node only exists where names branch or end.
+ *
+ * An entry weighs the time of its last recorded use. Every node keeps the largest
+ * weight below it, its children ranked by that weight and its entries ranked by
+ * their own. A completion walks down the prefix, then takes candidates best first,
+ * queueing only the next child, entry or sibling of the one taken, so finding the
+ * top k names costs O(prefix + (k + depth) log k) however many names share the prefix.
+ * Writers take the trie's lock and update only the path of the changed name;
+ * readers walk it without locking, since a node's label never changes and
+ * children and entries are replaced by publishing new arrays
+ * @author Shuang
+ */
+class CompletionTrie implements EntryIndex {
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  private final Node root = new Node(new char[0]);
+  private final Object lock = new Object();
+  // Last use of the entries used since they were added; missing entries weigh 0
+  private final ConcurrentMap<AddressEntry, Long> weights =
+      new ConcurrentHashMap<AddressEntry, Long>();
+  private final Comparator<AddressEntry> byWeight = (a, b) -> {
+    int result = Long.compare(weightOf(b), weightOf(a));
+    return (result != 0) ? result : AddressEntry.ORDER.compare(a, b);
+  };
+  private long clock;
+
+  /**
+   * Node class
+   * The end of an edge of the trie
+   */
+  private static final class Node {
+    final char[] label;
+    // Sorted by the first character of their label, for lookups
+    volatile Node[] children = NO_CHILDREN;
+    // The same children, best first and then by label, for completions
+    volatile Node[] ranked = NO_CHILDREN;
+    // Entries whose key ends here, best first, or null
+    volatile AddressEntry[] entries;
+    // Largest weight of the entries in this subtree
+    volatile long best;
+
+    Node(char[] label) {
+      this.label = label;
+    }
+
+    /**
+     * @return a node with another label holding the same subtree
+     */
+    Node relabel(char[] label) {
+      Node node = new Node(label);
+      node.children = children;
+      node.ranked = ranked;
+      node.entries = entries;
+      node.best = best;
+      return node;
+    }
+  }
+
+  /**
+   * Candidate class
+   * A node among its ranked siblings, or an entry among the ranked entries of
+   * a node, waiting to be taken. Candidates rank by weight and then by the name
+   * they stand for, and a node ranks before everything in its subtree
+   */
+  private static final class Candidate implements Comparable<Candidate> {
+    final long weight;
+    final String path;
+    final int index;
+    // For a node: its siblings and the path of their parent
+    final Node[] nodes;
+    final String parentPath;
+    // For an entry: the entries of its node
+    final AddressEntry[] entries;
+
+    Candidate(Node[] nodes, int index, String parentPath) {
+      this.weight = nodes[index].best;
+      this.path = parentPath + new String(nodes[index].label);
+      this.index = index;
+      this.nodes = nodes;
+      this.parentPath = parentPath;
+      this.entries = null;
+    }
+
+    Candidate(AddressEntry[] entries, int index, String path, long weight) {
+      this.weight = weight;
+      this.path = path;
+      this.index = index;
+      this.nodes = null;
+      this.parentPath = null;
+      this.entries = entries;
+    }
+
+    @Override
+    public int compareTo(Candidate candidate) {
+      int result = Long.compare(candidate.weight, weight);
+      if (result == 0) {
+        result = path.compareTo(candidate.path);
+      }
+      if (result == 0) {
+        result = Boolean.compare(nodes == null, candidate.nodes == null);
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public void add(AddressEntry entry) {
+    List<String> keys = keys(entry);
+    synchronized (lock) {
+      for (String key: keys) {
+        insert(key, entry);
+      }
+    }
+  }
+
+  @Override
+  public void remove(AddressEntry entry) {
+    List<String> keys = keys(entry);
+    synchronized (lock) {
+      // Dropped first, so the recomputed best weights no longer count it
+      weights.remove(entry);
+      for (String key: keys) {
+        delete(key, entry);
+      }
+    }
+  }
+
+  /**
+   * Records a use of an entry, making it the best completion of its name's prefixes
+   * @param entry: the used AddressEntry
+   * @return true if the use was recorded, false if the entry is not in the trie
+   */
+  boolean recordUse(AddressEntry entry) {
+    List<String> keys = keys(entry);
+    synchronized (lock) {
+      if (keys.isEmpty()) {
+        return false;
+      }
+      List<Node> path = pathOf(keys.get(0));
+      if (path == null || indexOf(path.get(path.size() - 1).entries, entry) < 0) {
+        return false;
+      }
+      weights.put(entry, ++clock);
+      for (String key: keys) {
+        path = pathOf(key);
+        Node node = path.get(path.size() - 1);
+        AddressEntry[] entries = node.entries.clone();
+        Arrays.sort(entries, byWeight);
+        node.entries = entries;
+        refresh(path, path.size() - 1);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Lets an entry replacing others keep the latest use of any of them
+   * Called before the new entry is added, once for every replaced entry
+   * @param from: a replaced AddressEntry
+   * @param to: the AddressEntry replacing it
+   */
+  void inheritUse(AddressEntry from, AddressEntry to) {
+    Long weight = weights.get(from);
+    if (weight != null) {
+      weights.merge(to, weight, Math::max);
+    }
+  }
+
+  /**
+   * Finds the best completions of a prefix
+   * @param prefix: the start of a name or of one of its words,
+   *        normalized with SubstringMatcher.normalize
+   * @param limit: the largest number of entries to return
+   * @return a List of at most limit entries, the most recently used first,
+   *         and entries never used in alphabetical order of the completed name
+   */
+  List<AddressEntry> complete(String prefix, int limit) {
+    // Walk down the prefix, which may end inside an edge
+    Node node = root;
+    int i = 0;
+    int j = 0;
+    while (i < prefix.length()) {
+      Node[] children = node.children;
+      int index = indexOf(children, prefix.charAt(i));
+      if (index < 0) {
+        return new ArrayList<AddressEntry>();
+      }
+      node = children[index];
+      for (j = 0; j < node.label.length && i < prefix.length(); i++, j++) {
+        if (node.label[j] != prefix.charAt(i)) {
+          return new ArrayList<AddressEntry>();
+        }
+      }
+    }
+
+    Set<AddressEntry> result = new LinkedHashSet<AddressEntry>();
+    PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+    queue.add(new Candidate(new Node[] {node}, 0, prefix.substring(0, prefix.length() - j)));
+    while (!queue.isEmpty() && result.size() < limit) {
+      Candidate candidate = queue.poll();
+      if (candidate.entries != null) {
+        // An entry found through an earlier word keeps its first rank
+        result.add(candidate.entries[candidate.index]);
+        offerEntry(queue, candidate.entries, candidate.index + 1, candidate.path);
+        continue;
+      }
+      if (candidate.index + 1 < candidate.nodes.length) {
+        queue.add(new Candidate(candidate.nodes, candidate.index + 1, candidate.parentPath));
+      }
+      Node taken = candidate.nodes[candidate.index];
+      offerEntry(queue, taken.entries, 0, candidate.path);
+      Node[] ranked = taken.ranked;
+      if (ranked.length > 0) {
+        queue.add(new Candidate(ranked, 0, candidate.path));
+      }
+    }
+    return new ArrayList<AddressEntry>(result);
+  }
+
+  /**
+   * @return the number of nodes below the root, which only exist where names branch or end
+   */
+  int nodeCount() {
+    int count = 0;
+    Deque<Node> pending = new ArrayDeque<Node>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      for (Node child: pending.pop().children) {
+        pending.push(child);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void offerEntry(Queue<Candidate> queue, AddressEntry[] entries, int index,
+      String path) {
+    if (entries != null && index < entries.length) {
+      queue.add(new Candidate(entries, index, path, weightOf(entries[index])));
+    }
+  }
+
+  /**
+   * Finds how a prefix completes a name, without the trie
+   * @param name: a contact name normalized with SubstringMatcher.normalize, may be null
+   * @param prefix: a prefix normalized with SubstringMatcher.normalize
+   * @return the first in alphabetical order of the name's keys starting with the prefix,
+   *         or null if there is none
+   */
+  static String completion(String name, String prefix) {
+    String first = null;
+    for (String key: keys(name)) {
+      if (key.startsWith(prefix) && (first == null || key.compareTo(first) < 0)) {
+        first = key;
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Adds the entry at the end of a key, splitting the edge where the key leaves it
+   */
+  private void insert(String key, AddressEntry entry) {
+    List<Node> path = new ArrayList<Node>();
+    Node node = root;
+    path.add(node);
+    int reshaped = -1;
+    int i = 0;
+    while (i < key.length()) {
+      Node[] children = node.children;
+      int index = indexOf(children, key.charAt(i));
+      if (index < 0) {
+        Node leaf = new Node(key.substring(i).toCharArray());
+        leaf.entries = new AddressEntry[] {entry};
+        node.children = inserted(children, -index - 1, leaf);
+        path.add(leaf);
+        refresh(path, (reshaped < 0) ? path.size() - 2 : reshaped);
+        return;
+      }
+      Node child = children[index];
+      int common = 0;
+      while (common < child.label.length && i + common < key.length()
+          && child.label[common] == key.charAt(i + common)) {
+        common++;
+      }
+      if (common < child.label.length) {
+        // The rest of the edge is copied, so readers inside the old child are unaffected
+        Node rest = child.relabel(Arrays.copyOfRange(child.label, common, child.label.length));
+        Node split = new Node(Arrays.copyOf(child.label, common));
+        split.children = new Node[] {rest};
+        split.ranked = split.children;
+        split.best = rest.best;
+        node.children = replaced(children, index, split);
+        if (reshaped < 0) {
+          reshaped = path.size() - 1;
+        }
+        child = split;
+      }
+      path.add(child);
+      node = child;
+      i += common;
+    }
+    AddressEntry[] entries = node.entries;
+    if (indexOf(entries, entry) >= 0) {
+      return;
+    }
+    if (entries == null) {
+      node.entries = new AddressEntry[] {entry};
+    }
+    else {
+      int at = Arrays.binarySearch(entries, entry, byWeight);
+      node.entries = inserted(entries, -at - 1, entry);
+    }
+    refresh(path, (reshaped < 0) ? path.size() - 1 : reshaped);
+  }
+
+  /**
+   * Removes the entry from the end of a key, pruning and merging the nodes it leaves useless
+   */
+  private void delete(String key, AddressEntry entry) {
+    List<Node> path = pathOf(key);
+    if (path == null) {
+      return;
+    }
+    Node node = path.get(path.size() - 1);
+    int at = indexOf(node.entries, entry);
+    if (at < 0) {
+      return;
+    }
+    node.entries = (node.entries.length == 1) ? null : removed(node.entries, at);
+
+    int reshaped = path.size() - 1;
+    for (int depth = path.size() - 1; depth > 0; depth--) {
+      node = path.get(depth);
+      Node parent = path.get(depth - 1);
+      Node[] siblings = parent.children;
+      int index = indexOf(siblings, node.label[0]);
+      if (node.entries == null && node.children.length == 0) {
+        // Prune the node, then see whether its parent became useless too
+        parent.children = removed(siblings, index);
+        path.remove(depth);
+        reshaped = depth - 1;
+        continue;
+      }
+      if (node.entries == null && node.children.length == 1) {
+        Node child = node.children[0];
+        char[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+        parent.children = replaced(siblings, index, child.relabel(label));
+        path.subList(depth, path.size()).clear();
+        reshaped = depth - 1;
+      }
+      break;
+    }
+    refresh(path, reshaped);
+  }
+
+  /**
+   * Recomputes the ranked children and the best weight of the nodes on a path,
+   * bottom up. Every node from the end of the path up to the one at depth reshaped
+   * is ranked again; above it, only the nodes whose child changed its best weight
+   */
+  private void refresh(List<Node> path, int reshaped) {
+    boolean changed = true;
+    for (int depth = path.size() - 1; depth >= 0; depth--) {
+      Node node = path.get(depth);
+      if (changed || depth >= reshaped) {
+        Node[] ranked = node.children.clone();
+        Arrays.sort(ranked, (a, b) -> {
+          int result = Long.compare(b.best, a.best);
+          return (result != 0) ? result : Character.compare(a.label[0], b.label[0]);
+        });
+        node.ranked = ranked;
+      }
+      long best = (node.ranked.length == 0) ? 0 : node.ranked[0].best;
+      AddressEntry[] entries = node.entries;
+      if (entries != null) {
+        best = Math.max(best, weightOf(entries[0]));
+      }
+      changed = (best != node.best);
+      node.best = best;
+      if (!changed && depth <= reshaped) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the nodes from the root to the end of the key, or null if the key
+   *         does not end at a node
+   */
+  private List<Node> pathOf(String key) {
+    List<Node> path = new ArrayList<Node>();
+    Node node = root;
+    path.add(node);
+    for (int i = 0; i < key.length(); i += node.label.length) {
+      int index = indexOf(node.children, key.charAt(i));
+      if (index < 0) {
+        return null;
+      }
+      node = node.children[index];
+      if (!startsAt(key, i, node.label)) {
+        return null;
+      }
+      path.add(node);
+    }
+    return path;
+  }
+
+  private long weightOf(AddressEntry entry) {
+    Long weight = weights.get(entry);
+    return (weight == null) ? 0 : weight;
+  }
+
+  /**
+   * The keys of an entry: its normalized contact name, and the rest of the name
+   * from the start of every later word
+   */
+  private static List<String> keys(AddressEntry entry) {
+    return keys(entry.normalizedValue(AddressField.CONTACT_NAME));
+  }
+
+  private static List<String> keys(String name) {
+    List<String> keys = new ArrayList<String>();
+    if (name == null) {
+      return keys;
+    }
+    keys.add(name);
+    for (int i = 1; i < name.length(); i++) {
+      if (!Character.isLetterOrDigit(name.charAt(i - 1))
+          && Character.isLetterOrDigit(name.charAt(i))) {
+        keys.add(name.substring(i));
+      }
+    }
+    return keys;
+  }
+
+  private static boolean startsAt(String key, int offset, char[] label) {
+    if (offset + label.length > key.length()) {
+      return false;
+    }
+    for (int j = 0; j < label.length; j++) {
+      if (key.charAt(offset + j) != label[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Binary searches children for the one whose label starts with c
+   * @return its index, or (-(insertion point) - 1) if there is none
+   */
+  private static int indexOf(Node[] children, char c) {
+    int low = 0;
+    int high = children.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      char first = children[middle].label[0];
+      if (first < c) {
+        low = middle + 1;
+      }
+      else if (first > c) {
+        high = middle - 1;
+      }
+      else {
+        return middle;
+      }
+    }
+    return -low - 1;
+  }
+
+  /**
+   * @return the index of the entry, or -1 if entries is null or does not hold it
+   */
+  private static int indexOf(AddressEntry[] entries, AddressEntry entry) {
+    if (entries != null) {
+      for (int k = 0; k < entries.length; k++) {
+        if (entries[k].equals(entry)) {
+          return k;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static <T> T[] inserted(T[] array, int index, T element) {
+    T[] result = Arrays.copyOf(array, array.length + 1);
+    System.arraycopy(array, index, result, index + 1, array.length - index);
+    result[index] = element;
+    return result;
+  }
+
+  private static <T> T[] replaced(T[] array, int index, T element) {
+    T[] result = array.clone();
+    result[index] = element;
+    return result;
+  }
+
+  private static <T> T[] removed(T[] array, int index) {
+    T[] result = Arrays.copyOf(array, array.length - 1);
+    System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+    return result;
+  }
+}
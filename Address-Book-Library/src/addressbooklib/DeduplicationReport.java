@@ -0,0 +1,126 @@
+package addressbooklib;
+
+import java.util.*;
+
+/**
+ * DeduplicationReport class
+ * What one run of AddressBook.deduplicate did and how fast it went:
+ * how many entries were checked, how many candidate pairs their blocking keys
+ * produced, how many of those were duplicates, the clusters they formed
+ * and the entries the clusters were merged into, none in a report-only run
+ * @author Shuang
+ */
+public class DeduplicationReport {
+  private final int entriesChecked;
+  private final long candidatePairs;
+  private final long duplicatePairs;
+  private final List<List<AddressEntry>> clusters;
+  private final List<AddressEntry> mergedEntries;
+  private final int entriesRemoved;
+  private final long elapsedNanos;
+
+  /**
+   * Constructor
+   * @param entriesChecked: the number of entries looked for duplicates
+   * @param candidatePairs: the number of pairs sharing a blocking key, each scored once
+   * @param duplicatePairs: the number of candidate pairs found to be duplicates
+   * @param clusters: the clusters of duplicates found, each in AddressEntry.ORDER
+   * @param mergedEntries: the entry each cluster of duplicates was merged into
+   * @param entriesRemoved: the number of entries the merges took out of the book
+   * @param elapsedNanos: the duration of the run in nanoseconds
+   */
+  DeduplicationReport(int entriesChecked, long candidatePairs, long duplicatePairs,
+      List<List<AddressEntry>> clusters, List<AddressEntry> mergedEntries,
+      int entriesRemoved, long elapsedNanos) {
+    this.entriesChecked = entriesChecked;
+    this.candidatePairs = candidatePairs;
+    this.duplicatePairs = duplicatePairs;
+    List<List<AddressEntry>> found = new ArrayList<List<AddressEntry>>(clusters.size());
+    for (List<AddressEntry> cluster: clusters) {
+      found.add(Collections.unmodifiableList(cluster));
+    }
+    this.clusters = Collections.unmodifiableList(found);
+    this.mergedEntries = Collections.unmodifiableList(mergedEntries);
+    this.entriesRemoved = entriesRemoved;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * @return the number of entries looked for duplicates, every entry of the book
+   *         or only the added ones of an incremental run
+   */
+  public int getEntriesChecked() {
+    return entriesChecked;
+  }
+
+  /**
+   * @return the number of pairs sharing a blocking key, each scored once
+   */
+  public long getCandidatePairs() {
+    return candidatePairs;
+  }
+
+  /**
+   * @return the number of candidate pairs found to be duplicates
+   */
+  public long getDuplicatePairs() {
+    return duplicatePairs;
+  }
+
+  /**
+   * @return an unmodifiable List of the clusters of duplicates found, each an unmodifiable
+   *         List in AddressEntry.ORDER, whether they were merged or only reported
+   */
+  public List<List<AddressEntry>> getClusters() {
+    return clusters;
+  }
+
+  /**
+   * @return an unmodifiable List of the entry each cluster of duplicates was merged into
+   */
+  public List<AddressEntry> getMergedEntries() {
+    return mergedEntries;
+  }
+
+  /**
+   * @return the number of entries the merges took out of the book
+   */
+  public int getEntriesRemoved() {
+    return entriesRemoved;
+  }
+
+  /**
+   * @return the duration of the run in nanoseconds
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * @return the number of entries checked per second
+   */
+  public double getEntriesPerSecond() {
+    return perSecond(entriesChecked);
+  }
+
+  /**
+   * @return the number of candidate pairs scored per second
+   */
+  public double getPairsPerSecond() {
+    return perSecond(candidatePairs);
+  }
+
+  private double perSecond(long count) {
+    return (elapsedNanos == 0) ? 0 : count * 1e9 / elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Checked %d entries (%.0f/s), scored %d candidate pairs (%.0f/s), "
+        + "found %d duplicate pairs in %d clusters, merged %d clusters removing %d entries "
+        + "in %.1f ms",
+        entriesChecked, getEntriesPerSecond(), candidatePairs, getPairsPerSecond(),
+        duplicatePairs, clusters.size(), mergedEntries.size(), entriesRemoved,
+        elapsedNanos / 1e6);
+  }
+}
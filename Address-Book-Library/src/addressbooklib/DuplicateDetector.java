@@ -0,0 +1,488 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * DuplicateDetector class
+ * Finds entries describing the same contact although they are not equal,
+ * e.g. differing in case, a typo of the name or the note.
+ *
+ * Comparing every pair costs O(n^2), so entries are first grouped into blocks
+ * sharing a blocking key: the phone number, the email address ignoring case, or
+ * the phonetic codes of the name's words in any order. Only entries in the same block
+ * become candidate pairs, and a block holding more than BLOCK_LIMIT entries only
+ * pairs entries within BLOCK_LIMIT of each other in name order.
+ * Candidate pairs are scored in parallel, and duplicate pairs are joined
+ * into clusters with a union-find, so duplicates of duplicates end up together.
+ *
+ * Pairs are merged only when their names agree closely enough to rule out
+ * two people of one household; a looser match is only good for a report to review
+ *
+ * Given the entries added since an earlier run, only pairs involving one of them
+ * are considered, since the other pairs were already compared
+ * @author Shuang
+ */
+final class DuplicateDetector {
+  // Smallest weighted similarity of the compared fields for a duplicate
+  static final double THRESHOLD = 0.9;
+  static final int BLOCK_LIMIT = 32;
+  private static final int PARALLEL_MIN_PAIRS = 4096;
+  private static final int NAME_WEIGHT = 5;
+  private static final int PHONE_WEIGHT = 3;
+  private static final int EMAIL_WEIGHT = 3;
+  private static final int ADDRESS_WEIGHT = 2;
+  private static final Comparator<AddressEntry> BY_NAME = Comparator.comparing(
+      (AddressEntry e) -> e.normalizedValue(AddressField.CONTACT_NAME),
+      Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+      .thenComparing(AddressEntry.ORDER);
+
+  // The entries added since the last run, or null to compare every pair
+  private final Set<AddressEntry> added;
+  // Whether pairs are joined by isLikelyDuplicate instead of isDuplicate
+  private final boolean loose;
+  // Every entry of a block gets a number; a pair packs the numbers of its entries
+  // into a long, the smaller one high, so a pair found in several blocks is scored once
+  private final Map<AddressEntry, Integer> ids = new HashMap<AddressEntry, Integer>();
+  private final List<AddressEntry> entries = new ArrayList<AddressEntry>();
+  private long[] pairs = new long[64];
+  private int pairCount;
+  private boolean distinct = true;
+  private long duplicatePairs;
+
+  /**
+   * Constructor
+   * @param added: the entries added since the last run, or null to compare every pair
+   * @param loose: true to join pairs by isLikelyDuplicate, for a report only,
+   *        false to join them by isDuplicate
+   */
+  DuplicateDetector(Set<AddressEntry> added, boolean loose) {
+    this.added = added;
+    this.loose = loose;
+  }
+
+  /**
+   * Blocks entries by their blocking keys and collects the candidate pairs of every block
+   * Without every pair to compare, only blocks sharing a key with an added entry are kept
+   * @param entries: every entry of the book
+   */
+  void scan(Iterable<AddressEntry> entries) {
+    Set<String> wanted = null;
+    if (added != null) {
+      wanted = new HashSet<String>();
+      for (AddressEntry e: added) {
+        wanted.addAll(blockingKeys(e));
+      }
+    }
+    Map<String, List<AddressEntry>> blocks = new HashMap<String, List<AddressEntry>>();
+    for (AddressEntry e: entries) {
+      for (String key: blockingKeys(e)) {
+        if (wanted == null || wanted.contains(key)) {
+          blocks.computeIfAbsent(key, k -> new ArrayList<AddressEntry>()).add(e);
+        }
+      }
+    }
+    for (List<AddressEntry> block: blocks.values()) {
+      addBlock(block);
+    }
+  }
+
+  /**
+   * Collects the candidate pairs of the added entries from the book's indexes,
+   * without visiting the other entries. Each blocking key is looked up once,
+   * however many added entries share it
+   * @param phones: the index of phone numbers
+   * @param emails: the index of email addresses, ignoring case
+   * @param sounds: the index of the phonetic codes of names
+   */
+  void probe(ExactMatchIndex phones, ExactMatchIndex emails, PhoneticIndex sounds) {
+    Map<String, AddressEntry> keys = new HashMap<String, AddressEntry>();
+    for (AddressEntry e: added) {
+      for (String key: blockingKeys(e)) {
+        keys.putIfAbsent(key, e);
+      }
+    }
+    for (Map.Entry<String, AddressEntry> key: keys.entrySet()) {
+      AddressEntry entry = key.getValue();
+      Collection<AddressEntry> block;
+      switch (key.getKey().charAt(0)) {
+        case 'p':
+          block = phones.find(entry.getPhoneNumber());
+          break;
+        case 'e':
+          block = emails.find(entry.getEmailAddress());
+          break;
+        default:
+          // The index finds names holding every code; the block wants exactly those codes
+          block = new ArrayList<AddressEntry>();
+          String name = nameKey(entry);
+          for (AddressEntry e: sounds.find(PhoneticCode.ofWords(entry.getContactName()))) {
+            if (name.equals(nameKey(e))) {
+              block.add(e);
+            }
+          }
+      }
+      addBlock(withEntry(block, entry));
+    }
+  }
+
+  /**
+   * @return the number of distinct candidate pairs collected so far
+   */
+  int candidatePairs() {
+    if (!distinct) {
+      Arrays.sort(pairs, 0, pairCount);
+      int count = 0;
+      for (int k = 0; k < pairCount; k++) {
+        if (count == 0 || pairs[k] != pairs[count - 1]) {
+          pairs[count++] = pairs[k];
+        }
+      }
+      pairCount = count;
+      distinct = true;
+    }
+    return pairCount;
+  }
+
+  /**
+   * @return the number of candidate pairs found to be duplicates by clusters()
+   */
+  long duplicatePairs() {
+    return duplicatePairs;
+  }
+
+  /**
+   * Scores the candidate pairs and joins the duplicate pairs into clusters
+   * @return the clusters of at least two entries, each in AddressEntry.ORDER,
+   *         ordered by their first entry
+   */
+  List<List<AddressEntry>> clusters() {
+    IntStream candidates = IntStream.range(0, candidatePairs());
+    int[] duplicates = ((pairCount < PARALLEL_MIN_PAIRS) ? candidates : candidates.parallel())
+        .filter(k -> matches(entries.get((int) (pairs[k] >>> 32)),
+            entries.get((int) pairs[k])))
+        .toArray();
+    duplicatePairs = duplicates.length;
+
+    int[] parents = new int[entries.size()];
+    for (int i = 0; i < parents.length; i++) {
+      parents[i] = i;
+    }
+    for (int k: duplicates) {
+      int a = find(parents, (int) (pairs[k] >>> 32));
+      int b = find(parents, (int) pairs[k]);
+      if (a != b) {
+        parents[Math.max(a, b)] = Math.min(a, b);
+      }
+    }
+    Map<Integer, List<AddressEntry>> groups = new HashMap<Integer, List<AddressEntry>>();
+    for (int i = 0; i < parents.length; i++) {
+      int root = find(parents, i);
+      if (root != i) {
+        groups.computeIfAbsent(root, k -> new ArrayList<AddressEntry>()).add(entries.get(i));
+      }
+    }
+    List<List<AddressEntry>> clusters = new ArrayList<List<AddressEntry>>();
+    for (Map.Entry<Integer, List<AddressEntry>> group: groups.entrySet()) {
+      List<AddressEntry> cluster = group.getValue();
+      cluster.add(entries.get(group.getKey()));
+      cluster.sort(AddressEntry.ORDER);
+      clusters.add(cluster);
+    }
+    clusters.sort((a, b) -> AddressEntry.ORDER.compare(a.get(0), b.get(0)));
+    return clusters;
+  }
+
+  /**
+   * Decides whether two entries describe the same contact, surely enough to merge them
+   * Relatives sharing a landline and an address often have names one letter apart,
+   * as "Jon Smith" and "Jan Smith", so the names must be equal, ignoring case, accents
+   * and the order of their words, or one edit apart with equal email addresses.
+   * The other fields must then agree as for isLikelyDuplicate
+   * @param a: an AddressEntry
+   * @param b: another AddressEntry
+   * @return true if a and b are duplicates
+   */
+  static boolean isDuplicate(AddressEntry a, AddressEntry b) {
+    return sameName(a, b) && isLikelyDuplicate(a, b);
+  }
+
+  /**
+   * Decides whether two entries may describe the same contact, for a report to review
+   * Entries equal in every field but the note, ignoring case and accents, are duplicates.
+   * Otherwise the fields set in both entries are compared, names and addresses
+   * by edit distance and phone numbers and email addresses exactly; at least
+   * two fields must be compared and their weighted similarity must reach THRESHOLD
+   * @param a: an AddressEntry
+   * @param b: another AddressEntry
+   * @return true if a and b may be duplicates
+   */
+  static boolean isLikelyDuplicate(AddressEntry a, AddressEntry b) {
+    String nameA = a.normalizedValue(AddressField.CONTACT_NAME);
+    String nameB = b.normalizedValue(AddressField.CONTACT_NAME);
+    String addressA = a.normalizedValue(AddressField.POSTAL_ADDRESS);
+    String addressB = b.normalizedValue(AddressField.POSTAL_ADDRESS);
+    String phoneA = a.getPhoneNumber();
+    String phoneB = b.getPhoneNumber();
+    String emailA = a.getEmailAddress();
+    String emailB = b.getEmailAddress();
+    if (Objects.equals(nameA, nameB) && Objects.equals(addressA, addressB)
+        && Objects.equals(phoneA, phoneB)
+        && ((emailA == null) ? emailB == null : emailA.equalsIgnoreCase(emailB))) {
+      return true;
+    }
+
+    double score = 0;
+    int weight = 0;
+    int compared = 0;
+    if (phoneA != null && phoneB != null) {
+      score += phoneA.equals(phoneB) ? PHONE_WEIGHT : 0;
+      weight += PHONE_WEIGHT;
+      compared++;
+    }
+    if (emailA != null && emailB != null) {
+      score += emailA.equalsIgnoreCase(emailB) ? EMAIL_WEIGHT : 0;
+      weight += EMAIL_WEIGHT;
+      compared++;
+    }
+    boolean names = nameA != null && nameB != null;
+    boolean addresses = addressA != null && addressB != null;
+    int nameWeight = names ? NAME_WEIGHT : 0;
+    int addressWeight = addresses ? ADDRESS_WEIGHT : 0;
+    weight += nameWeight + addressWeight;
+    compared += (names ? 1 : 0) + (addresses ? 1 : 0);
+    double needed = THRESHOLD * weight;
+
+    // Edit distances are the costly part, so they are skipped
+    // as soon as even equal names and addresses would fall short
+    if (compared < 2 || score + nameWeight + addressWeight < needed) {
+      return false;
+    }
+    if (addresses) {
+      score += ADDRESS_WEIGHT * similarity(addressA, addressB);
+      if (score + nameWeight < needed) {
+        return false;
+      }
+    }
+    if (names) {
+      score += NAME_WEIGHT * nameSimilarity(nameA, nameB);
+    }
+    return score >= needed;
+  }
+
+  /**
+   * @return true if the names of a and b are equal but for the order of their words,
+   *         or one edit apart and the email addresses are equal
+   */
+  private static boolean sameName(AddressEntry a, AddressEntry b) {
+    String nameA = a.normalizedValue(AddressField.CONTACT_NAME);
+    String nameB = b.normalizedValue(AddressField.CONTACT_NAME);
+    if (nameA == null || nameB == null) {
+      return nameA == null && nameB == null;
+    }
+    if (nameA.equals(nameB)) {
+      return true;
+    }
+    String sortedA = sortWords(nameA);
+    String sortedB = sortWords(nameB);
+    if (sortedA.equals(sortedB)) {
+      return true;
+    }
+    String emailA = a.getEmailAddress();
+    if (emailA == null || !emailA.equalsIgnoreCase(b.getEmailAddress())) {
+      return false;
+    }
+    return new EditDistance(nameA).to(nameB) <= 1 || new EditDistance(sortedA).to(sortedB) <= 1;
+  }
+
+  private boolean matches(AddressEntry a, AddressEntry b) {
+    return loose ? isLikelyDuplicate(a, b) : isDuplicate(a, b);
+  }
+
+  /**
+   * Chooses the entry a cluster is merged into: the one with the most fields set,
+   * the first in AddressEntry.ORDER among those
+   * @param cluster: entries in AddressEntry.ORDER
+   * @return an entry of the cluster
+   */
+  static AddressEntry base(List<AddressEntry> cluster) {
+    AddressEntry base = null;
+    int most = -1;
+    for (AddressEntry e: cluster) {
+      int set = 0;
+      for (AddressField field: AddressField.values()) {
+        if (field != AddressField.NOTE && field.getValue(e) != null) {
+          set++;
+        }
+      }
+      if (set > most) {
+        base = e;
+        most = set;
+      }
+    }
+    return base;
+  }
+
+  /**
+   * Merges a cluster into one entry
+   * The base keeps its values; a field it lacks takes the value of the first other
+   * entry having one, and the distinct notes are joined, the base's first
+   * @param cluster: entries in AddressEntry.ORDER
+   * @param base: the entry of the cluster chosen by base
+   * @return the merged AddressEntry
+   */
+  static AddressEntry merge(List<AddressEntry> cluster, AddressEntry base) {
+    AddressField[] fields = AddressField.values();
+    String[] values = new String[fields.length];
+    for (AddressField field: fields) {
+      values[field.ordinal()] = field.getValue(base);
+      for (Iterator<AddressEntry> it = cluster.iterator();
+          values[field.ordinal()] == null && it.hasNext(); ) {
+        values[field.ordinal()] = field.getValue(it.next());
+      }
+    }
+
+    Map<String, String> notes = new LinkedHashMap<String, String>();
+    if (base.getNote() != null) {
+      notes.put(base.normalizedValue(AddressField.NOTE), base.getNote());
+    }
+    for (AddressEntry e: cluster) {
+      if (e.getNote() != null) {
+        notes.putIfAbsent(e.normalizedValue(AddressField.NOTE), e.getNote());
+      }
+    }
+    values[AddressField.NOTE.ordinal()] = notes.isEmpty() ? null
+        : String.join("; ", notes.values());
+
+    // Every value comes from a valid entry, so nothing needs checking again
+    return AddressEntry.restore(values[AddressField.CONTACT_NAME.ordinal()],
+        values[AddressField.POSTAL_ADDRESS.ordinal()],
+        values[AddressField.PHONE_NUMBER.ordinal()],
+        values[AddressField.EMAIL_ADDRESS.ordinal()],
+        values[AddressField.NOTE.ordinal()]);
+  }
+
+  /**
+   * Pairs up the entries of a block; in a block larger than BLOCK_LIMIT
+   * only entries within BLOCK_LIMIT of each other in name order
+   */
+  private void addBlock(Collection<AddressEntry> block) {
+    if (block.size() < 2) {
+      return;
+    }
+    List<AddressEntry> members = new ArrayList<AddressEntry>(block);
+    if (members.size() > BLOCK_LIMIT) {
+      members.sort(BY_NAME);
+    }
+    int[] numbers = new int[members.size()];
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i] = ids.computeIfAbsent(members.get(i), e -> {
+        entries.add(e);
+        return entries.size() - 1;
+      });
+    }
+    int window = Math.min(members.size(), BLOCK_LIMIT);
+    for (int i = 0; i < numbers.length; i++) {
+      if (added == null) {
+        for (int j = i + 1; j < i + window && j < numbers.length; j++) {
+          addPair(numbers[i], numbers[j]);
+        }
+      }
+      else if (added.contains(members.get(i))) {
+        for (int j = Math.max(0, i - window + 1); j < i + window && j < numbers.length; j++) {
+          if (j != i) {
+            addPair(numbers[i], numbers[j]);
+          }
+        }
+      }
+    }
+  }
+
+  private void addPair(int a, int b) {
+    if (pairCount == pairs.length) {
+      pairs = Arrays.copyOf(pairs, pairCount * 2);
+    }
+    pairs[pairCount++] = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    distinct = false;
+  }
+
+  /**
+   * @return the blocking keys of an entry, each tagged with the field it comes from
+   */
+  static List<String> blockingKeys(AddressEntry entry) {
+    List<String> keys = new ArrayList<String>(3);
+    if (entry.getPhoneNumber() != null) {
+      keys.add("p" + entry.getPhoneNumber());
+    }
+    if (entry.getEmailAddress() != null) {
+      keys.add("e" + entry.getEmailAddress().toLowerCase(Locale.ROOT));
+    }
+    String name = nameKey(entry);
+    if (name != null) {
+      keys.add("n" + name);
+    }
+    return keys;
+  }
+
+  /**
+   * @return the sorted phonetic codes of the words of the entry's name,
+   *         or null if the name has no letters
+   */
+  private static String nameKey(AddressEntry entry) {
+    List<String> codes = PhoneticCode.ofWords(entry.getContactName());
+    if (codes.isEmpty()) {
+      return null;
+    }
+    Collections.sort(codes);
+    return String.join(" ", codes);
+  }
+
+  /**
+   * Compares names by edit distance, also with their words sorted,
+   * so "Smith John" is as similar to "John Smith" as "John Smith" itself
+   */
+  private static double nameSimilarity(String a, String b) {
+    if (a.equals(b)) {
+      return 1;
+    }
+    return Math.max(similarity(a, b), similarity(sortWords(a), sortWords(b)));
+  }
+
+  /**
+   * @return 1 minus the edit distance divided by the longer length, 1 for equal strings
+   */
+  private static double similarity(String a, String b) {
+    int longer = Math.max(a.length(), b.length());
+    if (longer == 0) {
+      return 1;
+    }
+    return 1 - (double) new EditDistance(a).to(b) / longer;
+  }
+
+  private static String sortWords(String text) {
+    String[] words = text.split(" ");
+    Arrays.sort(words);
+    return String.join(" ", words);
+  }
+
+  private static Collection<AddressEntry> withEntry(Collection<AddressEntry> block,
+      AddressEntry entry) {
+    if (block.contains(entry)) {
+      return block;
+    }
+    List<AddressEntry> result = new ArrayList<AddressEntry>(block);
+    result.add(entry);
+    return result;
+  }
+
+  /**
+   * Finds the root of an entry in the union-find, halving the path on the way
+   */
+  private static int find(int[] parents, int i) {
+    while (parents[i] != i) {
+      parents[i] = parents[parents[i]];
+      i = parents[i];
+    }
+    return i;
+  }
+}
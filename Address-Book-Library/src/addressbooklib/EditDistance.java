@@ -0,0 +1,107 @@
+package addressbooklib;
+
+import java.util.*;
+
+/**
+ * EditDistance class
+ * Damerau-Levenshtein distance from one fixed string to others: the fewest
+ * insertions, deletions, substitutions and swaps of adjacent characters
+ * turning one into the other, so "jonh" is one edit away from "john".
+ * Unlike the restricted variant, which never edits a swapped pair again,
+ * it is a metric, and BkTree relies on the triangle inequality to prune.
+ * The matrix is reused between calls, so an instance must not be shared between threads
+ * @author Shuang
+ */
+final class EditDistance {
+  private final String query;
+  // The distinct characters of the query, and the alphabet index of each query position
+  private final char[] alphabet;
+  private final int[] symbols;
+  // For each alphabet character, the last row of the text holding it
+  private final int[] lastRow;
+  private int[] matrix = new int[0];
+
+  /**
+   * Constructor
+   * @param query: the string all distances are measured from
+   */
+  EditDistance(String query) {
+    this.query = query;
+    StringBuilder distinct = new StringBuilder();
+    symbols = new int[query.length()];
+    for (int j = 0; j < query.length(); j++) {
+      char c = query.charAt(j);
+      int index = distinct.indexOf(String.valueOf(c));
+      if (index < 0) {
+        index = distinct.length();
+        distinct.append(c);
+      }
+      symbols[j] = index;
+    }
+    alphabet = distinct.toString().toCharArray();
+    lastRow = new int[alphabet.length];
+  }
+
+  /**
+   * @param text: the string to measure the distance to
+   * @return the Damerau-Levenshtein distance between the query and text
+   */
+  int to(String text) {
+    if (text.equals(query)) {
+      return 0;
+    }
+    int m = text.length();
+    int n = query.length();
+    int columns = n + 2;
+    if (matrix.length < (m + 2) * columns) {
+      matrix = new int[(m + 2) * columns];
+    }
+    Arrays.fill(lastRow, 0);
+
+    // Row and column 0 hold a bound no edit sequence reaches, row and column 1 the empty prefixes
+    int infinity = m + n;
+    matrix[0] = infinity;
+    for (int i = 0; i <= m; i++) {
+      matrix[(i + 1) * columns] = infinity;
+      matrix[(i + 1) * columns + 1] = i;
+    }
+    for (int j = 0; j <= n; j++) {
+      matrix[j + 1] = infinity;
+      matrix[columns + j + 1] = j;
+    }
+
+    for (int i = 1; i <= m; i++) {
+      char c = text.charAt(i - 1);
+      int lastColumn = 0;
+      for (int j = 1; j <= n; j++) {
+        int k = lastRow[symbols[j - 1]];
+        int l = lastColumn;
+        int cost = 1;
+        if (c == query.charAt(j - 1)) {
+          cost = 0;
+          lastColumn = j;
+        }
+        int distance = Math.min(matrix[i * columns + j] + cost,
+            Math.min(matrix[(i + 1) * columns + j] + 1, matrix[i * columns + j + 1] + 1));
+        // Swap the characters at rows k and i and at columns l and j, editing what lies between
+        distance = Math.min(distance,
+            matrix[k * columns + l] + (i - k - 1) + 1 + (j - l - 1));
+        matrix[(i + 1) * columns + j + 1] = distance;
+      }
+      int index = indexOf(c);
+      if (index >= 0) {
+        lastRow[index] = i;
+      }
+    }
+    return matrix[(m + 1) * columns + n + 1];
+  }
+
+  private int indexOf(char c) {
+    for (int i = 0; i < alphabet.length; i++) {
+      if (alphabet[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
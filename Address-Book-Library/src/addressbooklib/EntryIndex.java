@@ -0,0 +1,23 @@
+package addressbooklib;
+
+/**
+ * EntryIndex interface
+ * A secondary structure over the entries of an AddressBook,
+ * kept up to date by the book whenever an entry is added or removed.
+ * Implementations must allow different entries to be added and removed
+ * concurrently, and must let lookups run without blocking on writers
+ * @author Shuang
+ */
+interface EntryIndex {
+  /**
+   * Indexes an entry that was just added to the address book
+   * @param entry: the added AddressEntry, never null
+   */
+  void add(AddressEntry entry);
+  
+  /**
+   * Drops an entry that was just removed from the address book
+   * @param entry: the removed AddressEntry, never null
+   */
+  void remove(AddressEntry entry);
+}
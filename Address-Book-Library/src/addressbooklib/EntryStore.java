@@ -0,0 +1,44 @@
+package addressbooklib;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * EntryStore interface
+ * Backing storage for an AddressBook that keeps no in-memory indexes,
+ * such as the on-disk LsmEntryStore or the compact ColumnarEntryStore.
+ * Searches in such a book go through select, so a store can evaluate
+ * the filter on its own representation instead of building every entry
+ * @author Shuang
+ */
+interface EntryStore extends Set<AddressEntry>, Closeable {
+  /**
+   * Removes one entry and adds another in a single step
+   * @param oldEntry: the entry to remove
+   * @param newEntry: the entry to add, possibly already in the store
+   * @return true if oldEntry was in the store and has been replaced
+   */
+  boolean replace(AddressEntry oldEntry, AddressEntry newEntry);
+
+  /**
+   * Takes a point-in-time view of the store
+   * @return an AddressBookSnapshot, to be closed by the caller
+   */
+  AddressBookSnapshot snapshot();
+
+  /**
+   * Adds every entry whose field value passes the filter to the result
+   * @param field: the AddressField the filter is applied to
+   * @param filter: tests a field value, which may be null
+   * @param result: the Collection collecting matching entries
+   */
+  default void select(AddressField field, Predicate<String> filter,
+      Collection<AddressEntry> result) {
+    for (AddressEntry e: this) {
+      if (filter.test(field.getValue(e))) {
+        result.add(e);
+      }
+    }
+  }
+}
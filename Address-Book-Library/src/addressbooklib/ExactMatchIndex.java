@@ -0,0 +1,80 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ExactMatchIndex class
+ * Hash multimap from the whole value of one field to the entries holding it,
+ * so an exact lookup costs a single hash probe.
+ * Several entries may share a value, e.g. a family sharing one phone number.
+ * The value sets are concurrent and updated atomically per value,
+ * so lookups never lock
+ * @author Shuang
+ */
+class ExactMatchIndex implements EntryIndex {
+  private final AddressField field;
+  private final boolean ignoreCase;
+  private final ConcurrentMap<String, Set<AddressEntry>> entries =
+      new ConcurrentHashMap<String, Set<AddressEntry>>();
+  
+  /**
+   * Constructor
+   * @param field: the AddressField whose values are indexed
+   * @param ignoreCase: true if values are compared case-insensitively
+   */
+  ExactMatchIndex(AddressField field, boolean ignoreCase) {
+    this.field = field;
+    this.ignoreCase = ignoreCase;
+  }
+  
+  @Override
+  public void add(AddressEntry entry) {
+    String value = normalize(field.getValue(entry));
+    if (value == null) {
+      return;
+    }
+    entries.compute(value, (key, matches) -> {
+      if (matches == null) {
+        matches = ConcurrentHashMap.newKeySet(2);
+      }
+      matches.add(entry);
+      return matches;
+    });
+  }
+  
+  @Override
+  public void remove(AddressEntry entry) {
+    String value = normalize(field.getValue(entry));
+    if (value == null) {
+      return;
+    }
+    entries.computeIfPresent(value, (key, matches) -> {
+      matches.remove(entry);
+      return matches.isEmpty() ? null : matches;
+    });
+  }
+  
+  /**
+   * Finds the entries whose field is exactly the given value
+   * @param value: the field value to look up, may be null
+   * @return an unmodifiable Set of matching entries, empty if there is none
+   */
+  Set<AddressEntry> find(String value) {
+    if (value == null) {
+      return Collections.emptySet();
+    }
+    Set<AddressEntry> matches = entries.get(normalize(value));
+    if (matches == null) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(matches);
+  }
+  
+  private String normalize(String value) {
+    if (value == null || !ignoreCase) {
+      return value;
+    }
+    return value.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,15 @@
+package addressbooklib;
+
+/**
+ * ExportProgressListener interface
+ * Receives progress reports while an AddressBook is being exported
+ * @author Shuang
+ */
+public interface ExportProgressListener {
+  /**
+   * Called each time a buffer has been written out, and once when the export completes
+   * @param bytesWritten: the number of bytes written to the file so far
+   * @param entriesWritten: the number of entries written to the file so far
+   */
+  void progress(long bytesWritten, long entriesWritten);
+}
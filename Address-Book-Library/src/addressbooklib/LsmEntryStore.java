@@ -0,0 +1,988 @@
+package addressbooklib;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * LsmEntryStore class
+ * Log-structured merge storage for address books larger than the heap.
+ * New adds and removals go to a sorted in-memory memtable. Once it holds
+ * MEMTABLE_LIMIT entries it is written out as an immutable segment file,
+ * sorted by AddressEntry.ORDER, where a removal is kept as a tombstone.
+ * Lookups check the memtables, then the segments from newest to oldest,
+ * skipping every segment whose Bloom filter rules the entry out.
+ * Taking a view freezes the memtable rather than copying it: the frozen
+ * table is shared with the view, a fresh one takes the later changes, and
+ * the next flush writes all of them out as one segment.
+ * When COMPACTION_TRIGGER segments have piled up, a background thread
+ * merges them into one and drops the tombstones.
+ *
+ * The MANIFEST file lists the live segments and is replaced atomically,
+ * so files left behind by an interrupted flush or compaction are ignored.
+ * Changes still in the memtable are only written by a flush or close()
+ * @author Shuang
+ */
+class LsmEntryStore extends AbstractSet<AddressEntry> implements EntryStore {
+  static final int MEMTABLE_LIMIT = 1 << 16;
+  static final int COMPACTION_TRIGGER = 4;
+  static final int MAX_FROZEN_TABLES = 8;
+
+  private static final String MANIFEST = "MANIFEST";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".sst";
+
+  private final Path directory;
+  private final ExecutorService compactor;
+  private TreeMap<AddressEntry, Boolean> memtable =
+      new TreeMap<AddressEntry, Boolean>(AddressEntry.ORDER);
+  // Memtables frozen by views since the last flush, newest first;
+  // neither the list nor its tables are changed once views may hold them
+  private List<TreeMap<AddressEntry, Boolean>> frozen =
+      new ArrayList<TreeMap<AddressEntry, Boolean>>();
+  private int frozenRecords;
+  // Newest first; replaced as a whole, never changed in place
+  private List<Segment> segments = new ArrayList<Segment>();
+  private long size;
+  private long flushedSize;
+  private long nextSegment;
+  private boolean compacting;
+  private boolean closed;
+
+  private LsmEntryStore(Path directory) {
+    this.directory = directory;
+    compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "address-book-lsm-compactor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Opens the store kept in a directory, creating an empty one if there is none
+   * @param directory: the directory holding the manifest and segment files
+   * @return an open LsmEntryStore
+   */
+  static LsmEntryStore open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    LsmEntryStore store = new LsmEntryStore(directory);
+    try {
+      store.load();
+    } catch (IOException e) {
+      store.close();
+      throw e;
+    }
+    return store;
+  }
+
+  private void load() throws IOException {
+    Path manifest = directory.resolve(MANIFEST);
+    Set<Long> live = new HashSet<Long>();
+    if (Files.exists(manifest)) {
+      for (String line: Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+        String[] tokens = line.trim().split(" ");
+        if (tokens[0].equals("size")) {
+          size = Long.parseLong(tokens[1]);
+        }
+        else if (tokens[0].equals("next")) {
+          nextSegment = Long.parseLong(tokens[1]);
+        }
+        else if (tokens[0].equals("segment")) {
+          long number = Long.parseLong(tokens[1]);
+          segments.add(Segment.open(segmentPath(number)));
+          live.add(number);
+        }
+      }
+    }
+    flushedSize = size;
+
+    // Drop the output of a flush or compaction that never made it into the manifest
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path file: files) {
+        String name = file.getFileName().toString();
+        String number = name.substring(SEGMENT_PREFIX.length(),
+            name.length() - SEGMENT_SUFFIX.length());
+        try {
+          if (!live.contains(Long.parseLong(number))) {
+            Files.delete(file);
+          }
+        } catch (NumberFormatException e) {
+          // Not one of ours, leave it alone
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean add(AddressEntry entry) {
+    checkOpen();
+    if (containsEntry(entry)) {
+      return false;
+    }
+    memtable.put(entry, Boolean.TRUE);
+    size++;
+    flushIfFull();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean remove(Object o) {
+    checkOpen();
+    if (!(o instanceof AddressEntry) || !containsEntry((AddressEntry) o)) {
+      return false;
+    }
+    memtable.put((AddressEntry) o, Boolean.FALSE);
+    size--;
+    flushIfFull();
+    return true;
+  }
+
+  /**
+   * Removes one entry and adds another in a single step, so no reader sees
+   * the store holding neither of them
+   * @param oldEntry: the entry to remove
+   * @param newEntry: the entry to add, possibly already in the store
+   * @return true if oldEntry was in the store and has been replaced
+   */
+  @Override
+  public synchronized boolean replace(AddressEntry oldEntry, AddressEntry newEntry) {
+    checkOpen();
+    if (!containsEntry(oldEntry)) {
+      return false;
+    }
+    memtable.put(oldEntry, Boolean.FALSE);
+    size--;
+    if (!containsEntry(newEntry)) {
+      memtable.put(newEntry, Boolean.TRUE);
+      size++;
+    }
+    flushIfFull();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean contains(Object o) {
+    checkOpen();
+    return (o instanceof AddressEntry) && containsEntry((AddressEntry) o);
+  }
+
+  @Override
+  public synchronized int size() {
+    return (int) Math.min(Integer.MAX_VALUE, size);
+  }
+
+  @Override
+  public synchronized void clear() {
+    checkOpen();
+    memtable = new TreeMap<AddressEntry, Boolean>(AddressEntry.ORDER);
+    frozen = new ArrayList<TreeMap<AddressEntry, Boolean>>();
+    frozenRecords = 0;
+    List<Segment> old = segments;
+    segments = new ArrayList<Segment>();
+    size = 0;
+    flushedSize = 0;
+    try {
+      writeManifest();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (Segment segment: old) {
+      segment.retire();
+    }
+  }
+
+  /**
+   * Iterates over the live entries in AddressEntry.ORDER
+   * The iterator works on the state at the time of this call; later changes are not seen
+   */
+  @Override
+  public Iterator<AddressEntry> iterator() {
+    final View view = view();
+    final Iterator<AddressEntry> entries = view.iterator();
+    return new Iterator<AddressEntry>() {
+      private boolean released;
+      private AddressEntry last;
+
+      public boolean hasNext() {
+        boolean more = entries.hasNext();
+        if (!more && !released) {
+          released = true;
+          view.close();
+        }
+        return more;
+      }
+
+      public AddressEntry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        last = entries.next();
+        return last;
+      }
+
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        LsmEntryStore.this.remove(last);
+        last = null;
+      }
+    };
+  }
+
+  /**
+   * Takes a point-in-time view of the store
+   * The view pins the current segments, see view()
+   */
+  @Override
+  public AddressBookSnapshot snapshot() {
+    View view = view();
+    return new AddressBookSnapshot(view, view);
+  }
+
+  /**
+   * Takes a point-in-time view of the store
+   * The memtable is frozen and shared with the view instead of being copied,
+   * and the view pins the current segments, so a compaction deletes a replaced
+   * segment only once every view using it is closed
+   * @return an open View, to be closed by the caller
+   */
+  synchronized View view() {
+    checkOpen();
+    freezeMemtable();
+    return new View(frozen, new ArrayList<Segment>(segments), size);
+  }
+
+  /**
+   * Moves the memtable to the front of the frozen tables and starts a fresh one
+   * Once more than MAX_FROZEN_TABLES pile up between flushes, they are folded into
+   * a new table, so a lookup never probes more than a few of them.
+   * Must hold the store lock
+   */
+  private void freezeMemtable() {
+    if (memtable.isEmpty()) {
+      return;
+    }
+    List<TreeMap<AddressEntry, Boolean>> updated =
+        new ArrayList<TreeMap<AddressEntry, Boolean>>(frozen.size() + 1);
+    updated.add(memtable);
+    updated.addAll(frozen);
+    frozenRecords += memtable.size();
+    if (updated.size() > MAX_FROZEN_TABLES) {
+      TreeMap<AddressEntry, Boolean> merged =
+          new TreeMap<AddressEntry, Boolean>(AddressEntry.ORDER);
+      // Oldest first, so newer records overwrite older ones
+      for (int i = updated.size() - 1; i >= 0; i--) {
+        merged.putAll(updated.get(i));
+      }
+      updated = new ArrayList<TreeMap<AddressEntry, Boolean>>();
+      updated.add(merged);
+      frozenRecords = merged.size();
+    }
+    frozen = updated;
+    memtable = new TreeMap<AddressEntry, Boolean>(AddressEntry.ORDER);
+  }
+
+  /**
+   * View class
+   * An immutable set of the entries the store held when the view was taken
+   */
+  static final class View extends AbstractSet<AddressEntry> implements Closeable {
+    private final List<TreeMap<AddressEntry, Boolean>> tables;
+    private final List<Segment> segments;
+    private final long size;
+    private boolean closed;
+
+    // Called with the store lock held, so no segment is retired in between
+    private View(List<TreeMap<AddressEntry, Boolean>> tables, List<Segment> segments,
+        long size) {
+      this.tables = tables;
+      this.segments = segments;
+      this.size = size;
+      for (Segment segment: segments) {
+        segment.retain();
+      }
+    }
+
+    /**
+     * Merges the frozen memtables and the pinned segments; the iterator does not support remove
+     */
+    @Override
+    public Iterator<AddressEntry> iterator() {
+      List<Iterator<Record>> sources = new ArrayList<Iterator<Record>>();
+      synchronized (this) {
+        checkOpen();
+        for (TreeMap<AddressEntry, Boolean> table: tables) {
+          sources.add(memtableRecords(table));
+        }
+        try {
+          for (Segment segment: segments) {
+            sources.add(segment.records());
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      final MergingIterator merged = new MergingIterator(sources, true);
+      return new Iterator<AddressEntry>() {
+        public boolean hasNext() {
+          return merged.hasNext();
+        }
+
+        public AddressEntry next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return merged.next().entry;
+        }
+      };
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof AddressEntry)) {
+        return false;
+      }
+      AddressEntry entry = (AddressEntry) o;
+      for (TreeMap<AddressEntry, Boolean> table: tables) {
+        Boolean present = table.get(entry);
+        if (present != null) {
+          return present;
+        }
+      }
+      synchronized (this) {
+        checkOpen();
+      }
+      try {
+        for (Segment segment: segments) {
+          Boolean present = segment.lookup(entry);
+          if (present != null) {
+            return present;
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return false;
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * Releases the pinned segments; the view must not be read afterwards
+     */
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (Segment segment: segments) {
+        segment.release();
+      }
+    }
+
+    private void checkOpen() {
+      if (closed) {
+        throw new IllegalStateException("Address book snapshot is closed");
+      }
+    }
+  }
+
+  /**
+   * Writes the memtable and the frozen tables out as a segment, so they survive a restart
+   */
+  synchronized void flush() throws IOException {
+    checkOpen();
+    if (memtable.isEmpty() && frozen.isEmpty()) {
+      return;
+    }
+    List<Iterator<Record>> sources = new ArrayList<Iterator<Record>>(frozen.size() + 1);
+    sources.add(memtableRecords(memtable));
+    for (TreeMap<AddressEntry, Boolean> table: frozen) {
+      sources.add(memtableRecords(table));
+    }
+    long number = nextSegment++;
+    Segment segment = Segment.write(segmentPath(number), new MergingIterator(sources, false),
+        memtable.size() + frozenRecords, false);
+    List<Segment> updated = new ArrayList<Segment>(segments.size() + 1);
+    updated.add(segment);
+    updated.addAll(segments);
+    segments = updated;
+    memtable = new TreeMap<AddressEntry, Boolean>(AddressEntry.ORDER);
+    frozen = new ArrayList<TreeMap<AddressEntry, Boolean>>();
+    frozenRecords = 0;
+    flushedSize = size;
+    writeManifest();
+
+    if (segments.size() >= COMPACTION_TRIGGER && !compacting) {
+      compacting = true;
+      compactor.execute(new Runnable() {
+        public void run() {
+          compact();
+        }
+      });
+    }
+  }
+
+  /**
+   * Flushes the memtable and closes every segment
+   * Waits for a running compaction to finish first
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      flush();
+      closed = true;
+    }
+    compactor.shutdown();
+    try {
+      compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      for (Segment segment: segments) {
+        segment.release();
+      }
+      segments = new ArrayList<Segment>();
+    }
+  }
+
+  private void flushIfFull() {
+    if (memtable.size() + frozenRecords >= MEMTABLE_LIMIT) {
+      try {
+        flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // Must hold the store lock
+  private boolean containsEntry(AddressEntry entry) {
+    Boolean present = memtable.get(entry);
+    if (present != null) {
+      return present;
+    }
+    for (TreeMap<AddressEntry, Boolean> table: frozen) {
+      present = table.get(entry);
+      if (present != null) {
+        return present;
+      }
+    }
+    try {
+      for (Segment segment: segments) {
+        present = segment.lookup(entry);
+        if (present != null) {
+          return present;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return false;
+  }
+
+  /**
+   * Merges every segment that existed when the compaction started into one,
+   * dropping tombstones, since no older segment is left for them to hide entries in
+   */
+  private void compact() {
+    List<Segment> inputs;
+    long number;
+    synchronized (this) {
+      if (closed) {
+        compacting = false;
+        return;
+      }
+      inputs = new ArrayList<Segment>(segments);
+      for (Segment segment: inputs) {
+        segment.retain();
+      }
+      number = nextSegment++;
+    }
+
+    Segment output = null;
+    try {
+      List<Iterator<Record>> sources = new ArrayList<Iterator<Record>>();
+      long records = 0;
+      for (Segment segment: inputs) {
+        sources.add(segment.records());
+        records += segment.recordCount;
+      }
+      output = Segment.write(segmentPath(number),
+          new MergingIterator(sources, true), records, true);
+
+      synchronized (this) {
+        if (closed || !segments.containsAll(inputs)) {
+          // Cleared while merging; the output is stale
+          output.retire();
+        }
+        else {
+          List<Segment> previous = segments;
+          List<Segment> updated = new ArrayList<Segment>(segments);
+          updated.removeAll(inputs);
+          updated.add(output);
+          segments = updated;
+          try {
+            writeManifest();
+          } catch (IOException e) {
+            segments = previous;
+            throw e;
+          }
+          for (Segment segment: inputs) {
+            segment.retire();
+          }
+        }
+      }
+    } catch (IOException e) {
+      // Leave the inputs in place; the next flush tries again
+      if (output != null) {
+        output.retire();
+      }
+    } finally {
+      for (Segment segment: inputs) {
+        segment.release();
+      }
+      synchronized (this) {
+        compacting = false;
+      }
+    }
+  }
+
+  // Must hold the store lock
+  private void writeManifest() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append("size ").append(flushedSize).append('\n');
+    sb.append("next ").append(nextSegment).append('\n');
+    for (Segment segment: segments) {
+      sb.append("segment ").append(segment.number).append('\n');
+    }
+    Path temp = directory.resolve(MANIFEST + ".tmp");
+    Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(temp, directory.resolve(MANIFEST),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Address book storage is closed");
+    }
+  }
+
+  private Path segmentPath(long number) {
+    return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+  }
+
+  private static Iterator<Record> memtableRecords(TreeMap<AddressEntry, Boolean> table) {
+    final Iterator<Map.Entry<AddressEntry, Boolean>> it = table.entrySet().iterator();
+    return new Iterator<Record>() {
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      public Record next() {
+        Map.Entry<AddressEntry, Boolean> e = it.next();
+        return new Record(e.getKey(), e.getValue());
+      }
+    };
+  }
+
+  /**
+   * Record class
+   * An entry together with whether it is present or deleted (a tombstone)
+   */
+  private static class Record {
+    final AddressEntry entry;
+    final boolean present;
+
+    Record(AddressEntry entry, boolean present) {
+      this.entry = entry;
+      this.present = present;
+    }
+  }
+
+  /**
+   * MergingIterator class
+   * Merges sorted record sources, given newest first, into one sorted sequence.
+   * For equal entries only the record of the newest source is kept
+   */
+  private static class MergingIterator implements Iterator<Record> {
+    private final PriorityQueue<Head> heads;
+    private final boolean skipTombstones;
+    private Record next;
+
+    private static class Head {
+      final Iterator<Record> source;
+      final int age;
+      Record record;
+
+      Head(Iterator<Record> source, int age) {
+        this.source = source;
+        this.age = age;
+      }
+    }
+
+    MergingIterator(List<Iterator<Record>> sources, boolean skipTombstones) {
+      this.skipTombstones = skipTombstones;
+      heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+        public int compare(Head a, Head b) {
+          int result = AddressEntry.ORDER.compare(a.record.entry, b.record.entry);
+          return (result != 0) ? result : Integer.compare(a.age, b.age);
+        }
+      });
+      for (int i = 0; i < sources.size(); i++) {
+        Head head = new Head(sources.get(i), i);
+        if (head.source.hasNext()) {
+          head.record = head.source.next();
+          heads.add(head);
+        }
+      }
+    }
+
+    public boolean hasNext() {
+      while (next == null && !heads.isEmpty()) {
+        Head newest = heads.poll();
+        Record record = newest.record;
+        advance(newest);
+        while (!heads.isEmpty()
+            && AddressEntry.ORDER.compare(heads.peek().record.entry, record.entry) == 0) {
+          advance(heads.poll());
+        }
+        if (record.present || !skipTombstones) {
+          next = record;
+        }
+      }
+      return next != null;
+    }
+
+    public Record next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Record result = next;
+      next = null;
+      return result;
+    }
+
+    private void advance(Head head) {
+      if (head.source.hasNext()) {
+        head.record = head.source.next();
+        heads.add(head);
+      }
+    }
+  }
+
+  /**
+   * Segment class
+   * An immutable, sorted segment file:
+   *
+   *   records:  per record, a presence byte (1 entry, 0 tombstone) and the entry fields
+   *   bloom:    the Bloom filter of the segment's entries
+   *   index:    every INDEX_INTERVAL-th entry with the offset of its record
+   *   footer:   bloom offset, index offset, record count and a magic number
+   *
+   * The Bloom filter and sparse index are kept in memory while the segment is open.
+   * Segments are reference counted, so iterators and compactions can keep reading
+   * a segment that was replaced in the meantime; its file is closed and, once retired,
+   * deleted when the last reference is released
+   */
+  private static class Segment {
+    private static final int INDEX_INTERVAL = 64;
+    private static final int FOOTER_SIZE = 28;
+    private static final int MAGIC = 0x4142534C; // "ABSL"
+
+    final long number;
+    final long recordCount;
+    private final Path path;
+    private final FileChannel channel;
+    private final BloomFilter bloom;
+    private final long[] indexOffsets;
+    private final AddressEntry[] indexKeys;
+    private final long dataEnd;
+    private int references = 1;
+    private boolean retired;
+
+    private Segment(Path path, FileChannel channel) throws IOException {
+      this.path = path;
+      this.channel = channel;
+      String name = path.getFileName().toString();
+      number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+          name.length() - SEGMENT_SUFFIX.length()));
+
+      long fileSize = channel.size();
+      if (fileSize < FOOTER_SIZE) {
+        throw new IOException("Corrupt address book segment: " + path);
+      }
+      ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+      readFully(channel, footer, fileSize - FOOTER_SIZE);
+      long bloomOffset = footer.getLong(0);
+      long indexOffset = footer.getLong(8);
+      recordCount = footer.getLong(16);
+      if (footer.getInt(24) != MAGIC || bloomOffset < 0 || indexOffset > fileSize) {
+        throw new IOException("Corrupt address book segment: " + path);
+      }
+      dataEnd = bloomOffset;
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new PositionalInputStream(channel, bloomOffset, fileSize - FOOTER_SIZE), 1 << 16));
+      bloom = BloomFilter.readFrom(in);
+      int indexSize = in.readInt();
+      indexOffsets = new long[indexSize];
+      indexKeys = new AddressEntry[indexSize];
+      for (int i = 0; i < indexSize; i++) {
+        indexOffsets[i] = in.readLong();
+        indexKeys[i] = WriteAheadLog.readEntry(in);
+      }
+      if (indexOffset < bloomOffset) {
+        throw new IOException("Corrupt address book segment: " + path);
+      }
+    }
+
+    static Segment open(Path path) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+      try {
+        return new Segment(path, channel);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Writes sorted records to a new segment file and opens it
+     * @param records: records in AddressEntry.ORDER
+     * @param expectedCount: an upper bound of the number of records, used to size the filter
+     * @param skipTombstones: true if tombstones need not be kept
+     */
+    static Segment write(Path path, Iterator<Record> records, long expectedCount,
+        boolean skipTombstones) throws IOException {
+      BloomFilter bloom = new BloomFilter(expectedCount);
+      List<Long> indexOffsets = new ArrayList<Long>();
+      List<AddressEntry> indexKeys = new ArrayList<AddressEntry>();
+      FileOutputStream file = new FileOutputStream(path.toFile());
+      try {
+        CountingOutputStream counter =
+            new CountingOutputStream(new BufferedOutputStream(file, 1 << 16));
+        DataOutputStream out = new DataOutputStream(counter);
+        long count = 0;
+        while (records.hasNext()) {
+          Record record = records.next();
+          if (!record.present && skipTombstones) {
+            continue;
+          }
+          if (count % INDEX_INTERVAL == 0) {
+            indexOffsets.add(counter.count);
+            indexKeys.add(record.entry);
+          }
+          out.writeByte(record.present ? 1 : 0);
+          WriteAheadLog.writeEntry(out, record.entry);
+          bloom.add(record.entry);
+          count++;
+        }
+
+        long bloomOffset = counter.count;
+        bloom.writeTo(out);
+        long indexOffset = counter.count;
+        out.writeInt(indexKeys.size());
+        for (int i = 0; i < indexKeys.size(); i++) {
+          out.writeLong(indexOffsets.get(i));
+          WriteAheadLog.writeEntry(out, indexKeys.get(i));
+        }
+        out.writeLong(bloomOffset);
+        out.writeLong(indexOffset);
+        out.writeLong(count);
+        out.writeInt(MAGIC);
+        out.flush();
+        file.getFD().sync();
+      } finally {
+        file.close();
+      }
+      return open(path);
+    }
+
+    /**
+     * Looks an entry up in this segment
+     * @return TRUE if the segment holds the entry, FALSE if it holds its tombstone,
+     *         null if it knows nothing about it
+     */
+    Boolean lookup(AddressEntry entry) throws IOException {
+      if (indexKeys.length == 0 || !bloom.mightContain(entry)) {
+        return null;
+      }
+      int low = 0;
+      int high = indexKeys.length - 1;
+      int block = -1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        if (AddressEntry.ORDER.compare(indexKeys[middle], entry) <= 0) {
+          block = middle;
+          low = middle + 1;
+        }
+        else {
+          high = middle - 1;
+        }
+      }
+      if (block < 0) {
+        return null;
+      }
+
+      long start = indexOffsets[block];
+      long end = (block + 1 < indexOffsets.length) ? indexOffsets[block + 1] : dataEnd;
+      ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+      readFully(channel, bytes, start);
+      DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(bytes.array(), 0, bytes.limit()));
+      while (in.available() > 0) {
+        boolean present = in.readByte() != 0;
+        int result = AddressEntry.ORDER.compare(WriteAheadLog.readEntry(in), entry);
+        if (result == 0) {
+          return present;
+        }
+        if (result > 0) {
+          break;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return an iterator over every record of the segment, in order
+     */
+    Iterator<Record> records() throws IOException {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new PositionalInputStream(channel, 0, dataEnd), 1 << 16));
+      return new Iterator<Record>() {
+        private long read;
+
+        public boolean hasNext() {
+          return read < recordCount;
+        }
+
+        public Record next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          try {
+            boolean present = in.readByte() != 0;
+            read++;
+            return new Record(WriteAheadLog.readEntry(in), present);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+      };
+    }
+
+    synchronized void retain() {
+      references++;
+    }
+
+    synchronized void release() {
+      if (--references == 0) {
+        try {
+          channel.close();
+          if (retired) {
+            Files.deleteIfExists(path);
+          }
+        } catch (IOException e) {
+          // Nothing refers to the file any more; a leftover is cleaned up on the next open
+        }
+      }
+    }
+
+    /**
+     * Drops the store's reference; the file is deleted once nobody reads it any more
+     */
+    void retire() {
+      synchronized (this) {
+        retired = true;
+      }
+      release();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException("Truncated address book segment");
+        }
+      }
+      buffer.flip();
+    }
+  }
+
+  /**
+   * PositionalInputStream class
+   * Reads a range of a file channel without moving the channel's own position,
+   * so several readers can share one channel
+   */
+  private static class PositionalInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+
+    PositionalInputStream(FileChannel channel, long start, long end) {
+      this.channel = channel;
+      this.position = start;
+      this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+  }
+
+  /**
+   * CountingOutputStream class
+   * Keeps track of the number of bytes written through it
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+    long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
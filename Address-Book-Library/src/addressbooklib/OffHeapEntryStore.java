@@ -0,0 +1,494 @@
+package addressbooklib;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * OffHeapEntryStore class
+ * Keeps the bytes of every entry outside the Java heap, in direct buffers (arenas),
+ * so the garbage collector has no entry objects to trace.
+ * On the heap there are only primitive arrays: a hash table of slot handles
+ * and the heads of the free lists.
+ *
+ * An entry is encoded into a slot of an arena as its hash, the byte length of each
+ * field (-1 when unset) and the UTF-8 bytes of the fields. Slots come in size
+ * classes, in steps of 16 bytes up to 1 KB and powers of two above. A removed
+ * entry's slot is pushed on the free list of its class, linked through the slots
+ * themselves, and is reused by the next entry of that class.
+ * While a snapshot is open, freed slots are held back, since the snapshot
+ * may still read them; they are released when the last snapshot is closed.
+ *
+ * close() drops every arena at once, and the store cannot be used afterwards
+ * @author Shuang
+ */
+class OffHeapEntryStore extends AbstractSet<AddressEntry> implements EntryStore {
+  static final int MAX_ARENA_SIZE = 64 << 20;
+
+  private static final int FIRST_ARENA_SIZE = 1 << 20;
+  private static final int FIELD_COUNT = AddressField.values().length;
+  private static final int HEADER_SIZE = 4 + 4 * FIELD_COUNT;
+  private static final int SMALL_CLASS_LIMIT = 1024;
+  private static final int SMALL_CLASS_STEP = 16;
+  private static final int CLASS_COUNT = SMALL_CLASS_LIMIT / SMALL_CLASS_STEP
+      + Integer.numberOfTrailingZeros(MAX_ARENA_SIZE / SMALL_CLASS_LIMIT);
+  private static final long EMPTY = -1;
+  private static final long DELETED = -2;
+
+  private final List<ByteBuffer> arenas = new ArrayList<ByteBuffer>();
+  private ByteBuffer current;
+  private final long[] freeHeads = new long[CLASS_COUNT];
+  // Handles freed while snapshots were open, released when the last one closes
+  private long[] deferred = new long[16];
+  private int deferredCount;
+  private int openSnapshots;
+
+  private long[] table = newTable(1024);
+  private int[] tableHashes = new int[table.length];
+  private int tableUsed;
+  private int size;
+  private long bytesInUse;
+  private boolean closed;
+
+  OffHeapEntryStore() {
+    Arrays.fill(freeHeads, EMPTY);
+  }
+
+  @Override
+  public synchronized boolean add(AddressEntry entry) {
+    checkOpen();
+    if (find(entry) >= 0) {
+      return false;
+    }
+    insert(entry);
+    return true;
+  }
+
+  @Override
+  public synchronized boolean remove(Object o) {
+    checkOpen();
+    if (!(o instanceof AddressEntry)) {
+      return false;
+    }
+    int slot = find((AddressEntry) o);
+    if (slot < 0) {
+      return false;
+    }
+    delete(slot);
+    return true;
+  }
+
+  @Override
+  public synchronized boolean replace(AddressEntry oldEntry, AddressEntry newEntry) {
+    checkOpen();
+    int slot = find(oldEntry);
+    if (slot < 0) {
+      return false;
+    }
+    delete(slot);
+    if (find(newEntry) < 0) {
+      insert(newEntry);
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized boolean contains(Object o) {
+    checkOpen();
+    return (o instanceof AddressEntry) && find((AddressEntry) o) >= 0;
+  }
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return the bytes of the slots holding entries, excluding free slots
+   */
+  synchronized long bytesInUse() {
+    return bytesInUse;
+  }
+
+  /**
+   * Removes every entry; the arenas are kept and their slots reused
+   */
+  @Override
+  public synchronized void clear() {
+    checkOpen();
+    for (int slot = 0; slot < table.length; slot++) {
+      if (table[slot] >= 0) {
+        free(table[slot]);
+      }
+    }
+    table = newTable(1024);
+    tableHashes = new int[table.length];
+    tableUsed = 0;
+    size = 0;
+  }
+
+  /**
+   * Iterates over a snapshot taken at the time of this call,
+   * which is closed once the iterator is exhausted
+   */
+  @Override
+  public Iterator<AddressEntry> iterator() {
+    final AddressBookSnapshot snapshot = snapshot();
+    final Iterator<AddressEntry> entries = snapshot.iterator();
+    return new Iterator<AddressEntry>() {
+      private boolean released;
+      private AddressEntry last;
+
+      public boolean hasNext() {
+        boolean more = entries.hasNext();
+        if (!more && !released) {
+          released = true;
+          snapshot.close();
+        }
+        return more;
+      }
+
+      public AddressEntry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        last = entries.next();
+        return last;
+      }
+
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        OffHeapEntryStore.this.remove(last);
+        last = null;
+      }
+    };
+  }
+
+  /**
+   * Takes a point-in-time view of the store, holding the handles of the live entries
+   * Slots freed while the view is open are not reused until it is closed
+   */
+  @Override
+  public synchronized AddressBookSnapshot snapshot() {
+    checkOpen();
+    final long[] handles = new long[size];
+    int count = 0;
+    for (long handle: table) {
+      if (handle >= 0) {
+        handles[count++] = handle;
+      }
+    }
+    openSnapshots++;
+    final View view = new View(handles);
+    return new AddressBookSnapshot(view, view);
+  }
+
+  /**
+   * Decodes only the requested field of every entry, and builds entries for the matches
+   */
+  @Override
+  public synchronized void select(AddressField field, Predicate<String> filter,
+      Collection<AddressEntry> result) {
+    checkOpen();
+    for (long handle: table) {
+      if (handle >= 0 && filter.test(readField(handle, field.ordinal()))) {
+        result.add(read(handle));
+      }
+    }
+  }
+
+  /**
+   * Releases every arena; the store must not be used afterwards
+   * Direct buffers are returned to the operating system once they are unreachable
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    arenas.clear();
+    current = null;
+    table = newTable(1);
+    tableHashes = new int[1];
+    deferred = new long[0];
+    deferredCount = 0;
+    size = 0;
+    bytesInUse = 0;
+  }
+
+  /**
+   * View class
+   * The entries behind a fixed array of handles
+   */
+  private final class View extends AbstractSet<AddressEntry> implements Closeable {
+    private final long[] handles;
+    private boolean released;
+
+    View(long[] handles) {
+      this.handles = handles;
+    }
+
+    @Override
+    public Iterator<AddressEntry> iterator() {
+      return new Iterator<AddressEntry>() {
+        private int position;
+
+        public boolean hasNext() {
+          return position < handles.length;
+        }
+
+        public AddressEntry next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          synchronized (OffHeapEntryStore.this) {
+            if (released || closed) {
+              throw new IllegalStateException("Address book snapshot is closed");
+            }
+            return read(handles[position++]);
+          }
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return handles.length;
+    }
+
+    @Override
+    public void close() {
+      synchronized (OffHeapEntryStore.this) {
+        if (released) {
+          return;
+        }
+        released = true;
+        if (--openSnapshots == 0 && !closed) {
+          for (int i = 0; i < deferredCount; i++) {
+            pushFree(deferred[i]);
+          }
+          deferredCount = 0;
+        }
+      }
+    }
+  }
+
+  private void insert(AddressEntry entry) {
+    byte[][] fields = new byte[FIELD_COUNT][];
+    int length = HEADER_SIZE;
+    for (AddressField field: AddressField.values()) {
+      String value = field.getValue(entry);
+      if (value != null) {
+        fields[field.ordinal()] = value.getBytes(StandardCharsets.UTF_8);
+        length += fields[field.ordinal()].length;
+      }
+    }
+
+    long handle = allocate(sizeClass(length));
+    ByteBuffer arena = arena(handle);
+    int offset = offset(handle);
+    arena.putInt(offset, entry.hashCode());
+    int position = offset + HEADER_SIZE;
+    for (int i = 0; i < fields.length; i++) {
+      arena.putInt(offset + 4 + 4 * i, (fields[i] == null) ? -1 : fields[i].length);
+      if (fields[i] != null) {
+        arena.put(position, fields[i]);
+        position += fields[i].length;
+      }
+    }
+
+    if ((tableUsed + 1) * 2 > table.length) {
+      rehash((size + 1) * 4 > table.length ? table.length * 2 : table.length);
+    }
+    place(handle, entry.hashCode());
+    tableUsed++;
+    size++;
+  }
+
+  private void delete(int slot) {
+    long handle = table[slot];
+    table[slot] = DELETED;
+    size--;
+    free(handle);
+  }
+
+  /**
+   * Finds the table slot holding the handle of an entry
+   * @return the slot, or -1 if the entry is not in the store
+   */
+  private int find(AddressEntry entry) {
+    int hash = entry.hashCode();
+    int mask = table.length - 1;
+    for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+      long handle = table[slot];
+      if (handle == EMPTY) {
+        return -1;
+      }
+      if (handle >= 0 && tableHashes[slot] == hash && read(handle).equals(entry)) {
+        return slot;
+      }
+    }
+  }
+
+  private void place(long handle, int hash) {
+    int mask = table.length - 1;
+    int slot = spread(hash) & mask;
+    while (table[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = handle;
+    tableHashes[slot] = hash;
+  }
+
+  /**
+   * Rebuilds the table at the given capacity, dropping the deleted slots
+   */
+  private void rehash(int capacity) {
+    long[] oldTable = table;
+    int[] oldHashes = tableHashes;
+    table = newTable(capacity);
+    tableHashes = new int[capacity];
+    tableUsed = 0;
+    for (int i = 0; i < oldTable.length; i++) {
+      if (oldTable[i] >= 0) {
+        place(oldTable[i], oldHashes[i]);
+        tableUsed++;
+      }
+    }
+  }
+
+  /**
+   * Takes a slot of the class from its free list, or from the end of the current arena
+   */
+  private long allocate(int sizeClass) {
+    int slotSize = slotSize(sizeClass);
+    bytesInUse += slotSize;
+    long head = freeHeads[sizeClass];
+    if (head != EMPTY) {
+      freeHeads[sizeClass] = arena(head).getLong(offset(head));
+      return head;
+    }
+
+    if (current == null || current.remaining() < slotSize) {
+      int arenaSize = (current == null) ? FIRST_ARENA_SIZE
+          : Math.min(MAX_ARENA_SIZE, current.capacity() * 2);
+      current = ByteBuffer.allocateDirect(Math.max(arenaSize, slotSize));
+      arenas.add(current);
+    }
+    int offset = current.position();
+    current.position(offset + slotSize);
+    return ((long) (arenas.size() - 1) << 32) | offset;
+  }
+
+  private void free(long handle) {
+    bytesInUse -= slotSize(sizeClass(recordLength(handle)));
+    if (openSnapshots > 0) {
+      if (deferredCount == deferred.length) {
+        deferred = Arrays.copyOf(deferred, deferredCount * 2);
+      }
+      deferred[deferredCount++] = handle;
+    }
+    else {
+      pushFree(handle);
+    }
+  }
+
+  private void pushFree(long handle) {
+    int sizeClass = sizeClass(recordLength(handle));
+    // A free slot holds the handle of the next free slot of its class
+    arena(handle).putLong(offset(handle), freeHeads[sizeClass]);
+    freeHeads[sizeClass] = handle;
+  }
+
+  private int recordLength(long handle) {
+    ByteBuffer arena = arena(handle);
+    int offset = offset(handle);
+    int length = HEADER_SIZE;
+    for (int i = 0; i < FIELD_COUNT; i++) {
+      length += Math.max(0, arena.getInt(offset + 4 + 4 * i));
+    }
+    return length;
+  }
+
+  private AddressEntry read(long handle) {
+    String[] values = new String[FIELD_COUNT];
+    ByteBuffer arena = arena(handle);
+    int offset = offset(handle);
+    int position = offset + HEADER_SIZE;
+    for (int i = 0; i < values.length; i++) {
+      int length = arena.getInt(offset + 4 + 4 * i);
+      if (length >= 0) {
+        values[i] = decode(arena, position, length);
+        position += length;
+      }
+    }
+    return AddressEntry.restore(values[0], values[1], values[2], values[3], values[4]);
+  }
+
+  private String readField(long handle, int field) {
+    ByteBuffer arena = arena(handle);
+    int offset = offset(handle);
+    int position = offset + HEADER_SIZE;
+    for (int i = 0; i < field; i++) {
+      position += Math.max(0, arena.getInt(offset + 4 + 4 * i));
+    }
+    int length = arena.getInt(offset + 4 + 4 * field);
+    return (length < 0) ? null : decode(arena, position, length);
+  }
+
+  private static String decode(ByteBuffer arena, int position, int length) {
+    byte[] bytes = new byte[length];
+    arena.get(position, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private ByteBuffer arena(long handle) {
+    return arenas.get((int) (handle >>> 32));
+  }
+
+  private static int offset(long handle) {
+    return (int) handle;
+  }
+
+  /**
+   * @return the size class of a record of the given length
+   * @throws IllegalArgumentException if the record does not fit in an arena
+   */
+  private static int sizeClass(int length) {
+    if (length <= SMALL_CLASS_LIMIT) {
+      return (length + SMALL_CLASS_STEP - 1) / SMALL_CLASS_STEP - 1;
+    }
+    if (length > MAX_ARENA_SIZE) {
+      throw new IllegalArgumentException("Address entry too large: " + length + " bytes");
+    }
+    int log = 32 - Integer.numberOfLeadingZeros(length - 1);
+    return SMALL_CLASS_LIMIT / SMALL_CLASS_STEP
+        + log - Integer.numberOfTrailingZeros(SMALL_CLASS_LIMIT) - 1;
+  }
+
+  private static int slotSize(int sizeClass) {
+    int smallClasses = SMALL_CLASS_LIMIT / SMALL_CLASS_STEP;
+    if (sizeClass < smallClasses) {
+      return (sizeClass + 1) * SMALL_CLASS_STEP;
+    }
+    return SMALL_CLASS_LIMIT << (sizeClass - smallClasses + 1);
+  }
+
+  private static long[] newTable(int capacity) {
+    long[] table = new long[capacity];
+    Arrays.fill(table, EMPTY);
+    return table;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Address book storage is closed");
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * OrderedIndex class
+ * Concurrent skip list of the entries in AddressEntry.ORDER, so listing
+ * a range of names or the next page of the book costs O(log n + k)
+ * instead of sorting every entry.
+ * Each entry is keyed by its contact name folded to one case once when added,
+ * which compares like compareToIgnoreCase but without folding on every comparison;
+ * ties fall back to AddressEntry.ORDER. Lookups never lock
+ * @author Shuang
+ */
+class OrderedIndex implements EntryIndex {
+  private final ConcurrentNavigableMap<SortKey, AddressEntry> entries =
+      new ConcurrentSkipListMap<SortKey, AddressEntry>();
+
+  /**
+   * SortKey class
+   * A folded contact name and its entry; a key without entry
+   * comes before every entry with the same name, marking where the name starts
+   */
+  private static final class SortKey implements Comparable<SortKey> {
+    final String name;
+    final AddressEntry entry;
+
+    SortKey(String name, AddressEntry entry) {
+      this.name = name;
+      this.entry = entry;
+    }
+
+    SortKey(AddressEntry entry) {
+      this(fold(entry.getContactName()), entry);
+    }
+
+    @Override
+    public int compareTo(SortKey key) {
+      if (name == null || key.name == null) {
+        if (name != key.name) {
+          return (name == null) ? -1 : 1;
+        }
+      }
+      else {
+        int result = name.compareTo(key.name);
+        if (result != 0) {
+          return result;
+        }
+      }
+      if (entry == null || key.entry == null) {
+        return (entry == key.entry) ? 0 : ((entry == null) ? -1 : 1);
+      }
+      return AddressEntry.ORDER.compare(entry, key.entry);
+    }
+  }
+
+  @Override
+  public void add(AddressEntry entry) {
+    entries.put(new SortKey(entry), entry);
+  }
+
+  @Override
+  public void remove(AddressEntry entry) {
+    entries.remove(new SortKey(entry));
+  }
+
+  /**
+   * @return the first entry in AddressEntry.ORDER, or null if there is none
+   */
+  AddressEntry first() {
+    Map.Entry<SortKey, AddressEntry> first = entries.firstEntry();
+    return (first == null) ? null : first.getValue();
+  }
+
+  /**
+   * @return the last entry in AddressEntry.ORDER, or null if there is none
+   */
+  AddressEntry last() {
+    Map.Entry<SortKey, AddressEntry> last = entries.lastEntry();
+    return (last == null) ? null : last.getValue();
+  }
+
+  /**
+   * Lists the entries following an entry
+   * @param after: the last entry of the previous page, or null to start at the first entry
+   * @param limit: the largest number of entries to list
+   * @return a List of at most limit entries in AddressEntry.ORDER
+   */
+  List<AddressEntry> after(AddressEntry after, int limit) {
+    Collection<AddressEntry> tail = (after == null) ? entries.values()
+        : entries.tailMap(new SortKey(after), false).values();
+    List<AddressEntry> result = new ArrayList<AddressEntry>(Math.min(limit, 1024));
+    for (Iterator<AddressEntry> it = tail.iterator(); it.hasNext() && result.size() < limit; ) {
+      result.add(it.next());
+    }
+    return result;
+  }
+
+  /**
+   * Lists the entries whose contact name lies in a range, ignoring case
+   * @param from: the smallest name to list, or null to start with the first entry
+   * @param to: the largest name prefix to list, so "mc" still lists "McDonald",
+   *        or null to list up to the last entry
+   * @param limit: the largest number of entries to list
+   * @return a List of at most limit entries in AddressEntry.ORDER
+   */
+  List<AddressEntry> byName(String from, String to, int limit) {
+    Collection<AddressEntry> tail = (from == null) ? entries.values()
+        : entries.tailMap(new SortKey(fold(from), null), true).values();
+    String end = fold(to);
+    List<AddressEntry> result = new ArrayList<AddressEntry>(Math.min(limit, 1024));
+    for (Iterator<AddressEntry> it = tail.iterator(); it.hasNext() && result.size() < limit; ) {
+      AddressEntry e = it.next();
+      if (end != null && isPast(fold(e.getContactName()), end)) {
+        break;
+      }
+      result.add(e);
+    }
+    return result;
+  }
+
+  /**
+   * @return true if a folded name sorts after every name starting with the folded prefix
+   */
+  static boolean isPast(String name, String prefix) {
+    if (name == null) {
+      return false;
+    }
+    String head = (name.length() > prefix.length()) ? name.substring(0, prefix.length()) : name;
+    return head.compareTo(prefix) > 0;
+  }
+
+  /**
+   * Folds every character the way String.compareToIgnoreCase compares them
+   * @param name: a contact name, may be null
+   * @return the folded name, or null if name is null
+   */
+  static String fold(String name) {
+    if (name == null) {
+      return null;
+    }
+    char[] chars = name.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,185 @@
+package addressbooklib;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * PackedText class
+ * The normalized values of one version of the book, packed per field into
+ * a single byte array as UTF-8 with a zero byte after every entry,
+ * so a full scan walks contiguous memory instead of following an object per entry.
+ *
+ * A search compares eight bytes at a time held in a long (SIMD within a register):
+ * the first and the last byte of the key are broadcast to every byte of a word,
+ * and a byte position can only start a match if both compare equal there.
+ * Only those positions are verified byte by byte and mapped back to their entry.
+ * UTF-8 never encodes a character as part of another, so a byte match of
+ * the encoded key is exactly a character match
+ * @author Shuang
+ */
+class PackedText {
+  private static final VarHandle WORDS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long ONES = 0x0101010101010101L;
+  private static final long HIGHS = 0x8080808080808080L;
+  private static final int PADDING = 8;
+
+  private final Set<AddressEntry> source;
+  private final AddressEntry[] entries;
+  private final byte[][] texts;
+  // ends[field][k]: offset of the zero byte ending the value of entry k
+  private final int[][] ends;
+  private final BitSet[] unset;
+
+  private PackedText(Set<AddressEntry> source, AddressEntry[] entries, byte[][] texts,
+      int[][] ends, BitSet[] unset) {
+    this.source = source;
+    this.entries = entries;
+    this.texts = texts;
+    this.ends = ends;
+    this.unset = unset;
+  }
+
+  /**
+   * Packs the normalized values of every entry
+   * @param source: an immutable set of entries
+   * @return a PackedText of the entries
+   */
+  static PackedText build(Set<AddressEntry> source) {
+    AddressEntry[] entries = source.toArray(new AddressEntry[0]);
+    AddressField[] fields = AddressField.values();
+    byte[][] texts = new byte[fields.length][];
+    int[][] ends = new int[fields.length][];
+    BitSet[] unset = new BitSet[fields.length];
+
+    for (AddressField field: fields) {
+      byte[] text = new byte[Math.max(64, entries.length * 16)];
+      int[] fieldEnds = new int[entries.length];
+      BitSet fieldUnset = new BitSet();
+      int length = 0;
+      for (int k = 0; k < entries.length; k++) {
+        String value = entries[k].normalizedValue(field);
+        if (value == null) {
+          fieldUnset.set(k);
+          value = "";
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if ((long) length + bytes.length + 1 + PADDING > Integer.MAX_VALUE) {
+          throw new IllegalStateException("Address book too large to pack for scanning");
+        }
+        if (length + bytes.length + 1 + PADDING > text.length) {
+          long grown = Math.max((long) text.length * 2, length + bytes.length + 1 + PADDING);
+          text = Arrays.copyOf(text, (int) Math.min(Integer.MAX_VALUE - 8, grown));
+        }
+        System.arraycopy(bytes, 0, text, length, bytes.length);
+        length += bytes.length;
+        text[length] = 0;
+        fieldEnds[k] = length;
+        length++;
+      }
+      // Zero padding lets the last words be read whole
+      texts[field.ordinal()] = Arrays.copyOf(text, length + PADDING);
+      ends[field.ordinal()] = fieldEnds;
+      unset[field.ordinal()] = fieldUnset;
+    }
+    return new PackedText(source, entries, texts, ends, unset);
+  }
+
+  /**
+   * @return true if this was built from exactly the given set
+   */
+  boolean isBuiltFrom(Set<AddressEntry> entries) {
+    return source == entries;
+  }
+
+  /**
+   * Adds every entry whose field contains the key to the result
+   * @param field: the AddressField to search in
+   * @param key: a search key normalized with SubstringMatcher.normalize
+   * @param result: the Collection collecting matching entries, in packing order
+   */
+  void search(AddressField field, String key, Collection<AddressEntry> result) {
+    int[] fieldEnds = ends[field.ordinal()];
+    byte[] pattern = key.getBytes(StandardCharsets.UTF_8);
+    if (pattern.length == 0) {
+      BitSet fieldUnset = unset[field.ordinal()];
+      for (int k = fieldUnset.nextClearBit(0); k < entries.length;
+          k = fieldUnset.nextClearBit(k + 1)) {
+        result.add(entries[k]);
+      }
+      return;
+    }
+
+    byte[] text = texts[field.ordinal()];
+    int m = pattern.length;
+    int last = text.length - PADDING - m;
+    long first = (pattern[0] & 0xFFL) * ONES;
+    long final_ = (pattern[m - 1] & 0xFFL) * ONES;
+
+    scan:
+    for (int i = 0; i <= last; i += 8) {
+      long mask = zeroBytes((long) WORDS.get(text, i) ^ first)
+          & zeroBytes((long) WORDS.get(text, i + m - 1) ^ final_);
+      while (mask != 0) {
+        int position = i + (Long.numberOfTrailingZeros(mask) >>> 3);
+        if (position > last) {
+          break scan;
+        }
+        // A marked byte may be a false positive, so the whole key is compared
+        if (matchesAt(text, position, pattern)) {
+          int k = entryAt(fieldEnds, position);
+          if (position + m <= fieldEnds[k]) {
+            result.add(entries[k]);
+            // The entry matched; resume right after it
+            int next = fieldEnds[k] + 1;
+            if (next >= i + 8) {
+              i = next - 8;
+              continue scan;
+            }
+            mask &= -1L << ((next - i) << 3);
+            continue;
+          }
+        }
+        mask &= mask - 1;
+      }
+    }
+  }
+
+  /**
+   * Marks the zero bytes of a word by setting their high bit
+   * A byte right above a zero byte may be marked too, which verification weeds out
+   */
+  private static long zeroBytes(long word) {
+    return (word - ONES) & ~word & HIGHS;
+  }
+
+  private static boolean matchesAt(byte[] text, int position, byte[] pattern) {
+    for (int j = 0; j < pattern.length; j++) {
+      if (text[position + j] != pattern[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Finds the entry whose packed value, or its ending zero byte, holds a byte offset
+   */
+  private static int entryAt(int[] fieldEnds, int position) {
+    int low = 0;
+    int high = fieldEnds.length - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (fieldEnds[middle] < position) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
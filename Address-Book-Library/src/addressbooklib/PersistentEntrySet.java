@@ -0,0 +1,522 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * PersistentEntrySet class
+ * Immutable set of entries stored as a hash array mapped trie.
+ * Every level consumes five bits of the entry hash and keeps only the slots in use,
+ * marked in a bitmap. plus and minus return a new set that shares every node
+ * off the changed path with the old one, so an old version stays readable
+ * for as long as it is referenced and costs only the nodes changed since
+ * @author Shuang
+ */
+final class PersistentEntrySet extends AbstractSet<AddressEntry> {
+  static final PersistentEntrySet EMPTY = new PersistentEntrySet(BitmapNode.EMPTY, 0);
+
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+  private static final int MAX_DEPTH = 7;
+
+  private final Node root;
+  private final int size;
+
+  private PersistentEntrySet(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Returns a set that also holds the entry
+   * @param entry: the AddressEntry to add, must not be null
+   * @return the new set, or this set if it already holds the entry
+   */
+  PersistentEntrySet plus(AddressEntry entry) {
+    Node updated = root.plus(hash(entry), 0, entry);
+    return (updated == root) ? this : new PersistentEntrySet(updated, size + 1);
+  }
+
+  /**
+   * Returns a set without the entry
+   * @param entry: the AddressEntry to remove
+   * @return the new set, or this set if it does not hold the entry
+   */
+  PersistentEntrySet minus(AddressEntry entry) {
+    Node updated = root.minus(hash(entry), 0, entry);
+    if (updated == root) {
+      return this;
+    }
+    return (updated == null) ? EMPTY : new PersistentEntrySet(updated, size - 1);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof AddressEntry)) {
+      return false;
+    }
+    AddressEntry entry = (AddressEntry) o;
+    return root.contains(hash(entry), 0, entry);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Walks the trie depth first; the iterator does not support remove
+   */
+  @Override
+  public Iterator<AddressEntry> iterator() {
+    return new TrieIterator(root, 0, root.slotCount(), false, 0);
+  }
+
+  /**
+   * Splits along the subtries, so a parallel stream works on disjoint partitions
+   * of the entries and still sees them in the order of iterator()
+   */
+  @Override
+  public Spliterator<AddressEntry> spliterator() {
+    return new TrieSpliterator(root, 0, root.slotCount(), size, true);
+  }
+
+  /**
+   * Walks the trie like iterator(), starting at the first entry whose trie hash
+   * does not come before the given one in trieOrder
+   * Since the order depends only on the hashes, it resumes at the same place
+   * in any later version of the set
+   * @param from: a trie hash, as returned by trieHash
+   * @return an Iterator over the remaining entries
+   */
+  Iterator<AddressEntry> iteratorFrom(int from) {
+    return new TrieIterator(root, root.seek(from, 0), root.slotCount(), true, from);
+  }
+
+  /**
+   * @return the hash deciding where the entry lies in the trie
+   */
+  static int trieHash(AddressEntry entry) {
+    return hash(entry);
+  }
+
+  /**
+   * Compares trie hashes in the order iteration visits them:
+   * by their lowest five bits first, then by the next five, and so on
+   * @return a negative number, zero or a positive number as a comes before,
+   *         together with or after b
+   */
+  static int compareTrieOrder(int a, int b) {
+    return Integer.compareUnsigned(orderKey(a), orderKey(b));
+  }
+
+  private static int orderKey(int hash) {
+    int key = 0;
+    for (int shift = 0; shift < Integer.SIZE; shift += BITS) {
+      int width = Math.min(BITS, Integer.SIZE - shift);
+      key = (key << width) | ((hash >>> shift) & ((1 << width) - 1));
+    }
+    return key;
+  }
+
+  /**
+   * TrieIterator class
+   * Depth-first walk over a range of slots of a node, optionally seeking to a start hash
+   */
+  private static final class TrieIterator implements Iterator<AddressEntry> {
+    private final Node[] nodes = new Node[MAX_DEPTH + 1];
+    private final int[] positions = new int[MAX_DEPTH + 1];
+    // Whether a node lies on the path of the start hash, where entries are checked
+    private final boolean[] onPath = new boolean[MAX_DEPTH + 1];
+    private final int limit;
+    private final int from;
+    private int depth;
+    private AddressEntry next;
+
+    /**
+     * @param node: the node to walk
+     * @param start: its first slot to visit
+     * @param limit: the slot after the last one to visit
+     * @param seek: whether to skip the entries before from; node must then be the root
+     * @param from: the trie hash to start at
+     */
+    TrieIterator(Node node, int start, int limit, boolean seek, int from) {
+      this.limit = limit;
+      this.from = from;
+      nodes[0] = node;
+      onPath[0] = seek;
+      positions[0] = start;
+      advance();
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public AddressEntry next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      AddressEntry result = next;
+      advance();
+      return result;
+    }
+
+    private void enter(Node node, boolean seek) {
+      nodes[depth] = node;
+      onPath[depth] = seek;
+      positions[depth] = seek ? node.seek(from, depth * BITS) : 0;
+    }
+
+    private void advance() {
+      next = null;
+      while (depth >= 0) {
+        Node node = nodes[depth];
+        if (positions[depth] == ((depth == 0) ? limit : node.slotCount())) {
+          depth--;
+          continue;
+        }
+        int position = positions[depth]++;
+        Object slot = node.slot(position);
+        if (slot instanceof Node) {
+          boolean seek = onPath[depth] && node.onPath(position, from, depth * BITS);
+          depth++;
+          enter((Node) slot, seek);
+        }
+        else if (!onPath[depth] || compareTrieOrder(hash((AddressEntry) slot), from) >= 0) {
+          next = (AddressEntry) slot;
+          return;
+        }
+      }
+    }
+  }
+
+  private static int hash(AddressEntry entry) {
+    int h = entry.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * TrieSpliterator class
+   * Covers a range of slots of a node. Splitting halves the range,
+   * descending first through nodes whose range holds a single subtrie
+   */
+  private static final class TrieSpliterator implements Spliterator<AddressEntry> {
+    private Node node;
+    private int start;
+    private int limit;
+    private long estimate;
+    private boolean exact;
+    private Iterator<AddressEntry> iterator;
+
+    TrieSpliterator(Node node, int start, int limit, long estimate, boolean exact) {
+      this.node = node;
+      this.start = start;
+      this.limit = limit;
+      this.estimate = estimate;
+      this.exact = exact;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super AddressEntry> action) {
+      if (iterator == null) {
+        iterator = new TrieIterator(node, start, limit, false, 0);
+      }
+      if (!iterator.hasNext()) {
+        return false;
+      }
+      action.accept(iterator.next());
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super AddressEntry> action) {
+      if (iterator == null) {
+        iterator = new TrieIterator(node, start, limit, false, 0);
+      }
+      iterator.forEachRemaining(action);
+    }
+
+    @Override
+    public Spliterator<AddressEntry> trySplit() {
+      if (iterator != null) {
+        return null;
+      }
+      while (limit - start == 1 && node.slot(start) instanceof Node) {
+        node = (Node) node.slot(start);
+        start = 0;
+        limit = node.slotCount();
+      }
+      if (limit - start < 2) {
+        return null;
+      }
+      int middle = (start + limit) >>> 1;
+      long half = estimate / 2;
+      TrieSpliterator prefix = new TrieSpliterator(node, start, middle, half, false);
+      start = middle;
+      estimate -= half;
+      exact = false;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+      int characteristics = DISTINCT | NONNULL | IMMUTABLE | ORDERED;
+      // Only the unsplit whole knows its size exactly
+      return exact ? characteristics | SIZED : characteristics;
+    }
+  }
+
+  /**
+   * Node class
+   * A trie node; its slots hold entries or child nodes
+   */
+  private abstract static class Node {
+    /**
+     * @return the node with the entry added, or this node if it already holds it
+     */
+    abstract Node plus(int hash, int shift, AddressEntry entry);
+
+    /**
+     * @return the node without the entry, this node if it does not hold it,
+     *         or null if the entry was its last one
+     */
+    abstract Node minus(int hash, int shift, AddressEntry entry);
+
+    abstract boolean contains(int hash, int shift, AddressEntry entry);
+
+    abstract int slotCount();
+
+    abstract Object slot(int i);
+
+    /**
+     * @return the first slot that may hold entries not before the hash in trie order
+     */
+    abstract int seek(int hash, int shift);
+
+    /**
+     * @return true if the slot, found by seek, is the one the hash itself would take
+     */
+    abstract boolean onPath(int i, int hash, int shift);
+  }
+
+  /**
+   * BitmapNode class
+   * An inner node with up to 32 slots, one for each value of five hash bits
+   */
+  private static final class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    private final int bitmap;
+    private final Object[] slots;
+
+    BitmapNode(int bitmap, Object[] slots) {
+      this.bitmap = bitmap;
+      this.slots = slots;
+    }
+
+    @Override
+    Node plus(int hash, int shift, AddressEntry entry) {
+      int bit = bit(hash, shift);
+      int index = index(bit);
+      if ((bitmap & bit) == 0) {
+        Object[] updated = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, updated, 0, index);
+        updated[index] = entry;
+        System.arraycopy(slots, index, updated, index + 1, slots.length - index);
+        return new BitmapNode(bitmap | bit, updated);
+      }
+
+      Object slot = slots[index];
+      Node child;
+      if (slot instanceof Node) {
+        child = ((Node) slot).plus(hash, shift + BITS, entry);
+        if (child == slot) {
+          return this;
+        }
+      }
+      else {
+        AddressEntry existing = (AddressEntry) slot;
+        if (existing.equals(entry)) {
+          return this;
+        }
+        child = pair(shift + BITS, existing, PersistentEntrySet.hash(existing), entry, hash);
+      }
+      return replace(index, child);
+    }
+
+    @Override
+    Node minus(int hash, int shift, AddressEntry entry) {
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int index = index(bit);
+      Object slot = slots[index];
+      if (slot instanceof Node) {
+        Node child = ((Node) slot).minus(hash, shift + BITS, entry);
+        if (child == slot) {
+          return this;
+        }
+        if (child == null) {
+          return without(bit, index);
+        }
+        // Pull a lone entry up, so the trie never holds a chain of single-entry nodes
+        Object only = (child.slotCount() == 1) ? child.slot(0) : null;
+        return replace(index, (only instanceof AddressEntry) ? only : child);
+      }
+      return slot.equals(entry) ? without(bit, index) : this;
+    }
+
+    @Override
+    boolean contains(int hash, int shift, AddressEntry entry) {
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return false;
+      }
+      Object slot = slots[index(bit)];
+      if (slot instanceof Node) {
+        return ((Node) slot).contains(hash, shift + BITS, entry);
+      }
+      return slot.equals(entry);
+    }
+
+    @Override
+    int slotCount() {
+      return slots.length;
+    }
+
+    @Override
+    Object slot(int i) {
+      return slots[i];
+    }
+
+    @Override
+    int seek(int hash, int shift) {
+      return index(bit(hash, shift));
+    }
+
+    @Override
+    boolean onPath(int i, int hash, int shift) {
+      int bit = bit(hash, shift);
+      return (bitmap & bit) != 0 && i == index(bit);
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    private BitmapNode replace(int index, Object slot) {
+      Object[] updated = slots.clone();
+      updated[index] = slot;
+      return new BitmapNode(bitmap, updated);
+    }
+
+    private BitmapNode without(int bit, int index) {
+      if (slots.length == 1) {
+        return null;
+      }
+      Object[] updated = new Object[slots.length - 1];
+      System.arraycopy(slots, 0, updated, 0, index);
+      System.arraycopy(slots, index + 1, updated, index, updated.length - index);
+      return new BitmapNode(bitmap & ~bit, updated);
+    }
+
+    private static int bit(int hash, int shift) {
+      return 1 << ((hash >>> shift) & MASK);
+    }
+
+    /**
+     * Builds the smallest subtrie holding two different entries
+     */
+    private static Node pair(int shift, AddressEntry a, int hashA, AddressEntry b, int hashB) {
+      if (hashA == hashB) {
+        return new CollisionNode(hashA, new AddressEntry[] {a, b});
+      }
+      return EMPTY.plus(hashA, shift, a).plus(hashB, shift, b);
+    }
+  }
+
+  /**
+   * CollisionNode class
+   * A leaf holding entries whose hashes are equal in all 32 bits
+   */
+  private static final class CollisionNode extends Node {
+    private final int hash;
+    private final AddressEntry[] entries;
+
+    CollisionNode(int hash, AddressEntry[] entries) {
+      this.hash = hash;
+      this.entries = entries;
+    }
+
+    @Override
+    Node plus(int hash, int shift, AddressEntry entry) {
+      if (hash != this.hash) {
+        // A different hash sharing the bits used so far: split below this level
+        Node split = new BitmapNode(BitmapNode.bit(this.hash, shift), new Object[] {this});
+        return split.plus(hash, shift, entry);
+      }
+      if (indexOf(entry) >= 0) {
+        return this;
+      }
+      AddressEntry[] updated = Arrays.copyOf(entries, entries.length + 1);
+      updated[entries.length] = entry;
+      return new CollisionNode(hash, updated);
+    }
+
+    @Override
+    Node minus(int hash, int shift, AddressEntry entry) {
+      int index = (hash == this.hash) ? indexOf(entry) : -1;
+      if (index < 0) {
+        return this;
+      }
+      if (entries.length == 1) {
+        return null;
+      }
+      AddressEntry[] updated = new AddressEntry[entries.length - 1];
+      System.arraycopy(entries, 0, updated, 0, index);
+      System.arraycopy(entries, index + 1, updated, index, updated.length - index);
+      return new CollisionNode(hash, updated);
+    }
+
+    @Override
+    boolean contains(int hash, int shift, AddressEntry entry) {
+      return hash == this.hash && indexOf(entry) >= 0;
+    }
+
+    @Override
+    int slotCount() {
+      return entries.length;
+    }
+
+    @Override
+    Object slot(int i) {
+      return entries[i];
+    }
+
+    @Override
+    int seek(int hash, int shift) {
+      return 0;
+    }
+
+    @Override
+    boolean onPath(int i, int hash, int shift) {
+      return false;
+    }
+
+    private int indexOf(AddressEntry entry) {
+      for (int i = 0; i < entries.length; i++) {
+        if (entries[i].equals(entry)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PhoneTrie class
+ * Radix 10 trie over the digits of the entries' phone numbers.
+ * Child arrays are only allocated for nodes that have children,
+ * and branches are pruned as soon as their last entry is removed,
+ * so the trie only holds nodes for numbers currently in the book.
+ * Writers take the trie's lock; readers walk it without locking,
+ * since children are published through atomic arrays and a pruned
+ * branch stays readable for anyone already inside it
+ * @author Shuang
+ */
+class PhoneTrie implements EntryIndex {
+  private static final int RADIX = 10;
+  
+  private final Node root = new Node();
+  private final Object lock = new Object();
+  
+  /**
+   * Node class
+   * One digit position of the trie
+   */
+  private static class Node {
+    private volatile AtomicReferenceArray<Node> children;
+    private volatile Set<AddressEntry> entries;
+    // Number of entries in this subtree, only used by writers
+    private int size;
+  }
+  
+  @Override
+  public void add(AddressEntry entry) {
+    String number = entry.getPhoneNumber();
+    if (!isDigits(number)) {
+      return;
+    }
+    
+    synchronized (lock) {
+      // Walk down once to insert, then again to count only if it was new
+      Node node = root;
+      for (int i = 0; i < number.length(); i++) {
+        int digit = number.charAt(i) - '0';
+        if (node.children == null) {
+          node.children = new AtomicReferenceArray<Node>(RADIX);
+        }
+        Node child = node.children.get(digit);
+        if (child == null) {
+          child = new Node();
+          node.children.set(digit, child);
+        }
+        node = child;
+      }
+      if (node.entries == null) {
+        node.entries = ConcurrentHashMap.newKeySet(2);
+      }
+      if (!node.entries.add(entry)) {
+        return;
+      }
+      
+      node = root;
+      node.size++;
+      for (int i = 0; i < number.length(); i++) {
+        node = node.children.get(number.charAt(i) - '0');
+        node.size++;
+      }
+    }
+  }
+  
+  @Override
+  public void remove(AddressEntry entry) {
+    String number = entry.getPhoneNumber();
+    if (!isDigits(number)) {
+      return;
+    }
+    
+    synchronized (lock) {
+      Node node = find(number);
+      if (node == null || node.entries == null || !node.entries.remove(entry)) {
+        return;
+      }
+      if (node.entries.isEmpty()) {
+        node.entries = null;
+      }
+      
+      // Decrement sizes on the way down and cut off the first empty branch
+      node = root;
+      node.size--;
+      for (int i = 0; i < number.length(); i++) {
+        int digit = number.charAt(i) - '0';
+        Node child = node.children.get(digit);
+        child.size--;
+        if (child.size == 0) {
+          node.children.set(digit, null);
+          if (isLeaf(node)) {
+            node.children = null;
+          }
+          return;
+        }
+        node = child;
+      }
+    }
+  }
+  
+  /**
+   * Enumerates the entries whose phone number starts with the given digits,
+   * in lexicographic order of phone number
+   * @param prefix: the leading digits of the phone number
+   * @param limit: the maximum number of entries to return
+   * @return a List of at most limit entries, empty if prefix is not all digits
+   */
+  List<AddressEntry> startingWith(String prefix, int limit) {
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    if (prefix == null || limit <= 0 || (!prefix.isEmpty() && !isDigits(prefix))) {
+      return result;
+    }
+    
+    Node node = find(prefix);
+    if (node != null) {
+      collect(node, limit, result);
+    }
+    
+    return result;
+  }
+  
+  /**
+   * @return the node reached by the digits, or null if there is none
+   */
+  private Node find(String digits) {
+    Node node = root;
+    for (int i = 0; i < digits.length() && node != null; i++) {
+      AtomicReferenceArray<Node> children = node.children;
+      node = (children == null) ? null : children.get(digits.charAt(i) - '0');
+    }
+    return node;
+  }
+  
+  /**
+   * Adds the entries under a node to the result in digit order until the limit is hit
+   */
+  private static void collect(Node node, int limit, List<AddressEntry> result) {
+    Set<AddressEntry> entries = node.entries;
+    if (entries != null) {
+      for (AddressEntry e: entries) {
+        if (result.size() >= limit) {
+          return;
+        }
+        result.add(e);
+      }
+    }
+    AtomicReferenceArray<Node> children = node.children;
+    if (children == null) {
+      return;
+    }
+    for (int digit = 0; digit < RADIX; digit++) {
+      if (result.size() >= limit) {
+        return;
+      }
+      Node child = children.get(digit);
+      if (child != null) {
+        collect(child, limit, result);
+      }
+    }
+  }
+  
+  private static boolean isLeaf(Node node) {
+    for (int digit = 0; digit < RADIX; digit++) {
+      if (node.children.get(digit) != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private static boolean isDigits(String s) {
+    if (s == null || s.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,200 @@
+package addressbooklib;
+
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * PhoneticCode class
+ * Encodes names by how they sound, after the Metaphone rules of Lawrence Philips:
+ * vowels only count at the start of a word, letters sounding alike share a code
+ * ("ph" and "f", "ck" and "k", "sh" and "ti" in "-tion"), and silent letters
+ * such as the "k" of "kn" or the "gh" of "night" are dropped.
+ * A "w" following a consonant is treated as the vowel sound it makes,
+ * so "Shwang" and "Shuang" share a code.
+ * Every word of a name is encoded on its own, after dropping accents
+ * and anything but letters, and codes keep at most MAX_LENGTH sounds
+ * @author Shuang
+ */
+final class PhoneticCode {
+  static final int MAX_LENGTH = 4;
+
+  private PhoneticCode() {
+  }
+
+  /**
+   * Encodes every word of a name
+   * @param name: a name, may be null
+   * @return the distinct codes of its words, in the order of the words;
+   *         empty if the name has no letters
+   */
+  static List<String> ofWords(String name) {
+    List<String> codes = new ArrayList<String>();
+    if (name == null) {
+      return codes;
+    }
+    // Case folding spells out letters like the sharp s, decomposing splits off accents
+    String plain = Normalizer.normalize(SubstringMatcher.normalize(name), Normalizer.Form.NFD);
+    for (String word: plain.split("[\\s\\-]+")) {
+      StringBuilder letters = new StringBuilder();
+      for (int i = 0; i < word.length(); i++) {
+        char c = word.charAt(i);
+        if (c >= 'a' && c <= 'z') {
+          letters.append(c);
+        }
+      }
+      if (letters.length() > 0) {
+        String code = encode(letters.toString());
+        if (!code.isEmpty() && !codes.contains(code)) {
+          codes.add(code);
+        }
+      }
+    }
+    return codes;
+  }
+
+  /**
+   * Encodes one word
+   * @param w: a non-empty word of lower case letters a to z
+   * @return the code of the word, in upper case, "0" standing for "th"
+   */
+  static String encode(String w) {
+    StringBuilder code = new StringBuilder();
+    int n = w.length();
+    int i = 0;
+    if (w.startsWith("ae") || w.startsWith("gn") || w.startsWith("kn")
+        || w.startsWith("pn") || w.startsWith("wr")) {
+      i = 1;
+    }
+    else if (w.charAt(0) == 'x') {
+      code.append('S');
+      i = 1;
+    }
+    else if (w.startsWith("wh")) {
+      code.append('W');
+      i = 2;
+    }
+
+    for (; i < n && code.length() < MAX_LENGTH; i++) {
+      char c = w.charAt(i);
+      // Doubled letters sound once, except "cc" as in "accent"
+      if (c != 'c' && i > 0 && w.charAt(i - 1) == c) {
+        continue;
+      }
+      char next = at(w, i + 1);
+      char previous = at(w, i - 1);
+      switch (c) {
+        case 'a': case 'e': case 'i': case 'o': case 'u':
+          if (i == 0) {
+            code.append('A');
+          }
+          break;
+        case 'b':
+          // Silent in a final "mb" as in "lamb"
+          if (!(i == n - 1 && previous == 'm')) {
+            code.append('B');
+          }
+          break;
+        case 'c':
+          if (next == 'h' || (next == 'i' && at(w, i + 2) == 'a')) {
+            code.append((previous == 's' && next == 'h') ? 'K' : 'X');
+          }
+          else if (isFront(next)) {
+            if (previous != 's') {
+              code.append('S');
+            }
+          }
+          else {
+            code.append('K');
+          }
+          break;
+        case 'd':
+          code.append((next == 'g' && isFront(at(w, i + 2))) ? 'J' : 'T');
+          break;
+        case 'g':
+          if (next == 'h' && i + 2 < n && !isVowel(at(w, i + 2))) {
+            break;
+          }
+          if (next == 'n' && (i + 2 == n || (i + 4 == n && w.startsWith("ed", i + 2)))) {
+            break;
+          }
+          if (previous == 'd' && isFront(next)) {
+            break;
+          }
+          code.append((isFront(next) && previous != 'g') ? 'J' : 'K');
+          break;
+        case 'h':
+          if ("csptg".indexOf(previous) < 0 && (isVowel(next) || !isVowel(previous))) {
+            code.append('H');
+          }
+          break;
+        case 'k':
+          if (previous != 'c') {
+            code.append('K');
+          }
+          break;
+        case 'p':
+          code.append((next == 'h') ? 'F' : 'P');
+          break;
+        case 'q':
+          code.append('K');
+          break;
+        case 's':
+          if (next == 'h' || (next == 'i' && (at(w, i + 2) == 'o' || at(w, i + 2) == 'a'))) {
+            code.append('X');
+          }
+          else {
+            code.append('S');
+          }
+          break;
+        case 't':
+          if (next == 'i' && (at(w, i + 2) == 'o' || at(w, i + 2) == 'a')) {
+            code.append('X');
+          }
+          else if (next == 'h') {
+            code.append('0');
+          }
+          else if (!(next == 'c' && at(w, i + 2) == 'h')) {
+            code.append('T');
+          }
+          break;
+        case 'v':
+          code.append('F');
+          break;
+        case 'w':
+          if (isVowel(next) && (i == 0 || isVowel(previous))) {
+            code.append('W');
+          }
+          break;
+        case 'x':
+          code.append("KS");
+          break;
+        case 'y':
+          if (isVowel(next)) {
+            code.append('Y');
+          }
+          break;
+        case 'z':
+          code.append('S');
+          break;
+        default:
+          code.append(Character.toUpperCase(c));
+      }
+    }
+    return (code.length() > MAX_LENGTH) ? code.substring(0, MAX_LENGTH) : code.toString();
+  }
+
+  private static char at(String w, int i) {
+    return (i >= 0 && i < w.length()) ? w.charAt(i) : 0;
+  }
+
+  private static boolean isVowel(char c) {
+    return c == 'a' || c == 'e' || c == 'i' || c == 'o' || c == 'u';
+  }
+
+  /**
+   * @return true for the letters softening a preceding "c" or "g"
+   */
+  private static boolean isFront(char c) {
+    return c == 'e' || c == 'i' || c == 'y';
+  }
+}
@@ -0,0 +1,83 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * PhoneticIndex class
+ * Hash multimap from the PhoneticCode of every word of one field
+ * to the entries holding such a word. Codes are computed once when an
+ * entry is added, so a search by sound costs one probe per word of the key.
+ * The entry sets are concurrent and updated atomically per code,
+ * so lookups never lock
+ * @author Shuang
+ */
+class PhoneticIndex implements EntryIndex {
+  private final AddressField field;
+  private final ConcurrentMap<String, Set<AddressEntry>> entries =
+      new ConcurrentHashMap<String, Set<AddressEntry>>();
+
+  /**
+   * Constructor
+   * @param field: the AddressField whose values are indexed
+   */
+  PhoneticIndex(AddressField field) {
+    this.field = field;
+  }
+
+  @Override
+  public void add(AddressEntry entry) {
+    for (String code: PhoneticCode.ofWords(field.getValue(entry))) {
+      entries.compute(code, (key, matches) -> {
+        if (matches == null) {
+          matches = ConcurrentHashMap.newKeySet(2);
+        }
+        matches.add(entry);
+        return matches;
+      });
+    }
+  }
+
+  @Override
+  public void remove(AddressEntry entry) {
+    for (String code: PhoneticCode.ofWords(field.getValue(entry))) {
+      entries.computeIfPresent(code, (key, matches) -> {
+        matches.remove(entry);
+        return matches.isEmpty() ? null : matches;
+      });
+    }
+  }
+
+  /**
+   * Finds the entries having, for every word of the key, a word sounding like it
+   * @param codes: the PhoneticCode of each word of the key
+   * @return a Set of matching entries, empty if codes is empty or nothing matches
+   */
+  Set<AddressEntry> find(List<String> codes) {
+    List<Set<AddressEntry>> lists = new ArrayList<Set<AddressEntry>>();
+    for (String code: codes) {
+      Set<AddressEntry> matches = entries.get(code);
+      if (matches == null) {
+        return Collections.emptySet();
+      }
+      lists.add(matches);
+    }
+    if (lists.isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    // Walk the smallest set and probe the others
+    lists.sort(Comparator.comparingInt(Set::size));
+    Set<AddressEntry> result = new LinkedHashSet<AddressEntry>();
+    for (AddressEntry e: lists.get(0)) {
+      boolean inAll = true;
+      for (int i = 1; i < lists.size() && inAll; i++) {
+        inAll = lists.get(i).contains(e);
+      }
+      if (inAll) {
+        result.add(e);
+      }
+    }
+    return result;
+  }
+}
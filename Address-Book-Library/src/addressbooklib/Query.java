@@ -0,0 +1,545 @@
+package addressbooklib;
+
+import java.util.*;
+
+/**
+ * Query class
+ * A structured query over the fields of the entries, such as
+ * name:smith AND email:*@acme.com AND NOT note:inactive
+ *
+ * NOT binds tighter than AND, and AND tighter than OR:
+ *   query := and ("OR" and)*
+ *   and   := unary ("AND"? unary)*
+ *   unary := "NOT" unary | "(" query ")" | term
+ *   term  := [field ":"] value
+ * A field is name, address, phone, email or note, and a value is a word
+ * or a double-quoted string. A value without '*' matches fields containing it,
+ * like searchEntry; with '*' it has to match the whole field, each '*' standing
+ * for any characters. A term without a field matches any field.
+ *
+ * Planning estimates how many entries each term can match from the sizes of the
+ * trigram postings of its key. An AND draws its candidates from its most selective
+ * term, and checks its other terms on those candidates only, most selective first;
+ * an OR unions the candidates of its terms. Only a query no index narrows,
+ * such as a lone NOT or a two-letter key, looks at every entry.
+ * The plan is kept in the query, so an instance must not be shared between threads
+ * @author Shuang
+ */
+final class Query {
+  private static final Map<String, AddressField> FIELDS = new HashMap<String, AddressField>();
+
+  static {
+    FIELDS.put("name", AddressField.CONTACT_NAME);
+    FIELDS.put("address", AddressField.POSTAL_ADDRESS);
+    FIELDS.put("phone", AddressField.PHONE_NUMBER);
+    FIELDS.put("email", AddressField.EMAIL_ADDRESS);
+    FIELDS.put("note", AddressField.NOTE);
+  }
+
+  private final Node root;
+
+  private Query(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Parses a query
+   * @param text: the query text
+   * @return the parsed Query
+   * @throws IllegalArgumentException if the text is not a valid query
+   */
+  static Query parse(String text) {
+    if (text == null) {
+      throw new IllegalArgumentException("Invalid query: null");
+    }
+    Parser parser = new Parser(text);
+    Node root = parser.parseOr();
+    if (parser.peek() != null) {
+      throw new IllegalArgumentException("Invalid query, unexpected "
+          + parser.peek() + ": " + text);
+    }
+    return new Query(root);
+  }
+
+  /**
+   * Finds the entries matching the query
+   * @param indexes: the TrigramIndex of every field, or null if there are none
+   * @param entries: all entries, looked at when no index narrows the query
+   * @return a List of matching entries, each appears once
+   */
+  List<AddressEntry> run(Map<AddressField, TrigramIndex> indexes, Set<AddressEntry> entries) {
+    long estimate = root.plan(indexes);
+    Collection<AddressEntry> candidates = (estimate < 0) ? entries : root.candidates(indexes);
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    for (AddressEntry e: candidates) {
+      if (root.matches(e)) {
+        result.add(e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Describes how the query would run
+   * @param indexes: the TrigramIndex of every field, or null if there are none
+   * @param size: the number of entries
+   * @return one line per node of the plan, in evaluation order, with its estimate
+   */
+  String explain(Map<AddressField, TrigramIndex> indexes, int size) {
+    root.plan(indexes);
+    StringBuilder out = new StringBuilder();
+    root.explain("", size, out);
+    return out.toString();
+  }
+
+  /**
+   * Node class
+   * A predicate of the query tree
+   */
+  private abstract static class Node {
+    /**
+     * Estimates the matches of the node, and orders the evaluation of its children
+     * @return an upper bound of the number of matches,
+     *         or -1 if no index narrows the node
+     */
+    abstract long plan(Map<AddressField, TrigramIndex> indexes);
+
+    /**
+     * Lists a superset of the matches; only called after plan returned 0 or more
+     */
+    abstract Set<AddressEntry> candidates(Map<AddressField, TrigramIndex> indexes);
+
+    abstract boolean matches(AddressEntry entry);
+
+    abstract void explain(String indent, int size, StringBuilder out);
+
+    /**
+     * @return the estimate of the last plan, -1 if no index narrows the node
+     */
+    abstract long estimate();
+  }
+
+  /**
+   * Term class
+   * A value to find in one field, or in any field
+   */
+  private static final class Term extends Node {
+    private final AddressField field;
+    private final String text;
+    private final String value;
+    // The parts of a value with '*' between them, or null if it has none
+    private final String[] segments;
+    private final SubstringMatcher matcher;
+    private long estimate = -1;
+
+    Term(AddressField field, String text) {
+      this.field = field;
+      this.text = text;
+      this.value = SubstringMatcher.normalize(text);
+      this.segments = (value.indexOf('*') >= 0) ? value.split("\\*", -1) : null;
+      this.matcher = (segments == null) ? new SubstringMatcher(value) : null;
+    }
+
+    @Override
+    long plan(Map<AddressField, TrigramIndex> indexes) {
+      estimate = -1;
+      if (indexes == null) {
+        return estimate;
+      }
+      long sum = 0;
+      for (AddressField f: fields()) {
+        String key = bestKey(indexes.get(f));
+        if (key == null) {
+          return estimate;
+        }
+        sum += indexes.get(f).estimate(key);
+      }
+      estimate = sum;
+      return estimate;
+    }
+
+    @Override
+    Set<AddressEntry> candidates(Map<AddressField, TrigramIndex> indexes) {
+      if (field != null) {
+        return indexes.get(field).candidates(bestKey(indexes.get(field)));
+      }
+      Set<AddressEntry> union = new HashSet<AddressEntry>();
+      for (AddressField f: fields()) {
+        union.addAll(indexes.get(f).candidates(bestKey(indexes.get(f))));
+      }
+      return union;
+    }
+
+    @Override
+    boolean matches(AddressEntry entry) {
+      for (AddressField f: fields()) {
+        if (matchesValue(entry.normalizedValue(f))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    void explain(String indent, int size, StringBuilder out) {
+      out.append(indent).append((field == null) ? "" : name(field) + ":").append(text)
+          .append((estimate < 0) ? " (scan)" : " (index, at most " + estimate + ")")
+          .append('\n');
+    }
+
+    @Override
+    long estimate() {
+      return estimate;
+    }
+
+    private List<AddressField> fields() {
+      return (field == null) ? Arrays.asList(AddressField.values())
+          : Collections.singletonList(field);
+    }
+
+    /**
+     * @return the part of the value whose trigrams are rarest in the index,
+     *         or null if no part is long enough to be indexed
+     */
+    private String bestKey(TrigramIndex index) {
+      if (segments == null) {
+        return (index.estimate(value) < 0) ? null : value;
+      }
+      String best = null;
+      int bestEstimate = Integer.MAX_VALUE;
+      for (String segment: segments) {
+        int e = index.estimate(segment);
+        if (e >= 0 && e < bestEstimate) {
+          best = segment;
+          bestEstimate = e;
+        }
+      }
+      return best;
+    }
+
+    private boolean matchesValue(String text) {
+      if (text == null) {
+        return false;
+      }
+      if (segments == null) {
+        return matcher.matches(text);
+      }
+      int last = segments.length - 1;
+      int end = text.length() - segments[last].length();
+      if (!text.startsWith(segments[0]) || end < segments[0].length()
+          || !text.endsWith(segments[last])) {
+        return false;
+      }
+      int position = segments[0].length();
+      for (int i = 1; i < last; i++) {
+        int at = text.indexOf(segments[i], position);
+        if (at < 0 || at + segments[i].length() > end) {
+          return false;
+        }
+        position = at + segments[i].length();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * And class
+   * Matches entries matching all of its children
+   */
+  private static final class And extends Node {
+    private final List<Node> children;
+    private long estimate = -1;
+
+    And(List<Node> children) {
+      this.children = children;
+    }
+
+    @Override
+    long plan(Map<AddressField, TrigramIndex> indexes) {
+      estimate = -1;
+      for (Node child: children) {
+        long e = child.plan(indexes);
+        if (e >= 0 && (estimate < 0 || e < estimate)) {
+          estimate = e;
+        }
+      }
+      // Check the likeliest to fail first; children no index narrows go last
+      children.sort(Comparator.comparingLong(
+          (Node child) -> (child.estimate() < 0) ? Long.MAX_VALUE : child.estimate()));
+      return estimate;
+    }
+
+    @Override
+    Set<AddressEntry> candidates(Map<AddressField, TrigramIndex> indexes) {
+      // The first child is the most selective one the index narrows
+      return children.get(0).candidates(indexes);
+    }
+
+    @Override
+    boolean matches(AddressEntry entry) {
+      for (Node child: children) {
+        if (!child.matches(entry)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    void explain(String indent, int size, StringBuilder out) {
+      out.append(indent).append("AND").append((estimate < 0) ? " (scan " + size + ")"
+          : " (candidates from the first, at most " + estimate + ")").append('\n');
+      for (Node child: children) {
+        child.explain(indent + "  ", size, out);
+      }
+    }
+
+    @Override
+    long estimate() {
+      return estimate;
+    }
+  }
+
+  /**
+   * Or class
+   * Matches entries matching any of its children
+   */
+  private static final class Or extends Node {
+    private final List<Node> children;
+    private long estimate = -1;
+
+    Or(List<Node> children) {
+      this.children = children;
+    }
+
+    @Override
+    long plan(Map<AddressField, TrigramIndex> indexes) {
+      long sum = 0;
+      for (Node child: children) {
+        long e = child.plan(indexes);
+        sum = (sum < 0 || e < 0) ? -1 : sum + e;
+      }
+      // Check the likeliest to succeed first
+      children.sort(Comparator.comparingLong(
+          (Node child) -> (child.estimate() < 0) ? Long.MIN_VALUE : -child.estimate()));
+      estimate = sum;
+      return estimate;
+    }
+
+    @Override
+    Set<AddressEntry> candidates(Map<AddressField, TrigramIndex> indexes) {
+      Set<AddressEntry> union = new HashSet<AddressEntry>();
+      for (Node child: children) {
+        union.addAll(child.candidates(indexes));
+      }
+      return union;
+    }
+
+    @Override
+    boolean matches(AddressEntry entry) {
+      for (Node child: children) {
+        if (child.matches(entry)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    void explain(String indent, int size, StringBuilder out) {
+      out.append(indent).append("OR").append((estimate < 0) ? " (scan " + size + ")"
+          : " (union, at most " + estimate + ")").append('\n');
+      for (Node child: children) {
+        child.explain(indent + "  ", size, out);
+      }
+    }
+
+    @Override
+    long estimate() {
+      return estimate;
+    }
+  }
+
+  /**
+   * Not class
+   * Matches entries not matching its child; it only ever filters candidates
+   */
+  private static final class Not extends Node {
+    private final Node child;
+
+    Not(Node child) {
+      this.child = child;
+    }
+
+    @Override
+    long plan(Map<AddressField, TrigramIndex> indexes) {
+      child.plan(indexes);
+      return -1;
+    }
+
+    @Override
+    Set<AddressEntry> candidates(Map<AddressField, TrigramIndex> indexes) {
+      throw new IllegalStateException("NOT has no candidates");
+    }
+
+    @Override
+    boolean matches(AddressEntry entry) {
+      return !child.matches(entry);
+    }
+
+    @Override
+    void explain(String indent, int size, StringBuilder out) {
+      out.append(indent).append("NOT (filter)").append('\n');
+      child.explain(indent + "  ", size, out);
+    }
+
+    @Override
+    long estimate() {
+      return -1;
+    }
+  }
+
+  /**
+   * Parser class
+   * Recursive descent over the tokens of a query
+   */
+  private static final class Parser {
+    private final String text;
+    private final List<Object> tokens = new ArrayList<Object>();
+    private int position;
+
+    Parser(String text) {
+      this.text = text;
+      tokenize();
+    }
+
+    Object peek() {
+      return (position < tokens.size()) ? tokens.get(position) : null;
+    }
+
+    Node parseOr() {
+      List<Node> children = new ArrayList<Node>();
+      children.add(parseAnd());
+      while ("OR".equals(peek())) {
+        position++;
+        children.add(parseAnd());
+      }
+      return (children.size() == 1) ? children.get(0) : new Or(children);
+    }
+
+    private Node parseAnd() {
+      List<Node> children = new ArrayList<Node>();
+      children.add(parseUnary());
+      while (peek() != null && !"OR".equals(peek()) && !")".equals(peek())) {
+        if ("AND".equals(peek())) {
+          position++;
+        }
+        children.add(parseUnary());
+      }
+      return (children.size() == 1) ? children.get(0) : new And(children);
+    }
+
+    private Node parseUnary() {
+      Object token = peek();
+      if (token == null) {
+        throw new IllegalArgumentException("Invalid query, unexpected end: " + text);
+      }
+      position++;
+      if ("NOT".equals(token)) {
+        return new Not(parseUnary());
+      }
+      if ("(".equals(token)) {
+        Node inner = parseOr();
+        if (!")".equals(peek())) {
+          throw new IllegalArgumentException("Invalid query, missing ')': " + text);
+        }
+        position++;
+        return inner;
+      }
+      if (token instanceof Term) {
+        return (Term) token;
+      }
+      throw new IllegalArgumentException("Invalid query, unexpected " + token + ": " + text);
+    }
+
+    /**
+     * Splits the text into operator Strings, parentheses and Terms
+     */
+    private void tokenize() {
+      int i = 0;
+      while (i < text.length()) {
+        char c = text.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        }
+        else if (c == '(' || c == ')') {
+          tokens.add(String.valueOf(c));
+          i++;
+        }
+        else if (c == '"') {
+          StringBuilder value = new StringBuilder();
+          i = readQuoted(i, value);
+          tokens.add(new Term(null, value.toString()));
+        }
+        else {
+          int start = i;
+          while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+              && "()\"".indexOf(text.charAt(i)) < 0) {
+            i++;
+          }
+          String word = text.substring(start, i);
+          if (word.equals("AND") || word.equals("OR") || word.equals("NOT")) {
+            tokens.add(word);
+            continue;
+          }
+          int colon = word.indexOf(':');
+          AddressField field = (colon < 0) ? null
+              : FIELDS.get(word.substring(0, colon).toLowerCase(Locale.ROOT));
+          if (field == null) {
+            tokens.add(new Term(null, word));
+            continue;
+          }
+          String value = word.substring(colon + 1);
+          if (value.isEmpty() && i < text.length() && text.charAt(i) == '"') {
+            StringBuilder quoted = new StringBuilder();
+            i = readQuoted(i, quoted);
+            value = quoted.toString();
+          }
+          if (value.isEmpty()) {
+            throw new IllegalArgumentException("Invalid query, no value for "
+                + word + ": " + text);
+          }
+          tokens.add(new Term(field, value));
+        }
+      }
+    }
+
+    /**
+     * Reads a double-quoted string, where a backslash escapes the next character
+     * @return the position after the closing quote
+     */
+    private int readQuoted(int start, StringBuilder value) {
+      int i = start + 1;
+      while (i < text.length() && text.charAt(i) != '"') {
+        if (text.charAt(i) == '\\' && i + 1 < text.length()) {
+          i++;
+        }
+        value.append(text.charAt(i));
+        i++;
+      }
+      if (i == text.length()) {
+        throw new IllegalArgumentException("Invalid query, unclosed quote: " + text);
+      }
+      return i + 1;
+    }
+  }
+
+  private static String name(AddressField field) {
+    for (Map.Entry<String, AddressField> e: FIELDS.entrySet()) {
+      if (e.getValue() == field) {
+        return e.getKey();
+      }
+    }
+    return field.name();
+  }
+}
@@ -0,0 +1,140 @@
+package addressbooklib;
+
+import java.util.*;
+
+/**
+ * RankedMatches class
+ * Keeps the K best scoring entries of a search in a bounded min-heap,
+ * so ranking n matches costs O(n log K) and holds only K of them.
+ *
+ * An entry scores the sum, over its fields containing the key, of the field's
+ * weight times the kind of match: the whole value, a prefix of it, the start
+ * of a word in it, or anywhere inside. A contact name equal to the key thus
+ * outranks one starting with it, which outranks a word of a note.
+ * Entries scoring the same are ranked by contact name
+ * @author Shuang
+ */
+class RankedMatches {
+  private static final int EXACT = 8;
+  private static final int PREFIX = 4;
+  private static final int WORD_PREFIX = 2;
+  private static final int INFIX = 1;
+
+  private static final Map<AddressField, Integer> WEIGHTS =
+      new EnumMap<AddressField, Integer>(AddressField.class);
+
+  static {
+    WEIGHTS.put(AddressField.CONTACT_NAME, 16);
+    WEIGHTS.put(AddressField.EMAIL_ADDRESS, 8);
+    WEIGHTS.put(AddressField.PHONE_NUMBER, 8);
+    WEIGHTS.put(AddressField.POSTAL_ADDRESS, 4);
+    WEIGHTS.put(AddressField.NOTE, 1);
+  }
+
+  // The worst kept match is on top, ready to be replaced
+  private static final Comparator<Scored> WORST_FIRST = Comparator
+      .comparingInt((Scored s) -> s.score)
+      .thenComparing((Scored s) -> s.name, Comparator.nullsFirst(Comparator.reverseOrder()));
+
+  private final SubstringMatcher matcher;
+  private final int limit;
+  private final PriorityQueue<Scored> heap;
+
+  /**
+   * Scored class
+   * An entry and its score
+   */
+  private static class Scored {
+    final AddressEntry entry;
+    final int score;
+    final String name;
+
+    Scored(AddressEntry entry, int score) {
+      this.entry = entry;
+      this.score = score;
+      this.name = entry.normalizedValue(AddressField.CONTACT_NAME);
+    }
+  }
+
+  /**
+   * Constructor
+   * @param matcher: the SubstringMatcher of the normalized key
+   * @param limit: the number of entries to keep, positive
+   */
+  RankedMatches(SubstringMatcher matcher, int limit) {
+    this.matcher = matcher;
+    this.limit = limit;
+    this.heap = new PriorityQueue<Scored>(Math.min(limit, 1024) + 1, WORST_FIRST);
+  }
+
+  /**
+   * Scores an entry and keeps it if it is among the best so far
+   * @param entry: an AddressEntry, ignored if no field contains the key
+   */
+  void offer(AddressEntry entry) {
+    int score = score(entry);
+    if (score == 0) {
+      return;
+    }
+    if (heap.size() == limit) {
+      // Most matches lose to the worst kept one, and cost no allocation
+      Scored worst = heap.peek();
+      if (score < worst.score) {
+        return;
+      }
+      Scored scored = new Scored(entry, score);
+      if (WORST_FIRST.compare(scored, worst) <= 0) {
+        return;
+      }
+      heap.poll();
+      heap.add(scored);
+    }
+    else {
+      heap.add(new Scored(entry, score));
+    }
+  }
+
+  /**
+   * @return the kept entries, best first
+   */
+  List<AddressEntry> best() {
+    Scored[] sorted = heap.toArray(new Scored[0]);
+    Arrays.sort(sorted, WORST_FIRST.reversed());
+    // Indexes changing during the search may have offered an entry twice
+    Set<AddressEntry> result = new LinkedHashSet<AddressEntry>();
+    for (Scored s: sorted) {
+      result.add(s.entry);
+    }
+    return new ArrayList<AddressEntry>(result);
+  }
+
+  private int score(AddressEntry entry) {
+    int score = 0;
+    for (AddressField field: AddressField.values()) {
+      String value = entry.normalizedValue(field);
+      if (value != null) {
+        score += WEIGHTS.get(field) * matchKind(value);
+      }
+    }
+    return score;
+  }
+
+  /**
+   * @return the score of the best kind of match of the key in the value, 0 if none
+   */
+  private int matchKind(String value) {
+    int position = matcher.indexIn(value, 0);
+    if (position < 0) {
+      return 0;
+    }
+    if (position == 0) {
+      return (value.length() == matcher.keyLength()) ? EXACT : PREFIX;
+    }
+    for (; position >= 0; position = matcher.indexIn(value, position + 1)) {
+      if (!Character.isLetterOrDigit(value.charAt(position - 1))) {
+        return WORD_PREFIX;
+      }
+    }
+    return INFIX;
+  }
+}
@@ -0,0 +1,32 @@
+package addressbooklib;
+
+/**
+ * SearchMode enum
+ * How AddressBook.searchEntry looks for the entries containing a key
+ * @author Shuang
+ */
+public enum SearchMode {
+  /**
+   * Verifies the candidates of the trigram index of each field,
+   * and every entry only for keys shorter than a trigram
+   */
+  INDEXED,
+  
+  /**
+   * Scans the normalized values of all entries packed into contiguous byte arrays,
+   * comparing eight bytes at a time. Suits ad-hoc queries the index narrows poorly,
+   * such as short keys or common infixes in notes. The packed copy is built on the
+   * first scan and reused until the book changes, so it pays off on books read
+   * far more often than written. Books kept in an EntryStore scan the store instead
+   */
+  SCAN,
+  
+  /**
+   * Verifies every entry, fanning the work out over the subtries of the book
+   * as partitions of a parallel stream, and lists matches in trie order
+   * whatever the number of threads. The stream runs in the common ForkJoinPool,
+   * or in the pool whose task calls the search. Small books, and books kept
+   * in an EntryStore, are searched on the calling thread
+   */
+  PARALLEL
+}
@@ -0,0 +1,50 @@
+package addressbooklib;
+
+import java.util.*;
+
+/**
+ * SearchPage class
+ * One page of search results together with the token to resume the search
+ * right after the page. Pages list entries in a stable order, so a token
+ * stays valid while the book changes: entries added or removed after the page
+ * only show up in, or drop out of, the pages still to come
+ * @author Shuang
+ */
+public class SearchPage {
+  private final List<AddressEntry> entries;
+  private final String continuationToken;
+
+  /**
+   * Constructor
+   * @param entries: the entries of the page
+   * @param continuationToken: resumes the search after the page, null if it is complete
+   */
+  SearchPage(List<AddressEntry> entries, String continuationToken) {
+    this.entries = Collections.unmodifiableList(entries);
+    this.continuationToken = continuationToken;
+  }
+
+  /**
+   * @return an unmodifiable List of the entries of the page
+   */
+  public List<AddressEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * A full page always carries a token, which may lead to an empty page
+   * when no further entries match
+   * @return the token to pass to AddressBook.searchPage for the next page,
+   *         or null if no entries are left
+   */
+  public String getContinuationToken() {
+    return continuationToken;
+  }
+
+  /**
+   * @return true if the search may have further entries
+   */
+  public boolean hasMore() {
+    return continuationToken != null;
+  }
+}
@@ -0,0 +1,119 @@
+package addressbooklib;
+
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * SubstringMatcher class
+ * Finds a normalized search key inside normalized field values
+ * with the Boyer-Moore-Horspool algorithm.
+ * The skip table is built once per key, and matching a value allocates nothing,
+ * so one matcher can test every entry of a search.
+ *
+ * Keys and values are normalized the same way by normalize(String):
+ * Unicode compatibility composition (NFKC) followed by case folding,
+ * so e.g. "STRASSE" finds "Stra\u00dfe" and a full-width "\uff21" finds "a"
+ * @author Shuang
+ */
+class SubstringMatcher {
+  private static final int TABLE_SIZE = 256;
+
+  private final String key;
+  private final int[] skip = new int[TABLE_SIZE];
+
+  /**
+   * Constructor
+   * @param key: a search key already normalized with normalize(String)
+   */
+  SubstringMatcher(String key) {
+    this.key = key;
+    int last = key.length() - 1;
+    Arrays.fill(skip, key.length());
+    // Characters sharing a table slot keep the smallest shift among them,
+    // which can only make the search skip less, never skip a match
+    for (int i = 0; i < last; i++) {
+      skip[key.charAt(i) & (TABLE_SIZE - 1)] = last - i;
+    }
+  }
+
+  /**
+   * Tests whether a value contains the key
+   * @param text: a value normalized with normalize(String), may be null
+   * @return true if text contains the key, false if it does not or is null
+   */
+  boolean matches(String text) {
+    return text != null && indexIn(text, 0) >= 0;
+  }
+
+  /**
+   * Finds the first occurrence of the key in a value at or after a position
+   * @param text: a value normalized with normalize(String)
+   * @param from: the position to start looking at
+   * @return the position of the occurrence, or -1 if there is none
+   */
+  int indexIn(String text, int from) {
+    int length = key.length();
+    if (length == 0) {
+      return (from <= text.length()) ? from : -1;
+    }
+    int last = length - 1;
+    char lastChar = key.charAt(last);
+    for (int end = from + last; end < text.length(); ) {
+      char c = text.charAt(end);
+      if (c == lastChar && regionMatches(text, end - last, last)) {
+        return end - last;
+      }
+      end += skip[c & (TABLE_SIZE - 1)];
+    }
+    return -1;
+  }
+
+  /**
+   * @return the length of the key
+   */
+  int keyLength() {
+    return key.length();
+  }
+
+  private boolean regionMatches(String text, int start, int count) {
+    for (int i = 0; i < count; i++) {
+      if (text.charAt(start + i) != key.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Normalizes a field value or key the same way for indexing and searching
+   * Plain ASCII text takes a fast path, and is returned as is if it has no
+   * upper-case letter, so normalizing lower-case ASCII costs no allocation.
+   * Any other text goes through NFKC and case folding, which allocate
+   * @param text: a field value or search key, may be null
+   * @return the normalized text, or null if text is null
+   */
+  static String normalize(String text) {
+    if (text == null) {
+      return null;
+    }
+    boolean ascii = true;
+    boolean lowerCase = true;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        ascii = false;
+        break;
+      }
+      if (c >= 'A' && c <= 'Z') {
+        lowerCase = false;
+      }
+    }
+    if (ascii) {
+      return lowerCase ? text : text.toLowerCase(Locale.ROOT);
+    }
+
+    String composed = Normalizer.normalize(text, Normalizer.Form.NFKC);
+    // Upper-casing first folds characters such as the German sharp s to their full form
+    return composed.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,185 @@
+package addressbooklib;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TrigramIndex class
+ * Inverted index mapping every three-character substring (trigram) of a
+ * normalized entry field to the entries containing it.
+ * A substring key of at least three characters can only match entries holding
+ * all of the key's trigrams, so a search only has to verify those candidates.
+ * Postings are concurrent sets updated atomically per trigram,
+ * so searches read them without locking while entries are added or removed.
+ * A lookup that overlaps a removal may see a replaced entry gone from one
+ * posting and its replacement not yet in another, so it is retried, and
+ * after a few overlaps answered with the union of the postings instead
+ * @author Shuang
+ */
+class TrigramIndex implements EntryIndex {
+  static final int GRAM_LENGTH = 3;
+  private static final int MAX_ATTEMPTS = 3;
+
+  private final AddressField field;
+  private final ConcurrentMap<String, Set<AddressEntry>> postings =
+      new ConcurrentHashMap<String, Set<AddressEntry>>();
+  // Removals begun and completed; a lookup is only exact if none overlapped it
+  private final AtomicLong removalsStarted = new AtomicLong();
+  private final AtomicLong removalsFinished = new AtomicLong();
+
+  /**
+   * Constructor
+   * @param field: the AddressField whose values are indexed
+   */
+  TrigramIndex(AddressField field) {
+    this.field = field;
+  }
+
+  /**
+   * Adds every trigram of the entry's field value to the postings of the entry
+   * @param entry: the added AddressEntry, a null field value is not indexed
+   */
+  @Override
+  public void add(AddressEntry entry) {
+    String text = entry.normalizedValue(field);
+    if (text == null) {
+      return;
+    }
+    for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+      postings.compute(text.substring(i, i + GRAM_LENGTH),
+          (gram, posting) -> {
+            if (posting == null) {
+              posting = ConcurrentHashMap.newKeySet();
+            }
+            posting.add(entry);
+            return posting;
+          });
+    }
+  }
+
+  /**
+   * Removes the entry from the postings of every trigram of its field value,
+   * dropping postings that become empty
+   * @param entry: the removed AddressEntry
+   */
+  @Override
+  public void remove(AddressEntry entry) {
+    String text = entry.normalizedValue(field);
+    if (text == null) {
+      return;
+    }
+    removalsStarted.incrementAndGet();
+    try {
+      for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+        postings.computeIfPresent(text.substring(i, i + GRAM_LENGTH),
+            (gram, posting) -> {
+              posting.remove(entry);
+              return posting.isEmpty() ? null : posting;
+            });
+      }
+    } finally {
+      removalsFinished.incrementAndGet();
+    }
+  }
+
+  /**
+   * Estimates how many entries contain the key without intersecting postings
+   * @param key: a search key normalized with SubstringMatcher.normalize
+   * @return the size of the smallest posting of the key's trigrams, an upper bound
+   *         of the number of candidates, or -1 if the key is too short to be indexed
+   */
+  int estimate(String key) {
+    if (key.length() < GRAM_LENGTH) {
+      return -1;
+    }
+    int smallest = Integer.MAX_VALUE;
+    for (int i = 0; i + GRAM_LENGTH <= key.length(); i++) {
+      Set<AddressEntry> posting = postings.get(key.substring(i, i + GRAM_LENGTH));
+      smallest = Math.min(smallest, (posting == null) ? 0 : posting.size());
+    }
+    return smallest;
+  }
+
+  /**
+   * Finds the entries that contain every trigram of the key
+   * The result is a superset of the entries matching the key,
+   * and callers still need to verify each candidate.
+   * An entry being replaced by another that also matches the key
+   * leaves at least one of the two among the candidates
+   * @param key: a search key normalized with SubstringMatcher.normalize
+   * @return a Set of candidate entries, or null if the key is too short to be indexed
+   */
+  Set<AddressEntry> candidates(String key) {
+    if (key.length() < GRAM_LENGTH) {
+      return null;
+    }
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      // Started is read first, so a removal finishing meanwhile cannot hide one in flight
+      long started = removalsStarted.get();
+      if (removalsFinished.get() != started) {
+        Thread.yield();
+        continue;
+      }
+      Set<AddressEntry> result = intersection(key);
+      if (removalsStarted.get() == started) {
+        return result;
+      }
+    }
+    return union(key);
+  }
+
+  /**
+   * Finds the entries in every posting of the key's trigrams
+   */
+  private Set<AddressEntry> intersection(String key) {
+    List<Set<AddressEntry>> lists = new ArrayList<Set<AddressEntry>>();
+    for (int i = 0; i + GRAM_LENGTH <= key.length(); i++) {
+      Set<AddressEntry> posting = postings.get(key.substring(i, i + GRAM_LENGTH));
+      if (posting == null) {
+        return Collections.emptySet();
+      }
+      lists.add(posting);
+    }
+
+    // Walk the shortest posting and probe the others
+    Set<AddressEntry> smallest = lists.get(0);
+    for (Set<AddressEntry> posting: lists) {
+      if (posting.size() < smallest.size()) {
+        smallest = posting;
+      }
+    }
+    Set<AddressEntry> result = new HashSet<AddressEntry>();
+    for (AddressEntry e: smallest) {
+      boolean inAll = true;
+      for (Set<AddressEntry> posting: lists) {
+        if (posting != smallest && !posting.contains(e)) {
+          inAll = false;
+          break;
+        }
+      }
+      if (inAll) {
+        result.add(e);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Collects the entries holding any of the key's trigrams
+   * Replacements add the new entry to every posting before taking the old one out
+   * of any, so if the new entry is missing from all postings as they are read,
+   * the old one was still in the first of them
+   */
+  private Set<AddressEntry> union(String key) {
+    Set<AddressEntry> result = new HashSet<AddressEntry>();
+    for (int i = 0; i + GRAM_LENGTH <= key.length(); i++) {
+      Set<AddressEntry> posting = postings.get(key.substring(i, i + GRAM_LENGTH));
+      if (posting != null) {
+        result.addAll(posting);
+      }
+    }
+    return result;
+  }
+}
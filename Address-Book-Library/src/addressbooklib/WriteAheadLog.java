@@ -0,0 +1,676 @@
+package addressbooklib;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog class
+ * Append-only log of the mutations of an AddressBook, kept in a directory of
+ * log segments ("wal-N.log") and binary checkpoints ("checkpoint-N.snap").
+ * Checkpoint N holds the whole book as of the moment segment N was started,
+ * so recovery loads the newest checkpoint and replays segment N onwards.
+ * A checkpoint replacing the whole book, as an import does, is written to a
+ * pending file first and moved into place before segment N is started,
+ * so no record logged after the replacement is ever replayed over older content.
+ *
+ * Appends are buffered in memory and written by a background flusher,
+ * which fsyncs once for every batch of records (group commit).
+ * A batch is written once it holds syncBatchSize records, or once its oldest
+ * record has waited syncIntervalMillis. With synchronous commit, an append only
+ * returns after its record is on disk; otherwise it returns right away and
+ * up to one batch may be lost in a crash.
+ *
+ * Every record is framed as [length][CRC32][payload], so a record torn by
+ * a crash is detected and dropped during recovery
+ * @author Shuang
+ */
+public class WriteAheadLog {
+  static final byte ADD = 1;
+  static final byte REMOVE = 2;
+  static final byte UPDATE = 3;
+  static final byte MERGE = 4;
+
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT_PREFIX = "checkpoint-";
+  private static final String CHECKPOINT_SUFFIX = ".snap";
+  private static final String PENDING_SUFFIX = ".pending";
+  private static final int FRAME_HEADER_SIZE = 8;
+  private static final int MAX_RECORD_SIZE = 64 << 20;
+
+  private final Path directory;
+  private final int syncBatchSize;
+  private final long syncIntervalMillis;
+  private final boolean synchronousCommit;
+
+  // Guards the pending buffer and sequence numbers
+  private final Object lock = new Object();
+  // Guards the segment channel; taken before lock when both are needed
+  private final Object ioLock = new Object();
+
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+  private int pendingRecords;
+  private long firstPendingMillis;
+  private long appendedSeq;
+  private long syncedSeq;
+  private boolean syncRequested;
+  private IOException failure;
+  private boolean closed;
+
+  private FileChannel segment;
+  private long segmentNumber;
+  private Thread flusher;
+
+  /**
+   * Builder class
+   * Sets the directory and the fsync batching of a WriteAheadLog
+   * @author Shuang
+   */
+  public static class Builder {
+    private final String directory;
+    private int syncBatchSize = 256;
+    private long syncIntervalMillis = 10;
+    private boolean synchronousCommit = true;
+
+    /**
+     * Constructor
+     * @param directory: the directory holding the log segments and checkpoints,
+     *        created if it does not exist
+     */
+    public Builder(String directory) {
+      this.directory = directory;
+    }
+
+    /**
+     * Sets how many records are written and fsynced together at most
+     * @param batchSize: a positive number of records, 256 by default
+     * @return an instance of this Builder
+     */
+    public Builder syncBatchSize(int batchSize) {
+      if (batchSize < 1) {
+        throw new IllegalArgumentException("Invalid sync batch size: " + batchSize);
+      }
+      syncBatchSize = batchSize;
+      return this;
+    }
+
+    /**
+     * Sets how long a record may wait for its batch to fill up
+     * @param intervalMillis: a non-negative number of milliseconds, 10 by default
+     * @return an instance of this Builder
+     */
+    public Builder syncIntervalMillis(long intervalMillis) {
+      if (intervalMillis < 0) {
+        throw new IllegalArgumentException("Invalid sync interval: " + intervalMillis);
+      }
+      syncIntervalMillis = intervalMillis;
+      return this;
+    }
+
+    /**
+     * Sets whether a mutation waits until its record is fsynced
+     * @param synchronous: true by default; false trades the last batch
+     *        for not blocking writers
+     * @return an instance of this Builder
+     */
+    public Builder synchronousCommit(boolean synchronous) {
+      synchronousCommit = synchronous;
+      return this;
+    }
+
+    /**
+     * Creates a WriteAheadLog over the directory
+     * The log has to be replayed, which AddressBook.recover does, before it accepts records
+     * @return an instance of WriteAheadLog
+     */
+    public WriteAheadLog build() throws IOException {
+      return new WriteAheadLog(this);
+    }
+  }
+
+  private WriteAheadLog(Builder builder) throws IOException {
+    directory = Paths.get(builder.directory);
+    syncBatchSize = builder.syncBatchSize;
+    syncIntervalMillis = builder.syncIntervalMillis;
+    synchronousCommit = builder.synchronousCommit;
+    Files.createDirectories(directory);
+  }
+
+  /**
+   * Replayer interface
+   * Receives the mutations read back from the log during recovery
+   */
+  interface Replayer {
+    void add(AddressEntry entry);
+
+    void remove(AddressEntry entry);
+
+    void update(AddressEntry oldEntry, AddressEntry newEntry);
+
+    void merge(List<AddressEntry> cluster, AddressEntry merged);
+  }
+
+  /**
+   * Finds the checkpoint recovery should start from
+   * @return the newest checkpoint file, or null if none was written yet
+   */
+  Path latestCheckpoint() throws IOException {
+    List<Long> checkpoints = listNumbers(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+    if (checkpoints.isEmpty()) {
+      return null;
+    }
+    return checkpointPath(checkpoints.get(checkpoints.size() - 1));
+  }
+
+  /**
+   * Replays every segment not covered by the latest checkpoint in order,
+   * then opens the log for appending.
+   * A torn or corrupt record at the end of the last segment is truncated away
+   * @param replayer: receives the logged mutations
+   * @throws IOException if a segment other than the last is corrupt
+   */
+  void replay(Replayer replayer) throws IOException {
+    List<Long> checkpoints = listNumbers(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+    long first = checkpoints.isEmpty() ? 0 : checkpoints.get(checkpoints.size() - 1);
+    List<Long> segments = new ArrayList<Long>();
+    for (long number: listNumbers(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+      if (number >= first) {
+        segments.add(number);
+      }
+    }
+
+    // Checkpoints prepared for a replacement that never took place, whole or torn
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(directory, CHECKPOINT_PREFIX + "*" + PENDING_SUFFIX + "*")) {
+      for (Path file: files) {
+        Files.deleteIfExists(file);
+      }
+    }
+
+    for (int i = 0; i < segments.size(); i++) {
+      boolean last = (i == segments.size() - 1);
+      long validLength = replaySegment(segmentPath(segments.get(i)), replayer, last);
+      if (last) {
+        try (FileChannel channel = FileChannel.open(segmentPath(segments.get(i)),
+            StandardOpenOption.WRITE)) {
+          channel.truncate(validLength);
+        }
+      }
+    }
+
+    synchronized (ioLock) {
+      segmentNumber = segments.isEmpty() ? first : segments.get(segments.size() - 1);
+      segment = openSegment(segmentNumber);
+    }
+    flusher = new Thread(new Runnable() {
+      public void run() {
+        flushLoop();
+      }
+    }, "address-book-wal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Reads the records of one segment
+   * @return the length of the segment up to the end of its last intact record
+   */
+  private long replaySegment(Path path, Replayer replayer, boolean last) throws IOException {
+    long validLength = 0;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+      while (true) {
+        int length;
+        int crc;
+        byte[] payload;
+        try {
+          length = in.readInt();
+          crc = in.readInt();
+          if (length < 1 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Corrupt record length in " + path);
+          }
+          payload = new byte[length];
+          in.readFully(payload);
+        } catch (EOFException e) {
+          break;
+        } catch (IOException e) {
+          if (last) {
+            break;
+          }
+          throw e;
+        }
+        if (crc != crc(payload)) {
+          if (last) {
+            break;
+          }
+          throw new IOException("Corrupt record in " + path + " at byte " + validLength);
+        }
+
+        apply(payload, replayer);
+        validLength += FRAME_HEADER_SIZE + length;
+      }
+    }
+    return validLength;
+  }
+
+  private static void apply(byte[] payload, Replayer replayer) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    byte op = in.readByte();
+    AddressEntry entry = readEntry(in);
+    switch (op) {
+      case ADD:
+        replayer.add(entry);
+        break;
+      case REMOVE:
+        replayer.remove(entry);
+        break;
+      case UPDATE:
+        replayer.update(entry, readEntry(in));
+        break;
+      case MERGE:
+        List<AddressEntry> cluster = new ArrayList<AddressEntry>();
+        while (in.available() > 0) {
+          cluster.add(readEntry(in));
+        }
+        replayer.merge(cluster, entry);
+        break;
+      default:
+        throw new IOException("Unknown write-ahead log operation: " + op);
+    }
+  }
+
+  /**
+   * Records that an entry was added to the book
+   */
+  void logAdd(AddressEntry entry) throws IOException {
+    append(ADD, entry);
+  }
+
+  /**
+   * Records that an entry was removed from the book
+   */
+  void logRemove(AddressEntry entry) throws IOException {
+    append(REMOVE, entry);
+  }
+
+  /**
+   * Records that an entry was replaced by another in a single step
+   */
+  void logUpdate(AddressEntry oldEntry, AddressEntry newEntry) throws IOException {
+    append(UPDATE, oldEntry, newEntry);
+  }
+
+  /**
+   * Records that a cluster of duplicates was swapped for the entry merged from them
+   * in a single step, the merged entry first and the cluster after it
+   */
+  void logMerge(List<AddressEntry> cluster, AddressEntry merged) throws IOException {
+    AddressEntry[] entries = new AddressEntry[cluster.size() + 1];
+    entries[0] = merged;
+    for (int i = 0; i < cluster.size(); i++) {
+      entries[i + 1] = cluster.get(i);
+    }
+    append(MERGE, entries);
+  }
+
+  private void append(byte op, AddressEntry... entries) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeByte(op);
+    for (AddressEntry entry: entries) {
+      writeEntry(out, entry);
+    }
+    byte[] record = bytes.toByteArray();
+    int length = record.length - FRAME_HEADER_SIZE;
+    ByteBuffer frame = ByteBuffer.wrap(record);
+    frame.putInt(0, length);
+    CRC32 crc = new CRC32();
+    crc.update(record, FRAME_HEADER_SIZE, length);
+    frame.putInt(4, (int) crc.getValue());
+
+    synchronized (lock) {
+      checkUsable();
+      if (pendingRecords == 0) {
+        firstPendingMillis = System.currentTimeMillis();
+      }
+      pending.write(record, 0, record.length);
+      pendingRecords++;
+      long seq = ++appendedSeq;
+      // Wake the flusher to start the interval clock, or because the batch is full
+      if (pendingRecords == 1 || pendingRecords >= syncBatchSize) {
+        lock.notifyAll();
+      }
+      if (synchronousCommit) {
+        awaitSynced(seq);
+      }
+    }
+  }
+
+  /**
+   * Writes and fsyncs every record appended so far
+   */
+  void sync() throws IOException {
+    synchronized (lock) {
+      checkUsable();
+      syncRequested = true;
+      lock.notifyAll();
+      awaitSynced(appendedSeq);
+    }
+  }
+
+  // Must hold lock
+  private void awaitSynced(long seq) throws IOException {
+    while (syncedSeq < seq && failure == null) {
+      try {
+        lock.wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the write-ahead log");
+      }
+    }
+    if (failure != null) {
+      throw new IOException("Write-ahead log failed", failure);
+    }
+  }
+
+  // Must hold lock
+  private void checkUsable() throws IOException {
+    if (closed) {
+      throw new IOException("Write-ahead log is closed");
+    }
+    if (segment == null) {
+      throw new IllegalStateException("Write-ahead log must be replayed before use");
+    }
+    if (failure != null) {
+      throw new IOException("Write-ahead log failed", failure);
+    }
+  }
+
+  /**
+   * Body of the flusher thread: waits for a full batch, an expired interval,
+   * an explicit sync or close, then writes and fsyncs everything pending
+   */
+  private void flushLoop() {
+    while (true) {
+      synchronized (lock) {
+        try {
+          while (!closed && !syncRequested && pendingRecords < syncBatchSize) {
+            if (pendingRecords == 0) {
+              lock.wait();
+            }
+            else {
+              long waited = System.currentTimeMillis() - firstPendingMillis;
+              if (waited >= syncIntervalMillis) {
+                break;
+              }
+              lock.wait(syncIntervalMillis - waited);
+            }
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (closed && pendingRecords == 0) {
+          return;
+        }
+      }
+      try {
+        flushPending();
+      } catch (IOException e) {
+        synchronized (lock) {
+          failure = e;
+          lock.notifyAll();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes the pending batch to the current segment and fsyncs it
+   */
+  private void flushPending() throws IOException {
+    synchronized (ioLock) {
+      ByteArrayOutputStream batch;
+      long batchSeq;
+      synchronized (lock) {
+        batch = pending;
+        batchSeq = appendedSeq;
+        pending = new ByteArrayOutputStream(Math.max(1 << 16, batch.size()));
+        pendingRecords = 0;
+        syncRequested = false;
+      }
+
+      if (batch.size() > 0) {
+        ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+        while (buffer.hasRemaining()) {
+          segment.write(buffer);
+        }
+        segment.force(false);
+      }
+
+      synchronized (lock) {
+        syncedSeq = Math.max(syncedSeq, batchSeq);
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Starts folding the log into a full snapshot of the book by starting a new segment
+   * The caller then saves the book as it was at this call with finishCheckpoint.
+   * Mutations made meanwhile land in the new segment and are replayed over the checkpoint
+   * @return the number of the new segment, to be passed to finishCheckpoint
+   */
+  long startCheckpoint() throws IOException {
+    return startCheckpoint(null);
+  }
+
+  /**
+   * Saves the entries that are about to replace the whole book as a pending checkpoint
+   * Until startCheckpoint installs it, the file is ignored by recovery
+   * @param entries: the entries of the book after the replacement
+   * @return the pending checkpoint file, to be passed to startCheckpoint
+   */
+  Path prepareCheckpoint(Iterable<AddressEntry> entries) throws IOException {
+    Path pending = Files.createTempFile(directory, CHECKPOINT_PREFIX, PENDING_SUFFIX);
+    try {
+      BinarySnapshot.write(entries, pending);
+    } catch (IOException e) {
+      Files.deleteIfExists(pending);
+      throw e;
+    }
+    return pending;
+  }
+
+  /**
+   * Starts a new segment whose checkpoint was already written by prepareCheckpoint
+   * The checkpoint is moved into place, and the move made durable, before the segment
+   * is opened, so a crash at any point recovers either the book from before the
+   * replacement with its whole log, or the replacement with only the records after it.
+   * The caller must keep the book from changing between preparing and this call,
+   * and then drops the older files with finishCheckpoint(number)
+   * @param prepared: the file returned by prepareCheckpoint, or null to write
+   *        the checkpoint afterwards with finishCheckpoint(number, entries)
+   * @return the number of the new segment
+   */
+  long startCheckpoint(Path prepared) throws IOException {
+    long number;
+    synchronized (ioLock) {
+      synchronized (lock) {
+        checkUsable();
+      }
+      flushPending();
+      number = segmentNumber + 1;
+      if (prepared != null) {
+        Files.move(prepared, checkpointPath(number), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+      }
+      segment.close();
+      segment = openSegment(number);
+      segmentNumber = number;
+    }
+    return number;
+  }
+
+  /**
+   * Saves the book as the checkpoint of a segment started by startCheckpoint,
+   * then deletes older segments and checkpoints
+   * @param number: the segment number returned by startCheckpoint
+   * @param entries: the entries of the book when startCheckpoint was called
+   */
+  void finishCheckpoint(long number, Iterable<AddressEntry> entries) throws IOException {
+    BinarySnapshot.write(entries, checkpointPath(number));
+    finishCheckpoint(number);
+  }
+
+  /**
+   * Deletes the segments and checkpoints superseded by the checkpoint of a segment
+   * @param number: the segment number returned by startCheckpoint
+   */
+  void finishCheckpoint(long number) throws IOException {
+    for (long old: listNumbers(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+      if (old < number) {
+        Files.deleteIfExists(segmentPath(old));
+      }
+    }
+    for (long old: listNumbers(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)) {
+      if (old < number) {
+        Files.deleteIfExists(checkpointPath(old));
+      }
+    }
+  }
+
+  /**
+   * Writes out every pending record, stops the flusher and closes the current segment
+   */
+  void close() throws IOException {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      lock.notifyAll();
+    }
+    if (flusher != null) {
+      try {
+        flusher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (ioLock) {
+      if (segment != null) {
+        flushPending();
+        segment.close();
+      }
+    }
+    synchronized (lock) {
+      if (failure != null) {
+        throw new IOException("Write-ahead log failed", failure);
+      }
+    }
+  }
+
+  /**
+   * Fsyncs the directory, so that files moved into it survive a crash
+   * Platforms that cannot open a directory as a channel make renames durable on their own
+   */
+  private void syncDirectory() throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(directory, StandardOpenOption.READ);
+    } catch (IOException e) {
+      return;
+    }
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  private FileChannel openSegment(long number) throws IOException {
+    return FileChannel.open(segmentPath(number), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  private Path segmentPath(long number) {
+    return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+  }
+
+  private Path checkpointPath(long number) {
+    return directory.resolve(
+        String.format("%s%016d%s", CHECKPOINT_PREFIX, number, CHECKPOINT_SUFFIX));
+  }
+
+  /**
+   * Lists the numbers of the files in the directory with the given prefix and suffix
+   * @return the numbers in ascending order
+   */
+  private List<Long> listNumbers(String prefix, String suffix) throws IOException {
+    List<Long> numbers = new ArrayList<Long>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+      for (Path file: files) {
+        String name = file.getFileName().toString();
+        try {
+          numbers.add(Long.parseLong(
+              name.substring(prefix.length(), name.length() - suffix.length())));
+        } catch (NumberFormatException e) {
+          // Not one of ours, leave it alone
+        }
+      }
+    }
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  static void writeEntry(DataOutputStream out, AddressEntry entry) throws IOException {
+    writeField(out, entry.getContactName());
+    writeField(out, entry.getPostalAddress());
+    writeField(out, entry.getPhoneNumber());
+    writeField(out, entry.getEmailAddress());
+    writeField(out, entry.getNote());
+  }
+
+  static AddressEntry readEntry(DataInputStream in) throws IOException {
+    String name = readField(in);
+    String address = readField(in);
+    String phone = readField(in);
+    String email = readField(in);
+    String note = readField(in);
+    return AddressEntry.restore(name, address, phone, email, note);
+  }
+
+  private static void writeField(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readField(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int crc(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+}
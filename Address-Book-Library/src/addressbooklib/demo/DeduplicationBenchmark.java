@@ -0,0 +1,89 @@
+package addressbooklib.demo;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+import addressbooklib.AddressBook;
+import addressbooklib.AddressEntry;
+import addressbooklib.DeduplicationReport;
+
+/**
+ * Fills a book with contacts of which about a fifth were entered twice,
+ * in other case, with a typo of the name or with another note, and merges them
+ * with AddressBook.deduplicate. Then a second import brings more duplicates,
+ * of new and of existing contacts, and only the imported entries are checked.
+ * The report of each run, throughput included, is logged
+ */
+public class DeduplicationBenchmark {
+
+  /** use a logger instead of System.out.println */
+  private static final Logger logger =
+      Logger.getLogger("addressbooklib.demo.DeduplicationBenchmark");
+
+  private static final String[] FIRST_NAMES = {
+    "John", "Jane", "Ann", "Robert", "Maria", "Shuang", "Peter", "Lucy", "Ahmed", "Olga",
+    "Kenji", "Priya", "Carlos", "Emma", "Noah", "Fatima"
+  };
+
+  /**
+   * Run the benchmark
+   * @param args an optional number of contacts, 200000 by default
+   */
+  public static void main(String[] args) {
+    int contacts = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+    Random random = new Random(42);
+
+    AddressBook book = new AddressBook();
+    List<AddressEntry> originals = new ArrayList<AddressEntry>();
+    for (int i = 0; i < contacts; i++) {
+      AddressEntry entry = contact(random, i);
+      originals.add(entry);
+      book.addEntry(entry);
+      if (random.nextInt(5) == 0) {
+        book.addEntry(variant(random, entry));
+      }
+    }
+    logger.info("Full run: " + book.deduplicate());
+
+    // The second import repeats some contacts and adds new ones with their own duplicates
+    List<AddressEntry> imported = new ArrayList<AddressEntry>();
+    for (int i = 0; i < contacts / 10; i++) {
+      AddressEntry entry = (random.nextBoolean())
+          ? variant(random, originals.get(random.nextInt(originals.size())))
+          : contact(random, contacts + i);
+      imported.add(entry);
+      if (random.nextInt(5) == 0) {
+        imported.add(variant(random, entry));
+      }
+    }
+    for (AddressEntry entry: imported) {
+      book.addEntry(entry);
+    }
+    DeduplicationReport report = book.deduplicate(imported);
+    logger.info("Incremental run: " + report);
+  }
+
+  private static AddressEntry contact(Random random, int i) {
+    return new AddressEntry.Builder().
+        contactName(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " Person" + i).
+        postalAddress(i + " Street " + (i % 1000)).
+        phoneNumber(String.format("212%07d", i)).
+        emailAddress("contact" + i + "@example.com").
+        build();
+  }
+
+  /**
+   * @return the entry as entered again: upper case, with a doubled letter, or with a note
+   */
+  private static AddressEntry variant(Random random, AddressEntry entry) {
+    String name = entry.getContactName();
+    switch (random.nextInt(3)) {
+      case 0:
+        return entry.toBuilder().contactName(name.toUpperCase(Locale.ROOT)).build();
+      case 1:
+        return entry.toBuilder().contactName(name.replaceFirst("(\\w)", "$1$1")).build();
+      default:
+        return entry.toBuilder().note("imported " + random.nextInt(100)).build();
+    }
+  }
+}
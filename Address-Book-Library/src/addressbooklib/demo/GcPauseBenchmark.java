@@ -0,0 +1,118 @@
+package addressbooklib.demo;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.logging.Logger;
+
+import addressbooklib.AddressBook;
+import addressbooklib.AddressEntry;
+
+/**
+ * Compares garbage collection pauses while the same entries are held
+ * in a plain HashSet, in an AddressBook on the heap, and in an off-heap AddressBook.
+ * For each layout the entries are loaded, then short-lived garbage is allocated
+ * for a while, and the time spent in collections is reported together with
+ * the duration of one full collection, which has to trace every live object
+ */
+public class GcPauseBenchmark {
+
+  /** use a logger instead of System.out.println */
+  private static final Logger logger =
+      Logger.getLogger("addressbooklib.demo.GcPauseBenchmark");
+
+  private static final long CHURN_MILLIS = 5000;
+
+  /**
+   * Run the benchmark
+   * @param args an optional number of entries, 1000000 by default,
+   *        and an optional layout: hashset, heap or offheap; all three by default
+   */
+  public static void main(String[] args) {
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    List<String> layouts = (args.length > 1)
+        ? Arrays.asList(args[1]) : Arrays.asList("hashset", "heap", "offheap");
+
+    for (String layout: layouts) {
+      run(layout, entries);
+    }
+  }
+
+  private static void run(String layout, int entries) {
+    Set<AddressEntry> set = null;
+    AddressBook book = null;
+    if (layout.equals("hashset")) {
+      set = new HashSet<AddressEntry>();
+      for (int i = 0; i < entries; i++) {
+        set.add(entry(i));
+      }
+    }
+    else {
+      book = layout.equals("offheap") ? AddressBook.createOffHeap() : new AddressBook();
+      for (int i = 0; i < entries; i++) {
+        book.addEntry(entry(i));
+      }
+    }
+
+    long fullStart = System.nanoTime();
+    System.gc();
+    long fullMillis = (System.nanoTime() - fullStart) / 1000000;
+
+    long countBefore = collectionCount();
+    long timeBefore = collectionMillis();
+    long deadline = System.currentTimeMillis() + CHURN_MILLIS;
+    long checksum = 0;
+    Random random = new Random(42);
+    while (System.currentTimeMillis() < deadline) {
+      // Transient entries die young, but every collection still has to
+      // find them among the long-lived ones
+      for (int i = 0; i < 10000; i++) {
+        checksum += entry(random.nextInt(entries)).hashCode();
+      }
+    }
+    long collections = collectionCount() - countBefore;
+    long gcMillis = collectionMillis() - timeBefore;
+
+    logger.info(layout + " with " + entries + " entries: full GC " + fullMillis + " ms, "
+        + collections + " collections taking " + gcMillis + " ms in " + CHURN_MILLIS
+        + " ms of allocation (checksum " + checksum + ")");
+
+    if (set != null) {
+      set.clear();
+    }
+    if (book != null) {
+      try {
+        book.close();
+      } catch (IOException e) {
+        logger.warning("Could not close the book: " + e);
+      }
+    }
+  }
+
+  private static long collectionCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long collectionMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static AddressEntry entry(int i) {
+    return new AddressEntry.Builder().
+        contactName("Contact " + i).
+        postalAddress(i + " Street " + (i % 1000)).
+        phoneNumber(String.format("212%07d", i)).
+        emailAddress("contact" + i + "@example.com").
+        note("").
+        build();
+  }
+}
@@ -0,0 +1,88 @@
+package addressbooklib.demo;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+import addressbooklib.AddressBook;
+import addressbooklib.AddressEntry;
+import addressbooklib.AddressField;
+import addressbooklib.SearchMode;
+
+/**
+ * Compares the indexed searchEntry loop with the packed scan of SearchMode.SCAN
+ * and the partitioned scan of SearchMode.PARALLEL on keys the trigram index
+ * narrows poorly: short keys, and infixes shared by many notes.
+ * Each key is searched repeatedly after a warm-up, and the average time
+ * per search is reported for every mode
+ */
+public class ScanBenchmark {
+
+  /** use a logger instead of System.out.println */
+  private static final Logger logger =
+      Logger.getLogger("addressbooklib.demo.ScanBenchmark");
+
+  private static final String[] WORDS = {
+    "call", "after", "lunch", "met", "at", "conference", "prefers", "email",
+    "assistant", "handles", "calendar", "birthday", "in", "march", "vendor", "invoice"
+  };
+
+  /**
+   * Run the benchmark
+   * @param args an optional number of entries, 200000 by default,
+   *        and an optional number of searches per key and mode, 20 by default
+   */
+  public static void main(String[] args) {
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+    int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+    AddressBook book = new AddressBook();
+    Random random = new Random(42);
+    for (int i = 0; i < entries; i++) {
+      StringBuilder note = new StringBuilder();
+      for (int w = 0; w < 6; w++) {
+        note.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      book.addEntry(new AddressEntry.Builder().
+          contactName("Contact " + i).
+          postalAddress(i + " Street " + (i % 1000)).
+          phoneNumber(String.format("212%07d", i)).
+          emailAddress("contact" + i + "@example.com").
+          note(note.toString().trim()).
+          build());
+    }
+
+    run(book, AddressField.CONTACT_NAME, "7", rounds);
+    run(book, AddressField.EMAIL_ADDRESS, "t9", rounds);
+    run(book, AddressField.NOTE, "ch", rounds);
+    run(book, AddressField.NOTE, "enda", rounds);
+    run(book, AddressField.NOTE, "lunch met", rounds);
+    run(book, AddressField.NOTE, "xyz", rounds);
+  }
+
+  private static void run(AddressBook book, AddressField field, String key, int rounds) {
+    int indexed = book.searchEntry(field, key, SearchMode.INDEXED).size();
+    int scanned = book.searchEntry(field, key, SearchMode.SCAN).size();
+    int parallel = book.searchEntry(field, key, SearchMode.PARALLEL).size();
+    if (indexed != scanned || indexed != parallel) {
+      logger.warning("Modes disagree on " + field + " \"" + key + "\": " + indexed
+          + " indexed, " + scanned + " scanned, " + parallel + " in parallel");
+    }
+    logger.info(field + " \"" + key + "\" (" + indexed + " matches): indexed "
+        + time(book, field, key, SearchMode.INDEXED, rounds) + " ms, scan "
+        + time(book, field, key, SearchMode.SCAN, rounds) + " ms, parallel "
+        + time(book, field, key, SearchMode.PARALLEL, rounds) + " ms per search on "
+        + Runtime.getRuntime().availableProcessors() + " cores");
+  }
+
+  private static String time(AddressBook book, AddressField field, String key,
+      SearchMode mode, int rounds) {
+    for (int i = 0; i < rounds; i++) {
+      book.searchEntry(field, key, mode);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      book.searchEntry(field, key, mode);
+    }
+    return String.format("%.2f", (System.nanoTime() - start) / 1e6 / rounds);
+  }
+}
@@ -0,0 +1,103 @@
+package addressbooklib.demo;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import addressbooklib.AddressBook;
+import addressbooklib.AddressEntry;
+
+/**
+ * Measures search throughput of a shared AddressBook while one writer thread
+ * keeps adding and removing entries.
+ * The number of searching threads doubles from one up to the number of processors,
+ * and with lock-free reads the throughput should grow with it
+ */
+public class SearchContentionBenchmark {
+
+  /** use a logger instead of System.out.println */
+  private static final Logger logger =
+      Logger.getLogger("addressbooklib.demo.SearchContentionBenchmark");
+
+  private static final int ENTRY_COUNT = 50000;
+  private static final long RUN_MILLIS = 2000;
+
+  /**
+   * Run the benchmark
+   * @param args an optional argument specifying the maximum number of search threads
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int maxThreads = (args.length > 0)
+        ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+    AddressBook book = new AddressBook();
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      book.addEntry(entry(i));
+    }
+
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      long searches = run(book, threads);
+      logger.info(threads + " search threads: "
+          + (searches * 1000 / RUN_MILLIS) + " searches/s");
+    }
+  }
+
+  /**
+   * Runs searching threads and one writer for RUN_MILLIS
+   * @return the number of searches completed
+   */
+  private static long run(final AddressBook book, int threads) throws InterruptedException {
+    final AtomicLong searches = new AtomicLong();
+    final long deadline = System.currentTimeMillis() + RUN_MILLIS;
+    List<Thread> workers = new ArrayList<Thread>();
+
+    for (int t = 0; t < threads; t++) {
+      workers.add(new Thread(new Runnable() {
+        public void run() {
+          Random random = ThreadLocalRandom.current();
+          long done = 0;
+          while (System.currentTimeMillis() < deadline) {
+            int i = random.nextInt(ENTRY_COUNT);
+            book.searchEntry("Street " + i);
+            book.findByPhoneNumber(phoneNumber(i));
+            done++;
+          }
+          searches.addAndGet(done);
+        }
+      }));
+    }
+    workers.add(new Thread(new Runnable() {
+      public void run() {
+        int i = ENTRY_COUNT;
+        while (System.currentTimeMillis() < deadline) {
+          AddressEntry e = entry(i++);
+          book.addEntry(e);
+          book.removeEntry(e);
+        }
+      }
+    }));
+
+    for (Thread worker: workers) {
+      worker.start();
+    }
+    for (Thread worker: workers) {
+      worker.join();
+    }
+    return searches.get();
+  }
+
+  private static AddressEntry entry(int i) {
+    return new AddressEntry.Builder().
+        contactName("Contact " + i).
+        postalAddress(i + " Street " + i).
+        phoneNumber(phoneNumber(i)).
+        emailAddress("contact" + i + "@example.com").
+        note("").
+        build();
+  }
+
+  private static String phoneNumber(int i) {
+    return String.format("212%07d", i);
+  }
+}
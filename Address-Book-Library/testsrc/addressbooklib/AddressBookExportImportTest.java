@@ -0,0 +1,101 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AddressBookExportImportTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRoundTrip_keepsEveryField() throws IOException {
+    AddressBook book = new AddressBook();
+    Set<AddressEntry> expected = new HashSet<AddressEntry>();
+    for (int i = 0; i < 3000; i++) {
+      AddressEntry entry = new AddressEntry.Builder().
+          contactName("Person " + i).
+          postalAddress(i + " Main St\tApt " + (i % 7)).
+          phoneNumber(String.format("212%07d", i)).
+          emailAddress("person" + i + "@example.com").
+          note("line one\nline two \\ \r\u00e9").
+          build();
+      book.addEntry(entry);
+      expected.add(entry);
+    }
+    String file = folder.newFile("book.tsv").getPath();
+    book.exportAddressBook(file);
+
+    AddressBook imported = new AddressBook();
+    imported.importAddressBook(file);
+    assertEquals(expected, new HashSet<AddressEntry>(imported.listEntries(null, 10000)));
+  }
+
+  @Test
+  public void testRoundTrip_keepsNullAndEmptyFieldsApart() throws IOException {
+    AddressBook book = new AddressBook();
+    AddressEntry unset = new AddressEntry.Builder().build();
+    AddressEntry empty = new AddressEntry.Builder().contactName("").postalAddress("").note("").build();
+    AddressEntry literal = new AddressEntry.Builder().contactName("\\N").note("a\\Nb").build();
+    book.addEntry(unset);
+    book.addEntry(empty);
+    book.addEntry(literal);
+    String file = folder.newFile("nulls.tsv").getPath();
+    book.exportAddressBook(file);
+
+    AddressBook imported = new AddressBook();
+    imported.importAddressBook(file);
+    List<AddressEntry> entries = imported.listEntries(null, 10);
+    assertEquals(3, entries.size());
+    assertTrue(entries.contains(unset));
+    assertTrue(entries.contains(empty));
+    assertTrue(entries.contains(literal));
+  }
+
+  @Test
+  public void testImport_emptyPhoneAndEmailLeftUnset() throws IOException {
+    File file = folder.newFile("old.tsv");
+    Files.write(file.toPath(), "Ann\t1 Elm St\t\t\tfriend\n".getBytes(StandardCharsets.UTF_8));
+    AddressBook imported = new AddressBook();
+    imported.importAddressBook(file.getPath());
+    AddressEntry entry = imported.firstEntry();
+    assertEquals("Ann", entry.getContactName());
+    assertNull(entry.getPhoneNumber());
+    assertNull(entry.getEmailAddress());
+    assertEquals("friend", entry.getNote());
+  }
+
+  @Test(expected = IOException.class)
+  public void testImport_tooFewFieldsRejected() throws IOException {
+    File file = folder.newFile("bad.tsv");
+    Files.write(file.toPath(), "Ann\t1 Elm St\n".getBytes(StandardCharsets.UTF_8));
+    new AddressBook().importAddressBook(file.getPath());
+  }
+
+  @Test
+  public void testExport_reportsProgress() throws IOException {
+    AddressBook book = new AddressBook();
+    for (int i = 0; i < 100; i++) {
+      book.addEntry(new AddressEntry.Builder().contactName("Person " + i).build());
+    }
+    final long[] last = new long[2];
+    String file = folder.newFile("progress.tsv").getPath();
+    book.exportAddressBook(file, new ExportProgressListener() {
+      @Override
+      public void progress(long bytesWritten, long entriesWritten) {
+        last[0] = bytesWritten;
+        last[1] = entriesWritten;
+      }
+    });
+    assertEquals(Files.size(Paths.get(file)), last[0]);
+    assertEquals(100, last[1]);
+  }
+}
@@ -0,0 +1,112 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AddressBookImporterTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ForkJoinPool pool = new ForkJoinPool(4);
+
+  @After
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Test
+  public void testRead_manyChunksKeepFileOrder() throws IOException {
+    // Several megabytes, so the file is cut into chunks parsed on different threads
+    StringBuilder text = new StringBuilder();
+    int count = 60000;
+    for (int i = 0; i < count; i++) {
+      text.append("Person ").append(i).append('\t')
+          .append(i).append(" Long Street Name For Padding\t")
+          .append(String.format("212%07d", i)).append('\t')
+          .append("p").append(i).append("@example.com\t")
+          .append("caf\u00e9 note ").append(i % 10)
+          .append((i % 3 == 0) ? "\r\n" : "\n");
+    }
+    Path path = write(text.toString());
+    assertTrue(Files.size(path) > 3 << 20);
+
+    List<AddressEntry> entries = new AddressBookImporter(pool).read(path);
+    assertEquals(count, entries.size());
+    for (int i = 0; i < count; i++) {
+      AddressEntry e = entries.get(i);
+      assertEquals("Person " + i, e.getContactName());
+      assertEquals(String.format("212%07d", i), e.getPhoneNumber());
+      assertEquals("caf\u00e9 note " + (i % 10), e.getNote());
+    }
+  }
+
+  @Test
+  public void testRead_blankLinesExtraFieldsAndMissingFinalNewline() throws IOException {
+    Path path = write("\nAnn\t1 Elm\t\t\tfriend\textra\tfields\n\n\nBob\t\t\t\t");
+    List<AddressEntry> entries = new AddressBookImporter(pool).read(path);
+    assertEquals(2, entries.size());
+    assertEquals("friend", entries.get(0).getNote());
+    assertEquals("Bob", entries.get(1).getContactName());
+    assertEquals("", entries.get(1).getNote());
+  }
+
+  @Test
+  public void testRead_unescapesFields() throws IOException {
+    Path path = write("A\\tB\tline\\nbreak\t\t\tback\\\\slash \\q\n");
+    AddressEntry e = new AddressBookImporter(pool).read(path).get(0);
+    assertEquals("A\tB", e.getContactName());
+    assertEquals("line\nbreak", e.getPostalAddress());
+    assertEquals("back\\slash \\q", e.getNote());
+  }
+
+  @Test
+  public void testRead_emptyFile() throws IOException {
+    assertTrue(new AddressBookImporter(pool).read(write("")).isEmpty());
+  }
+
+  @Test
+  public void testRead_malformedLineNamesItsOffset() throws IOException {
+    Path path = write("Ann\t\t\t\t\nBob\tonly two\n");
+    try {
+      new AddressBookImporter(pool).read(path);
+      fail("malformed line accepted");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("byte 8"));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRead_invalidPhoneNumberRejected() throws IOException {
+    new AddressBookImporter(pool).read(write("Ann\t\t12ab\t\t\n"));
+  }
+
+  @Test
+  public void testImportAddressBook_failedImportKeepsTheBook() throws IOException {
+    AddressBook book = new AddressBook();
+    AddressEntry kept = new AddressEntry.Builder().contactName("Kept").build();
+    book.addEntry(kept);
+    try {
+      book.importAddressBook(write("Ann\n").toString());
+      fail("malformed file imported");
+    } catch (IOException e) {
+      assertEquals(Collections.singletonList(kept), book.listEntries(null, 10));
+    }
+  }
+
+  private Path write(String text) throws IOException {
+    Path path = folder.newFile().toPath();
+    Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+}
@@ -0,0 +1,144 @@
+package addressbooklib;
+
+import static addressbooklib.TestEntries.person;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AddressBookSnapshotTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPersistentEntrySet_versionsStayUnchanged() {
+    Random random = new Random(11);
+    PersistentEntrySet set = PersistentEntrySet.EMPTY;
+    Set<AddressEntry> expected = new HashSet<AddressEntry>();
+    List<PersistentEntrySet> versions = new ArrayList<PersistentEntrySet>();
+    List<Set<AddressEntry>> contents = new ArrayList<Set<AddressEntry>>();
+    for (int i = 0; i < 5000; i++) {
+      AddressEntry e = person(random.nextInt(3000));
+      if (random.nextInt(3) == 0) {
+        set = set.minus(e);
+        expected.remove(e);
+      }
+      else {
+        set = set.plus(e);
+        expected.add(e);
+      }
+      if (i % 500 == 0) {
+        versions.add(set);
+        contents.add(new HashSet<AddressEntry>(expected));
+      }
+    }
+    for (int v = 0; v < versions.size(); v++) {
+      assertSet(contents.get(v), versions.get(v));
+    }
+    assertSame(set, set.plus(expected.iterator().next()));
+    assertSame(set, set.minus(new AddressEntry.Builder().contactName("Nobody").build()));
+  }
+
+  @Test
+  public void testPersistentEntrySet_collidingHashes() {
+    // "Aa" and "BB" share a hash code, so these names all collide
+    String[] names = {"AaAa", "AaBB", "BBAa", "BBBB"};
+    PersistentEntrySet set = PersistentEntrySet.EMPTY;
+    for (String name: names) {
+      set = set.plus(new AddressEntry.Builder().contactName(name).build());
+    }
+    assertEquals(4, set.size());
+    PersistentEntrySet fewer = set.minus(new AddressEntry.Builder().contactName("AaBB").build());
+    assertEquals(3, fewer.size());
+    assertEquals(4, set.size());
+    assertFalse(fewer.contains(new AddressEntry.Builder().contactName("AaBB").build()));
+    assertTrue(fewer.contains(new AddressEntry.Builder().contactName("BBBB").build()));
+    assertEquals(3, new HashSet<AddressEntry>(fewer).size());
+  }
+
+  @Test
+  public void testPersistentEntrySet_parallelStreamKeepsIterationOrder() {
+    PersistentEntrySet set = PersistentEntrySet.EMPTY;
+    for (int i = 0; i < 20000; i++) {
+      set = set.plus(person(i));
+    }
+    List<AddressEntry> sequential = new ArrayList<AddressEntry>(set);
+    assertEquals(sequential, set.parallelStream().collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testSnapshot_inMemoryBookUnchangedByLaterWrites() {
+    AddressBook book = new AddressBook();
+    for (int i = 0; i < 1000; i++) {
+      book.addEntry(person(i));
+    }
+    AddressBookSnapshot snapshot = book.snapshot();
+    Set<AddressEntry> before = new HashSet<AddressEntry>(snapshot);
+    for (int i = 0; i < 500; i++) {
+      book.removeEntry(person(i));
+      book.addEntry(person(i + 1000));
+    }
+    book.updateEntry(person(700), b -> b.note("changed"));
+    // Iterating again sees the same entries, and no ConcurrentModificationException
+    assertSet(before, snapshot);
+    assertTrue(snapshot.contains(person(0)));
+    assertFalse(snapshot.contains(person(1000)));
+    snapshot.close();
+  }
+
+  @Test
+  public void testSnapshot_storedBooksUnchangedByLaterWrites() throws IOException {
+    AddressBook[] books = {
+      AddressBook.createColumnar(),
+      AddressBook.createOffHeap(),
+      AddressBook.openStorageEngine(folder.getRoot().getPath())
+    };
+    for (AddressBook book: books) {
+      for (int i = 0; i < 300; i++) {
+        book.addEntry(person(i));
+      }
+      AddressBookSnapshot snapshot = book.snapshot();
+      Set<AddressEntry> before = new HashSet<AddressEntry>(snapshot);
+      assertEquals(300, before.size());
+      Iterator<AddressEntry> iterating = snapshot.iterator();
+      iterating.next();
+      for (int i = 0; i < 250; i++) {
+        book.removeEntry(person(i));
+      }
+      book.addEntry(person(5000));
+      int rest = 0;
+      while (iterating.hasNext()) {
+        assertTrue(before.contains(iterating.next()));
+        rest++;
+      }
+      assertEquals(299, rest);
+      assertSet(before, snapshot);
+      snapshot.close();
+      assertEquals(51, book.snapshot().size());
+      book.close();
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testSnapshot_isReadOnly() {
+    AddressBook book = new AddressBook();
+    book.addEntry(person(1));
+    book.snapshot().iterator().remove();
+  }
+
+  private static void assertSet(Set<AddressEntry> expected, Set<AddressEntry> actual) {
+    assertEquals(expected.size(), actual.size());
+    List<AddressEntry> listed = new ArrayList<AddressEntry>(actual);
+    assertEquals(expected.size(), listed.size());
+    assertEquals(expected, new HashSet<AddressEntry>(listed));
+    for (AddressEntry e: expected) {
+      assertTrue(actual.contains(e));
+    }
+  }
+}
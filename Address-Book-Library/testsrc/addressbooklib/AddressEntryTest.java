@@ -0,0 +1,144 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class AddressEntryTest {
+
+  @Test
+  public void testToBuilder_copyLeavesTheOriginalUnchanged() {
+    AddressEntry original = full();
+    AddressEntry copy = original.toBuilder().note("changed").build();
+    assertEquals("a note", original.getNote());
+    assertEquals("changed", copy.getNote());
+    assertEquals(original.getContactName(), copy.getContactName());
+    assertEquals(original, original.toBuilder().build());
+    assertNotEquals(original, copy);
+  }
+
+  @Test
+  public void testEqualsAndHashCode_overEveryField() {
+    AddressEntry a = full();
+    AddressEntry b = full();
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertNotEquals(a, a.toBuilder().postalAddress(null).build());
+    assertNotEquals(a, a.toBuilder().emailAddress("other@example.com").build());
+    assertNotEquals(a, null);
+    assertEquals(new AddressEntry.Builder().build(), new AddressEntry.Builder().build());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidPhoneNumberRejected() {
+    new AddressEntry.Builder().phoneNumber("555-0100");
+  }
+
+  @Test
+  public void testIsValid_phoneNumbersAndEmails() {
+    assertTrue(AddressEntry.isValidPhoneNumber("2125550"));
+    assertFalse(AddressEntry.isValidPhoneNumber("212555"));
+    assertFalse(AddressEntry.isValidPhoneNumber("212555a"));
+    assertTrue(AddressEntry.isValidEmailAddress("a@b.c"));
+    assertTrue(AddressEntry.isValidEmailAddress("x@y@host/com"));
+    assertFalse(AddressEntry.isValidEmailAddress("@b.c"));
+    assertFalse(AddressEntry.isValidEmailAddress("a@b.c.d"));
+    assertFalse(AddressEntry.isValidEmailAddress("a@.c"));
+    assertFalse(AddressEntry.isValidEmailAddress("a@b."));
+    assertFalse(AddressEntry.isValidEmailAddress("a\n@b.c"));
+  }
+
+  @Test
+  public void testOrder_totalAndConsistentWithEquals() {
+    List<AddressEntry> entries = new ArrayList<AddressEntry>();
+    entries.add(new AddressEntry.Builder().build());
+    entries.add(new AddressEntry.Builder().contactName("ann").build());
+    entries.add(new AddressEntry.Builder().contactName("Ann").build());
+    entries.add(new AddressEntry.Builder().contactName("Ann").phoneNumber("2125550100").build());
+    entries.add(new AddressEntry.Builder().contactName("Ann").note("x").build());
+    entries.add(new AddressEntry.Builder().contactName("Bob").build());
+    entries.add(full());
+    for (AddressEntry a: entries) {
+      for (AddressEntry b: entries) {
+        int ab = AddressEntry.ORDER.compare(a, b);
+        assertEquals(a.equals(b), ab == 0);
+        assertEquals(Integer.signum(ab), -Integer.signum(AddressEntry.ORDER.compare(b, a)));
+        for (AddressEntry c: entries) {
+          if (ab <= 0 && AddressEntry.ORDER.compare(b, c) <= 0) {
+            assertTrue(AddressEntry.ORDER.compare(a, c) <= 0);
+          }
+        }
+      }
+    }
+    // Unset fields sort first, and case is only a tie-breaker
+    List<AddressEntry> sorted = new ArrayList<AddressEntry>(entries);
+    Collections.sort(sorted, AddressEntry.ORDER);
+    assertNull(sorted.get(0).getContactName());
+    assertEquals("John Smith", sorted.get(sorted.size() - 1).getContactName());
+    assertEquals("ann", sorted.get(2).getContactName());
+  }
+
+  @Test
+  public void testNormalizedValue_cachedPerField() {
+    AddressEntry e = full();
+    assertEquals("john smith", e.normalizedValue(AddressField.CONTACT_NAME));
+    assertSame(e.normalizedValue(AddressField.CONTACT_NAME),
+        e.normalizedValue(AddressField.CONTACT_NAME));
+    assertNull(new AddressEntry.Builder().build().normalizedValue(AddressField.NOTE));
+  }
+
+  @Test
+  public void testUpdateEntry_replacesTheEntryInEveryIndex() {
+    AddressBook book = new AddressBook();
+    AddressEntry original = full();
+    book.addEntry(original);
+    AddressEntry updated = book.updateEntry(original,
+        b -> b.contactName("Jane Doe").phoneNumber("9175550100"));
+
+    assertEquals("Jane Doe", updated.getContactName());
+    assertEquals("a note", updated.getNote());
+    assertEquals(Collections.singletonList(updated), book.listEntries(null, 10));
+    assertTrue(book.searchEntry("smith").isEmpty());
+    assertEquals(Collections.singletonList(updated), book.searchEntry("jane"));
+    assertTrue(book.findByPhoneNumber("2125550100").isEmpty());
+    assertEquals(Collections.singletonList(updated), book.findByPhoneNumber("9175550100"));
+    assertEquals(Collections.singletonList(updated), book.fuzzySearchName("Jane Do", 1));
+    assertTrue(book.fuzzySearchName("John Smith", 1).isEmpty());
+    assertNull(book.updateEntry(original, b -> b.note("gone")));
+  }
+
+  @Test
+  public void testUpdateEntry_ontoAnExistingEntryMergesThem() {
+    AddressBook book = new AddressBook();
+    AddressEntry a = full();
+    AddressEntry b = a.toBuilder().note("other").build();
+    book.addEntry(a);
+    book.addEntry(b);
+    assertEquals(b, book.updateEntry(a, builder -> builder.note("other")));
+    assertEquals(Collections.singletonList(b), book.listEntries(null, 10));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUpdateEntry_invalidValueLeavesTheBook() {
+    AddressBook book = new AddressBook();
+    AddressEntry a = full();
+    book.addEntry(a);
+    try {
+      book.updateEntry(a, b -> b.emailAddress("not an email"));
+    } finally {
+      assertEquals(Collections.singletonList(a), book.listEntries(null, 10));
+    }
+  }
+
+  private static AddressEntry full() {
+    return new AddressEntry.Builder().
+        contactName("John Smith").
+        postalAddress("1 Elm Street").
+        phoneNumber("2125550100").
+        emailAddress("john@example.com").
+        note("a note").
+        build();
+  }
+}
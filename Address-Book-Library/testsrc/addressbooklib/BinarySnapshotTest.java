@@ -0,0 +1,200 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinarySnapshotTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRoundTrip_keepsEntriesInOrder() throws IOException {
+    List<AddressEntry> entries = new ArrayList<AddressEntry>();
+    entries.add(new AddressEntry.Builder().build());
+    entries.add(new AddressEntry.Builder().contactName("").postalAddress("").note("").build());
+    for (int i = 0; i < 1000; i++) {
+      entries.add(new AddressEntry.Builder().
+          contactName("Person " + i).
+          postalAddress((i % 10) + " Elm St").
+          phoneNumber(String.format("212%07d", i)).
+          emailAddress("p" + i + "@example.com").
+          note((i % 3 == 0) ? null : "note \u00e9 " + (i % 5)).
+          build());
+    }
+    assertEquals(entries, roundTrip(entries));
+  }
+
+  @Test
+  public void testRoundTrip_valuesEvictedFromTheDictionary() throws IOException {
+    // More distinct values than the dictionary holds, each repeated after others were evicted
+    int distinct = BinarySnapshot.DICTIONARY_CAPACITY + 5000;
+    Random random = new Random(7);
+    List<AddressEntry> entries = new ArrayList<AddressEntry>();
+    for (int i = 0; i < 3 * distinct; i++) {
+      int id = (i < distinct) ? i : random.nextInt(distinct);
+      entries.add(new AddressEntry.Builder().
+          postalAddress("Address " + id).
+          note("Note " + (id % 100)).
+          build());
+    }
+    List<AddressEntry> read = roundTrip(entries);
+    assertEquals(entries, read);
+    // The notes are used often enough never to be evicted, so each is decoded only once
+    Map<String, String> notes = new HashMap<String, String>();
+    for (AddressEntry e: read) {
+      String first = notes.get(e.getNote());
+      if (first == null) {
+        notes.put(e.getNote(), e.getNote());
+      }
+      else {
+        assertSame(first, e.getNote());
+      }
+    }
+  }
+
+  @Test
+  public void testRoundTrip_repeatedValueIsWrittenOnce() throws IOException {
+    String address = "a rather long postal address that takes up many bytes";
+    List<AddressEntry> once = Arrays.asList(
+        new AddressEntry.Builder().postalAddress(address).build());
+    List<AddressEntry> many = new ArrayList<AddressEntry>();
+    for (int i = 0; i < 100; i++) {
+      many.add(new AddressEntry.Builder().postalAddress(address).build());
+    }
+    Path a = folder.getRoot().toPath().resolve("once.snap");
+    Path b = folder.getRoot().toPath().resolve("many.snap");
+    BinarySnapshot.write(once, a);
+    BinarySnapshot.write(many, b);
+    // Each further entry costs five bytes: three unset fields, a slot reference and no note
+    assertTrue(Files.size(b) - Files.size(a) < 100 * 6);
+  }
+
+  @Test
+  public void testLoadSnapshot_replacesTheBook() throws IOException {
+    AddressBook book = new AddressBook();
+    for (int i = 0; i < 50; i++) {
+      book.addEntry(new AddressEntry.Builder().contactName("Person " + i).postalAddress("Main St").build());
+    }
+    String file = folder.getRoot().toPath().resolve("book.snap").toString();
+    book.saveSnapshot(file);
+
+    AddressBook loaded = new AddressBook();
+    loaded.addEntry(new AddressEntry.Builder().contactName("Someone else").build());
+    loaded.loadSnapshot(file);
+    assertEquals(book.listEntries(null, 100), loaded.listEntries(null, 100));
+    assertEquals(1, loaded.searchEntry("Person 7").size());
+  }
+
+  @Test
+  public void testOpen_corruptEntriesRejected() throws IOException {
+    Path path = write(Arrays.asList(new AddressEntry.Builder().contactName("Ann").build()));
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {'X'}), channel.size() - 1);
+    }
+    try {
+      BinarySnapshot.open(path).close();
+      fail("corrupt snapshot opened");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+    }
+  }
+
+  @Test(expected = EOFException.class)
+  public void testOpen_truncatedFileRejected() throws IOException {
+    Path path = write(Arrays.asList(new AddressEntry.Builder().contactName("Ann").build()));
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 1);
+    }
+    BinarySnapshot.open(path).close();
+  }
+
+  @Test
+  public void testNext_corruptFieldLengthRejected() throws IOException {
+    long[][] corrupt = {
+      {-1L},                      // name length that is negative once decoded
+      {(1L << 32) + 1},           // name length that wraps around as an int
+      {6, 0, 0, 0, 0},            // name length past the end of the entries
+      {0, (1L << 33) | 1},        // inline postal address that wraps around as an int
+    };
+    for (long[] varints: corrupt) {
+      try (BinarySnapshot.Reader reader = BinarySnapshot.open(withEntries(varints))) {
+        reader.next();
+        fail("corrupt length accepted: " + Arrays.toString(varints));
+      } catch (UncheckedIOException e) {
+        assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("field length"));
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpen_otherFileRejected() throws IOException {
+    Path path = folder.newFile("other").toPath();
+    Files.write(path, new byte[BinarySnapshot.HEADER_SIZE]);
+    BinarySnapshot.open(path).close();
+  }
+
+  /**
+   * Writes a snapshot of one entry with valid checksums around the given varints
+   */
+  private Path withEntries(long... varints) throws IOException {
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    for (long value: varints) {
+      while ((value & ~0x7FL) != 0) {
+        entries.write((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      entries.write((int) value);
+    }
+    byte[] bytes = entries.toByteArray();
+    ByteBuffer header = ByteBuffer.allocate(BinarySnapshot.HEADER_SIZE);
+    header.putInt(BinarySnapshot.MAGIC);
+    header.putShort(BinarySnapshot.VERSION);
+    header.putShort((short) 0);
+    header.putLong(1);
+    header.putInt(BinarySnapshot.DICTIONARY_CAPACITY);
+    header.putLong(bytes.length);
+    header.putInt(crc(bytes, bytes.length));
+    header.putInt(crc(header.array(), BinarySnapshot.HEADER_SIZE - 4));
+
+    Path path = folder.getRoot().toPath().resolve("crafted.snap");
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    file.write(header.array());
+    file.write(bytes);
+    Files.write(path, file.toByteArray());
+    return path;
+  }
+
+  private static int crc(byte[] bytes, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, length);
+    return (int) crc.getValue();
+  }
+
+  private Path write(List<AddressEntry> entries) throws IOException {
+    Path path = folder.getRoot().toPath().resolve("entries.snap");
+    BinarySnapshot.write(entries, path);
+    return path;
+  }
+
+  private List<AddressEntry> roundTrip(List<AddressEntry> entries) throws IOException {
+    List<AddressEntry> read = new ArrayList<AddressEntry>();
+    try (BinarySnapshot.Reader reader = BinarySnapshot.open(write(entries))) {
+      assertEquals(entries.size(), reader.entryCount());
+      while (reader.hasNext()) {
+        read.add(reader.next());
+      }
+    }
+    return read;
+  }
+}
@@ -0,0 +1,145 @@
+package addressbooklib;
+
+import static addressbooklib.TestEntries.person;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class ColumnarEntryStoreTest {
+
+  @Test
+  public void testAdd_readsBackEveryField() {
+    ColumnarEntryStore store = new ColumnarEntryStore();
+    Set<AddressEntry> expected = new HashSet<AddressEntry>();
+    for (int i = 0; i < 5000; i++) {
+      AddressEntry entry = person(i);
+      assertTrue(store.add(entry));
+      expected.add(entry);
+    }
+    assertFalse(store.add(person(7)));
+    assertEquals(expected.size(), store.size());
+    assertEquals(expected, new HashSet<AddressEntry>(store));
+    assertTrue(store.contains(person(4999)));
+    assertFalse(store.contains(person(5000)));
+  }
+
+  @Test
+  public void testAdd_valuesSpanningPages() {
+    ColumnarEntryStore store = new ColumnarEntryStore();
+    List<AddressEntry> entries = new ArrayList<AddressEntry>();
+    StringBuilder name = new StringBuilder();
+    Random random = new Random(13);
+    for (int i = 0; i < 300; i++) {
+      // Values of up to a few pages, with multi-byte characters split across pages
+      name.setLength(0);
+      int length = random.nextInt(3 * 65536);
+      for (int j = 0; j < length; j++) {
+        name.append((j % 3 == 0) ? '\u00e9' : (char) ('a' + j % 26));
+      }
+      name.append(i);
+      entries.add(new AddressEntry.Builder().contactName(name.toString()).build());
+    }
+    store.addAll(entries);
+    Set<AddressEntry> read = new HashSet<AddressEntry>(store);
+    assertEquals(new HashSet<AddressEntry>(entries), read);
+    for (AddressEntry entry: entries) {
+      assertTrue(store.contains(entry));
+    }
+  }
+
+  @Test
+  public void testAdd_keepsNullAndEmptyApart() {
+    ColumnarEntryStore store = new ColumnarEntryStore();
+    AddressEntry unset = new AddressEntry.Builder().build();
+    AddressEntry empty = new AddressEntry.Builder().contactName("").postalAddress("").note("").build();
+    assertTrue(store.add(unset));
+    assertTrue(store.add(empty));
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(unset, empty)),
+        new HashSet<AddressEntry>(store));
+  }
+
+  @Test
+  public void testRemoveAndReplace_compactsDeadRows() {
+    ColumnarEntryStore store = new ColumnarEntryStore();
+    for (int i = 0; i < 4000; i++) {
+      store.add(person(i));
+    }
+    for (int i = 0; i < 3000; i++) {
+      assertTrue(store.remove(person(i)));
+    }
+    assertFalse(store.remove(person(0)));
+    assertTrue(store.replace(person(3000), person(9000)));
+    assertFalse(store.replace(person(3000), person(9001)));
+
+    assertEquals(1000, store.size());
+    assertFalse(store.contains(person(3000)));
+    assertTrue(store.contains(person(9000)));
+    for (int i = 3001; i < 4000; i++) {
+      assertTrue(store.contains(person(i)));
+    }
+  }
+
+  @Test
+  public void testSnapshot_unchangedByLaterWrites() {
+    ColumnarEntryStore store = new ColumnarEntryStore();
+    for (int i = 0; i < 2000; i++) {
+      store.add(person(i));
+    }
+    Set<AddressEntry> before = new HashSet<AddressEntry>(store);
+    AddressBookSnapshot snapshot = store.snapshot();
+    // Enough removals to compact the columns, and appends to grow them
+    for (int i = 0; i < 1500; i++) {
+      store.remove(person(i));
+    }
+    for (int i = 2000; i < 4000; i++) {
+      store.add(person(i));
+    }
+    Set<AddressEntry> seen = new HashSet<AddressEntry>();
+    for (AddressEntry e: snapshot) {
+      seen.add(e);
+    }
+    snapshot.close();
+    assertEquals(before, seen);
+  }
+
+  @Test
+  public void testSelect_testsDictionaryAndBytesColumns() {
+    ColumnarEntryStore store = new ColumnarEntryStore();
+    for (int i = 0; i < 1000; i++) {
+      store.add(person(i));
+    }
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    store.select(AddressField.POSTAL_ADDRESS, value -> "3 Elm St".equals(value), result);
+    assertEquals(100, result.size());
+    result.clear();
+    store.select(AddressField.CONTACT_NAME, value -> value.endsWith(" 42"), result);
+    assertEquals(Collections.singletonList(person(42)), result);
+  }
+
+  @Test
+  public void testGrow_doublesWithoutOverflow() {
+    assertEquals(2048, ColumnarEntryStore.grow(1024, 1025));
+    assertEquals(5000, ColumnarEntryStore.grow(1024, 5000));
+    int max = Integer.MAX_VALUE - 8;
+    assertEquals(max, ColumnarEntryStore.grow((1 << 30) + 1, (1L << 30) + 2));
+    assertEquals(max, ColumnarEntryStore.grow(max - 1, max));
+  }
+
+  @Test(expected = OutOfMemoryError.class)
+  public void testGrow_beyondLargestArrayRejected() {
+    ColumnarEntryStore.grow(Integer.MAX_VALUE - 8, Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void testColumnarBook_searches() {
+    AddressBook book = AddressBook.createColumnar();
+    for (int i = 0; i < 100; i++) {
+      book.addEntry(person(i));
+    }
+    assertEquals(Collections.singletonList(person(42)), book.searchEntry("Person 42"));
+    assertEquals(10, book.searchEntry(AddressField.POSTAL_ADDRESS, "5 Elm").size());
+    assertEquals(Collections.singletonList(person(17)), book.findByPhoneNumber("2120000017"));
+  }
+}
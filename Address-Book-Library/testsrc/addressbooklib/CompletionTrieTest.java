@@ -0,0 +1,180 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class CompletionTrieTest {
+
+  @Test
+  public void testInsert_splitsEdges() {
+    CompletionTrie trie = new CompletionTrie();
+    trie.add(entry("abcd"));
+    assertEquals(1, trie.nodeCount());
+    // "abxy" splits the edge "abcd" into "ab" with children "cd" and "xy"
+    trie.add(entry("abxy"));
+    assertEquals(3, trie.nodeCount());
+    // "ab" ends at the split node
+    trie.add(entry("ab"));
+    assertEquals(3, trie.nodeCount());
+    assertEquals(Arrays.asList("ab", "abcd", "abxy"), names(trie.complete("a", 10)));
+    assertEquals(Arrays.asList("abcd"), names(trie.complete("abc", 10)));
+    assertTrue(trie.complete("abz", 10).isEmpty());
+  }
+
+  @Test
+  public void testDelete_prunesAndMergesNodes() {
+    CompletionTrie trie = new CompletionTrie();
+    AddressEntry abcd = entry("abcd");
+    AddressEntry abxy = entry("abxy");
+    AddressEntry ab = entry("ab");
+    trie.add(abcd);
+    trie.add(abxy);
+    trie.add(ab);
+    trie.remove(ab);
+    // "ab" no longer ends a name but still branches
+    assertEquals(3, trie.nodeCount());
+    trie.remove(abxy);
+    // "xy" is pruned, and "ab" merges with its only child back into "abcd"
+    assertEquals(1, trie.nodeCount());
+    assertEquals(Arrays.asList("abcd"), names(trie.complete("abc", 10)));
+    assertEquals(Arrays.asList("abcd"), names(trie.complete("ab", 10)));
+    trie.remove(abcd);
+    assertEquals(0, trie.nodeCount());
+    assertTrue(trie.complete("", 10).isEmpty());
+  }
+
+  @Test
+  public void testComplete_matchesBruteForceThroughChanges() {
+    Random random = new Random(24);
+    CompletionTrie trie = new CompletionTrie();
+    Map<AddressEntry, Long> live = new HashMap<AddressEntry, Long>();
+    List<AddressEntry> all = new ArrayList<AddressEntry>();
+    long clock = 0;
+    for (int step = 0; step < 4000; step++) {
+      int action = random.nextInt(10);
+      if (action < 5 || live.isEmpty()) {
+        AddressEntry e = new AddressEntry.Builder().contactName(randomName(random))
+            .note("n" + step).build();
+        trie.add(e);
+        live.put(e, 0L);
+        all.add(e);
+      }
+      else if (action < 8) {
+        AddressEntry e = all.get(random.nextInt(all.size()));
+        trie.remove(e);
+        live.remove(e);
+      }
+      else {
+        AddressEntry e = all.get(random.nextInt(all.size()));
+        assertEquals(live.containsKey(e), trie.recordUse(e));
+        if (live.containsKey(e)) {
+          live.put(e, ++clock);
+        }
+      }
+      if (step % 50 == 0) {
+        for (String prefix: new String[] {"", "a", "ab", "b a", "ca", "bcb"}) {
+          assertEquals(prefix, expected(live, prefix, 15), trie.complete(prefix, 15));
+        }
+      }
+    }
+    for (AddressEntry e: all) {
+      trie.remove(e);
+    }
+    assertEquals(0, trie.nodeCount());
+  }
+
+  @Test
+  public void testCompleteName_recentlyUsedFirst() {
+    AddressBook book = new AddressBook();
+    AddressEntry smith = entry("John Smith");
+    AddressEntry smithers = entry("Smithers");
+    AddressEntry smyth = entry("Ann Smyth");
+    book.addEntry(smith);
+    book.addEntry(smithers);
+    book.addEntry(smyth);
+    // "smith" from the start of the second word sorts before "smithers"
+    assertEquals(Arrays.asList("John Smith", "Smithers"), names(book.completeName("Smi", 10)));
+    // Names never used sort by the completed word: "smith", "smithers", "smyth"
+    assertEquals(Arrays.asList("John Smith", "Smithers", "Ann Smyth"),
+        names(book.completeName("SM", 10)));
+    assertTrue(book.recordUse(smithers));
+    assertEquals(Arrays.asList("Smithers", "John Smith", "Ann Smyth"),
+        names(book.completeName("sm", 10)));
+    assertTrue(book.recordUse(smyth));
+    assertEquals(Arrays.asList("Ann Smyth"), names(book.completeName("sm", 1)));
+    assertFalse(book.recordUse(entry("Nobody")));
+    assertFalse(book.recordUse(null));
+    assertTrue(book.completeName(null, 5).isEmpty());
+  }
+
+  @Test
+  public void testCompleteName_updateKeepsUse() {
+    AddressBook book = new AddressBook();
+    AddressEntry alice = entry("Alice");
+    book.addEntry(alice);
+    book.addEntry(entry("Albert"));
+    book.recordUse(alice);
+    book.updateEntry(alice, b -> b.note("moved"));
+    List<AddressEntry> completed = book.completeName("al", 10);
+    assertEquals(Arrays.asList("Alice", "Albert"), names(completed));
+    assertEquals("moved", completed.get(0).getNote());
+  }
+
+  @Test
+  public void testCompleteName_storeSortsAlphabetically() throws Exception {
+    AddressBook book = AddressBook.createColumnar();
+    AddressEntry smithers = entry("Smithers");
+    book.addEntry(entry("John Smith"));
+    book.addEntry(smithers);
+    book.addEntry(entry("Ann Smyth"));
+    assertFalse(book.recordUse(smithers));
+    assertEquals(Arrays.asList("John Smith", "Smithers", "Ann Smyth"),
+        names(book.completeName("sm", 10)));
+    assertEquals(Arrays.asList("John Smith"), names(book.completeName("sm", 1)));
+    book.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCompleteName_nonPositiveLimitRejected() {
+    new AddressBook().completeName("a", 0);
+  }
+
+  private static List<AddressEntry> expected(Map<AddressEntry, Long> live, String prefix,
+      int limit) {
+    List<AddressEntry> matches = new ArrayList<AddressEntry>();
+    for (AddressEntry e: live.keySet()) {
+      if (CompletionTrie.completion(e.normalizedValue(AddressField.CONTACT_NAME), prefix) != null) {
+        matches.add(e);
+      }
+    }
+    matches.sort(Comparator.comparing((AddressEntry e) -> -live.get(e))
+        .thenComparing(e -> CompletionTrie.completion(
+            e.normalizedValue(AddressField.CONTACT_NAME), prefix))
+        .thenComparing(AddressEntry.ORDER));
+    return (matches.size() > limit) ? matches.subList(0, limit) : matches;
+  }
+
+  private static String randomName(Random random) {
+    StringBuilder name = new StringBuilder();
+    int length = 1 + random.nextInt(7);
+    for (int i = 0; i < length; i++) {
+      name.append(" abc".charAt(random.nextInt(4)));
+    }
+    return name.toString();
+  }
+
+  private static AddressEntry entry(String name) {
+    return new AddressEntry.Builder().contactName(name).build();
+  }
+
+  private static List<String> names(List<AddressEntry> entries) {
+    List<String> names = new ArrayList<String>();
+    for (AddressEntry e: entries) {
+      names.add(e.getContactName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,173 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConcurrentAddressBookTest {
+  private static final int THREADS = 4;
+  private static final int PER_THREAD = 400;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testConcurrentWriters_everyIndexMatchesTheEntries() throws Exception {
+    final AddressBook book = new AddressBook();
+    final List<Set<AddressEntry>> kept = new ArrayList<Set<AddressEntry>>();
+    final List<Set<AddressEntry>> dropped = new ArrayList<Set<AddressEntry>>();
+    List<Callable<Void>> writers = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < THREADS; t++) {
+      final Set<AddressEntry> live = new HashSet<AddressEntry>();
+      final Set<AddressEntry> gone = new HashSet<AddressEntry>();
+      kept.add(live);
+      dropped.add(gone);
+      final int thread = t;
+      writers.add(new Callable<Void>() {
+        public Void call() {
+          Random random = new Random(thread);
+          for (int i = 0; i < PER_THREAD; i++) {
+            AddressEntry e = entry(thread * PER_THREAD + i);
+            assertTrue(book.addEntry(e));
+            live.add(e);
+            if (random.nextInt(4) == 0) {
+              assertTrue(book.removeEntry(e));
+              live.remove(e);
+              gone.add(e);
+            }
+            else if (random.nextInt(3) == 0) {
+              AddressEntry updated = book.updateEntry(e,
+                  b -> b.phoneNumber("9" + e.getPhoneNumber().substring(1)).note("moved"));
+              assertNotNull(updated);
+              live.remove(e);
+              gone.add(e);
+              live.add(updated);
+            }
+          }
+          return null;
+        }
+      });
+    }
+    runAll(writers);
+
+    Set<AddressEntry> expected = new HashSet<AddressEntry>();
+    Set<AddressEntry> removed = new HashSet<AddressEntry>();
+    for (int t = 0; t < THREADS; t++) {
+      expected.addAll(kept.get(t));
+      removed.addAll(dropped.get(t));
+    }
+    assertEquals(expected, new HashSet<AddressEntry>(book.listEntries(null, 100000)));
+    for (AddressEntry e: expected) {
+      assertFound(book, e, true);
+    }
+    for (AddressEntry e: removed) {
+      if (!expected.contains(e)) {
+        assertFound(book, e, false);
+      }
+    }
+  }
+
+  @Test
+  public void testUpdate_concurrentSearchesAlwaysFindTheEntry() throws Exception {
+    final AddressBook book = new AddressBook();
+    book.addEntry(new AddressEntry.Builder().contactName("Zebulon Quartermaine").note("0").build());
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicInteger misses = new AtomicInteger();
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        while (!done.get()) {
+          if (book.searchEntry("Quartermaine").isEmpty()
+              || book.searchEntry(AddressField.CONTACT_NAME, "zebulon").isEmpty()) {
+            misses.incrementAndGet();
+          }
+        }
+      }
+    });
+    reader.start();
+    for (int i = 1; i <= 5000; i++) {
+      AddressEntry current = book.listEntries(null, 1).get(0);
+      final String note = Integer.toString(i);
+      assertNotNull(book.updateEntry(current, b -> b.note(note)));
+    }
+    done.set(true);
+    reader.join();
+    assertEquals(0, misses.get());
+    assertEquals(1, book.listEntries(null, 10).size());
+  }
+
+  @Test
+  public void testImport_searchesSeeEitherTheOldOrTheNewContent() throws Exception {
+    final AddressBook book = new AddressBook();
+    final String small = export(100);
+    final String large = export(300);
+    book.importAddressBook(small);
+    final AtomicBoolean done = new AtomicBoolean();
+    final Set<Integer> sizes = ConcurrentHashMap.newKeySet();
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        while (!done.get()) {
+          sizes.add(book.searchEntry("shared note").size());
+        }
+      }
+    });
+    reader.start();
+    for (int i = 0; i < 20; i++) {
+      book.importAddressBook((i % 2 == 0) ? large : small);
+    }
+    done.set(true);
+    reader.join();
+    assertTrue(sizes.toString(), new HashSet<Integer>(Arrays.asList(100, 300)).containsAll(sizes));
+  }
+
+  private String export(int count) throws IOException {
+    AddressBook source = new AddressBook();
+    for (int i = 0; i < count; i++) {
+      source.addEntry(entry(i).toBuilder().note("shared note").build());
+    }
+    String file = folder.newFile().getPath();
+    source.exportAddressBook(file);
+    return file;
+  }
+
+  private static void assertFound(AddressBook book, AddressEntry e, boolean present) {
+    String name = e.getContactName();
+    assertEquals(name, present, book.searchEntry(name).contains(e));
+    assertEquals(name, present, book.findByPhoneNumber(e.getPhoneNumber()).contains(e));
+    assertEquals(name, present, book.findByEmailAddress(e.getEmailAddress()).contains(e));
+    assertEquals(name, present, book.searchPhonePrefix(e.getPhoneNumber(), 10).contains(e));
+    assertEquals(name, present, book.fuzzySearchName(name, 0).contains(e));
+    assertEquals(name, present, book.searchBySound(name).contains(e));
+    assertEquals(name, present, book.completeName(name, 10).contains(e));
+    assertEquals(name, present, book.listByName(name, name, 10).contains(e));
+  }
+
+  private static void runAll(List<Callable<Void>> tasks) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+    try {
+      for (Future<Void> future: executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Each name ends with one of 26 surnames, so the names sound different
+   * and every kind of search finds the entry among few others
+   */
+  private static AddressEntry entry(int i) {
+    return new AddressEntry.Builder().
+        contactName("Person " + i + " " + (char) ('a' + i % 26) + "son").
+        phoneNumber(String.format("212%07d", i)).
+        emailAddress("p" + i + "@example.com").
+        build();
+  }
+}
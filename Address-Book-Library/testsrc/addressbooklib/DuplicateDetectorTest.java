@@ -0,0 +1,221 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class DuplicateDetectorTest {
+  // People sharing a landline and an address whose names are a letter or two apart
+  private static final String[][] HOUSEHOLDS = {
+    {"Jon Smith", "Jan Smith"},
+    {"Dan Smith", "Don Smith"},
+    {"Maria Garcia", "Mario Garcia"},
+    {"Alexander Wang", "Alexandra Wang"},
+  };
+
+  @Test
+  public void testIsDuplicate_toleratesCaseTyposAndWordOrder() {
+    AddressEntry john = entry("John Smith", "1 Main St", "2125550100", "john@acme.com", null);
+    assertTrue(DuplicateDetector.isDuplicate(john,
+        entry("JOHN SMITH", "1 main st", "2125550100", "JOHN@acme.com", "met at work")));
+    assertTrue(DuplicateDetector.isDuplicate(john,
+        entry("Jonh Smith", "1 Main St", "2125550100", "john@acme.com", null)));
+    // A typo of the name needs the email address to confirm it
+    AddressEntry typo = entry("Jonh Smith", "1 Main St", "2125550100", null, null);
+    assertFalse(DuplicateDetector.isDuplicate(john, typo));
+    assertTrue(DuplicateDetector.isLikelyDuplicate(john, typo));
+    assertTrue(DuplicateDetector.isDuplicate(john,
+        entry("Smith John", null, null, "john@acme.com", null)));
+    // Sharing a phone number does not make another person a duplicate
+    assertFalse(DuplicateDetector.isDuplicate(john,
+        entry("Mary Jones", "9 Oak Ave", "2125550100", null, null)));
+    // One compared field is not enough
+    assertFalse(DuplicateDetector.isDuplicate(entry("John Smith", null, null, null, null),
+        entry("Jon Smith", null, null, null, null)));
+  }
+
+  @Test
+  public void testIsDuplicate_householdMembersAreNotMerged() {
+    for (String[] pair: HOUSEHOLDS) {
+      AddressEntry a = entry(pair[0], "12 Elm St", "2125550100", null, null);
+      AddressEntry b = entry(pair[1], "12 Elm St", "2125550100", null, null);
+      assertFalse(pair[0], DuplicateDetector.isDuplicate(a, b));
+      // Their own email addresses set them further apart
+      assertFalse(pair[0], DuplicateDetector.isDuplicate(
+          a.toBuilder().emailAddress("a@home.com").build(),
+          b.toBuilder().emailAddress("b@home.com").build()));
+    }
+  }
+
+  @Test
+  public void testDeduplicate_householdOnlyReported() {
+    for (AddressBook book: new AddressBook[] {new AddressBook(), AddressBook.createColumnar()}) {
+      for (int i = 0; i < HOUSEHOLDS.length; i++) {
+        String address = (i + 1) + " Elm St";
+        String phone = String.format("21255501%02d", i);
+        book.addEntry(entry(HOUSEHOLDS[i][0], address, phone, null, null));
+        book.addEntry(entry(HOUSEHOLDS[i][1], address, phone, null, null));
+      }
+
+      DeduplicationReport report = book.deduplicate();
+      assertTrue(report.getClusters().isEmpty());
+      assertTrue(report.getMergedEntries().isEmpty());
+      assertEquals(2 * HOUSEHOLDS.length, book.searchEntry("").size());
+
+      DeduplicationReport found = book.findDuplicates();
+      // The looser match still finds every household, for someone to review
+      Set<Set<String>> clusters = new HashSet<Set<String>>();
+      for (List<AddressEntry> cluster: found.getClusters()) {
+        Set<String> names = new HashSet<String>();
+        for (AddressEntry e: cluster) {
+          names.add(e.getContactName());
+        }
+        clusters.add(names);
+      }
+      Set<Set<String>> households = new HashSet<Set<String>>();
+      for (String[] pair: HOUSEHOLDS) {
+        households.add(new HashSet<String>(Arrays.asList(pair)));
+      }
+      assertEquals(households, clusters);
+      assertTrue(found.getMergedEntries().isEmpty());
+      assertEquals(0, found.getEntriesRemoved());
+      assertEquals(2 * HOUSEHOLDS.length, book.searchEntry("").size());
+    }
+  }
+
+  @Test
+  public void testBlockingKeys_emailCaseFoldedWhateverTheDefaultLocale() {
+    Locale saved = Locale.getDefault();
+    // Turkish lower-cases "I" to a dotless i
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      assertEquals(DuplicateDetector.blockingKeys(entry(null, null, null, "tim@example.com", null)),
+          DuplicateDetector.blockingKeys(entry(null, null, null, "TIM@EXAMPLE.COM", null)));
+    } finally {
+      Locale.setDefault(saved);
+    }
+  }
+
+  @Test
+  public void testMerge_fillsMissingFieldsAndJoinsNotes() {
+    AddressEntry base = entry("John Smith", "1 Main St", "2125550100", null, "friend");
+    AddressEntry other = entry("john smith", null, "2125550100", "john@acme.com", "Golf");
+    AddressEntry third = entry("JOHN SMITH", "2 Elm St", "2125550100", "j@other.com", "FRIEND");
+    List<AddressEntry> cluster = new ArrayList<AddressEntry>(Arrays.asList(base, other, third));
+    cluster.sort(AddressEntry.ORDER);
+    // The entry with the most fields set is the base
+    assertEquals(third, DuplicateDetector.base(cluster));
+
+    AddressEntry merged = DuplicateDetector.merge(cluster, base);
+    assertEquals("John Smith", merged.getContactName());
+    assertEquals("1 Main St", merged.getPostalAddress());
+    assertEquals("2125550100", merged.getPhoneNumber());
+    assertEquals(firstEmail(cluster), merged.getEmailAddress());
+    // Notes equal but for case are kept once, the base's first
+    assertEquals("friend; Golf", merged.getNote());
+  }
+
+  @Test
+  public void testDeduplicate_mergesClustersInBook() {
+    for (AddressBook book: new AddressBook[] {new AddressBook(), AddressBook.createColumnar()}) {
+      book.addEntry(entry("John Smith", "1 Main St", "2125550100", null, "friend"));
+      book.addEntry(entry("JOHN SMITH", null, "2125550100", "john@acme.com", "golf"));
+      // Joins the cluster through the email address only
+      book.addEntry(entry("Jonh Smith", null, null, "JOHN@acme.com", null));
+      book.addEntry(entry("Mary Jones", "9 Oak Ave", "2125550100", null, null));
+      book.addEntry(entry("Bob Brown", null, "3105550199", "bob@x.com", null));
+
+      DeduplicationReport report = book.deduplicate();
+      assertEquals(5, report.getEntriesChecked());
+      assertEquals(1, report.getMergedEntries().size());
+      assertEquals(2, report.getEntriesRemoved());
+      assertTrue(report.getDuplicatePairs() >= 2);
+      assertTrue(report.getCandidatePairs() >= report.getDuplicatePairs());
+
+      AddressEntry merged = report.getMergedEntries().get(0);
+      assertEquals("1 Main St", merged.getPostalAddress());
+      assertEquals("john@acme.com", merged.getEmailAddress().toLowerCase());
+      // Both keep three fields, so the base is the first in order, without an address
+      assertEquals("golf; friend", merged.getNote());
+      assertEquals(3, book.searchEntry("").size());
+      assertTrue(book.searchEntry("").contains(merged));
+
+      // Nothing is left to merge
+      DeduplicationReport again = book.deduplicate();
+      assertTrue(again.getMergedEntries().isEmpty());
+      assertEquals(0, again.getEntriesRemoved());
+    }
+  }
+
+  @Test
+  public void testDeduplicate_incrementalOnlyComparesAdded() {
+    for (AddressBook book: new AddressBook[] {new AddressBook(), AddressBook.createColumnar()}) {
+      // An older pair of duplicates the incremental run must leave alone
+      book.addEntry(entry("Ann Lee", "5 Pine Rd", "4155550111", null, null));
+      book.addEntry(entry("ANN LEE", "5 Pine Rd", "4155550111", null, null));
+      AddressEntry old = entry("Bob Brown", "7 Bay St", "3105550199", null, null);
+      book.addEntry(old);
+      for (int i = 0; i < 200; i++) {
+        book.addEntry(entry(String.format("Person %03d", i), null,
+            String.format("646%07d", i), null, null));
+      }
+      AddressEntry added = entry("bob brown", "7 Bay St", "3105550199", "bob@x.com", null);
+      AddressEntry gone = entry("Someone Gone", null, "3105550199", null, null);
+      book.addEntry(added);
+
+      DeduplicationReport report = book.deduplicate(Arrays.asList(added, gone, null));
+      assertEquals(1, report.getEntriesChecked());
+      assertEquals(1, report.getCandidatePairs());
+      assertEquals(1, report.getMergedEntries().size());
+      assertEquals(1, report.getEntriesRemoved());
+      AddressEntry merged = report.getMergedEntries().get(0);
+      assertEquals("bob@x.com", merged.getEmailAddress());
+      assertFalse(book.searchEntry("").contains(old));
+      assertEquals(2, book.searchEntry("ann lee").size());
+
+      assertEquals(1, book.deduplicate().getEntriesRemoved());
+      assertEquals(1, book.searchEntry("ann lee").size());
+    }
+  }
+
+  @Test
+  public void testDeduplicate_largeBlockPairsNeighbours() {
+    AddressBook book = new AddressBook();
+    // Every entry shares the phone number, a block far above BLOCK_LIMIT
+    for (int i = 0; i < 300; i++) {
+      book.addEntry(entry(String.format("Person %03d", i), null, "2125550100",
+          "p" + i + "@x.com", null));
+    }
+    book.addEntry(entry("PERSON 150", null, "2125550100", "P150@x.com", "again"));
+    DeduplicationReport report = book.deduplicate();
+    assertTrue(report.getCandidatePairs() < 301L * DuplicateDetector.BLOCK_LIMIT * 3);
+    assertEquals(1, report.getMergedEntries().size());
+    assertEquals(1, report.getEntriesRemoved());
+    assertEquals(300, book.searchEntry("").size());
+    assertEquals("again", book.searchEntry("person 150").get(0).getNote());
+  }
+
+  private static String firstEmail(List<AddressEntry> cluster) {
+    for (AddressEntry e: cluster) {
+      if (e.getEmailAddress() != null) {
+        return e.getEmailAddress();
+      }
+    }
+    return null;
+  }
+
+  private static AddressEntry entry(String name, String address, String phone, String email,
+      String note) {
+    AddressEntry.Builder builder = new AddressEntry.Builder().contactName(name)
+        .postalAddress(address).note(note);
+    if (phone != null) {
+      builder.phoneNumber(phone);
+    }
+    if (email != null) {
+      builder.emailAddress(email);
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,104 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class ExactMatchIndexTest {
+
+  @Test
+  public void testFind_exactValueOnly() {
+    ExactMatchIndex index = new ExactMatchIndex(AddressField.PHONE_NUMBER, false);
+    AddressEntry a = entry("Ann", "2125550100", null);
+    AddressEntry b = entry("Bob", "2125550100", null);
+    AddressEntry c = entry("Cid", "21255501000", null);
+    index.add(a);
+    index.add(b);
+    index.add(c);
+    index.add(entry("Dan", null, null));
+
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(a, b)), index.find("2125550100"));
+    assertEquals(Collections.singleton(c), index.find("21255501000"));
+    assertTrue(index.find("212555010").isEmpty());
+    assertTrue(index.find(null).isEmpty());
+  }
+
+  @Test
+  public void testFind_ignoresCaseWhenAsked() {
+    ExactMatchIndex index = new ExactMatchIndex(AddressField.EMAIL_ADDRESS, true);
+    AddressEntry a = entry("Ann", null, "Ann@Example.com");
+    index.add(a);
+    assertEquals(Collections.singleton(a), index.find("ann@example.COM"));
+    ExactMatchIndex caseSensitive = new ExactMatchIndex(AddressField.EMAIL_ADDRESS, false);
+    caseSensitive.add(a);
+    assertTrue(caseSensitive.find("ann@example.com").isEmpty());
+  }
+
+  @Test
+  public void testFind_ignoresCaseWhateverTheDefaultLocale() {
+    Locale saved = Locale.getDefault();
+    // Turkish lower-cases "I" to a dotless i
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      ExactMatchIndex index = new ExactMatchIndex(AddressField.EMAIL_ADDRESS, true);
+      AddressEntry a = entry("Tim", null, "TIM@EXAMPLE.COM");
+      index.add(a);
+      assertEquals(Collections.singleton(a), index.find("tim@example.com"));
+    } finally {
+      Locale.setDefault(saved);
+    }
+  }
+
+  @Test
+  public void testRemove_leavesOtherEntriesWithTheValue() {
+    ExactMatchIndex index = new ExactMatchIndex(AddressField.PHONE_NUMBER, false);
+    AddressEntry a = entry("Ann", "2125550100", null);
+    AddressEntry b = entry("Bob", "2125550100", null);
+    index.add(a);
+    index.add(b);
+    index.remove(a);
+    assertEquals(Collections.singleton(b), index.find("2125550100"));
+    index.remove(b);
+    assertTrue(index.find("2125550100").isEmpty());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testFind_resultIsUnmodifiable() {
+    ExactMatchIndex index = new ExactMatchIndex(AddressField.PHONE_NUMBER, false);
+    index.add(entry("Ann", "2125550100", null));
+    index.find("2125550100").clear();
+  }
+
+  @Test
+  public void testFindBy_inMemoryAndStoredBooksAgree() {
+    AddressBook[] books = {new AddressBook(), AddressBook.createColumnar()};
+    for (AddressBook book: books) {
+      for (int i = 0; i < 200; i++) {
+        book.addEntry(entry("Person " + i, String.format("212%07d", i % 50),
+            "user" + (i % 70) + "@Example.com"));
+      }
+      book.updateEntry(entry("Person 0", "2120000000", "user0@Example.com"),
+          b -> b.phoneNumber("9999999999"));
+    }
+    for (AddressBook book: books) {
+      assertEquals(3, book.findByPhoneNumber("2120000000").size());
+      assertEquals(1, book.findByPhoneNumber("9999999999").size());
+      assertEquals(3, book.findByEmailAddress("USER3@example.com").size());
+      assertTrue(book.findByPhoneNumber("212").isEmpty());
+      assertTrue(book.findByEmailAddress(null).isEmpty());
+    }
+  }
+
+  private static AddressEntry entry(String name, String phone, String email) {
+    AddressEntry.Builder builder = new AddressEntry.Builder().contactName(name);
+    if (phone != null) {
+      builder.phoneNumber(phone);
+    }
+    if (email != null) {
+      builder.emailAddress(email);
+    }
+    return builder.build();
+  }
+}
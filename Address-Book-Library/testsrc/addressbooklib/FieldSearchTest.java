@@ -0,0 +1,82 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FieldSearchTest {
+  private AddressBook book;
+  private AddressEntry smith;
+  private AddressEntry oak;
+
+  @Before
+  public void setUp() {
+    book = new AddressBook();
+    smith = new AddressEntry.Builder().
+        contactName("John Smith").
+        postalAddress("1 Elm Street").
+        phoneNumber("2125550100").
+        emailAddress("john@example.com").
+        note("met at Oak conference").
+        build();
+    oak = new AddressEntry.Builder().
+        contactName("Ann Oakley").
+        postalAddress("2 Smith Road").
+        phoneNumber("2125550199").
+        emailAddress("ann@oak.org").
+        build();
+    book.addEntry(smith);
+    book.addEntry(oak);
+  }
+
+  @Test
+  public void testSearchEntry_onlyTheGivenField() {
+    assertEquals(Arrays.asList(smith), book.searchEntry(AddressField.CONTACT_NAME, "smith"));
+    assertEquals(Arrays.asList(oak), book.searchEntry(AddressField.POSTAL_ADDRESS, "smith"));
+    assertEquals(Arrays.asList(oak), book.searchEntry(AddressField.EMAIL_ADDRESS, "oak"));
+    assertEquals(Arrays.asList(smith), book.searchEntry(AddressField.NOTE, "OAK"));
+    assertEquals(Arrays.asList(oak), book.searchEntry(AddressField.PHONE_NUMBER, "0199"));
+    assertTrue(book.searchEntry(AddressField.NOTE, "Smith").isEmpty());
+  }
+
+  @Test
+  public void testSearchEntry_anyFieldFindsBoth() {
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(smith, oak)),
+        new HashSet<AddressEntry>(book.searchEntry("smith")));
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(smith, oak)),
+        new HashSet<AddressEntry>(book.searchEntry("oak")));
+  }
+
+  @Test
+  public void testSearchEntry_everyModeAgrees() {
+    for (SearchMode mode: SearchMode.values()) {
+      for (AddressField field: AddressField.values()) {
+        for (String key: new String[] {"s", "sm", "smith", "oak", "555", "example", ""}) {
+          assertEquals(mode + " " + field + " " + key,
+              new HashSet<AddressEntry>(book.searchEntry(field, key, SearchMode.INDEXED)),
+              new HashSet<AddressEntry>(book.searchEntry(field, key, mode)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSearchEntry_followsRemovals() {
+    book.removeEntry(smith);
+    assertTrue(book.searchEntry(AddressField.CONTACT_NAME, "smith").isEmpty());
+    assertEquals(Arrays.asList(oak), book.searchEntry(AddressField.POSTAL_ADDRESS, "smith"));
+  }
+
+  @Test
+  public void testGetValue_readsEachField() {
+    assertEquals("John Smith", AddressField.CONTACT_NAME.getValue(smith));
+    assertEquals("1 Elm Street", AddressField.POSTAL_ADDRESS.getValue(smith));
+    assertEquals("2125550100", AddressField.PHONE_NUMBER.getValue(smith));
+    assertEquals("john@example.com", AddressField.EMAIL_ADDRESS.getValue(smith));
+    assertEquals("met at Oak conference", AddressField.NOTE.getValue(smith));
+    assertNull(AddressField.NOTE.getValue(oak));
+  }
+}
@@ -0,0 +1,131 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class FuzzySearchTest {
+
+  @Test
+  public void testEditDistance_countsSwapsAsOneEdit() {
+    assertEquals(0, new EditDistance("john").to("john"));
+    assertEquals(1, new EditDistance("jonh").to("john"));
+    assertEquals(1, new EditDistance("john").to("jon"));
+    assertEquals(1, new EditDistance("john").to("joan"));
+    assertEquals(2, new EditDistance("jonh smtih").to("john smith"));
+    assertEquals(4, new EditDistance("").to("john"));
+    assertEquals(4, new EditDistance("john").to(""));
+    // A swapped pair may be edited again, unlike in the restricted distance, which gives 3
+    assertEquals(2, new EditDistance("ca").to("abc"));
+  }
+
+  @Test
+  public void testEditDistance_isMetric() {
+    Random random = new Random(19);
+    for (int t = 0; t < 2000; t++) {
+      String a = randomText(random, random.nextInt(7));
+      String b = randomText(random, random.nextInt(7));
+      String c = randomText(random, random.nextInt(7));
+      int ab = new EditDistance(a).to(b);
+      assertEquals(a + "/" + b, ab, new EditDistance(b).to(a));
+      assertTrue(ab <= Math.max(a.length(), b.length()));
+      assertTrue(a + "/" + b + "/" + c,
+          new EditDistance(a).to(c) <= ab + new EditDistance(b).to(c));
+    }
+  }
+
+  @Test
+  public void testBkTree_matchesBruteForceThroughRebuilds() {
+    Random random = new Random(20);
+    BkTree tree = new BkTree(AddressField.CONTACT_NAME);
+    Set<AddressEntry> live = new HashSet<AddressEntry>();
+    for (int i = 0; i < 1500; i++) {
+      AddressEntry e = new AddressEntry.Builder().contactName(randomText(random, 3 + random.nextInt(5)))
+          .note("n" + i).build();
+      tree.add(e);
+      live.add(e);
+    }
+    Iterator<AddressEntry> it = live.iterator();
+    // Enough removals for dead nodes to outnumber live ones
+    for (int i = 0; i < 1200; i++) {
+      tree.remove(it.next());
+      it.remove();
+    }
+    for (int t = 0; t < 100; t++) {
+      String key = randomText(random, 3 + random.nextInt(5));
+      int maxDistance = random.nextInt(4);
+      EditDistance distance = new EditDistance(key);
+      Set<AddressEntry> expected = new HashSet<AddressEntry>();
+      for (AddressEntry e: live) {
+        if (distance.to(e.normalizedValue(AddressField.CONTACT_NAME)) <= maxDistance) {
+          expected.add(e);
+        }
+      }
+      List<AddressEntry> found = tree.within(key, maxDistance);
+      assertEquals(key, expected.size(), found.size());
+      assertEquals(key, expected, new HashSet<AddressEntry>(found));
+    }
+  }
+
+  @Test
+  public void testFuzzySearchName_findsTranspositions() {
+    AddressBook book = book(new AddressBook());
+    assertTrue(book.fuzzySearchName("Jonh Smtih", 1).isEmpty());
+    // "Jon Smith" is one deletion and one swap away too
+    assertEquals(Arrays.asList("John Smith", "Jon Smith"),
+        names(book.fuzzySearchName("Jonh Smtih", 2)));
+    assertEquals(Arrays.asList("John Smith"), names(book.fuzzySearchName("JOHN SMITH", 0)));
+  }
+
+  @Test
+  public void testFuzzySearchName_closestFirstThenAlphabetical() {
+    for (AddressBook book: new AddressBook[] {book(new AddressBook()),
+        book(AddressBook.createColumnar())}) {
+      assertEquals(Arrays.asList("John Smith", "Joan Smith", "John Smyth", "Jon Smith"),
+          names(book.fuzzySearchName("John Smith", 2)));
+      assertEquals(Arrays.asList("John Smith", "Joan Smith", "John Smyth", "Jon Smith",
+          "Jane Smith"), names(book.fuzzySearchName("John Smith", 3)));
+    }
+  }
+
+  @Test
+  public void testFuzzySearchName_followsUpdates() {
+    AddressBook book = book(new AddressBook());
+    AddressEntry smyth = book.fuzzySearchName("John Smyth", 0).get(0);
+    book.updateEntry(smyth, b -> b.contactName("Someone Else"));
+    assertTrue(book.fuzzySearchName("John Smyth", 0).isEmpty());
+    assertEquals(1, book.fuzzySearchName("Someone Els", 1).size());
+    assertTrue(book.fuzzySearchName(null, 2).isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFuzzySearchName_negativeDistanceRejected() {
+    new AddressBook().fuzzySearchName("John", -1);
+  }
+
+  private static AddressBook book(AddressBook book) {
+    for (String name: new String[] {"John Smith", "Jon Smith", "Joan Smith", "John Smyth",
+        "Jane Smith", "Bob Jones"}) {
+      book.addEntry(new AddressEntry.Builder().contactName(name).build());
+    }
+    return book;
+  }
+
+  private static List<String> names(List<AddressEntry> entries) {
+    List<String> names = new ArrayList<String>();
+    for (AddressEntry e: entries) {
+      names.add(e.getContactName());
+    }
+    return names;
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      text.append((char) ('a' + random.nextInt(4)));
+    }
+    return text.toString();
+  }
+}
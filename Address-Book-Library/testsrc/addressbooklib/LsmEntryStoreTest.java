@@ -0,0 +1,242 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LsmEntryStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testFlush_newerSegmentsShadowOlderOnes() throws IOException {
+    LsmEntryStore store = LsmEntryStore.open(directory());
+    for (int i = 0; i < 100; i++) {
+      store.add(entry(i));
+    }
+    store.flush();
+    // Tombstones in the second segment hide entries of the first
+    for (int i = 0; i < 100; i += 2) {
+      assertTrue(store.remove(entry(i)));
+    }
+    store.flush();
+    assertTrue(store.add(entry(0)));
+    assertFalse(store.add(entry(1)));
+    assertFalse(store.remove(entry(2)));
+
+    assertEquals(51, store.size());
+    assertTrue(store.contains(entry(0)));
+    assertFalse(store.contains(entry(2)));
+    assertTrue(store.contains(entry(99)));
+    assertEquals(expected(0, 1, 3, 5), first(store, 4));
+    store.close();
+  }
+
+  @Test
+  public void testReopen_readsTheManifest() throws IOException {
+    LsmEntryStore store = LsmEntryStore.open(directory());
+    for (int i = 0; i < 100; i++) {
+      store.add(entry(i));
+    }
+    store.flush();
+    store.remove(entry(5));
+    store.replace(entry(6), entry(1000));
+    store.close();
+
+    store = LsmEntryStore.open(directory());
+    assertEquals(99, store.size());
+    assertFalse(store.contains(entry(5)));
+    assertFalse(store.contains(entry(6)));
+    assertTrue(store.contains(entry(1000)));
+    assertEquals(99, new ArrayList<AddressEntry>(store).size());
+    store.close();
+  }
+
+  @Test
+  public void testReopen_afterCrashKeepsFlushedEntries() throws IOException {
+    LsmEntryStore store = LsmEntryStore.open(directory());
+    for (int i = 0; i < 10; i++) {
+      store.add(entry(i));
+    }
+    store.flush();
+    store.add(entry(10));
+    // Crash: the memtable is lost, and an unlisted segment is left behind
+    Path orphan = Paths.get(directory().toString(), "segment-0000000000000099.sst");
+    Files.write(orphan, new byte[] {1, 2, 3});
+
+    LsmEntryStore reopened = LsmEntryStore.open(directory());
+    assertEquals(10, reopened.size());
+    assertFalse(reopened.contains(entry(10)));
+    assertFalse(Files.exists(orphan));
+    reopened.close();
+  }
+
+  @Test
+  public void testCompaction_mergesSegmentsAndDropsTombstones() throws Exception {
+    LsmEntryStore store = LsmEntryStore.open(directory());
+    Set<AddressEntry> expected = new TreeSet<AddressEntry>(AddressEntry.ORDER);
+    for (int round = 0; round < LsmEntryStore.COMPACTION_TRIGGER; round++) {
+      for (int i = 0; i < 50; i++) {
+        AddressEntry e = entry(round * 50 + i);
+        store.add(e);
+        expected.add(e);
+      }
+      for (int i = 0; i < 10; i++) {
+        AddressEntry e = entry(round * 50 + i * 3);
+        store.remove(e);
+        expected.remove(e);
+      }
+      store.flush();
+    }
+    // A view taken now pins the inputs while the compaction replaces them
+    AddressBookSnapshot snapshot = store.snapshot();
+    List<AddressEntry> seen = new ArrayList<AddressEntry>();
+    for (AddressEntry e: snapshot) {
+      seen.add(e);
+    }
+    snapshot.close();
+    assertEquals(new ArrayList<AddressEntry>(expected), seen);
+    waitForSegments(1);
+
+    assertEquals(new ArrayList<AddressEntry>(expected), new ArrayList<AddressEntry>(store));
+    store.close();
+    store = LsmEntryStore.open(directory());
+    assertEquals(expected.size(), store.size());
+    assertEquals(new ArrayList<AddressEntry>(expected), new ArrayList<AddressEntry>(store));
+    store.close();
+  }
+
+  @Test
+  public void testView_frozenMemtablesKeepEveryViewUnchanged() throws IOException {
+    LsmEntryStore store = LsmEntryStore.open(directory());
+    Set<AddressEntry> expected = new TreeSet<AddressEntry>(AddressEntry.ORDER);
+    List<LsmEntryStore.View> views = new ArrayList<LsmEntryStore.View>();
+    List<List<AddressEntry>> seen = new ArrayList<List<AddressEntry>>();
+    // More views than frozen tables are kept, each followed by adds and a removal
+    for (int round = 0; round < 2 * LsmEntryStore.MAX_FROZEN_TABLES + 1; round++) {
+      for (int i = 0; i < 10; i++) {
+        AddressEntry e = entry(round * 10 + i);
+        store.add(e);
+        expected.add(e);
+      }
+      AddressEntry gone = entry(round * 10 / 2);
+      store.remove(gone);
+      expected.remove(gone);
+      views.add(store.view());
+      seen.add(new ArrayList<AddressEntry>(expected));
+    }
+    store.add(entry(5000));
+    store.remove(entry(1));
+
+    for (int v = 0; v < views.size(); v++) {
+      List<AddressEntry> before = seen.get(v);
+      assertEquals(before, new ArrayList<AddressEntry>(views.get(v)));
+      assertEquals(before.size(), views.get(v).size());
+      assertFalse(views.get(v).contains(entry(5000)));
+      assertEquals(before.contains(entry(1)), views.get(v).contains(entry(1)));
+      views.get(v).close();
+    }
+    expected.add(entry(5000));
+    expected.remove(entry(1));
+    assertEquals(new ArrayList<AddressEntry>(expected), new ArrayList<AddressEntry>(store));
+
+    store.flush();
+    store.close();
+    store = LsmEntryStore.open(directory());
+    assertEquals(new ArrayList<AddressEntry>(expected), new ArrayList<AddressEntry>(store));
+    assertFalse(store.contains(entry(1)));
+    store.close();
+  }
+
+  @Test
+  public void testClear_emptiesTheStoreOnDisk() throws IOException {
+    LsmEntryStore store = LsmEntryStore.open(directory());
+    store.add(entry(1));
+    store.flush();
+    store.clear();
+    assertEquals(0, store.size());
+    store.add(entry(2));
+    store.close();
+    store = LsmEntryStore.open(directory());
+    assertEquals(Collections.singletonList(entry(2)), new ArrayList<AddressEntry>(store));
+    store.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClose_laterUseRejected() throws IOException {
+    LsmEntryStore store = LsmEntryStore.open(directory());
+    store.close();
+    store.add(entry(1));
+  }
+
+  @Test
+  public void testOpenStorageEngine_searchesTheStore() throws IOException {
+    AddressBook book = AddressBook.openStorageEngine(directory().toString());
+    for (int i = 0; i < 30; i++) {
+      book.addEntry(entry(i));
+    }
+    book.close();
+    book = AddressBook.openStorageEngine(directory().toString());
+    assertEquals(Collections.singletonList(entry(17)), book.searchEntry("Person 0017"));
+    assertEquals(Collections.singletonList(entry(17)), book.findByPhoneNumber("2120000017"));
+    book.close();
+  }
+
+  private void waitForSegments(int count) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (segmentFiles() != count) {
+      assertTrue("compaction did not finish", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private int segmentFiles() throws IOException {
+    int count = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory(), "segment-*.sst")) {
+      for (Path file: files) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private Path directory() {
+    return folder.getRoot().toPath().resolve("lsm");
+  }
+
+  private static List<AddressEntry> first(LsmEntryStore store, int count) {
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    for (AddressEntry e: store) {
+      if (result.size() == count) {
+        break;
+      }
+      result.add(e);
+    }
+    return result;
+  }
+
+  private static List<AddressEntry> expected(int... ids) {
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    for (int id: ids) {
+      result.add(entry(id));
+    }
+    return result;
+  }
+
+  /**
+   * The number is padded with zeros, so the entries sort by their numbers
+   */
+  private static AddressEntry entry(int i) {
+    return new AddressEntry.Builder().
+        contactName(String.format("Person %04d", i)).
+        phoneNumber(String.format("212%07d", i)).
+        build();
+  }
+}
@@ -0,0 +1,149 @@
+package addressbooklib;
+
+import static addressbooklib.TestEntries.person;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class OffHeapEntryStoreTest {
+
+  @Test
+  public void testAdd_readsBackEveryField() {
+    OffHeapEntryStore store = new OffHeapEntryStore();
+    Set<AddressEntry> expected = new HashSet<AddressEntry>();
+    for (int i = 0; i < 5000; i++) {
+      AddressEntry entry = person(i);
+      assertTrue(store.add(entry));
+      expected.add(entry);
+    }
+    assertFalse(store.add(person(7)));
+    assertEquals(expected.size(), store.size());
+    assertEquals(expected, new HashSet<AddressEntry>(store));
+    assertTrue(store.contains(person(4999)));
+    assertFalse(store.contains(person(5000)));
+    assertFalse(store.contains("Person 1"));
+    store.close();
+  }
+
+  @Test
+  public void testAdd_keepsNullEmptyAndLargeFields() {
+    OffHeapEntryStore store = new OffHeapEntryStore();
+    AddressEntry unset = new AddressEntry.Builder().build();
+    AddressEntry empty = new AddressEntry.Builder().contactName("").note("").build();
+    StringBuilder note = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      note.append((i % 5 == 0) ? '\u00e9' : 'x');
+    }
+    AddressEntry large = new AddressEntry.Builder().contactName("Large").note(note.toString()).build();
+    assertTrue(store.add(unset));
+    assertTrue(store.add(empty));
+    assertTrue(store.add(large));
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(unset, empty, large)),
+        new HashSet<AddressEntry>(store));
+    store.close();
+  }
+
+  @Test
+  public void testRemoveAndReplace_reusesFreedSlots() {
+    OffHeapEntryStore store = new OffHeapEntryStore();
+    for (int i = 0; i < 3000; i++) {
+      store.add(person(i));
+    }
+    long full = store.bytesInUse();
+    for (int i = 0; i < 3000; i++) {
+      assertTrue(store.remove(person(i)));
+    }
+    assertFalse(store.remove(person(0)));
+    assertEquals(0, store.size());
+    assertEquals(0, store.bytesInUse());
+    for (int i = 0; i < 3000; i++) {
+      store.add(person(i));
+    }
+    assertEquals(full, store.bytesInUse());
+
+    assertTrue(store.replace(person(10), person(9000)));
+    assertFalse(store.replace(person(10), person(9001)));
+    assertFalse(store.contains(person(10)));
+    assertTrue(store.contains(person(9000)));
+    assertEquals(3000, store.size());
+    store.close();
+  }
+
+  @Test
+  public void testSnapshot_holdsFreedSlotsUntilClosed() {
+    OffHeapEntryStore store = new OffHeapEntryStore();
+    for (int i = 0; i < 1000; i++) {
+      store.add(person(i));
+    }
+    Set<AddressEntry> before = new HashSet<AddressEntry>(store);
+    AddressBookSnapshot snapshot = store.snapshot();
+    // Removed slots would be overwritten by these adds if they were reused
+    for (int i = 0; i < 1000; i++) {
+      store.remove(person(i));
+      store.add(person(i + 1000));
+    }
+    assertEquals(before, new HashSet<AddressEntry>(snapshot));
+    snapshot.close();
+    assertEquals(1000, store.size());
+    assertFalse(store.contains(person(0)));
+    assertTrue(store.contains(person(1999)));
+    store.close();
+  }
+
+  @Test
+  public void testIterator_removesThroughStore() {
+    OffHeapEntryStore store = new OffHeapEntryStore();
+    for (int i = 0; i < 100; i++) {
+      store.add(person(i));
+    }
+    Iterator<AddressEntry> it = store.iterator();
+    while (it.hasNext()) {
+      if (it.next().getNote() != null) {
+        it.remove();
+      }
+    }
+    assertEquals(50, store.size());
+    store.clear();
+    assertTrue(store.isEmpty());
+    store.add(person(1));
+    assertEquals(Collections.singleton(person(1)), new HashSet<AddressEntry>(store));
+    store.close();
+  }
+
+  @Test
+  public void testSelect_decodesRequestedField() {
+    OffHeapEntryStore store = new OffHeapEntryStore();
+    for (int i = 0; i < 1000; i++) {
+      store.add(person(i));
+    }
+    List<AddressEntry> result = new ArrayList<AddressEntry>();
+    store.select(AddressField.POSTAL_ADDRESS, value -> "3 Elm St".equals(value), result);
+    assertEquals(100, result.size());
+    result.clear();
+    store.select(AddressField.NOTE, value -> value == null, result);
+    assertEquals(500, result.size());
+    store.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClose_rejectsLaterUse() {
+    OffHeapEntryStore store = new OffHeapEntryStore();
+    store.add(person(1));
+    store.close();
+    store.contains(person(1));
+  }
+
+  @Test
+  public void testOffHeapBook_searches() throws Exception {
+    AddressBook book = AddressBook.createOffHeap();
+    for (int i = 0; i < 100; i++) {
+      book.addEntry(person(i));
+    }
+    assertEquals(Collections.singletonList(person(42)), book.searchEntry("Person 42"));
+    assertEquals(10, book.searchEntry(AddressField.POSTAL_ADDRESS, "5 Elm").size());
+    assertEquals(Collections.singletonList(person(17)), book.findByPhoneNumber("2120000017"));
+    book.close();
+  }
+}
@@ -0,0 +1,120 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class OrderedIndexTest {
+
+  @Test
+  public void testListEntries_pagesFollowOrder() {
+    for (AddressBook book: new AddressBook[] {book(new AddressBook()),
+        book(AddressBook.createColumnar())}) {
+      List<AddressEntry> sorted = new ArrayList<AddressEntry>(book.searchEntry(""));
+      sorted.sort(AddressEntry.ORDER);
+
+      List<AddressEntry> paged = new ArrayList<AddressEntry>();
+      AddressEntry after = null;
+      List<AddressEntry> page;
+      do {
+        page = book.listEntries(after, 13);
+        paged.addAll(page);
+        after = page.isEmpty() ? null : page.get(page.size() - 1);
+      } while (page.size() == 13);
+      assertEquals(sorted, paged);
+      assertEquals(sorted.get(0), book.firstEntry());
+      assertEquals(sorted.get(sorted.size() - 1), book.lastEntry());
+    }
+  }
+
+  @Test
+  public void testListEntries_noGapsOrDuplicatesWhileBookChanges() {
+    AddressBook book = book(new AddressBook());
+    Set<AddressEntry> stable = new HashSet<AddressEntry>(book.listEntries(null, 10000));
+    List<AddressEntry> seen = new ArrayList<AddressEntry>();
+    AddressEntry after = null;
+    int round = 0;
+    List<AddressEntry> page;
+    do {
+      page = book.listEntries(after, 10);
+      seen.addAll(page);
+      after = page.isEmpty() ? after : page.get(page.size() - 1);
+      // The last listed entry is removed and new ones come in everywhere
+      if (after != null) {
+        book.removeEntry(after);
+        stable.remove(after);
+      }
+      book.addEntry(new AddressEntry.Builder().contactName("New " + round++).build());
+    } while (page.size() == 10);
+    assertEquals(seen.size(), new HashSet<AddressEntry>(seen).size());
+    assertTrue(seen.containsAll(stable));
+    for (int i = 1; i < seen.size(); i++) {
+      assertTrue(AddressEntry.ORDER.compare(seen.get(i - 1), seen.get(i)) < 0);
+    }
+  }
+
+  @Test
+  public void testListByName_rangesIgnoreCase() {
+    for (AddressBook book: new AddressBook[] {book(new AddressBook()),
+        book(AddressBook.createColumnar())}) {
+      assertEquals(Arrays.asList("mary", "Max", "Mb", "McDonald", "MCDOWELL"),
+          names(book.listByName("Ma", "Mc", 100)));
+      assertEquals(Arrays.asList("mary", "Max"), names(book.listByName("ma", "mc", 2)));
+      assertEquals(Arrays.asList("Max", "Mb", "McDonald", "MCDOWELL"),
+          names(book.listByName("max", "mcd", 100)));
+      assertTrue(book.listByName("Zz", null, 5).isEmpty());
+      assertEquals(Arrays.asList("Zoe"), names(book.listByName("z", null, 5)));
+      // Without a start, entries without a name come first
+      assertNull(book.listByName(null, "a", 1).get(0).getContactName());
+    }
+  }
+
+  @Test
+  public void testFirstAndLastEntry_followChanges() {
+    AddressBook book = new AddressBook();
+    assertNull(book.firstEntry());
+    assertNull(book.lastEntry());
+    AddressEntry bob = new AddressEntry.Builder().contactName("Bob").build();
+    book.addEntry(bob);
+    assertEquals(bob, book.firstEntry());
+    assertEquals(bob, book.lastEntry());
+    book.addEntry(new AddressEntry.Builder().contactName("alice").build());
+    book.updateEntry(bob, b -> b.contactName("Zed"));
+    assertEquals("alice", book.firstEntry().getContactName());
+    assertEquals("Zed", book.lastEntry().getContactName());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testListEntries_nonPositiveLimitRejected() {
+    new AddressBook().listEntries(null, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testListByName_nonPositiveLimitRejected() {
+    new AddressBook().listByName("a", "b", -1);
+  }
+
+  private static AddressBook book(AddressBook book) {
+    for (String name: new String[] {"McDonald", "mary", "MCDOWELL", "Max", "Lee", "Zoe",
+        "lee", "Mb"}) {
+      book.addEntry(new AddressEntry.Builder().contactName(name).build());
+    }
+    // Same name, told apart by the other fields
+    for (int i = 0; i < 30; i++) {
+      book.addEntry(new AddressEntry.Builder().contactName("Lee").postalAddress(i + " Main St")
+          .build());
+    }
+    book.addEntry(new AddressEntry.Builder().note("no name").build());
+    return book;
+  }
+
+  private static List<String> names(List<AddressEntry> entries) {
+    List<String> names = new ArrayList<String>();
+    for (AddressEntry e: entries) {
+      names.add(e.getContactName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,118 @@
+package addressbooklib;
+
+import static addressbooklib.TestEntries.person;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class PackedTextTest {
+
+  @Test
+  public void testSearch_matchesBruteForce() {
+    Random random = new Random(16);
+    Set<AddressEntry> source = new HashSet<AddressEntry>();
+    for (int i = 0; i < 2000; i++) {
+      source.add(new AddressEntry.Builder().
+          contactName(randomText(random, random.nextInt(20))).
+          note(random.nextInt(4) == 0 ? null : randomText(random, random.nextInt(12))).
+          build());
+    }
+    PackedText packed = PackedText.build(source);
+    for (int t = 0; t < 300; t++) {
+      String key = randomText(random, 1 + random.nextInt(4));
+      for (AddressField field: new AddressField[] {AddressField.CONTACT_NAME, AddressField.NOTE}) {
+        Set<AddressEntry> expected = new HashSet<AddressEntry>();
+        for (AddressEntry e: source) {
+          String value = e.normalizedValue(field);
+          if (value != null && value.contains(key)) {
+            expected.add(e);
+          }
+        }
+        List<AddressEntry> found = new ArrayList<AddressEntry>();
+        packed.search(field, key, found);
+        assertEquals(key, expected.size(), found.size());
+        assertEquals(key, expected, new HashSet<AddressEntry>(found));
+      }
+    }
+  }
+
+  @Test
+  public void testSearch_doesNotMatchAcrossEntries() {
+    Set<AddressEntry> source = new LinkedHashSet<AddressEntry>();
+    source.add(new AddressEntry.Builder().contactName("abcdefg").build());
+    source.add(new AddressEntry.Builder().contactName("hijklmn").build());
+    PackedText packed = PackedText.build(source);
+    List<AddressEntry> found = new ArrayList<AddressEntry>();
+    packed.search(AddressField.CONTACT_NAME, "gh", found);
+    assertTrue(found.isEmpty());
+    packed.search(AddressField.CONTACT_NAME, "mn", found);
+    assertEquals(1, found.size());
+    assertEquals("hijklmn", found.get(0).getContactName());
+  }
+
+  @Test
+  public void testSearch_emptyKeyMatchesSetValues() {
+    Set<AddressEntry> source = new HashSet<AddressEntry>();
+    source.add(new AddressEntry.Builder().contactName("A").note("").build());
+    source.add(new AddressEntry.Builder().contactName("B").build());
+    PackedText packed = PackedText.build(source);
+    List<AddressEntry> found = new ArrayList<AddressEntry>();
+    packed.search(AddressField.NOTE, "", found);
+    assertEquals(1, found.size());
+    assertEquals("A", found.get(0).getContactName());
+  }
+
+  @Test
+  public void testSearch_nonAsciiKey() {
+    Set<AddressEntry> source = new HashSet<AddressEntry>();
+    AddressEntry cafe = new AddressEntry.Builder().contactName("Caf\u00e9 Owner").build();
+    source.add(cafe);
+    source.add(new AddressEntry.Builder().contactName("Cafe Owner").build());
+    PackedText packed = PackedText.build(source);
+    List<AddressEntry> found = new ArrayList<AddressEntry>();
+    packed.search(AddressField.CONTACT_NAME, SubstringMatcher.normalize("F\u00c9"), found);
+    assertEquals(Collections.singletonList(cafe), found);
+  }
+
+  @Test
+  public void testScanMode_agreesWithIndexedAfterChanges() {
+    AddressBook book = new AddressBook();
+    for (int i = 0; i < 500; i++) {
+      book.addEntry(person(i));
+    }
+    assertModesAgree(book, "son 4");
+    for (int i = 0; i < 100; i++) {
+      book.removeEntry(person(i));
+    }
+    book.addEntry(person(4000));
+    book.updateEntry(person(450), b -> b.contactName("Renamed"));
+    // The packed values are rebuilt for the new version
+    assertModesAgree(book, "son 4");
+    assertModesAgree(book, "renamed");
+    assertModesAgree(book, "elm");
+    assertEquals(1, book.searchEntry("Renamed", SearchMode.SCAN).size());
+    assertTrue(book.searchEntry("Person 45", SearchMode.SCAN).stream().
+        noneMatch(e -> "Person 450".equals(e.getContactName())));
+  }
+
+  private static void assertModesAgree(AddressBook book, String key) {
+    assertEquals(new HashSet<AddressEntry>(book.searchEntry(key, SearchMode.INDEXED)),
+        new HashSet<AddressEntry>(book.searchEntry(key, SearchMode.SCAN)));
+    assertEquals(new HashSet<AddressEntry>(book.searchEntry(AddressField.POSTAL_ADDRESS, key,
+        SearchMode.INDEXED)),
+        new HashSet<AddressEntry>(book.searchEntry(AddressField.POSTAL_ADDRESS, key,
+        SearchMode.SCAN)));
+  }
+
+  private static String randomText(Random random, int length) {
+    // A small alphabet makes repeated and overlapping matches common
+    String alphabet = "abc \u00e9";
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,68 @@
+package addressbooklib;
+
+import static addressbooklib.TestEntries.person;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ParallelSearchTest {
+  // Above the size at which PARALLEL searches split across threads
+  private static final int ENTRY_COUNT = 20000;
+
+  private static AddressBook book;
+
+  @BeforeClass
+  public static void fillBook() {
+    book = new AddressBook();
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      book.addEntry(person(i));
+    }
+  }
+
+  @Test
+  public void testParallel_agreesWithOtherModes() {
+    for (String key: new String[] {"person 12", "elm", "7@example", "odd", "", "missing"}) {
+      Set<AddressEntry> indexed = new HashSet<AddressEntry>(book.searchEntry(key));
+      List<AddressEntry> parallel = book.searchEntry(key, SearchMode.PARALLEL);
+      assertEquals(key, indexed.size(), parallel.size());
+      assertEquals(key, indexed, new HashSet<AddressEntry>(parallel));
+      assertEquals(key, indexed, new HashSet<AddressEntry>(book.searchEntry(key, SearchMode.SCAN)));
+    }
+  }
+
+  @Test
+  public void testParallel_fieldSearchAgreesWithIndexed() {
+    for (AddressField field: AddressField.values()) {
+      assertEquals(field.name(),
+          new HashSet<AddressEntry>(book.searchEntry(field, "12", SearchMode.INDEXED)),
+          new HashSet<AddressEntry>(book.searchEntry(field, "12", SearchMode.PARALLEL)));
+    }
+  }
+
+  @Test
+  public void testParallel_keepsTrieOrder() {
+    List<AddressEntry> parallel = book.searchEntry("person", SearchMode.PARALLEL);
+    assertEquals(ENTRY_COUNT, parallel.size());
+    for (int i = 1; i < parallel.size(); i++) {
+      assertTrue(PersistentEntrySet.compareTrieOrder(
+          PersistentEntrySet.trieHash(parallel.get(i - 1)),
+          PersistentEntrySet.trieHash(parallel.get(i))) <= 0);
+    }
+    // The same order on every run
+    assertEquals(parallel, book.searchEntry("person", SearchMode.PARALLEL));
+  }
+
+  @Test
+  public void testParallel_storeBookFallsBackToSelect() throws Exception {
+    AddressBook columnar = AddressBook.createColumnar();
+    for (int i = 0; i < 1000; i++) {
+      columnar.addEntry(person(i));
+    }
+    assertEquals(new HashSet<AddressEntry>(columnar.searchEntry("person 12")),
+        new HashSet<AddressEntry>(columnar.searchEntry("person 12", SearchMode.PARALLEL)));
+    columnar.close();
+  }
+}
@@ -0,0 +1,82 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class PhoneTrieTest {
+
+  @Test
+  public void testStartingWith_inPhoneNumberOrder() {
+    PhoneTrie trie = new PhoneTrie();
+    List<String> numbers = Arrays.asList("2125550199", "2125550100", "2135550100",
+        "21255501", "9175550100");
+    for (String number: numbers) {
+      trie.add(entry(number));
+    }
+    trie.add(new AddressEntry.Builder().contactName("No phone").build());
+
+    assertEquals(Arrays.asList("21255501", "2125550100", "2125550199"),
+        phones(trie.startingWith("212", 10)));
+    assertEquals(Arrays.asList("21255501", "2125550100"), phones(trie.startingWith("212", 2)));
+    assertEquals(5, trie.startingWith("", 10).size());
+    assertTrue(trie.startingWith("3", 10).isEmpty());
+    assertTrue(trie.startingWith("21a", 10).isEmpty());
+    assertTrue(trie.startingWith("212", 0).isEmpty());
+    assertTrue(trie.startingWith(null, 10).isEmpty());
+  }
+
+  @Test
+  public void testRemove_prunesOnlyTheRemovedNumber() {
+    PhoneTrie trie = new PhoneTrie();
+    AddressEntry a = entry("2125550100");
+    AddressEntry b = entry("21255501009");
+    trie.add(a);
+    trie.add(b);
+    trie.remove(b);
+    assertEquals(Collections.singletonList(a), trie.startingWith("2125", 10));
+    trie.remove(a);
+    assertTrue(trie.startingWith("", 10).isEmpty());
+    trie.add(b);
+    assertEquals(Collections.singletonList(b), trie.startingWith("21255501009", 10));
+  }
+
+  @Test
+  public void testSearchPhonePrefix_inMemoryAndStoredBooksAgree() {
+    Random random = new Random(4);
+    AddressBook memory = new AddressBook();
+    AddressBook columnar = AddressBook.createColumnar();
+    for (int i = 0; i < 500; i++) {
+      AddressEntry e = entry(String.format("%03d%07d", 200 + random.nextInt(5), random.nextInt(100)));
+      memory.addEntry(e);
+      columnar.addEntry(e);
+    }
+    for (String prefix: new String[] {"", "2", "20", "201", "2010000", "999"}) {
+      for (int limit: new int[] {1, 7, 1000}) {
+        List<AddressEntry> expected = memory.searchPhonePrefix(prefix, limit);
+        assertEquals(prefix + " " + limit, phones(expected),
+            phones(columnar.searchPhonePrefix(prefix, limit)));
+        List<String> sorted = new ArrayList<String>(phones(expected));
+        Collections.sort(sorted);
+        assertEquals(sorted, phones(expected));
+        for (AddressEntry e: expected) {
+          assertTrue(e.getPhoneNumber().startsWith(prefix));
+        }
+      }
+    }
+  }
+
+  private static List<String> phones(List<AddressEntry> entries) {
+    List<String> phones = new ArrayList<String>();
+    for (AddressEntry e: entries) {
+      phones.add(e.getPhoneNumber());
+    }
+    return phones;
+  }
+
+  private static AddressEntry entry(String phone) {
+    return new AddressEntry.Builder().contactName("Owner of " + phone).phoneNumber(phone).build();
+  }
+}
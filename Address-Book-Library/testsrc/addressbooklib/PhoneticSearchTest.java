@@ -0,0 +1,94 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class PhoneticSearchTest {
+
+  @Test
+  public void testEncode_alikeSoundsShareCode() {
+    String[][] alike = {
+      {"shuang", "shwang"}, {"smith", "smyth"}, {"john", "jon"}, {"philip", "filip"},
+      {"knight", "night"}, {"catherine", "kathryn"}, {"stephen", "steven"}
+    };
+    for (String[] pair: alike) {
+      assertEquals(pair[0] + "/" + pair[1], PhoneticCode.encode(pair[0]),
+          PhoneticCode.encode(pair[1]));
+    }
+    assertNotEquals(PhoneticCode.encode("smith"), PhoneticCode.encode("jones"));
+    assertTrue(PhoneticCode.encode("christopherson").length() <= PhoneticCode.MAX_LENGTH);
+  }
+
+  @Test
+  public void testOfWords_encodesEachDistinctWord() {
+    assertTrue(PhoneticCode.ofWords(null).isEmpty());
+    assertTrue(PhoneticCode.ofWords("").isEmpty());
+    assertTrue(PhoneticCode.ofWords("123 !").isEmpty());
+    assertEquals(3, PhoneticCode.ofWords("Jean-Luc Picard").size());
+    assertEquals(1, PhoneticCode.ofWords("Smith smyth").size());
+    assertEquals(PhoneticCode.ofWords("Jose"), PhoneticCode.ofWords("Jos\u00e9"));
+    assertEquals(PhoneticCode.ofWords("Strasse"), PhoneticCode.ofWords("STRA\u00dfE"));
+  }
+
+  @Test
+  public void testPhoneticIndex_requiresEveryWord() {
+    PhoneticIndex index = new PhoneticIndex(AddressField.CONTACT_NAME);
+    AddressEntry john = entry("John Smith");
+    AddressEntry mary = entry("Mary Smith");
+    index.add(john);
+    index.add(mary);
+    index.add(new AddressEntry.Builder().note("no name").build());
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(john, mary)), index.find(PhoneticCode.ofWords("Smyth")));
+    assertEquals(Collections.singleton(john), index.find(PhoneticCode.ofWords("Jon Smyth")));
+    assertTrue(index.find(PhoneticCode.ofWords("Jon Jones")).isEmpty());
+    assertTrue(index.find(Collections.<String>emptyList()).isEmpty());
+    index.remove(john);
+    assertEquals(Collections.singleton(mary), index.find(PhoneticCode.ofWords("Smith")));
+    index.remove(mary);
+    assertTrue(index.find(PhoneticCode.ofWords("Smith")).isEmpty());
+  }
+
+  @Test
+  public void testSearchBySound_inMemoryAndStoreAgree() throws Exception {
+    for (AddressBook book: new AddressBook[] {new AddressBook(), AddressBook.createColumnar()}) {
+      for (String name: new String[] {"Shuang", "John Smith", "Mary Smyth", "Bob Jones"}) {
+        book.addEntry(entry(name));
+      }
+      book.addEntry(new AddressEntry.Builder().phoneNumber("5550000001").build());
+      assertEquals(Arrays.asList("Shuang"), names(book.searchBySound("Shwang")));
+      assertEquals(Arrays.asList("John Smith"), names(book.searchBySound("Jon Smyth")));
+      assertEquals(new HashSet<String>(Arrays.asList("John Smith", "Mary Smyth")),
+          new HashSet<String>(names(book.searchBySound("smith"))));
+      assertTrue(book.searchBySound("42").isEmpty());
+      assertTrue(book.searchBySound(null).isEmpty());
+      book.close();
+    }
+  }
+
+  @Test
+  public void testSearchBySound_followsUpdates() {
+    AddressBook book = new AddressBook();
+    AddressEntry bob = entry("Bob Jones");
+    book.addEntry(bob);
+    book.updateEntry(bob, b -> b.contactName("Robert Jonez"));
+    assertTrue(book.searchBySound("Bob").isEmpty());
+    assertEquals(Arrays.asList("Robert Jonez"), names(book.searchBySound("Jones")));
+    book.removeEntry(book.searchBySound("Jones").get(0));
+    assertTrue(book.searchBySound("Jones").isEmpty());
+  }
+
+  private static AddressEntry entry(String name) {
+    return new AddressEntry.Builder().contactName(name).build();
+  }
+
+  private static List<String> names(List<AddressEntry> entries) {
+    List<String> names = new ArrayList<String>();
+    for (AddressEntry e: entries) {
+      names.add(e.getContactName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,152 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+public class QueryTest {
+
+  @Test
+  public void testQuery_fieldsAndOperators() {
+    for (AddressBook book: new AddressBook[] {book(new AddressBook()),
+        book(AddressBook.createColumnar())}) {
+      assertQuery(book, "name:smith", e -> has(e.getContactName(), "smith"));
+      assertQuery(book, "smith", e -> has(e.getContactName(), "smith")
+          || has(e.getNote(), "smith"));
+      assertQuery(book, "name:smith AND NOT note:inactive",
+          e -> has(e.getContactName(), "smith") && !has(e.getNote(), "inactive"));
+      // AND is implied between terms
+      assertQuery(book, "name:smith note:vip",
+          e -> has(e.getContactName(), "smith") && has(e.getNote(), "vip"));
+      assertQuery(book, "name:smith OR name:jones",
+          e -> has(e.getContactName(), "smith") || has(e.getContactName(), "jones"));
+      // AND binds tighter than OR, and NOT tighter than AND
+      assertQuery(book, "name:jones OR name:smith note:vip",
+          e -> has(e.getContactName(), "jones")
+          || (has(e.getContactName(), "smith") && has(e.getNote(), "vip")));
+      assertQuery(book, "(name:jones OR name:smith) note:vip",
+          e -> (has(e.getContactName(), "jones") || has(e.getContactName(), "smith"))
+          && has(e.getNote(), "vip"));
+      assertQuery(book, "NOT note:inactive AND name:jones",
+          e -> !has(e.getNote(), "inactive") && has(e.getContactName(), "jones"));
+      assertQuery(book, "NOT note:inactive", e -> !has(e.getNote(), "inactive"));
+      assertQuery(book, "NOT NOT note:inactive", e -> has(e.getNote(), "inactive"));
+    }
+  }
+
+  @Test
+  public void testQuery_quotesAndWildcards() {
+    AddressBook book = book(new AddressBook());
+    assertQuery(book, "name:\"ann smith\"", e -> has(e.getContactName(), "ann smith"));
+    assertQuery(book, "\"ann smith\"", e -> has(e.getContactName(), "ann smith"));
+    assertQuery(book, "note:\"say \\\"hi\\\"\"", e -> has(e.getNote(), "say \"hi\""));
+    assertEquals(1, book.query("note:\"say \\\"hi\\\"\"").size());
+    // A value with '*' matches the whole field
+    assertQuery(book, "email:*@acme.com", e -> e.getEmailAddress() != null
+        && e.getEmailAddress().endsWith("@acme.com"));
+    assertQuery(book, "email:acme", e -> has(e.getEmailAddress(), "acme"));
+    assertQuery(book, "name:ann*1", e -> e.getContactName().toLowerCase().startsWith("ann")
+        && e.getContactName().endsWith("1"));
+    assertQuery(book, "name:*smith*", e -> has(e.getContactName(), "smith"));
+    assertQuery(book, "name:a*n*h", e -> e.getContactName().matches("(?i)a.*n.*h"));
+    // Operators are upper case; otherwise they are values, as are unknown fields
+    assertQuery(book, "name:smith and", e -> has(e.getContactName(), "smith")
+        && (has(e.getContactName(), "and") || has(e.getNote(), "and")));
+    assertTrue(book.query("city:paris").isEmpty());
+    book.addEntry(new AddressEntry.Builder().contactName("X").note("city:paris").build());
+    assertEquals(1, book.query("city:paris").size());
+  }
+
+  @Test
+  public void testQuery_malformedRejected() {
+    AddressBook book = book(new AddressBook());
+    for (String bad: new String[] {"", "   ", null, "(name:smith", "name:smith)", "name:",
+        "name:smith OR", "NOT", "AND name:smith", "note:\"unclosed", "()"}) {
+      try {
+        book.query(bad);
+        fail("Accepted " + bad);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      try {
+        book.explainQuery(bad);
+        fail("Explained " + bad);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testExplainQuery_selectiveTermFirst() {
+    AddressBook book = book(new AddressBook());
+    String plan = book.explainQuery("note:inactive AND name:jonesy");
+    String[] lines = plan.split("\n");
+    assertEquals(3, lines.length);
+    assertTrue(plan, lines[0].startsWith("AND (candidates from the first, at most "));
+    assertTrue(plan, lines[1].startsWith("  name:jonesy (index, at most "));
+    assertTrue(plan, lines[2].startsWith("  note:inactive (index, at most "));
+    assertEquals(estimate(lines[1]), estimate(lines[0]));
+    assertTrue(estimate(lines[1]) < estimate(lines[2]));
+
+    // Terms no index narrows are checked last
+    lines = book.explainQuery("NOT note:vip AND name:ab AND name:smith").split("\n");
+    assertTrue(lines[1].startsWith("  name:smith (index"));
+    assertTrue(lines[2].startsWith("  NOT (filter)") || lines[2].startsWith("  name:ab (scan)"));
+    assertTrue(book.explainQuery("NOT note:vip").startsWith("NOT (filter)\n"));
+    assertTrue(book.explainQuery("name:ab OR name:smith").startsWith("OR (scan " + 1006 + ")"));
+    assertTrue(book.explainQuery("name:jones OR name:smith").startsWith("OR (union, at most "));
+  }
+
+  @Test
+  public void testQuery_followsChanges() {
+    AddressBook book = book(new AddressBook());
+    int before = book.query("name:jones note:vip").size();
+    AddressEntry jones = book.query("name:jones NOT note:vip").get(0);
+    book.updateEntry(jones, b -> b.note("vip"));
+    assertEquals(before + 1, book.query("name:jones note:vip").size());
+  }
+
+  private static long estimate(String line) {
+    int at = line.indexOf("at most ") + "at most ".length();
+    return Long.parseLong(line.substring(at, line.indexOf(')', at)));
+  }
+
+  private static void assertQuery(AddressBook book, String query,
+      Predicate<AddressEntry> expected) {
+    Set<AddressEntry> matching = new HashSet<AddressEntry>();
+    for (AddressEntry e: book.searchEntry("")) {
+      if (expected.test(e)) {
+        matching.add(e);
+      }
+    }
+    List<AddressEntry> found = book.query(query);
+    assertEquals(query, matching.size(), found.size());
+    assertEquals(query, matching, new HashSet<AddressEntry>(found));
+  }
+
+  private static boolean has(String value, String key) {
+    return value != null && value.toLowerCase().contains(key);
+  }
+
+  private static AddressBook book(AddressBook book) {
+    String[] last = {"Smith", "Jones", "Brown", "Taylor", "Wilson"};
+    for (int i = 0; i < 1000; i++) {
+      String note = (i % 7 == 0) ? "inactive" : (i % 10 == 0) ? "vip" : null;
+      book.addEntry(new AddressEntry.Builder().
+          contactName(((i % 3 == 0) ? "Ann " : "Bo ") + last[i % last.length] + " " + i).
+          emailAddress("p" + i + ((i % 4 == 0) ? "@acme.com" : "@other.org")).
+          note(note).
+          build());
+    }
+    // Rarer names, to be the selective term of a plan
+    for (int i = 0; i < 5; i++) {
+      book.addEntry(new AddressEntry.Builder().contactName("Ann Jonesy " + i).note("vip").build());
+    }
+    book.addEntry(new AddressEntry.Builder().contactName("Quote").note("say \"hi\"").build());
+    return book;
+  }
+}
@@ -0,0 +1,73 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class RankedMatchesTest {
+
+  @Test
+  public void testSearchTopEntries_ranksFieldAndMatchKind() {
+    for (AddressBook book: new AddressBook[] {new AddressBook(), AddressBook.createColumnar()}) {
+      fill(book);
+      assertEquals(Arrays.asList("Smith", "Smithson", "John Smith", "Zed", "Blacksmith", "Amy"),
+          names(book.searchTopEntries("smith", 10)));
+      assertEquals(Arrays.asList("Smith", "Smithson"), names(book.searchTopEntries("SMITH", 2)));
+      assertTrue(book.searchTopEntries("nobody", 5).isEmpty());
+    }
+  }
+
+  @Test
+  public void testSearchTopEntries_tiesRankedByName() {
+    AddressBook book = new AddressBook();
+    for (String name: new String[] {"Carol Ng", "Alice Ng", "Bob Ng"}) {
+      book.addEntry(new AddressEntry.Builder().contactName(name).build());
+    }
+    assertEquals(Arrays.asList("Alice Ng", "Bob Ng", "Carol Ng"),
+        names(book.searchTopEntries("ng", 3)));
+    assertEquals(Arrays.asList("Alice Ng", "Bob Ng"), names(book.searchTopEntries("ng", 2)));
+  }
+
+  @Test
+  public void testSearchTopEntries_limitKeepsBestOfMany() {
+    AddressBook book = new AddressBook();
+    Random random = new Random(21);
+    for (int i = 0; i < 3000; i++) {
+      String name = (random.nextBoolean() ? "Ann " : "Joanna ") + i;
+      book.addEntry(new AddressEntry.Builder().contactName(name)
+          .note(random.nextInt(5) == 0 ? "ann" : null).build());
+    }
+    List<AddressEntry> all = book.searchTopEntries("ann", 3000);
+    assertEquals(book.searchEntry("ann").size(), all.size());
+    for (int limit: new int[] {1, 10, 100}) {
+      assertEquals(all.subList(0, limit), book.searchTopEntries("ann", limit));
+    }
+    // Short keys rank every entry instead of using the trigram indexes
+    assertEquals(book.searchTopEntries("an", 3000).subList(0, 10), book.searchTopEntries("an", 10));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSearchTopEntries_nonPositiveLimitRejected() {
+    new AddressBook().searchTopEntries("smith", 0);
+  }
+
+  private static void fill(AddressBook book) {
+    book.addEntry(new AddressEntry.Builder().contactName("Blacksmith").build());
+    book.addEntry(new AddressEntry.Builder().contactName("Amy").note("ask smith").build());
+    book.addEntry(new AddressEntry.Builder().contactName("John Smith").build());
+    book.addEntry(new AddressEntry.Builder().contactName("Zed").emailAddress("smith@x.com").build());
+    book.addEntry(new AddressEntry.Builder().contactName("Smithson").build());
+    book.addEntry(new AddressEntry.Builder().contactName("Smith").build());
+    book.addEntry(new AddressEntry.Builder().contactName("Other").build());
+  }
+
+  private static List<String> names(List<AddressEntry> entries) {
+    List<String> names = new ArrayList<String>();
+    for (AddressEntry e: entries) {
+      names.add(e.getContactName());
+    }
+    return names;
+  }
+}
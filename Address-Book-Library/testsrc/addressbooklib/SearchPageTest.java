@@ -0,0 +1,209 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class SearchPageTest {
+
+  @Test
+  public void testIteratorFrom_resumesAtAnyHash() {
+    PersistentEntrySet set = PersistentEntrySet.EMPTY;
+    for (int i = 0; i < 3000; i++) {
+      set = set.plus(entry(i));
+    }
+    Random random = new Random(17);
+    for (int t = 0; t < 200; t++) {
+      int from = (t % 2 == 0) ? random.nextInt()
+          : PersistentEntrySet.trieHash(entry(random.nextInt(3000)));
+      List<AddressEntry> expected = new ArrayList<AddressEntry>();
+      for (AddressEntry e: set) {
+        if (PersistentEntrySet.compareTrieOrder(PersistentEntrySet.trieHash(e), from) >= 0) {
+          expected.add(e);
+        }
+      }
+      assertEquals(expected, drain(set.iteratorFrom(from)));
+    }
+  }
+
+  @Test
+  public void testIteratorFrom_resumesInAnotherVersion() {
+    PersistentEntrySet before = PersistentEntrySet.EMPTY;
+    for (int i = 0; i < 2000; i++) {
+      before = before.plus(entry(i));
+    }
+    int from = PersistentEntrySet.trieHash(entry(1234));
+    // The resume point itself is removed and other entries come and go
+    PersistentEntrySet after = before.minus(entry(1234));
+    for (int i = 0; i < 500; i++) {
+      after = after.minus(entry(i)).plus(entry(i + 2000));
+    }
+    List<AddressEntry> expected = new ArrayList<AddressEntry>();
+    for (AddressEntry e: after) {
+      if (PersistentEntrySet.compareTrieOrder(PersistentEntrySet.trieHash(e), from) >= 0) {
+        expected.add(e);
+      }
+    }
+    assertEquals(expected, drain(after.iteratorFrom(from)));
+  }
+
+  @Test
+  public void testSearchPage_tokensCoverEveryEntryOnce() {
+    AddressBook book = new AddressBook();
+    for (int i = 0; i < 1000; i++) {
+      book.addEntry(entry(i));
+    }
+    List<AddressEntry> all = new ArrayList<AddressEntry>();
+    String token = null;
+    do {
+      SearchPage page = book.searchPage("person", token, 37);
+      assertTrue(page.getEntries().size() <= 37);
+      all.addAll(page.getEntries());
+      token = page.getContinuationToken();
+    } while (token != null);
+    assertEquals(1000, all.size());
+    assertEquals(1000, new HashSet<AddressEntry>(all).size());
+  }
+
+  @Test
+  public void testSearchPage_noGapsOrDuplicatesWhileBookChanges() {
+    for (String key: new String[] {"person", "special"}) {
+      AddressBook book = new AddressBook();
+      for (int i = 0; i < 2000; i++) {
+        book.addEntry(entry(i));
+      }
+      Set<AddressEntry> stable = new HashSet<AddressEntry>();
+      for (AddressEntry e: book.searchEntry(key)) {
+        if (numberOf(e) % 3 != 0) {
+          stable.add(e);
+        }
+      }
+      List<AddressEntry> seen = new ArrayList<AddressEntry>();
+      String token = null;
+      int next = 2000;
+      int removed = 0;
+      do {
+        SearchPage page = book.searchPage(key, token, 7);
+        seen.addAll(page.getEntries());
+        token = page.getContinuationToken();
+        // Only entries numbered by multiples of three are removed or added
+        book.removeEntry(entry(3 * removed++));
+        book.addEntry(entry(next));
+        next += 3;
+      } while (token != null);
+      assertEquals(key, seen.size(), new HashSet<AddressEntry>(seen).size());
+      assertTrue(key, new HashSet<AddressEntry>(seen).containsAll(stable));
+    }
+  }
+
+  @Test
+  public void testSearchPage_collidingHashesAcrossPages() {
+    // "Aa" and "BB" share a hash code, so these names all collide
+    AddressBook book = new AddressBook();
+    String[] names = {"AaAaAa", "AaAaBB", "AaBBAa", "AaBBBB", "BBAaAa", "BBAaBB", "BBBBAa"};
+    for (String name: names) {
+      book.addEntry(new AddressEntry.Builder().contactName(name).build());
+    }
+    Set<String> seen = new HashSet<String>();
+    String token = null;
+    int pages = 0;
+    do {
+      SearchPage page = book.searchPage("a", token, 2);
+      for (AddressEntry e: page.getEntries()) {
+        assertTrue(seen.add(e.getContactName()));
+      }
+      token = page.getContinuationToken();
+      pages++;
+    } while (token != null);
+    assertEquals(new HashSet<String>(Arrays.asList(names)), seen);
+    assertEquals(4, pages);
+  }
+
+  @Test
+  public void testSearchPage_offsetSkipsMatches() {
+    AddressBook book = new AddressBook();
+    for (int i = 0; i < 300; i++) {
+      book.addEntry(entry(i));
+    }
+    List<AddressEntry> all = book.searchPage("person", 1000).getEntries();
+    assertEquals(300, all.size());
+    assertFalse(book.searchPage("person", 1000).hasMore());
+    assertEquals(all.subList(40, 60), book.searchPage("person", 40, 20).getEntries());
+    SearchPage full = book.searchPage("person", 280, 20);
+    assertEquals(all.subList(280, 300), full.getEntries());
+    // A full page carries a token, which leads to an empty last page
+    assertTrue(full.hasMore());
+    assertTrue(book.searchPage("person", 0, 5).hasMore());
+  }
+
+  @Test
+  public void testSearchPage_storeTokensCoverEveryEntryOnce() {
+    AddressBook book = AddressBook.createColumnar();
+    for (int i = 0; i < 500; i++) {
+      book.addEntry(entry(i));
+    }
+    Set<AddressEntry> seen = new HashSet<AddressEntry>();
+    String token = null;
+    do {
+      SearchPage page = book.searchPage("special", token, 9);
+      for (AddressEntry e: page.getEntries()) {
+        assertTrue(seen.add(e));
+      }
+      token = page.getContinuationToken();
+    } while (token != null);
+    assertEquals(new HashSet<AddressEntry>(book.searchEntry("special")), seen);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSearchPage_nonPositiveLimitRejected() {
+    new AddressBook().searchPage("a", 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSearchPage_negativeOffsetRejected() {
+    new AddressBook().searchPage("a", -1, 10);
+  }
+
+  @Test
+  public void testSearchPage_foreignTokenRejected() {
+    AddressBook book = new AddressBook();
+    AddressBook columnar = AddressBook.createColumnar();
+    for (int i = 0; i < 10; i++) {
+      book.addEntry(entry(i));
+      columnar.addEntry(entry(i));
+    }
+    String token = columnar.searchPage("person", 2).getContinuationToken();
+    for (String bad: new String[] {token, "", "hzz.1", "h1"}) {
+      try {
+        book.searchPage("person", bad, 2);
+        fail("Accepted token " + bad);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  private static List<AddressEntry> drain(Iterator<AddressEntry> it) {
+    List<AddressEntry> list = new ArrayList<AddressEntry>();
+    while (it.hasNext()) {
+      list.add(it.next());
+    }
+    return list;
+  }
+
+  private static int numberOf(AddressEntry e) {
+    return Integer.parseInt(e.getContactName().substring("Person ".length()));
+  }
+
+  /**
+   * Every fiftieth entry is noted "special", so searches for it match a sparse subset
+   */
+  private static AddressEntry entry(int i) {
+    return new AddressEntry.Builder().
+        contactName("Person " + i).
+        note((i % 50 == 0) ? "special" : null).
+        build();
+  }
+}
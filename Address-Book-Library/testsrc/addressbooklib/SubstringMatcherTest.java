@@ -0,0 +1,55 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class SubstringMatcherTest {
+
+  @Test
+  public void testMatches_agreesWithContains() {
+    Random random = new Random(15);
+    for (int i = 0; i < 2000; i++) {
+      String text = randomText(random, random.nextInt(20));
+      String key = randomText(random, random.nextInt(4));
+      assertEquals(text + " / " + key, text.contains(key), new SubstringMatcher(key).matches(text));
+    }
+  }
+
+  @Test
+  public void testIndexIn_findsEveryOccurrence() {
+    SubstringMatcher matcher = new SubstringMatcher("ana");
+    String text = "bananarama";
+    List<Integer> found = new ArrayList<Integer>();
+    for (int at = matcher.indexIn(text, 0); at >= 0; at = matcher.indexIn(text, at + 1)) {
+      found.add(at);
+    }
+    assertEquals(Arrays.asList(1, 3), found);
+    assertEquals(3, matcher.keyLength());
+  }
+
+  @Test
+  public void testMatches_nullAndEmpty() {
+    assertFalse(new SubstringMatcher("a").matches(null));
+    assertTrue(new SubstringMatcher("").matches(""));
+    assertFalse(new SubstringMatcher("abc").matches("ab"));
+  }
+
+  @Test
+  public void testNormalize_foldsCaseAndCompatibilityForms() {
+    assertNull(SubstringMatcher.normalize(null));
+    assertEquals("john smith", SubstringMatcher.normalize("John SMITH"));
+    assertEquals(SubstringMatcher.normalize("STRASSE"), SubstringMatcher.normalize("Stra\u00dfe"));
+    assertEquals("a", SubstringMatcher.normalize("\uff21"));
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      text.append((char) ('a' + random.nextInt(3)));
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,27 @@
+package addressbooklib;
+
+/**
+ * TestEntries class
+ * The numbered entries shared by the tests needing many distinct entries.
+ * Every field is set, the address and the note repeating so some values are shared
+ * @author Shuang
+ */
+final class TestEntries {
+
+  private TestEntries() {
+  }
+
+  /**
+   * @param i: the number of the entry
+   * @return the entry of "Person i", equal for equal numbers
+   */
+  static AddressEntry person(int i) {
+    return new AddressEntry.Builder().
+        contactName("Person " + i).
+        postalAddress((i % 10) + " Elm St").
+        phoneNumber(String.format("212%07d", i)).
+        emailAddress("p" + i + "@example.com").
+        note((i % 2 == 0) ? null : "odd").
+        build();
+  }
+}
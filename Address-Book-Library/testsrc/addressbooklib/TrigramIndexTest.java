@@ -0,0 +1,109 @@
+package addressbooklib;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class TrigramIndexTest {
+
+  @Test
+  public void testCandidates_containEveryMatch() {
+    TrigramIndex index = new TrigramIndex(AddressField.CONTACT_NAME);
+    AddressEntry ann = entry("Ann Marie");
+    AddressEntry mariella = entry("Mariella");
+    AddressEntry bob = entry("Bob");
+    index.add(ann);
+    index.add(mariella);
+    index.add(bob);
+
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(ann, mariella)), index.candidates("mari"));
+    assertEquals(Collections.emptySet(), index.candidates("xyz"));
+    assertNull(index.candidates("ma"));
+  }
+
+  @Test
+  public void testEstimate_boundsTheCandidates() {
+    TrigramIndex index = new TrigramIndex(AddressField.CONTACT_NAME);
+    for (int i = 0; i < 10; i++) {
+      index.add(entry("Smith " + i));
+    }
+    index.add(entry("Jones"));
+    assertEquals(10, index.estimate("smith"));
+    assertEquals(1, index.estimate("jon"));
+    assertEquals(0, index.estimate("zzz"));
+    assertEquals(-1, index.estimate("sm"));
+  }
+
+  @Test
+  public void testRemove_dropsTheEntryFromItsPostings() {
+    TrigramIndex index = new TrigramIndex(AddressField.CONTACT_NAME);
+    AddressEntry ann = entry("Annabel");
+    index.add(ann);
+    index.add(entry("Anne"));
+    index.remove(ann);
+    assertEquals(1, index.candidates("ann").size());
+    assertEquals(Collections.emptySet(), index.candidates("abel"));
+    assertEquals(0, index.estimate("bel"));
+  }
+
+  @Test
+  public void testAdd_nullFieldNotIndexed() {
+    TrigramIndex index = new TrigramIndex(AddressField.NOTE);
+    index.add(entry("Ann"));
+    assertEquals(0, index.estimate("ann"));
+  }
+
+  @Test
+  public void testSearchEntry_agreesWithScanningEveryEntry() {
+    Random random = new Random(1);
+    AddressBook book = new AddressBook();
+    List<AddressEntry> entries = new ArrayList<AddressEntry>();
+    for (int i = 0; i < 2000; i++) {
+      AddressEntry e = new AddressEntry.Builder().
+          contactName(word(random) + " " + word(random)).
+          postalAddress(random.nextInt(100) + " " + word(random) + " St").
+          note(word(random)).
+          build();
+      if (book.addEntry(e)) {
+        entries.add(e);
+      }
+    }
+    for (int i = 0; i < 500; i++) {
+      book.removeEntry(entries.remove(random.nextInt(entries.size())));
+    }
+
+    for (int i = 0; i < 300; i++) {
+      String key = word(random).substring(0, 1 + random.nextInt(4));
+      if (random.nextBoolean()) {
+        key = key.toUpperCase();
+      }
+      Set<AddressEntry> expected = new HashSet<AddressEntry>();
+      String lower = key.toLowerCase();
+      for (AddressEntry e: entries) {
+        if (e.getContactName().toLowerCase().contains(lower)
+            || e.getPostalAddress().toLowerCase().contains(lower)
+            || e.getNote().toLowerCase().contains(lower)) {
+          expected.add(e);
+        }
+      }
+      List<AddressEntry> found = book.searchEntry(key);
+      assertEquals(key, expected.size(), found.size());
+      assertEquals(key, expected, new HashSet<AddressEntry>(found));
+    }
+  }
+
+  private static String word(Random random) {
+    String[] syllables = {"an", "be", "ca", "do", "el", "fi", "ga", "ho", "ir", "ju"};
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2 + random.nextInt(3); i++) {
+      sb.append(syllables[random.nextInt(syllables.length)]);
+    }
+    return sb.toString();
+  }
+
+  private static AddressEntry entry(String name) {
+    return new AddressEntry.Builder().contactName(name).build();
+  }
+}
@@ -0,0 +1,308 @@
+package addressbooklib;
+
+import static addressbooklib.TestEntries.person;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRecover_replaysEveryMutation() throws IOException {
+    AddressBook book = AddressBook.recover(newLog());
+    for (int i = 0; i < 20; i++) {
+      book.addEntry(person(i));
+    }
+    book.removeEntry(person(3));
+    book.updateEntry(person(4), b -> b.note("updated"));
+    Set<AddressEntry> expected = entries(book);
+
+    // Crash: the book is dropped without closing its log
+    AddressBook recovered = AddressBook.recover(newLog());
+    assertEquals(expected, entries(recovered));
+    assertEquals(19, expected.size());
+    recovered.close();
+  }
+
+  @Test
+  public void testRecover_asynchronousCommitKeepsSyncedRecords() throws IOException {
+    WriteAheadLog log = new WriteAheadLog.Builder(directory()).
+        synchronousCommit(false).syncBatchSize(1000).syncIntervalMillis(10000).build();
+    AddressBook book = AddressBook.recover(log);
+    for (int i = 0; i < 10; i++) {
+      book.addEntry(person(i));
+    }
+    book.sync();
+    Set<AddressEntry> expected = entries(book);
+
+    AddressBook recovered = AddressBook.recover(newLog());
+    assertEquals(expected, entries(recovered));
+    recovered.close();
+  }
+
+  @Test
+  public void testRecover_tornRecordTruncated() throws IOException {
+    AddressBook book = AddressBook.recover(newLog());
+    book.addEntry(person(1));
+    book.addEntry(person(2));
+    book.close();
+
+    Path segment = onlyFile("wal-*.log");
+    long intact = Files.size(segment);
+    // A record whose frame promises more bytes than were written before the crash
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 1, 7}));
+    }
+
+    book = AddressBook.recover(newLog());
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(person(1), person(2))), entries(book));
+    assertEquals(intact, Files.size(segment));
+    // Records appended after the truncation are read back
+    book.addEntry(person(3));
+    book.close();
+    book = AddressBook.recover(newLog());
+    assertEquals(3, entries(book).size());
+    book.close();
+  }
+
+  @Test
+  public void testRecover_corruptRecordTruncated() throws IOException {
+    AddressBook book = AddressBook.recover(newLog());
+    book.addEntry(person(1));
+    book.close();
+    Path segment = onlyFile("wal-*.log");
+    long intact = Files.size(segment);
+    book = AddressBook.recover(newLog());
+    book.addEntry(person(2));
+    book.close();
+
+    // Flip a payload byte of the second record so that its checksum fails
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xFF}), intact + 12);
+    }
+    book = AddressBook.recover(newLog());
+    assertEquals(Collections.singleton(person(1)), entries(book));
+    assertEquals(intact, Files.size(segment));
+    book.close();
+  }
+
+  @Test
+  public void testCheckpoint_recoversCheckpointAndLaterLog() throws IOException {
+    AddressBook book = AddressBook.recover(newLog());
+    for (int i = 0; i < 10; i++) {
+      book.addEntry(person(i));
+    }
+    book.checkpoint();
+    book.removeEntry(person(0));
+    book.addEntry(person(10));
+    Set<AddressEntry> expected = entries(book);
+
+    // Only the newest segment and its checkpoint are kept
+    assertEquals(1, files("wal-*.log").size());
+    assertEquals(1, files("checkpoint-*.snap").size());
+    AddressBook recovered = AddressBook.recover(newLog());
+    assertEquals(expected, entries(recovered));
+    recovered.close();
+  }
+
+  @Test
+  public void testImport_laterChangesRecoveredOverImport() throws IOException {
+    AddressBook source = new AddressBook();
+    source.addEntry(person(100));
+    source.addEntry(person(101));
+    String file = folder.getRoot().toPath().resolve("import.tsv").toString();
+    source.exportAddressBook(file);
+
+    AddressBook book = AddressBook.recover(newLog());
+    book.addEntry(person(1));
+    book.importAddressBook(file);
+    book.addEntry(person(2));
+    Set<AddressEntry> expected = new HashSet<AddressEntry>(
+        Arrays.asList(person(100), person(101), person(2)));
+    assertEquals(expected, entries(book));
+
+    AddressBook recovered = AddressBook.recover(newLog());
+    assertEquals(expected, entries(recovered));
+    recovered.close();
+  }
+
+  @Test
+  public void testImport_crashBeforeOldFilesDropped() throws IOException {
+    WriteAheadLog log = newLog();
+    AddressBook book = AddressBook.recover(log);
+    book.addEntry(person(1));
+
+    // An import whose checkpoint is installed, followed by a change, then a crash
+    // before the superseded segment is deleted
+    Path prepared = log.prepareCheckpoint(Arrays.asList(person(100)));
+    log.startCheckpoint(prepared);
+    log.logAdd(person(2));
+    assertEquals(2, files("wal-*.log").size());
+
+    AddressBook recovered = AddressBook.recover(newLog());
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(person(100), person(2))),
+        entries(recovered));
+    recovered.close();
+  }
+
+  @Test
+  public void testImport_crashBeforeCheckpointInstalled() throws IOException {
+    WriteAheadLog log = newLog();
+    AddressBook book = AddressBook.recover(log);
+    book.addEntry(person(1));
+    log.prepareCheckpoint(Arrays.asList(person(100)));
+
+    AddressBook recovered = AddressBook.recover(newLog());
+    assertEquals(Collections.singleton(person(1)), entries(recovered));
+    assertTrue(files("checkpoint-*").isEmpty());
+    recovered.close();
+  }
+
+  @Test
+  public void testAppendFailure_leavesTheBookUnchanged() throws IOException {
+    WriteAheadLog log = newLog();
+    AddressBook book = AddressBook.recover(log);
+    book.addEntry(person(1));
+    book.addEntry(person(2));
+    log.close();
+
+    try {
+      book.addEntry(person(3));
+      fail("unlogged add applied");
+    } catch (UncheckedIOException e) {
+      // expected
+    }
+    try {
+      book.removeEntry(person(1));
+      fail("unlogged remove applied");
+    } catch (UncheckedIOException e) {
+      // expected
+    }
+    try {
+      book.updateEntry(person(2), b -> b.note("updated"));
+      fail("unlogged update applied");
+    } catch (UncheckedIOException e) {
+      // expected
+    }
+    assertEquals(new HashSet<AddressEntry>(Arrays.asList(person(1), person(2))), entries(book));
+    assertTrue(book.searchEntry("Person 3").isEmpty());
+    assertEquals(1, book.findByPhoneNumber("2120000001").size());
+    assertTrue(book.searchEntry(AddressField.NOTE, "updated").isEmpty());
+  }
+
+  @Test
+  public void testRecover_mergeLoggedAsOneRecord() throws IOException {
+    AddressBook book = AddressBook.recover(newLog());
+    for (int i = 0; i < 5; i++) {
+      book.addEntry(person(i));
+    }
+    for (String name: new String[] {"John Smith", "JOHN SMITH", "Jonh Smith"}) {
+      book.addEntry(john(name));
+    }
+    DeduplicationReport report = book.deduplicate();
+    assertEquals(2, report.getEntriesRemoved());
+    Set<AddressEntry> expected = entries(book);
+
+    final int[] counts = new int[4];
+    WriteAheadLog log = newLog();
+    log.replay(new WriteAheadLog.Replayer() {
+      public void add(AddressEntry entry) {
+        counts[0]++;
+      }
+
+      public void remove(AddressEntry entry) {
+        counts[1]++;
+      }
+
+      public void update(AddressEntry oldEntry, AddressEntry newEntry) {
+        counts[2]++;
+      }
+
+      public void merge(List<AddressEntry> cluster, AddressEntry merged) {
+        assertEquals(3, cluster.size());
+        assertEquals(report.getMergedEntries().get(0), merged);
+        counts[3]++;
+      }
+    });
+    log.close();
+    assertArrayEquals(new int[] {8, 0, 0, 1}, counts);
+
+    AddressBook recovered = AddressBook.recover(newLog());
+    assertEquals(expected, entries(recovered));
+    assertEquals(1, recovered.findByEmailAddress("john@acme.com").size());
+    recovered.close();
+  }
+
+  @Test
+  public void testAppendFailure_deduplicateLeavesTheBookUnchanged() throws IOException {
+    WriteAheadLog log = newLog();
+    AddressBook book = AddressBook.recover(log);
+    book.addEntry(john("John Smith"));
+    book.addEntry(john("JOHN SMITH"));
+    Set<AddressEntry> before = entries(book);
+    log.close();
+
+    try {
+      book.deduplicate();
+      fail("unlogged merge applied");
+    } catch (UncheckedIOException e) {
+      // expected
+    }
+    assertEquals(before, entries(book));
+    assertEquals(2, book.findByEmailAddress("john@acme.com").size());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testAppend_beforeReplayRejected() throws IOException {
+    newLog().logAdd(person(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidBatchSizeRejected() {
+    new WriteAheadLog.Builder(directory()).syncBatchSize(0);
+  }
+
+  private static AddressEntry john(String name) {
+    return new AddressEntry.Builder().contactName(name).postalAddress("1 Main St").
+        phoneNumber("2125550100").emailAddress("john@acme.com").build();
+  }
+
+  private WriteAheadLog newLog() throws IOException {
+    return new WriteAheadLog.Builder(directory()).build();
+  }
+
+  private String directory() {
+    return folder.getRoot().toPath().resolve("wal").toString();
+  }
+
+  private List<Path> files(String glob) throws IOException {
+    List<Path> files = new ArrayList<Path>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directory()), glob)) {
+      for (Path file: stream) {
+        files.add(file);
+      }
+    }
+    return files;
+  }
+
+  private Path onlyFile(String glob) throws IOException {
+    List<Path> files = files(glob);
+    assertEquals(1, files.size());
+    return files.get(0);
+  }
+
+  private static Set<AddressEntry> entries(AddressBook book) {
+    return new HashSet<AddressEntry>(book.listEntries(null, 1000));
+  }
+}